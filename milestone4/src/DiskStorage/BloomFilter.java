@@ -0,0 +1,113 @@
+package DiskStorage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over hash ring tokens.
+ *
+ * <p>
+ * Keys are already hashed with MD5 to find their ring position, so the filter
+ * derives its bit positions from the two 64-bit halves of that token by double
+ * hashing instead of hashing the key again. A negative answer is exact, a
+ * positive one is wrong with roughly the configured false-positive rate.
+ * </p>
+ */
+public class BloomFilter {
+
+    public static final int DEFAULT_BITS_PER_KEY = 10;     // about 1% false positives
+
+    private final long[] words;
+    private final int numHashes;
+    private final long numBits;
+
+    private BloomFilter(long[] words, int numHashes){
+        this.words = words;
+        this.numHashes = numHashes;
+        this.numBits = (long) words.length * 64;
+    }
+
+    /**
+     * @param expectedKeys number of keys the filter is sized for
+     * @param bitsPerKey filter bits per key, more bits lower the false-positive rate
+     */
+    public BloomFilter(int expectedKeys, int bitsPerKey){
+        this(new long[(int) Math.max(1, ((long) Math.max(1, expectedKeys) * bitsPerKey + 63) / 64)],
+                Math.max(1, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    private static long low(BigInteger token){
+        return token.longValue();
+    }
+
+    private static long high(BigInteger token){
+        return token.shiftRight(64).longValue();
+    }
+
+    private long bit(long h1, long h2, int i){
+        long combined = h1 + i * h2;
+        return (combined & Long.MAX_VALUE) % numBits;
+    }
+
+    public void add(BigInteger token){
+        add(low(token), high(token));
+    }
+
+    /**
+     * Add a token given as its low and high 64-bit halves.
+     */
+    public void add(long h1, long h2){
+        for (int i = 0; i < numHashes; i++){
+            long bit = bit(h1, h2, i);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the token was definitely never added
+     */
+    public boolean mightContain(BigInteger token){
+        long h1 = low(token);
+        long h2 = high(token);
+        for (int i = 0; i < numHashes; i++){
+            long bit = bit(h1, h2, i);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of bytes {@link #writeTo} produces
+     */
+    public int serializedSize(){
+        return 8 + words.length * 8;
+    }
+
+    /**
+     * Write the filter as hash count (int), word count (int) and the bit words.
+     */
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(numHashes);
+        output.writeInt(words.length);
+        for (long word : words){
+            output.writeLong(word);
+        }
+    }
+
+    public static BloomFilter readFrom(ByteBuffer buffer) throws IOException {
+        int numHashes = buffer.getInt();
+        int numWords = buffer.getInt();
+        if (numHashes <= 0 || numWords <= 0 || numWords > buffer.remaining() / 8){
+            throw new IOException("Corrupted bloom filter");
+        }
+        long[] words = new long[numWords];
+        for (int i = 0; i < numWords; i++){
+            words[i] = buffer.getLong();
+        }
+        return new BloomFilter(words, numHashes);
+    }
+}
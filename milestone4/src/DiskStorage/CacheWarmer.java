@@ -0,0 +1,230 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps a snapshot of the hottest cache keys on disk and preloads them into
+ * the cache of a restarted server.
+ *
+ * <p>
+ * Only keys are written, values are read back from the storage on preload, so
+ * a snapshot can never bring back a stale or deleted value. The snapshot is
+ * rewritten every <code>interval</code> ms by a background thread and on
+ * {@link #close}. {@link #start} preloads the previous snapshot on that same
+ * thread, hottest key first, while the server already accepts requests. File
+ * layout (big endian):
+ * <ul>
+ * <li>magic (int) </li>
+ * <li>keys: key length (short), key bytes; key length -1 ends the list </li>
+ * <li>CRC32 of everything above (long) </li>
+ * </ul>
+ * The file is written to a temporary file and renamed into place.
+ * </p>
+ */
+public class CacheWarmer {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4b56484b;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_KEYS = 1000;
+    public static final int DEFAULT_INTERVAL = 60000;
+
+    private final CachedDiskStorage storage;
+    private final File file;
+    private final int keys;
+    private final int interval;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int preloaded;
+    private volatile boolean warm;          // warm-up finished
+
+    /**
+     * @param storage cached storage whose cache is snapshotted and warmed
+     * @param file snapshot file
+     * @param keys maximum number of keys in a snapshot
+     * @param interval ms between snapshots
+     */
+    public CacheWarmer(CachedDiskStorage storage, File file, int keys, int interval){
+        this.storage = storage;
+        this.file = file;
+        this.keys = keys;
+        this.interval = interval;
+    }
+
+    /**
+     * Write the hottest keys of a list to a snapshot file.
+     */
+    public static void write(File file, List<String> hotKeys) throws IOException {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), new CRC32());
+        DataOutputStream output = new DataOutputStream(checked);
+        try {
+            output.writeInt(MAGIC);
+            for (String key : hotKeys){
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                output.writeShort(keyBytes.length);
+                output.write(keyBytes);
+            }
+            output.writeShort(-1);
+            output.writeLong(checked.getChecksum().getValue());
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(file)){
+            throw new IOException("Unable to replace hot key snapshot " + file.getPath());
+        }
+    }
+
+    /**
+     * @return keys of a snapshot file, hottest first; empty if there is no valid snapshot
+     */
+    public static List<String> read(File file){
+        List<String> hotKeys = new ArrayList<String>();
+        if (!file.exists()){
+            return hotKeys;
+        }
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), new CRC32());
+            DataInputStream input = new DataInputStream(checked);
+            try {
+                if (input.readInt() != MAGIC){
+                    throw new IOException("Bad hot key snapshot magic");
+                }
+                int keyLength;
+                while ((keyLength = input.readShort()) >= 0){
+                    byte[] keyBytes = new byte[keyLength];
+                    input.readFully(keyBytes);
+                    hotKeys.add(new String(keyBytes, StandardCharsets.UTF_8));
+                }
+                long crc = checked.getChecksum().getValue();
+                if (input.readLong() != crc){
+                    throw new IOException("Hot key snapshot CRC mismatch");
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e){
+            logger.error("Ignoring invalid hot key snapshot " + file.getPath() + ": " + e.getMessage());
+            hotKeys.clear();
+        }
+        return hotKeys;
+    }
+
+    /**
+     * Preload the previous snapshot in the background, then keep snapshotting.
+     */
+    public synchronized void start(){
+        if (thread != null){
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                preload();
+                while (running){
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e){
+                        break;
+                    }
+                    if (running){
+                        snapshot();
+                    }
+                }
+            }
+        }, "cache-warmer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void preload(){
+        List<String> hotKeys = read(file);
+        int loaded = 0;
+        for (String key : hotKeys){
+            if (!running){
+                break;
+            }
+            try {
+                if (storage.warm(key)){
+                    loaded++;
+                }
+            } catch (Exception e){
+                logger.error("Unable to preload key " + key, e);
+            }
+            preloaded = loaded;
+        }
+        warm = true;
+        logger.info("Cache warm-up loaded " + loaded + " of " + hotKeys.size() + " hot keys from " + file.getPath());
+    }
+
+    /**
+     * Write the current hottest cache keys.
+     */
+    public void snapshot(){
+        try {
+            write(file, storage.getCache().hottestKeys(keys));
+        } catch (IOException e){
+            logger.error("Unable to write hot key snapshot " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * @return number of keys loaded into the cache by the warm-up so far
+     */
+    public int getPreloaded(){
+        return preloaded;
+    }
+
+    /**
+     * Wait for the warm-up to finish.
+     *
+     * @return true if it finished within timeout ms
+     */
+    public boolean awaitWarm(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!warm && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        return warm;
+    }
+
+    /**
+     * Stop the background thread and write a final snapshot.
+     */
+    public void close(){
+        Thread stopped;
+        synchronized (this){
+            running = false;
+            stopped = thread;
+            thread = null;
+        }
+        if (stopped != null){
+            stopped.interrupt();
+            try {
+                stopped.join();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        snapshot();
+    }
+}
@@ -0,0 +1,132 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+import shared.cache.Cache;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+ * Write-through cache in front of a disk storage engine.
+ *
+ * <p>
+ * Gets are answered from the cache when possible and fill it on a miss. Puts
+ * and deletes reach the storage first and then update the cache, so the cache
+ * never holds a value the storage does not. Writes and miss fills of the same
+ * key are ordered by one of <code>LOCK_STRIPES</code> locks, which keeps a slow
+ * fill from caching a value an overlapping write already replaced; cache hits
+ * take no lock besides the cache monitor. Range and full scans bypass the cache.
+ * </p>
+ */
+public class CachedDiskStorage implements DiskStorageInterface {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final int LOCK_STRIPES = 64;
+
+    private final DiskStorageInterface storage;
+    private final Cache cache;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public CachedDiskStorage(DiskStorageInterface storage, Cache cache){
+        this.storage = storage;
+        this.cache = cache;
+        for (int i = 0; i < LOCK_STRIPES; i++){
+            locks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String key){
+        return locks[ShardedDiskStorage.shardOf(key, LOCK_STRIPES)];
+    }
+
+    public Cache getCache(){
+        return cache;
+    }
+
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        synchronized (lockFor(key)){
+            if (!storage.put(key, value)){
+                cache.remove(key);
+                return false;
+            }
+            cache.put(key, value);
+            return true;
+        }
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        String value = cache.get(key);
+        if (value != null){
+            return value;
+        }
+        synchronized (lockFor(key)){
+            value = storage.get(key);
+            if (value != null){
+                cache.put(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Load a key into the cache ahead of its first request, without counting
+     * a cache access.
+     *
+     * @return true if the key was loaded, false if it is cached already or not stored
+     */
+    public boolean warm(String key) throws Exception {
+        synchronized (lockFor(key)){
+            if (cache.contains(key)){
+                return false;
+            }
+            String value = storage.get(key);
+            if (value == null){
+                return false;
+            }
+            cache.put(key, value);
+            return true;
+        }
+    }
+
+    @Override
+    public void clearDisk(){
+        storage.clearDisk();
+        cache.clear();
+    }
+
+    @Override
+    public boolean delelteKV(String key){
+        synchronized (lockFor(key)){
+            cache.remove(key);
+            return storage.delelteKV(key);
+        }
+    }
+
+    @Override
+    public boolean onDisk(String key){
+        return cache.contains(key) || storage.onDisk(key);
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
+        return storage.getKVOutOfRange(start, stop);
+    }
+
+    @Override
+    public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop){
+        return storage.getKVWithinRange(start, stop);
+    }
+
+    @Override
+    public Map<String, String> getAllKV(){
+        return storage.getAllKV();
+    }
+
+    @Override
+    public void close(){
+        logger.info("Closing cached storage: " + cache);
+        storage.close();
+    }
+}
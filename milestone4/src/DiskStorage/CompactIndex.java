@@ -0,0 +1,390 @@
+package DiskStorage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Map from key to a 64-bit {@link LogPointer} with keys stored inline in
+ * primitive arrays.
+ *
+ * <p>
+ * A <code>ConcurrentHashMap&lt;String, Long&gt;</code> spends well over 100
+ * bytes per key on the map node, the String, its byte array and the boxed
+ * Long. Here every slot of an open-addressing table takes four longs: three
+ * hold the key's UTF-8 bytes prefixed by their length (keys are at most 20
+ * bytes, see <code>KVMessageClass.MAX_KEY_SIZE</code>) and one holds the
+ * pointer, i.e. 32 bytes per slot and about 38 bytes per key at the maximum
+ * load factor, with no objects per entry. Longer keys, which the protocol
+ * never sends, go to a small overflow map.
+ * </p>
+ *
+ * <p>
+ * Collisions are resolved by linear probing and removals shift the following
+ * entries back, so there are no tombstones. The index is split into
+ * <code>SEGMENTS</code> tables by key hash, each with its own read-write lock
+ * and growing on its own, so lookups run in parallel and a resize only stops
+ * one segment. The pointer value -1 is reserved for "absent".
+ * </p>
+ */
+public class CompactIndex {
+
+    public static final long NO_POINTER = -1;
+    public static final int MAX_INLINE_KEY = 23;             // key bytes fitting in a slot besides the length byte
+    private static final int WORDS_PER_KEY = 3;
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_SLOTS = 64;
+    private static final double MAX_LOAD = 0.85;
+
+    /**
+     * Visits index entries, see {@link #forEach}.
+     */
+    public interface Visitor {
+        void visit(String key, long pointer);
+    }
+
+    private static final class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        long[] keys;                // WORDS_PER_KEY words per slot, word 0 is 0 for an empty slot
+        long[] pointers;
+        int size;
+        final Map<String, Long> overflow = new HashMap<String, Long>();
+
+        Segment(int slots){
+            allocate(slots);
+        }
+
+        void allocate(int slots){
+            keys = new long[slots * WORDS_PER_KEY];
+            pointers = new long[slots];
+            size = 0;
+        }
+
+        int mask(){
+            return pointers.length - 1;
+        }
+
+        /**
+         * @return slot holding the key, or -(empty slot + 1) where it would go
+         */
+        int find(long[] key, int hash){
+            int mask = mask();
+            int slot = hash & mask;
+            while (true){
+                int base = slot * WORDS_PER_KEY;
+                if (keys[base] == 0){
+                    return -(slot + 1);
+                }
+                if (keys[base] == key[0] && keys[base + 1] == key[1] && keys[base + 2] == key[2]){
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void set(int slot, long[] key, long pointer){
+            int base = slot * WORDS_PER_KEY;
+            keys[base] = key[0];
+            keys[base + 1] = key[1];
+            keys[base + 2] = key[2];
+            pointers[slot] = pointer;
+        }
+
+        void grow(){
+            long[] oldKeys = keys;
+            long[] oldPointers = pointers;
+            allocate(oldPointers.length * 2);
+            long[] key = new long[WORDS_PER_KEY];
+            for (int slot = 0; slot < oldPointers.length; slot++){
+                int base = slot * WORDS_PER_KEY;
+                if (oldKeys[base] == 0){
+                    continue;
+                }
+                System.arraycopy(oldKeys, base, key, 0, WORDS_PER_KEY);
+                set(-find(key, hash(key)) - 1, key, oldPointers[slot]);
+                size++;
+            }
+        }
+
+        /**
+         * Empty a slot and move back entries of the probe run behind it that
+         * could not be stored at their home slot.
+         */
+        void delete(int slot){
+            int mask = mask();
+            long[] key = new long[WORDS_PER_KEY];
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (keys[next * WORDS_PER_KEY] != 0){
+                System.arraycopy(keys, next * WORDS_PER_KEY, key, 0, WORDS_PER_KEY);
+                int home = hash(key) & mask;
+                // move the entry unless its home lies cyclically in (hole, next]
+                boolean reachable = (hole <= next) ? (hole < home && home <= next) : (hole < home || home <= next);
+                if (!reachable){
+                    set(hole, key, pointers[next]);
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            int base = hole * WORDS_PER_KEY;
+            keys[base] = 0;
+            keys[base + 1] = 0;
+            keys[base + 2] = 0;
+            size--;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public CompactIndex(){
+        for (int i = 0; i < SEGMENTS; i++){
+            segments[i] = new Segment(INITIAL_SLOTS);
+        }
+    }
+
+    /**
+     * Pack a key into slot words: length + 1 in the first byte, then the
+     * UTF-8 bytes, big endian and zero padded.
+     *
+     * @return slot words, null if the key is too long to be stored inline
+     */
+    private static long[] encode(String key){
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_INLINE_KEY){
+            return null;
+        }
+        long[] words = new long[WORDS_PER_KEY];
+        words[0] = (long) (bytes.length + 1) << 56;
+        for (int i = 0; i < bytes.length; i++){
+            int position = i + 1;
+            words[position >> 3] |= (bytes[i] & 0xffL) << (56 - 8 * (position & 7));
+        }
+        return words;
+    }
+
+    private static String decode(long[] keys, int base){
+        int length = (int) (keys[base] >>> 56) - 1;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++){
+            int position = i + 1;
+            bytes[i] = (byte) (keys[base + (position >> 3)] >>> (56 - 8 * (position & 7)));
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int hash(long[] key){
+        long h = key[0] * 0x9E3779B97F4A7C15L ^ key[1] * 0xC2B2AE3D27D4EB4FL ^ key[2] * 0x165667B19E3779F9L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private Segment segmentFor(int hash){
+        return segments[(hash >>> 28) & (SEGMENTS - 1)];
+    }
+
+    private Segment segmentFor(String key){
+        return segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENTS];
+    }
+
+    /**
+     * @return pointer of the key, NO_POINTER if absent
+     */
+    public long get(String key){
+        long[] words = encode(key);
+        Segment segment = (words == null) ? segmentFor(key) : segmentFor(hash(words));
+        segment.lock.readLock().lock();
+        try {
+            if (words == null){
+                Long pointer = segment.overflow.get(key);
+                return (pointer == null) ? NO_POINTER : pointer;
+            }
+            int slot = segment.find(words, hash(words));
+            return (slot < 0) ? NO_POINTER : segment.pointers[slot];
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(String key){
+        return get(key) != NO_POINTER;
+    }
+
+    /**
+     * @return previous pointer of the key, NO_POINTER if it was absent
+     */
+    public long put(String key, long pointer){
+        if (pointer == NO_POINTER){
+            throw new IllegalArgumentException("Pointer " + NO_POINTER + " is reserved");
+        }
+        long[] words = encode(key);
+        Segment segment = (words == null) ? segmentFor(key) : segmentFor(hash(words));
+        segment.lock.writeLock().lock();
+        try {
+            if (words == null){
+                Long old = segment.overflow.put(key, pointer);
+                return (old == null) ? NO_POINTER : old;
+            }
+            int hash = hash(words);
+            int slot = segment.find(words, hash);
+            if (slot >= 0){
+                long old = segment.pointers[slot];
+                segment.pointers[slot] = pointer;
+                return old;
+            }
+            if (segment.size + 1 > segment.pointers.length * MAX_LOAD){
+                segment.grow();
+                slot = segment.find(words, hash);
+            }
+            segment.set(-slot - 1, words, pointer);
+            segment.size++;
+            return NO_POINTER;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Point a key at a new location only if it still points at the expected one.
+     *
+     * @return true if the pointer was replaced
+     */
+    public boolean replace(String key, long expected, long pointer){
+        long[] words = encode(key);
+        Segment segment = (words == null) ? segmentFor(key) : segmentFor(hash(words));
+        segment.lock.writeLock().lock();
+        try {
+            if (words == null){
+                Long current = segment.overflow.get(key);
+                if (current == null || current != expected){
+                    return false;
+                }
+                segment.overflow.put(key, pointer);
+                return true;
+            }
+            int slot = segment.find(words, hash(words));
+            if (slot < 0 || segment.pointers[slot] != expected){
+                return false;
+            }
+            segment.pointers[slot] = pointer;
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return removed pointer, NO_POINTER if the key was absent
+     */
+    public long remove(String key){
+        long[] words = encode(key);
+        Segment segment = (words == null) ? segmentFor(key) : segmentFor(hash(words));
+        segment.lock.writeLock().lock();
+        try {
+            if (words == null){
+                Long old = segment.overflow.remove(key);
+                return (old == null) ? NO_POINTER : old;
+            }
+            int slot = segment.find(words, hash(words));
+            if (slot < 0){
+                return NO_POINTER;
+            }
+            long old = segment.pointers[slot];
+            segment.delete(slot);
+            return old;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    public int size(){
+        int size = 0;
+        for (Segment segment : segments){
+            segment.lock.readLock().lock();
+            try {
+                size += segment.size + segment.overflow.size();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    public void clear(){
+        for (Segment segment : segments){
+            segment.lock.writeLock().lock();
+            try {
+                segment.allocate(INITIAL_SLOTS);
+                segment.overflow.clear();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Visit every entry. Each segment is copied under its lock and visited
+     * after releasing it, so the visitor may use the index; entries changed
+     * meanwhile may or may not be seen.
+     */
+    public void forEach(Visitor visitor){
+        for (Segment segment : segments){
+            List<String> keys = new ArrayList<String>();
+            long[] pointers;
+            segment.lock.readLock().lock();
+            try {
+                pointers = new long[segment.size + segment.overflow.size()];
+                for (int slot = 0; slot < segment.pointers.length; slot++){
+                    int base = slot * WORDS_PER_KEY;
+                    if (segment.keys[base] != 0){
+                        pointers[keys.size()] = segment.pointers[slot];
+                        keys.add(decode(segment.keys, base));
+                    }
+                }
+                for (Map.Entry<String, Long> entry : segment.overflow.entrySet()){
+                    pointers[keys.size()] = entry.getValue();
+                    keys.add(entry.getKey());
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+            for (int i = 0; i < keys.size(); i++){
+                visitor.visit(keys.get(i), pointers[i]);
+            }
+        }
+    }
+
+    /**
+     * @return snapshot of all keys
+     */
+    public List<String> keys(){
+        final List<String> keys = new ArrayList<String>();
+        forEach(new Visitor() {
+            @Override
+            public void visit(String key, long pointer) {
+                keys.add(key);
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * @return bytes taken by the slot arrays, without the overflow map
+     */
+    public long getTableBytes(){
+        long bytes = 0;
+        for (Segment segment : segments){
+            segment.lock.readLock().lock();
+            try {
+                bytes += 8L * (segment.keys.length + segment.pointers.length);
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+}
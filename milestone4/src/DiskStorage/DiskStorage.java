@@ -5,34 +5,73 @@ import java.util.*;
 
 import java.io.*;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DiskStorage implements DiskStorageInterface{
 
     /**
      * Input: This should have a list of KV pairs as inputs or single KV pairs
      * Ouput: return value or error messages for get requests
+     *
+     * Every put and delete is appended to a write-ahead log (<code>&lt;file&gt;.wal</code>)
+     * before it is acknowledged. The whole map is only written to the properties
+     * file on checkpoints. A checkpoint triggered by writes rotates the log to
+     * <code>&lt;file&gt;.wal.old</code> under the monitor and writes the map on a
+     * background thread, which deletes the rotated log once the properties file is
+     * in place, so writers never wait for the file. The map may already hold writes
+     * of the new log, which replay simply applies again. On startup the properties
+     * file is loaded and the rotated and current logs are replayed on top of it.
+     *
+     * Writes are serialized on the monitor because they share the write-ahead log,
+     * reads go straight to the concurrent map without taking it.
      * **/
 
     private static Logger logger = Logger.getRootLogger();
+    private static final int CHECKPOINT_RECORDS = 10000;        // checkpoint after this many logged writes
     private Map<String, String> LookUpTable;
+    private final RingIndex ringIndex = new RingIndex();    // keys ordered by hash ring position
 
     private String dir = "./data";
     private String fileName;
     private File storageFile;
 
+    // write-ahead log
+    private LogSegment wal;
+    private GroupCommit groupCommit;
+    private long nextSeq;
+    private int walRecords;
+    private volatile int compressionThreshold;              // value bytes from which logged values are compressed, 0 for never
+    private File walFile;
+    private File oldWalFile;                                // rotated log covered by a running checkpoint
+    private Thread checkpointThread;                        // background checkpoint, null if none started
+    private final Object checkpointLock = new Object();     // serializes writes of the properties file
+    private final Object walLock = new Object();            // keeps fsyncs off a log being rotated
+
     public DiskStorage(String serverName){
         this.fileName = "persistanceDB.properties"+"."+serverName;
         initalizeFile();
-        Map<String, String>new_map = new HashMap<String, String>();
-        this.LookUpTable = Collections.synchronizedMap(new_map);
+        this.LookUpTable = new ConcurrentHashMap<String, String>();
+        initalizeWal(FsyncPolicy.INTERVAL, GroupCommit.DEFAULT_SYNC_INTERVAL, false);
     }
 
     public DiskStorage(String filePrefix, String serverName){
+        this(filePrefix, serverName, FsyncPolicy.INTERVAL, GroupCommit.DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param filePrefix prefix of the properties file under ./data
+     * @param serverName KVServer name in the format of ip:port
+     * @param fsyncPolicy when write-ahead log writes are forced to disk
+     * @param syncInterval ms between background fsyncs for <code>FsyncPolicy.INTERVAL</code>
+     */
+    public DiskStorage(String filePrefix, String serverName, FsyncPolicy fsyncPolicy, int syncInterval){
         this.fileName = filePrefix+"."+serverName;
         initalizeFile();
-        this.LookUpTable = Collections.synchronizedMap(loadHashMapFromFile());
+        this.LookUpTable = new ConcurrentHashMap<String, String>(loadHashMapFromFile());
+        for (String key : this.LookUpTable.keySet()){
+            ringIndex.add(key);
+        }
+        initalizeWal(fsyncPolicy, syncInterval, true);
     }
 
     /**
@@ -65,11 +104,62 @@ public class DiskStorage implements DiskStorageInterface{
         }
     }
 
+    /**
+     * Open the write-ahead log, replay it on top of the loaded map (or discard
+     * it when starting from an empty map) and checkpoint the result.
+     */
+    private synchronized void initalizeWal(FsyncPolicy fsyncPolicy, int syncInterval, boolean replay){
+        try {
+            this.walFile = new File(this.dir+'/'+this.fileName+".wal");
+            this.oldWalFile = new File(this.dir+'/'+this.fileName+".wal.old");
+            if (replay && oldWalFile.exists()){
+                // a background checkpoint did not complete, its log comes before the current one
+                LogSegment oldWal = LogSegment.open(oldWalFile);
+                replay(oldWal);
+                oldWal.close();
+            }
+            this.wal = LogSegment.open(walFile);
+            if (replay){
+                replay(wal);
+            }
+            this.groupCommit = new GroupCommit(fsyncPolicy, syncInterval, new GroupCommit.Syncable() {
+                @Override
+                public void sync() throws IOException {
+                    synchronized (walLock){
+                        wal.force();
+                    }
+                }
+            }, this.fileName);
+            checkpoint();
+        } catch (IOException e){
+            logger.error("Error initializing write-ahead log", e);
+        }
+    }
+
+    private void replay(LogSegment log) throws IOException {
+        long validEnd = log.scan(new LogSegment.RecordVisitor() {
+            @Override
+            public void visit(LogRecord record, long offset) {
+                if (record.isTombstone()){
+                    LookUpTable.remove(record.getKey());
+                    ringIndex.remove(record.getKey());
+                }
+                else {
+                    LookUpTable.put(record.getKey(), record.getValue());
+                    ringIndex.add(record.getKey());
+                }
+            }
+        });
+        if (validEnd > 0){
+            logger.info("Replayed " + validEnd + " bytes of write-ahead log");
+        }
+    }
+
     private synchronized Map<String,String>loadHashMapFromFile(){
         Map<String, String> lookUpTableContent = new HashMap<String, String>();
         Properties properties = new Properties();
-        try{
-            properties.load(new FileInputStream(this.dir+'/'+this.fileName));
+        try (FileInputStream input = new FileInputStream(this.dir+'/'+this.fileName)){
+            properties.load(input);
             for (String key : properties.stringPropertyNames()) {
                 lookUpTableContent.put(key, properties.get(key).toString());
             }
@@ -80,27 +170,138 @@ public class DiskStorage implements DiskStorageInterface{
         return lookUpTableContent;
     }
 
-    private synchronized void storeMapDataIntoFile(){
+    /**
+     * Write the whole map into a temporary file and atomically rename it over
+     * the properties file. Caller must hold the checkpoint lock.
+     */
+    private void storeMapDataIntoFile() throws IOException {
         Properties properties = new Properties();
 
         for (Map.Entry<String,String> entry : this.LookUpTable.entrySet()) {
             properties.put(entry.getKey(), entry.getValue());
         }
-        try{
-            properties.store(new FileOutputStream(this.dir+'/'+this.fileName), null);
-        }catch (IOException e){
-            logger.error("Error saving file content");
+        File tmpFile = new File(this.dir+'/'+this.fileName+".tmp");
+        try (FileOutputStream output = new FileOutputStream(tmpFile)){
+            properties.store(output, null);
+            if (groupCommit.getPolicy() != FsyncPolicy.OS){
+                output.getFD().sync();
+            }
+        }
+        if (!tmpFile.renameTo(this.storageFile)){
+            throw new IOException("Unable to replace " + this.storageFile.getPath());
+        }
+    }
+
+    /**
+     * Persist the whole map into the properties file and truncate the write-ahead log,
+     * after any background checkpoint has finished. Caller must hold the monitor.
+     */
+    private void checkpoint() throws IOException {
+        awaitCheckpoint();
+        synchronized (checkpointLock){
+            storeMapDataIntoFile();
+            wal.truncate(0);
+            oldWalFile.delete();
+        }
+        walRecords = 0;
+    }
+
+    private void awaitCheckpoint(){
+        if (checkpointThread != null){
+            try {
+                checkpointThread.join();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            checkpointThread = null;
+        }
+    }
+
+    /**
+     * Rotate the write-ahead log and write the properties file on a background
+     * thread. Caller must hold the monitor. The rotated log is made durable
+     * first, since group commit waiters of its writes are served by syncs of
+     * the new log.
+     */
+    private void startCheckpoint() throws IOException {
+        if ((checkpointThread != null && checkpointThread.isAlive()) || oldWalFile.exists()){
+            return;     // the log keeps growing until the previous checkpoint is in place
+        }
+        checkpointThread = null;
+        synchronized (walLock){
+            wal.force();
+            wal.close();
+            boolean rotated = walFile.renameTo(oldWalFile);
+            wal = LogSegment.open(walFile);
+            if (!rotated){
+                throw new IOException("Unable to rotate " + walFile.getPath());
+            }
         }
+        walRecords = 0;
+        checkpointThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                synchronized (checkpointLock){
+                    try {
+                        storeMapDataIntoFile();
+                        oldWalFile.delete();
+                    } catch (IOException e){
+                        // the rotated log stays and is replayed on startup
+                        logger.error("Error writing checkpoint of " + fileName, e);
+                        return;
+                    }
+                }
+                logger.info("Checkpoint of " + fileName + " written in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        }, "wal-checkpoint-" + this.fileName);
+        checkpointThread.setDaemon(true);
+        checkpointThread.start();
+    }
+
+    /**
+     * Append a put (or a delete if val is null) to the write-ahead log.
+     * Caller must hold the monitor.
+     *
+     * @return group commit ticket of the write
+     */
+    private long logWrite(String key, String val) throws IOException {
+        wal.append(LogRecord.encode(nextSeq++, key, val, compressionThreshold));
+        long ticket = groupCommit.written();
+        walRecords++;
+        return ticket;
+    }
+
+    private void checkpointIfNeeded() throws IOException {
+        if (walRecords >= CHECKPOINT_RECORDS){
+            startCheckpoint();
+        }
+    }
 
+    /**
+     * Compress values of at least the given size in bytes before they are
+     * written to the write-ahead log. The properties file keeps plain values.
+     *
+     * @param compressionThreshold UTF-8 value bytes from which values are compressed, 0 to never compress
+     */
+    public void setCompressionThreshold(int compressionThreshold){
+        this.compressionThreshold = compressionThreshold;
     }
 
     @Override
-    public synchronized boolean put(String key, String val){
+    public boolean put(String key, String val){
         //update the value
         try{
-            this.LookUpTable.put(key,val);
+            long ticket;
+            synchronized (this){
+                ticket = logWrite(key, val);
+                this.LookUpTable.put(key,val);
+                ringIndex.add(key);
+                checkpointIfNeeded();
+            }
+            // wait for fsync outside of the monitor so concurrent writers share it
+            groupCommit.await(ticket);
             logger.info("Successfully Inserted KV pair of: " + key+'-'+val);
-            storeMapDataIntoFile();
             return true;
         }catch (Exception e){
             logger.error("Error trying to insert key value pair of: "+ key+'-'+val,e);
@@ -109,7 +310,7 @@ public class DiskStorage implements DiskStorageInterface{
 
     }
     @Override
-    public synchronized String get(String key){
+    public String get(String key){
         try{
             String val = this.LookUpTable.get(key);
             if (val==null){
@@ -128,21 +329,28 @@ public class DiskStorage implements DiskStorageInterface{
     public synchronized void clearDisk() {
         try{
             this.LookUpTable.clear();
-            storeMapDataIntoFile();
+            ringIndex.clear();
+            checkpoint();
         }catch (Exception e){
             logger.error("Error trying to clear the map",e);
         }
     }
 
     @Override
-    public synchronized boolean delelteKV(String key) {
+    public boolean delelteKV(String key) {
         try {
-            String val =this.LookUpTable.remove(key);
-            if (val == null){
-                logger.info("Cannot remove non-exisitng KV pairs");
-                return false;
+            long ticket;
+            synchronized (this){
+                if (!this.LookUpTable.containsKey(key)){
+                    logger.info("Cannot remove non-exisitng KV pairs");
+                    return false;
+                }
+                ticket = logWrite(key, null);
+                this.LookUpTable.remove(key);
+                ringIndex.remove(key);
+                checkpointIfNeeded();
             }
-            storeMapDataIntoFile();
+            groupCommit.await(ticket);
             return true;
         }catch (Exception e){
             logger.error("Error trying to remove entry of key: "+key);
@@ -152,69 +360,75 @@ public class DiskStorage implements DiskStorageInterface{
     }
 
     @Override
-    public synchronized boolean onDisk(String key) {
+    public boolean onDisk(String key) {
         if(this.LookUpTable.isEmpty()){
             return false;
         }
         return this.LookUpTable.containsKey(key);
     }
 
-    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
-		Map<String, String> KVtable = Collections.synchronizedMap(loadHashMapFromFile());
-        Map<String, String> KVOutOfRange = new HashMap<String, String>();
-        for (Map.Entry<String, String> kv : KVtable.entrySet()) { 
-            String key = (String) kv.getKey(); 
-            if (!keyWithinRange(mdKey(key), start, stop)){
-                String value = (String) kv.getValue(); 
-                KVOutOfRange.put(key, value);
+    /**
+     * Snapshot of the in-memory map, which is always at least as new as the
+     * properties file since writes only reach the file on checkpoints.
+     */
+    private Map<String, String> snapshot(){
+        return new HashMap<String, String>(this.LookUpTable);
+    }
+
+    /**
+     * Look up the values of keys found in the ring index.
+     */
+    private Map<String, String> lookUp(List<String> keys){
+        Map<String, String> KVtable = new HashMap<String, String>();
+        for (String key : keys) {
+            String value = this.LookUpTable.get(key);
+            if (value != null){
+                KVtable.put(key, value);
             }
         }
-        return KVOutOfRange;
+        return KVtable;
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
+        return lookUp(ringIndex.keysOutOfRange(start, stop));
 	}
 
+    @Override
     public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop){
-		Map<String, String> KVtable = Collections.synchronizedMap(loadHashMapFromFile());
-        Map<String, String> KVWithinRange = new HashMap<String, String>();
-        for (Map.Entry<String, String> kv : KVtable.entrySet()) { 
-            String key = (String) kv.getKey(); 
-            if (keyWithinRange(mdKey(key), start, stop)){
-                String value = (String) kv.getValue(); 
-                KVWithinRange.put(key, value);
-            }
-        }
-        return KVWithinRange;
+        return lookUp(ringIndex.keysWithinRange(start, stop));
 	}
 
+    @Override
     public Map<String, String> getAllKV(){
-		return Collections.synchronizedMap(loadHashMapFromFile());
+		return Collections.synchronizedMap(snapshot());
 	}
 
+    public long getSyncCount(){
+        return groupCommit.getSyncCount();
+    }
+
+    /**
+     * Checkpoint and close the write-ahead log. The storage must not be used afterwards.
+     */
+    public synchronized void close(){
+        try {
+            checkpoint();
+        } catch (IOException e){
+            logger.error("Error checkpointing on close", e);
+        }
+        groupCommit.close();
+        wal.close();
+    }
+
     public boolean keyWithinRange (BigInteger mdKey, BigInteger start, BigInteger stop){
-        // mdKey >= start -> 0 or 1
-        // mdKey < stop -> -1
-        // START <= STOP && key > START && key < STOP
-        // START >= STOP && key > START && key > STOP
-        // START >= STOP && key < START && key < STOP
-        if ((start.compareTo(stop) !=  1) && (mdKey.compareTo(start) ==  1 && mdKey.compareTo(stop) == -1) || 
-            (start.compareTo(stop) != -1) && (mdKey.compareTo(start) ==  1 && mdKey.compareTo(stop) ==  1) || 
-            (start.compareTo(stop) != -1) && (mdKey.compareTo(start) == -1 && mdKey.compareTo(stop) == -1) )
-            return true;
-        return false;
+        return HashRange.keyWithinRange(mdKey, start, stop);
     }
 
     /**
 	 * helper function for getting MD5 hash key
-	 * may need to move to some shared class for being visible for both client and server
 	 */
 	public BigInteger mdKey (String key) {
-		MessageDigest md = null;
-        try {
-			md = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("NoSuchAlgorithmException occured!");
-		}
-        byte[] md_key = md.digest(key.getBytes());
-        BigInteger md_key_bi = new BigInteger(1, md_key);
-		return md_key_bi; 
+		return HashRange.mdKey(key);
 	}
 }
@@ -1,5 +1,8 @@
 package DiskStorage;
 
+import java.math.BigInteger;
+import java.util.Map;
+
 public interface DiskStorageInterface {
 
     boolean put(String key, String value) throws Exception;
@@ -7,4 +10,24 @@ public interface DiskStorageInterface {
     void clearDisk();
     boolean delelteKV(String key);
     boolean onDisk(String key);
+
+    /**
+     * Get all KV pairs whose key hash is outside of hash range (start, stop).
+     */
+    Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop);
+
+    /**
+     * Get all KV pairs whose key hash is within hash range (start, stop).
+     */
+    Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop);
+
+    /**
+     * Get all KV pairs in storage.
+     */
+    Map<String, String> getAllKV();
+
+    /**
+     * Flush pending writes and release files. The storage must not be used afterwards.
+     */
+    void close();
 }
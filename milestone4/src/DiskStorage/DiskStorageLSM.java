@@ -0,0 +1,875 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import DiskStorage.RingIndex.RingKey;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSM-tree disk storage for write-heavy workloads.
+ *
+ * <p>
+ * Writes go to a write-ahead log and a concurrent skip-list memtable. Once the
+ * memtable is full it is frozen, a new one takes its place, and a background
+ * thread flushes the frozen one into an immutable {@link SSTable} on level 0.
+ * Memtables and tables are sorted by {@link RingKey}, i.e. by hash ring
+ * position, so the hash range transfers of <code>KVServer.moveData</code> and
+ * <code>replicateData</code> read contiguous stretches of every table.
+ * </p>
+ *
+ * <p>
+ * Levels are merged in the background: once level 0 holds
+ * <code>L0_MERGE_TRIGGER</code> tables they are merged with level 1, and once a
+ * deeper level outgrows its size budget (10x the level above) it is merged into
+ * the next one. Every level from 1 down is one sorted run split into files of
+ * at most <code>TARGET_TABLE_SIZE</code> bytes. The set of live tables is kept
+ * in a <code>MANIFEST</code> file that is rewritten atomically on every change,
+ * so a crash during a flush or merge never exposes a half-written state.
+ * </p>
+ *
+ * <p>
+ * Every table carries a {@link BloomFilter}, so a get for a key that is not
+ * stored, e.g. the existence check before each PUT, usually completes without
+ * any file I/O.
+ * </p>
+ */
+public class DiskStorageLSM implements DiskStorageInterface {
+
+    private static Logger logger = Logger.getRootLogger();
+    public static final long DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;  // flush memtable past this many bytes
+    private static final int L0_MERGE_TRIGGER = 4;                      // merge level 0 into level 1 at this many tables
+    private static final long LEVEL_BASE_SIZE = 32 * 1024 * 1024;       // size budget of level 1
+    private static final int LEVEL_SIZE_MULTIPLIER = 10;                // each level may be 10x the one above
+    private static final long TARGET_TABLE_SIZE = 8 * 1024 * 1024;     // split merged runs into tables of this size
+    private static final int COMPACTION_CHECK_INTERVAL = 1000;          // ms between flush / merge checks
+    private static final String MANIFEST = "MANIFEST";
+    private static final String WAL_SUFFIX = ".wal";
+
+    /**
+     * Memtable with the write-ahead log that makes it durable.
+     */
+    private static final class Memtable {
+        final int id;
+        final LogSegment wal;
+        final ConcurrentSkipListMap<RingKey, LogRecord> records = new ConcurrentSkipListMap<RingKey, LogRecord>();
+        final AtomicLong bytes = new AtomicLong();
+
+        Memtable(File dir, int id) throws IOException {
+            this.id = id;
+            this.wal = LogSegment.open(walFile(dir, id));
+        }
+
+        void put(RingKey ringKey, LogRecord record){
+            records.put(ringKey, record);
+            bytes.addAndGet(SSTable.TOKEN_SIZE + record.size());
+        }
+    }
+
+    private String dir = "./data";
+    private File lsmDir;
+    private final long memtableSize;
+
+    private volatile Memtable active;                       // memtable receiving writes
+    private volatile Memtable immutable;                    // frozen memtable waiting to be flushed
+    private volatile List<List<SSTable>> levels;            // level -> tables, level 0 newest first
+    private int nextFileId;                                 // id of next memtable / table, guarded by writeLock
+    private long nextSeq;
+    private volatile int compressionThreshold;              // value bytes from which values are compressed, 0 for never
+
+    private final Object writeLock = new Object();                                  // serializes writes
+    private final Object compactionLock = new Object();                             // serializes flushes, merges and clearDisk
+    private final ReentrantReadWriteLock versionLock = new ReentrantReadWriteLock(); // guards memtables and levels
+    private final Object compactorSignal = new Object();
+    private GroupCommit groupCommit;
+
+    private Thread compactorThread;
+    private volatile boolean running;
+    private long flushCount;
+    private long mergeCount;
+
+    // Bloom filter metrics, counted per table probed by a get
+    private final AtomicLong bloomNegatives = new AtomicLong();         // table skipped without I/O
+    private final AtomicLong bloomFalsePositives = new AtomicLong();    // table read, key not there
+    private final AtomicLong bloomHits = new AtomicLong();              // table read, key found
+
+    public DiskStorageLSM(String serverName){
+        this("lsmDB", serverName, DEFAULT_MEMTABLE_SIZE, FsyncPolicy.INTERVAL, GroupCommit.DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param dirPrefix prefix of the storage directory under ./data
+     * @param serverName KVServer name in the format of ip:port
+     * @param memtableSize bytes after which the memtable is flushed to a table
+     * @param fsyncPolicy when write-ahead log writes are forced to disk
+     * @param syncInterval ms between background fsyncs for <code>FsyncPolicy.INTERVAL</code>
+     */
+    public DiskStorageLSM(String dirPrefix, String serverName, long memtableSize,
+                          FsyncPolicy fsyncPolicy, int syncInterval){
+        this.lsmDir = new File(this.dir, dirPrefix + "." + serverName);
+        this.memtableSize = memtableSize;
+        this.levels = Collections.emptyList();
+        if (!lsmDir.exists() && !lsmDir.mkdirs()){
+            logger.error("Unable to initialize database directory " + lsmDir.getPath());
+        }
+        this.groupCommit = new GroupCommit(fsyncPolicy, syncInterval, new GroupCommit.Syncable() {
+            @Override
+            public void sync() throws IOException {
+                Memtable current = active;
+                if (current != null){
+                    current.wal.force();
+                }
+            }
+        }, lsmDir.getName());
+        try {
+            recover();
+        } catch (IOException e){
+            logger.error("Error recovering LSM storage from " + lsmDir.getPath(), e);
+        }
+        if (active == null){
+            try {
+                active = new Memtable(lsmDir, nextFileId++);
+            } catch (IOException e){
+                logger.error("Unable to create LSM memtable log", e);
+            }
+        }
+        startCompactor();
+    }
+
+    private static File walFile(File dir, int id){
+        return new File(dir, String.format("%08d", id) + WAL_SUFFIX);
+    }
+
+    /* Recovery */
+
+    /**
+     * Open the tables listed in the manifest, drop files of unfinished flushes
+     * and merges, and replay leftover write-ahead logs into a new table.
+     */
+    private void recover() throws IOException {
+        List<List<SSTable>> recovered = new ArrayList<List<SSTable>>();
+        Set<Integer> liveIds = new HashSet<Integer>();
+        File manifest = new File(lsmDir, MANIFEST);
+        if (manifest.exists()){
+            BufferedReader reader = new BufferedReader(new FileReader(manifest));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null){
+                    String[] tokens = line.trim().split(" ");
+                    if (tokens.length != 2){
+                        continue;
+                    }
+                    int level = Integer.parseInt(tokens[0]);
+                    int id = Integer.parseInt(tokens[1]);
+                    while (recovered.size() <= level){
+                        recovered.add(new ArrayList<SSTable>());
+                    }
+                    recovered.get(level).add(SSTable.open(lsmDir, id, level));
+                    liveIds.add(id);
+                    nextFileId = Math.max(nextFileId, id + 1);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if (!recovered.isEmpty()){
+            // level 0 is searched newest first
+            Collections.sort(recovered.get(0), new Comparator<SSTable>() {
+                @Override
+                public int compare(SSTable a, SSTable b) {
+                    return Integer.compare(b.getId(), a.getId());
+                }
+            });
+        }
+
+        List<Integer> walIds = new ArrayList<Integer>();
+        File[] files = lsmDir.listFiles();
+        if (files != null){
+            for (File file : files){
+                String name = file.getName();
+                int tableId = SSTable.parseId(name);
+                if (name.endsWith(WAL_SUFFIX)){
+                    int id = Integer.parseInt(name.substring(0, name.length() - WAL_SUFFIX.length()));
+                    nextFileId = Math.max(nextFileId, id + 1);
+                    if (liveIds.contains(id)){
+                        file.delete();      // flushed, but not deleted before the crash
+                    }
+                    else {
+                        walIds.add(id);
+                    }
+                }
+                else if ((tableId >= 0 && !liveIds.contains(tableId)) || name.endsWith(".tmp")){
+                    file.delete();          // output of an unfinished flush or merge
+                }
+            }
+        }
+        Collections.sort(walIds);
+        this.levels = recovered;
+        for (List<SSTable> level : recovered){
+            for (SSTable table : level){
+                nextSeq = Math.max(nextSeq, table.getMaxSeq() + 1);
+            }
+        }
+
+        // replay leftover logs into one memtable and flush it right away
+        final Memtable replayed = new Memtable(lsmDir, nextFileId++);
+        for (int id : walIds){
+            LogSegment wal = LogSegment.open(walFile(lsmDir, id));
+            wal.scan(new LogSegment.RecordVisitor() {
+                @Override
+                public void visit(LogRecord record, long offset) {
+                    replayed.put(new RingKey(HashRange.mdKey(record.getKey()), record.getKey()), record);
+                    nextSeq = Math.max(nextSeq, record.getSeq() + 1);
+                }
+            });
+            wal.close();
+        }
+        if (!replayed.records.isEmpty()){
+            flush(replayed);
+        }
+        for (int id : walIds){
+            walFile(lsmDir, id).delete();
+        }
+        active = replayed.records.isEmpty() ? replayed : new Memtable(lsmDir, nextFileId++);
+        logger.info("LSM storage recovered " + tableCount() + " table(s) in " + levels.size() + " level(s)");
+    }
+
+    /**
+     * Atomically replace the manifest with the given set of levels.
+     */
+    private void writeManifest(List<List<SSTable>> newLevels) throws IOException {
+        File tmp = new File(lsmDir, MANIFEST + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            for (int level = 0; level < newLevels.size(); level++){
+                for (SSTable table : newLevels.get(level)){
+                    writer.println(level + " " + table.getId());
+                }
+            }
+            writer.flush();
+            if (groupCommit.getPolicy() != FsyncPolicy.OS){
+                output.getFD().sync();
+            }
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(new File(lsmDir, MANIFEST))){
+            throw new IOException("Unable to replace LSM manifest");
+        }
+    }
+
+    private static List<List<SSTable>> copyLevels(List<List<SSTable>> levels){
+        List<List<SSTable>> copy = new ArrayList<List<SSTable>>();
+        for (List<SSTable> level : levels){
+            copy.add(new ArrayList<SSTable>(level));
+        }
+        return copy;
+    }
+
+    private int tableCount(){
+        int count = 0;
+        for (List<SSTable> level : levels){
+            count += level.size();
+        }
+        return count;
+    }
+
+    /* Reads and writes */
+
+    private static RingKey ringKey(String key){
+        return new RingKey(HashRange.mdKey(key), key);
+    }
+
+    /**
+     * Find the latest record of a key, newest source first.
+     *
+     * @return latest record (possibly a tombstone), null if the key was never written
+     */
+    private LogRecord lookUp(RingKey ringKey) throws IOException {
+        versionLock.readLock().lock();
+        try {
+            LogRecord record = active.records.get(ringKey);
+            if (record != null){
+                return record;
+            }
+            Memtable frozen = immutable;
+            if (frozen != null && (record = frozen.records.get(ringKey)) != null){
+                return record;
+            }
+            for (List<SSTable> level : levels){
+                for (SSTable table : level){
+                    if (!table.mightContain(ringKey)){
+                        bloomNegatives.incrementAndGet();
+                        continue;
+                    }
+                    if ((record = table.get(ringKey)) != null){
+                        bloomHits.incrementAndGet();
+                        return record;
+                    }
+                    bloomFalsePositives.incrementAndGet();
+                }
+            }
+            return null;
+        } finally {
+            versionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Log and apply one write. Caller must hold writeLock.
+     *
+     * @return group commit ticket of the write
+     */
+    private long write(String key, String value) throws IOException {
+        LogRecord record = LogRecord.create(nextSeq, key, value, compressionThreshold);
+        active.wal.append(record.encode());
+        long ticket = groupCommit.written();
+        nextSeq++;
+        active.put(ringKey(key), record);
+        if (active.bytes.get() >= memtableSize){
+            rotate();
+        }
+        return ticket;
+    }
+
+    /**
+     * Freeze the active memtable and hand it to the compactor. Waits while the
+     * previous frozen memtable is still being flushed. Caller must hold writeLock.
+     */
+    private void rotate() throws IOException {
+        while (immutable != null){
+            try {
+                writeLock.wait();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for memtable flush");
+            }
+        }
+        if (groupCommit.getPolicy() != FsyncPolicy.OS){
+            active.wal.force();
+        }
+        Memtable next = new Memtable(lsmDir, nextFileId++);
+        versionLock.writeLock().lock();
+        try {
+            immutable = active;
+            active = next;
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+        synchronized (compactorSignal){
+            compactorSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Compress values of at least the given size in bytes before they are
+     * logged. Records written before keep their format, so this can change
+     * between restarts.
+     *
+     * @param compressionThreshold UTF-8 value bytes from which values are compressed, 0 to never compress
+     */
+    public void setCompressionThreshold(int compressionThreshold){
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public boolean put(String key, String val){
+        try {
+            long ticket;
+            synchronized (writeLock){
+                ticket = write(key, val);
+            }
+            groupCommit.await(ticket);
+            logger.debug("Successfully Inserted KV pair of key: " + key);
+            return true;
+        } catch (IOException e){
+            logger.error("Error trying to insert key value pair of key: " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public String get(String key){
+        try {
+            LogRecord record = lookUp(ringKey(key));
+            if (record == null || record.isTombstone()){
+                logger.debug("Did not find the corresponding value for the given key of " + key);
+                return null;
+            }
+            return record.getValue();
+        } catch (IOException e){
+            logger.error("Error trying to get value of key: " + key, e);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean delelteKV(String key){
+        try {
+            long ticket;
+            synchronized (writeLock){
+                if (get(key) == null){
+                    logger.info("Cannot remove non-exisitng KV pairs");
+                    return false;
+                }
+                ticket = write(key, null);
+            }
+            groupCommit.await(ticket);
+            return true;
+        } catch (IOException e){
+            logger.error("Error trying to remove entry of key: " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean onDisk(String key){
+        return get(key) != null;
+    }
+
+    @Override
+    public void clearDisk(){
+        synchronized (compactionLock){
+            synchronized (writeLock){
+                versionLock.writeLock().lock();
+                try {
+                    for (List<SSTable> level : levels){
+                        for (SSTable table : level){
+                            table.delete();
+                        }
+                    }
+                    active.wal.delete();
+                    if (immutable != null){
+                        immutable.wal.delete();
+                    }
+                    levels = Collections.emptyList();
+                    immutable = null;
+                    writeManifest(levels);
+                    active = new Memtable(lsmDir, nextFileId++);
+                } catch (IOException e){
+                    logger.error("Error trying to clear the LSM storage", e);
+                } finally {
+                    versionLock.writeLock().unlock();
+                }
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Merge every source over the given bounds, newest record of each key wins.
+     */
+    private Map<String, String> collect(List<RingKey[]> bounds){
+        Map<String, String> KVtable = new HashMap<String, String>();
+        versionLock.readLock().lock();
+        try {
+            for (RingKey[] bound : bounds){
+                // oldest source first so newer records overwrite older ones
+                for (int level = levels.size() - 1; level >= 0; level--){
+                    List<SSTable> tables = levels.get(level);
+                    for (int i = tables.size() - 1; i >= 0; i--){
+                        SSTable table = tables.get(i);
+                        if (!table.overlaps(bound[0], bound[1])){
+                            continue;
+                        }
+                        SSTable.Scanner scanner = table.scan(bound[0], bound[1]);
+                        try {
+                            SSTable.Entry entry;
+                            while ((entry = scanner.next()) != null){
+                                apply(KVtable, entry.getRecord());
+                            }
+                        } finally {
+                            scanner.close();
+                        }
+                    }
+                }
+                Memtable frozen = immutable;
+                if (frozen != null){
+                    applyAll(KVtable, frozen.records, bound);
+                }
+                applyAll(KVtable, active.records, bound);
+            }
+        } catch (IOException e){
+            logger.error("Error trying to read hash range from LSM storage", e);
+        } finally {
+            versionLock.readLock().unlock();
+        }
+        return KVtable;
+    }
+
+    private static void apply(Map<String, String> KVtable, LogRecord record){
+        if (record.isTombstone()){
+            KVtable.remove(record.getKey());
+        }
+        else {
+            KVtable.put(record.getKey(), record.getValue());
+        }
+    }
+
+    private static void applyAll(Map<String, String> KVtable, ConcurrentSkipListMap<RingKey, LogRecord> records, RingKey[] bound){
+        ConcurrentNavigableMap<RingKey, LogRecord> range = (bound[1] == null) ?
+                records.tailMap(bound[0], true) : records.subMap(bound[0], true, bound[1], false);
+        for (LogRecord record : range.values()){
+            apply(KVtable, record);
+        }
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
+        return collect(RingIndex.boundsOutOfRange(start, stop));
+    }
+
+    @Override
+    public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop){
+        return collect(RingIndex.boundsWithinRange(start, stop));
+    }
+
+    @Override
+    public Map<String, String> getAllKV(){
+        List<RingKey[]> all = new ArrayList<RingKey[]>();
+        all.add(new RingKey[]{RingKey.at(BigInteger.ZERO), null});
+        return collect(all);
+    }
+
+    /* Flushes and merges */
+
+    private void startCompactor(){
+        running = true;
+        compactorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running){
+                    synchronized (compactorSignal){
+                        try {
+                            if (immutable == null){
+                                compactorSignal.wait(COMPACTION_CHECK_INTERVAL);
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (running){
+                        compact();
+                    }
+                }
+            }
+        }, "lsm-compactor-" + lsmDir.getName());
+        compactorThread.setDaemon(true);
+        compactorThread.start();
+    }
+
+    /**
+     * Flush the frozen memtable if there is one, then run every merge that is due.
+     */
+    public void compact(){
+        synchronized (compactionLock){
+            try {
+                flushPending();
+                int level;
+                while (running && (level = levelToMerge()) >= 0){
+                    merge(level);
+                }
+            } catch (IOException e){
+                logger.error("LSM storage compaction failed", e);
+            }
+        }
+    }
+
+    /**
+     * Force the active memtable into a table, e.g. before shutting down.
+     */
+    public void flush(){
+        try {
+            synchronized (writeLock){
+                if (active.records.isEmpty()){
+                    return;
+                }
+                rotate();
+            }
+            compact();
+        } catch (IOException e){
+            logger.error("Error trying to flush LSM memtable", e);
+        }
+    }
+
+    /**
+     * Flush the frozen memtable if there is one. Caller must hold compactionLock.
+     */
+    private void flushPending() throws IOException {
+        Memtable frozen = immutable;
+        if (frozen != null){
+            flush(frozen);
+        }
+    }
+
+    /**
+     * Write a memtable into a new level 0 table and drop its write-ahead log.
+     */
+    private void flush(Memtable memtable) throws IOException {
+        long startTime = System.currentTimeMillis();
+        SSTable.Writer writer = new SSTable.Writer(lsmDir, memtable.id, 0);
+        SSTable table;
+        try {
+            for (Map.Entry<RingKey, LogRecord> entry : memtable.records.entrySet()){
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            table = writer.finish(groupCommit.getPolicy() != FsyncPolicy.OS);
+        } catch (IOException e){
+            writer.abort();
+            throw e;
+        }
+
+        List<List<SSTable>> newLevels = copyLevels(levels);
+        if (newLevels.isEmpty()){
+            newLevels.add(new ArrayList<SSTable>());
+        }
+        newLevels.get(0).add(0, table);
+        writeManifest(newLevels);
+        versionLock.writeLock().lock();
+        try {
+            levels = newLevels;
+            if (immutable == memtable){
+                immutable = null;
+            }
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+        memtable.wal.delete();
+        synchronized (writeLock){
+            writeLock.notifyAll();
+        }
+        synchronized (this){
+            flushCount++;
+        }
+        logger.info("LSM storage flushed " + table.getRecordCount() + " records into table " + table.getId() +
+                " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private static long levelSize(List<SSTable> level){
+        long size = 0;
+        for (SSTable table : level){
+            size += table.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return level that should be merged into the next one, -1 if none
+     */
+    private int levelToMerge(){
+        List<List<SSTable>> current = levels;
+        if (!current.isEmpty() && current.get(0).size() >= L0_MERGE_TRIGGER){
+            return 0;
+        }
+        long budget = LEVEL_BASE_SIZE;
+        for (int level = 1; level < current.size(); level++){
+            if (levelSize(current.get(level)) > budget){
+                return level;
+            }
+            budget *= LEVEL_SIZE_MULTIPLIER;
+        }
+        return -1;
+    }
+
+    /**
+     * Merge all tables of a level with all tables of the next level into a new
+     * sorted run on the next level.
+     */
+    private void merge(int level) throws IOException {
+        long startTime = System.currentTimeMillis();
+        List<List<SSTable>> current = levels;
+        List<SSTable> upper = current.get(level);
+        List<SSTable> lower = (level + 1 < current.size()) ? current.get(level + 1) : new ArrayList<SSTable>();
+        // tombstones can go once nothing older lies below the output level
+        boolean bottom = true;
+        for (int deeper = level + 2; deeper < current.size(); deeper++){
+            bottom &= current.get(deeper).isEmpty();
+        }
+
+        // newest source first, ties on the same key are won by the lower rank
+        List<SSTable> inputs = new ArrayList<SSTable>(upper);
+        inputs.addAll(lower);
+        PriorityQueue<Object[]> heads = new PriorityQueue<Object[]>(Math.max(1, inputs.size()), new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                int order = ((SSTable.Scanner) a[0]).peek().getRingKey().compareTo(((SSTable.Scanner) b[0]).peek().getRingKey());
+                return order != 0 ? order : Integer.compare((Integer) a[1], (Integer) b[1]);
+            }
+        });
+        List<SSTable.Scanner> scanners = new ArrayList<SSTable.Scanner>();
+        List<SSTable> outputs = new ArrayList<SSTable>();
+        SSTable.Writer writer = null;
+        try {
+            for (int rank = 0; rank < inputs.size(); rank++){
+                SSTable.Scanner scanner = inputs.get(rank).scan(RingKey.at(BigInteger.ZERO), null);
+                scanners.add(scanner);
+                if (scanner.peek() != null){
+                    heads.add(new Object[]{scanner, rank});
+                }
+            }
+            RingKey lastKey = null;
+            while (!heads.isEmpty()){
+                Object[] head = heads.poll();
+                SSTable.Scanner scanner = (SSTable.Scanner) head[0];
+                SSTable.Entry entry = scanner.next();
+                if (scanner.peek() != null){
+                    heads.add(head);
+                }
+                if (lastKey != null && lastKey.compareTo(entry.getRingKey()) == 0){
+                    continue;       // older version of a key already written
+                }
+                lastKey = entry.getRingKey();
+                if (bottom && entry.getRecord().isTombstone()){
+                    continue;
+                }
+                if (writer == null){
+                    synchronized (writeLock){
+                        writer = new SSTable.Writer(lsmDir, nextFileId++, level + 1);
+                    }
+                }
+                writer.add(entry.getRingKey(), entry.getRecord());
+                if (writer.size() >= TARGET_TABLE_SIZE){
+                    outputs.add(writer.finish(groupCommit.getPolicy() != FsyncPolicy.OS));
+                    writer = null;
+                    // do not keep writers waiting on a full memtable for the whole merge
+                    flushPending();
+                }
+            }
+            if (writer != null){
+                outputs.add(writer.finish(groupCommit.getPolicy() != FsyncPolicy.OS));
+                writer = null;
+            }
+        } catch (IOException e){
+            if (writer != null){
+                writer.abort();
+            }
+            for (SSTable output : outputs){
+                output.delete();
+            }
+            throw e;
+        } finally {
+            for (SSTable.Scanner scanner : scanners){
+                scanner.close();
+            }
+        }
+
+        // level 0 may have received flushed tables meanwhile, keep those
+        List<List<SSTable>> newLevels = copyLevels(levels);
+        while (newLevels.size() <= level + 1){
+            newLevels.add(new ArrayList<SSTable>());
+        }
+        newLevels.get(level).removeAll(upper);
+        newLevels.set(level + 1, outputs);
+        writeManifest(newLevels);
+        versionLock.writeLock().lock();
+        try {
+            levels = newLevels;
+            for (SSTable input : inputs){
+                input.delete();
+            }
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+        synchronized (this){
+            mergeCount++;
+        }
+        logger.info("LSM storage merged " + inputs.size() + " table(s) of level " + level + " and " + (level + 1) +
+                " into " + outputs.size() + " table(s) in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /* Statistics */
+
+    /**
+     * @return number of tables on each level
+     */
+    public List<Integer> getLevelSizes(){
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (List<SSTable> level : levels){
+            sizes.add(level.size());
+        }
+        return sizes;
+    }
+
+    public synchronized long getFlushCount(){
+        return flushCount;
+    }
+
+    public synchronized long getMergeCount(){
+        return mergeCount;
+    }
+
+    public long getBloomNegatives(){
+        return bloomNegatives.get();
+    }
+
+    public long getBloomFalsePositives(){
+        return bloomFalsePositives.get();
+    }
+
+    public long getBloomHits(){
+        return bloomHits.get();
+    }
+
+    /**
+     * Fraction of table probes for absent keys that the bloom filters failed to skip.
+     */
+    public double getBloomFalsePositiveRate(){
+        long falsePositives = bloomFalsePositives.get();
+        long absent = falsePositives + bloomNegatives.get();
+        return absent == 0 ? 0.0 : (double) falsePositives / absent;
+    }
+
+    /**
+     * Stop the compactor and close all files. Writes still in the memtable are
+     * replayed from the write-ahead log on the next start.
+     */
+    public void close(){
+        running = false;
+        if (compactorThread != null){
+            compactorThread.interrupt();
+        }
+        logger.info("LSM storage bloom filters skipped " + bloomNegatives.get() + " table read(s), " +
+                bloomFalsePositives.get() + " false positive(s), false positive rate " + getBloomFalsePositiveRate());
+        groupCommit.close();
+        synchronized (compactionLock){
+            synchronized (writeLock){
+                versionLock.writeLock().lock();
+                try {
+                    active.wal.close();
+                    if (immutable != null){
+                        immutable.wal.close();
+                    }
+                    for (List<SSTable> level : levels){
+                        for (SSTable table : level){
+                            table.close();
+                        }
+                    }
+                } finally {
+                    versionLock.writeLock().unlock();
+                }
+            }
+        }
+    }
+}
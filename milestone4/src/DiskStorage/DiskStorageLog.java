@@ -0,0 +1,699 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log-structured disk storage.
+ *
+ * <p>
+ * Every put and delete is one sequential append of a {@link LogRecord} to the
+ * active segment file under <code>./data/logDB.&lt;serverName&gt;/</code>. An
+ * in-memory {@link CompactIndex} maps each live key to a {@link LogPointer}
+ * in under 40 bytes, so the cost of a write does not depend on the size of the
+ * store and a get is one positional read. No other per-key state is kept:
+ * hash range scans hash every key of the index. The index is checkpointed every <code>CHECKPOINT_WRITES</code> writes
+ * and on close, so opening the storage loads the checkpoint and only replays
+ * the records appended after it.
+ * </p>
+ *
+ * <p>
+ * Overwrites and deletes leave dead records behind. A background compactor
+ * watches the ratio of live bytes to total bytes and, once it drops below the
+ * configured threshold, copies the live records of all sealed segments into
+ * new segments and deletes the old ones. Compaction swaps index entries one by
+ * one with compare-and-set, so it never holds up concurrent gets and puts.
+ * </p>
+ *
+ * <p>
+ * Durability follows the configured {@link FsyncPolicy}. Writers wait for the
+ * fsync after releasing the write lock, so concurrent writers are group
+ * committed by a single fsync of the active segment.
+ * </p>
+ */
+public class DiskStorageLog implements DiskStorageInterface {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;        // roll over to a new segment past this size
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;    // compact once live / total drops below this
+    private static final long MIN_COMPACTION_BYTES = 4 * 1024 * 1024; // do not bother compacting less dead data
+    private static final int COMPACTION_CHECK_INTERVAL = 1000;        // ms between compaction trigger checks
+    private static final int READ_RETRIES = 3;                        // retries when compaction moved a record
+    private static final int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors(); // segments scanned in parallel
+    public static final long CHECKPOINT_WRITES = 100000;              // checkpoint the index after this many writes
+
+    private String dir = "./data";
+    private File logDir;
+
+    private final CompactIndex index;                                   // key -> LogPointer of latest record
+    private final ConcurrentSkipListMap<Integer, LogSegment> segments;  // segment id -> segment, oldest first
+    private volatile LogSegment activeSegment;                          // segment receiving appends
+    private int nextSegmentId;                                          // id of next segment to create
+    private long nextSeq;                                               // sequence number of next record
+    private volatile int compressionThreshold;                          // value bytes from which values are compressed, 0 for never
+
+    private final Object writeLock = new Object();                      // serializes appends
+    private final Object compactionLock = new Object();                 // serializes compaction and clearDisk
+    private GroupCommit groupCommit;
+
+    // Compaction bookkeeping
+    private final AtomicLong liveBytes = new AtomicLong();              // bytes of records referenced by index
+    private final AtomicLong totalBytes = new AtomicLong();             // bytes of all segment files
+    private double compactionThreshold;
+    private Thread compactorThread;
+    private volatile boolean running;
+    private long compactionCount;
+    private long bytesReclaimed;
+
+    // Checkpoint bookkeeping
+    private long writesSinceCheckpoint;                                 // guarded by writeLock
+    private long checkpointCount;
+    private long replayedRecords;
+
+    public DiskStorageLog(String serverName){
+        this("logDB", serverName, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public DiskStorageLog(String dirPrefix, String serverName){
+        this(dirPrefix, serverName, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param dirPrefix prefix of the storage directory under ./data
+     * @param serverName KVServer name in the format of ip:port
+     * @param compactionThreshold live / total byte ratio below which the
+     *          background compactor kicks in, 0 disables background compaction
+     */
+    public DiskStorageLog(String dirPrefix, String serverName, double compactionThreshold){
+        this(dirPrefix, serverName, compactionThreshold, FsyncPolicy.INTERVAL, GroupCommit.DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param dirPrefix prefix of the storage directory under ./data
+     * @param serverName KVServer name in the format of ip:port
+     * @param compactionThreshold live / total byte ratio below which the
+     *          background compactor kicks in, 0 disables background compaction
+     * @param fsyncPolicy when appended records are forced to disk
+     * @param syncInterval ms between background fsyncs for <code>FsyncPolicy.INTERVAL</code>
+     */
+    public DiskStorageLog(String dirPrefix, String serverName, double compactionThreshold,
+                          FsyncPolicy fsyncPolicy, int syncInterval){
+        this.logDir = new File(this.dir, dirPrefix + "." + serverName);
+        this.index = new CompactIndex();
+        this.segments = new ConcurrentSkipListMap<Integer, LogSegment>();
+        this.nextSeq = 0;
+        this.compactionThreshold = compactionThreshold;
+        initalizeDirectory();
+        recover();
+        this.groupCommit = new GroupCommit(fsyncPolicy, syncInterval, new GroupCommit.Syncable() {
+            @Override
+            public void sync() throws IOException {
+                activeSegment.force();
+            }
+        }, logDir.getName());
+        startCompactor();
+    }
+
+    private void initalizeDirectory(){
+        if (!logDir.exists() && !logDir.mkdirs()){
+            logger.error("Unable to initialize database directory " + logDir.getPath());
+        }
+    }
+
+    /**
+     * Open every segment on disk and rebuild the key index. The latest valid
+     * checkpoint is loaded first, so only the log written after it has to be
+     * replayed; without one every segment is scanned. Segments are scanned in
+     * parallel by {@link LogRecovery}; the record with the highest sequence
+     * number wins, so segments written by compaction can be replayed in any
+     * order relative to the segments they were copied from.
+     */
+    private void recover(){
+        long startTime = System.currentTimeMillis();
+        File[] files = logDir.listFiles();
+        List<Integer> ids = new ArrayList<Integer>();
+        if (files != null){
+            for (File file : files){
+                int id = LogSegment.parseId(file.getName());
+                if (id >= 0){
+                    ids.add(id);
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        long replayed = 0;
+        try {
+            for (int id : ids){
+                segments.put(id, LogSegment.open(logDir, id));
+            }
+            IndexCheckpoint checkpoint = loadCheckpoint();
+            List<LogSegment> tail = new ArrayList<LogSegment>();
+            Map<Integer, Long> startOffsets = new HashMap<Integer, Long>();
+            for (LogSegment segment : segments.values()){
+                if (checkpoint == null || segment.getId() >= checkpoint.getSegmentId()){
+                    tail.add(segment);
+                }
+            }
+            if (checkpoint != null){
+                startOffsets.put(checkpoint.getSegmentId(), checkpoint.getOffset());
+            }
+            // compaction copies of checkpointed records carry older sequence numbers
+            LogRecovery.Result result = LogRecovery.run(tail, startOffsets,
+                    checkpoint == null ? 0 : checkpoint.getNextSeq(), RECOVERY_THREADS);
+            for (Map.Entry<String, LogRecovery.Entry> entry : result.getEntries().entrySet()){
+                if (entry.getValue().isTombstone()){
+                    index.remove(entry.getKey());
+                }
+                else {
+                    index.put(entry.getKey(), entry.getValue().getPointer());
+                }
+            }
+            nextSeq = Math.max(nextSeq, result.getMaxSeq() + 1);
+            replayed = result.getReplayed();
+            for (Map.Entry<Integer, Long> validEnd : result.getValidEnds().entrySet()){
+                LogSegment segment = segments.get(validEnd.getKey());
+                if (validEnd.getValue() < segment.size()){
+                    logger.error("Truncating segment " + segment.getId() + " from " + segment.size() + " to " + validEnd.getValue() + " bytes");
+                    segment.truncate(validEnd.getValue());
+                }
+            }
+            for (LogSegment segment : segments.values()){
+                totalBytes.addAndGet(segment.size());
+            }
+            nextSegmentId = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            if (segments.isEmpty() || segments.lastEntry().getValue().size() >= SEGMENT_SIZE){
+                activeSegment = newSegment();
+            }
+            else {
+                activeSegment = segments.lastEntry().getValue();
+            }
+        } catch (IOException e){
+            logger.error("Error recovering log storage from " + logDir.getPath(), e);
+        }
+        index.forEach(new CompactIndex.Visitor() {
+            @Override
+            public void visit(String key, long pointer) {
+                liveBytes.addAndGet(LogPointer.length(pointer));
+            }
+        });
+        this.replayedRecords = replayed;
+        logger.info("Log storage recovered " + index.size() + " keys from " + segments.size() + " segment(s), replayed " +
+                replayed + " record(s) in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Load the checkpoint into the index if it is consistent with the segments on disk.
+     *
+     * @return loaded checkpoint, null if the whole log has to be replayed
+     */
+    private IndexCheckpoint loadCheckpoint(){
+        IndexCheckpoint checkpoint = IndexCheckpoint.read(logDir, index);
+        if (checkpoint == null){
+            return null;
+        }
+        LogSegment tail = segments.get(checkpoint.getSegmentId());
+        final boolean[] valid = {tail != null && tail.size() >= checkpoint.getOffset()};
+        index.forEach(new CompactIndex.Visitor() {
+            @Override
+            public void visit(String key, long pointer) {
+                LogSegment segment = segments.get(LogPointer.segmentId(pointer));
+                if (segment == null || LogPointer.offset(pointer) + LogPointer.length(pointer) > segment.size()){
+                    valid[0] = false;
+                }
+            }
+        });
+        if (!valid[0]){
+            logger.error("Checkpoint does not match log segments, replaying the whole log");
+            index.clear();
+            return null;
+        }
+        nextSeq = checkpoint.getNextSeq();
+        return checkpoint;
+    }
+
+    /**
+     * Write a checkpoint of the key index, so the next start only replays the
+     * log written after this point.
+     */
+    public void checkpoint(){
+        synchronized (compactionLock){
+            long startTime = System.currentTimeMillis();
+            long seq;
+            int segmentId;
+            long offset;
+            synchronized (writeLock){
+                seq = nextSeq;
+                segmentId = activeSegment.getId();
+                offset = activeSegment.size();
+                writesSinceCheckpoint = 0;
+            }
+            try {
+                // records before the checkpoint position must be durable before the checkpoint is
+                if (groupCommit.getPolicy() != FsyncPolicy.OS){
+                    groupCommit.sync();
+                }
+                IndexCheckpoint.write(logDir, seq, segmentId, offset, index, groupCommit.getPolicy() != FsyncPolicy.OS);
+                synchronized (this){
+                    checkpointCount++;
+                }
+                logger.info("Log storage checkpointed " + index.size() + " keys at segment " + segmentId +
+                        " offset " + offset + " in " + (System.currentTimeMillis() - startTime) + " ms");
+            } catch (IOException e){
+                logger.error("Error writing log storage checkpoint", e);
+            }
+        }
+    }
+
+    /**
+     * Create and register an empty segment with the next free id.
+     */
+    private LogSegment newSegment() throws IOException {
+        synchronized (segments){
+            if (nextSegmentId > LogPointer.MAX_SEGMENT_ID){
+                throw new IOException("Log storage ran out of segment ids");
+            }
+            LogSegment segment = LogSegment.open(logDir, nextSegmentId);
+            segments.put(nextSegmentId, segment);
+            nextSegmentId++;
+            return segment;
+        }
+    }
+
+    /**
+     * Seal the active segment and continue appending to a new one. Records
+     * already in the old segment are forced first since group commit only
+     * fsyncs the active segment. Caller must hold writeLock.
+     */
+    private void rollSegment() throws IOException {
+        if (groupCommit.getPolicy() != FsyncPolicy.OS){
+            activeSegment.force();
+        }
+        activeSegment = newSegment();
+    }
+
+    /**
+     * Append record to the active segment, rolling over to a new segment if full.
+     * Caller must hold writeLock.
+     *
+     * @return pointer to the appended record
+     */
+    private long append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (activeSegment.size() + length > SEGMENT_SIZE){
+            rollSegment();
+            logger.info("Log storage rolled over to segment " + activeSegment.getId());
+        }
+        long offset = activeSegment.append(record);
+        totalBytes.addAndGet(length);
+        return LogPointer.pack(activeSegment.getId(), offset, length);
+    }
+
+    /**
+     * Read the record a pointer refers to.
+     */
+    private LogRecord read(long pointer) throws IOException {
+        LogSegment segment = segments.get(LogPointer.segmentId(pointer));
+        if (segment == null){
+            throw new IOException("Missing segment " + LogPointer.segmentId(pointer));
+        }
+        return segment.read(LogPointer.offset(pointer), LogPointer.length(pointer));
+    }
+
+    /**
+     * Compress values of at least the given size in bytes before they are
+     * logged. Records written before keep their format, so this can change
+     * between restarts.
+     *
+     * @param compressionThreshold UTF-8 value bytes from which values are compressed, 0 to never compress
+     */
+    public void setCompressionThreshold(int compressionThreshold){
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public boolean put(String key, String val){
+        try {
+            ByteBuffer record;
+            long ticket;
+            synchronized (writeLock){
+                record = LogRecord.encode(nextSeq, key, val, compressionThreshold);
+                long pointer = append(record);
+                ticket = groupCommit.written();
+                nextSeq++;
+                writesSinceCheckpoint++;
+                long old = index.put(key, pointer);
+                liveBytes.addAndGet(LogPointer.length(pointer) - (old == CompactIndex.NO_POINTER ? 0 : LogPointer.length(old)));
+            }
+            groupCommit.await(ticket);
+            logger.debug("Successfully Inserted KV pair of key: " + key);
+            return true;
+        } catch (IOException e){
+            logger.error("Error trying to insert key value pair of key: " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public String get(String key){
+        for (int i = 0; i < READ_RETRIES; i++){
+            long pointer = index.get(key);
+            if (pointer == CompactIndex.NO_POINTER){
+                logger.debug("Did not find the corresponding value for the given key of " + key);
+                return null;
+            }
+            try {
+                return read(pointer).getValue();
+            } catch (IOException e){
+                // compaction may have moved the record and deleted its segment meanwhile
+                if (pointer == index.get(key)){
+                    logger.error("Error trying to get value of key: " + key, e);
+                    return null;
+                }
+            }
+        }
+        logger.error("Error trying to get value of key: " + key + ", record keeps moving");
+        return null;
+    }
+
+    @Override
+    public void clearDisk(){
+        synchronized (compactionLock){
+            synchronized (writeLock){
+                IndexCheckpoint.delete(logDir);
+                index.clear();
+                for (LogSegment segment : segments.values()){
+                    segment.delete();
+                }
+                segments.clear();
+                liveBytes.set(0);
+                totalBytes.set(0);
+                try {
+                    nextSegmentId = 0;
+                    activeSegment = newSegment();
+                } catch (IOException e){
+                    logger.error("Error trying to clear the log storage", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean delelteKV(String key){
+        try {
+            long ticket;
+            synchronized (writeLock){
+                if (!index.containsKey(key)){
+                    logger.info("Cannot remove non-exisitng KV pairs");
+                    return false;
+                }
+                append(LogRecord.encode(nextSeq, key, null));
+                ticket = groupCommit.written();
+                nextSeq++;
+                writesSinceCheckpoint++;
+                long old = index.remove(key);
+                if (old != CompactIndex.NO_POINTER){
+                    liveBytes.addAndGet(-LogPointer.length(old));
+                }
+            }
+            groupCommit.await(ticket);
+            return true;
+        } catch (IOException e){
+            logger.error("Error trying to remove entry of key: " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean onDisk(String key){
+        return index.containsKey(key);
+    }
+
+    /**
+     * Read the values of the given keys.
+     */
+    private Map<String, String> lookUp(List<String> keys){
+        Map<String, String> KVtable = new HashMap<String, String>();
+        for (String key : keys){
+            String value = get(key);
+            if (value != null){
+                KVtable.put(key, value);
+            }
+        }
+        return KVtable;
+    }
+
+    /**
+     * Keys whose ring position is, or is not, within hash range (start, stop).
+     * Positions are hashed from the keys of the index during the scan, since
+     * keeping them per key would cost more heap than the index itself.
+     */
+    private List<String> keysInRange(final BigInteger start, final BigInteger stop, final boolean within){
+        final List<String> keys = new ArrayList<String>();
+        index.forEach(new CompactIndex.Visitor() {
+            @Override
+            public void visit(String key, long pointer) {
+                if (HashRange.keyWithinRange(HashRange.mdKey(key), start, stop) == within){
+                    keys.add(key);
+                }
+            }
+        });
+        return keys;
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
+        return lookUp(keysInRange(start, stop, false));
+    }
+
+    @Override
+    public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop){
+        return lookUp(keysInRange(start, stop, true));
+    }
+
+    @Override
+    public Map<String, String> getAllKV(){
+        Map<String, String> allKV = new HashMap<String, String>();
+        for (String key : index.keys()){
+            String value = get(key);
+            if (value != null){
+                allKV.put(key, value);
+            }
+        }
+        return allKV;
+    }
+
+    /* Compaction and checkpoints */
+
+    private void startCompactor(){
+        running = true;
+        compactorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running){
+                    try {
+                        Thread.sleep(COMPACTION_CHECK_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (running && compactionThreshold > 0 && needsCompaction()){
+                        compact();
+                    }
+                    if (running && needsCheckpoint()){
+                        checkpoint();
+                    }
+                }
+            }
+        }, "log-compactor-" + logDir.getName());
+        compactorThread.setDaemon(true);
+        compactorThread.start();
+    }
+
+    private boolean needsCheckpoint(){
+        synchronized (writeLock){
+            return writesSinceCheckpoint >= CHECKPOINT_WRITES;
+        }
+    }
+
+    private boolean needsCompaction(){
+        long total = totalBytes.get();
+        long live = liveBytes.get();
+        return total - live >= MIN_COMPACTION_BYTES && live < compactionThreshold * total;
+    }
+
+    /**
+     * Ratio of live bytes to total bytes on disk, 1 for an empty store.
+     */
+    public double getLiveRatio(){
+        long total = totalBytes.get();
+        return total == 0 ? 1.0 : (double) liveBytes.get() / total;
+    }
+
+    public long getTotalBytes(){
+        return totalBytes.get();
+    }
+
+    public synchronized long getCompactionCount(){
+        return compactionCount;
+    }
+
+    public synchronized long getBytesReclaimed(){
+        return bytesReclaimed;
+    }
+
+    public synchronized long getCheckpointCount(){
+        return checkpointCount;
+    }
+
+    /**
+     * @return number of log records replayed when the storage was opened
+     */
+    public long getRecoveryReplayed(){
+        return replayedRecords;
+    }
+
+    /**
+     * Rewrite the live records of every sealed segment into new segments and
+     * delete the old ones. The active segment is sealed first so dead records
+     * written recently can be reclaimed as well.
+     *
+     * <p>
+     * Every segment except the new active one takes part, so all older
+     * versions of a key are rewritten together and tombstones can be dropped.
+     * </p>
+     *
+     * @return number of bytes reclaimed
+     */
+    public long compact(){
+        synchronized (compactionLock){
+            long startTime = System.currentTimeMillis();
+            List<LogSegment> inputs = new ArrayList<LogSegment>();
+            try {
+                synchronized (writeLock){
+                    rollSegment();
+                    inputs.addAll(segments.headMap(activeSegment.getId()).values());
+                }
+            } catch (IOException e){
+                logger.error("Compaction unable to seal active segment", e);
+                return 0;
+            }
+
+            long inputBytes = 0;
+            List<LogSegment> outputs = new ArrayList<LogSegment>();
+            try {
+                for (LogSegment input : inputs){
+                    inputBytes += input.size();
+                    copyLiveRecords(input, outputs);
+                }
+                for (LogSegment output : outputs){
+                    output.force();
+                }
+            } catch (IOException e){
+                // leave the old segments in place, recovery resolves duplicates by sequence number
+                logger.error("Compaction failed, keeping old segments", e);
+                return 0;
+            }
+
+            long outputBytes = 0;
+            for (LogSegment output : outputs){
+                outputBytes += output.size();
+            }
+            // the checkpoint may point into the inputs, drop it before they go away
+            IndexCheckpoint.delete(logDir);
+            // delete oldest first so a crash never leaves an old value without its newer tombstone
+            for (LogSegment input : inputs){
+                segments.remove(input.getId());
+                input.delete();
+            }
+            totalBytes.addAndGet(-inputBytes);
+
+            long reclaimed = inputBytes - outputBytes;
+            long duration = System.currentTimeMillis() - startTime;
+            synchronized (this){
+                compactionCount++;
+                bytesReclaimed += reclaimed;
+            }
+            logger.info("Log storage compacted " + inputs.size() + " segment(s) into " + outputs.size() +
+                    ", reclaimed " + reclaimed + " bytes in " + duration + " ms");
+            checkpoint();
+            return reclaimed;
+        }
+    }
+
+    /**
+     * Copy records of input segment that are still referenced by the index
+     * into the last output segment, and point the index at the copies.
+     */
+    private void copyLiveRecords(final LogSegment input, final List<LogSegment> outputs) throws IOException {
+        final IOException[] failure = new IOException[1];
+        input.scan(new LogSegment.RecordVisitor() {
+            @Override
+            public void visit(LogRecord record, long offset) {
+                if (failure[0] != null || record.isTombstone()){
+                    return;
+                }
+                long pointer = LogPointer.pack(input.getId(), offset, record.size());
+                String key = record.getKey();
+                if (index.get(key) != pointer){
+                    return;
+                }
+                try {
+                    // copied as stored, compressed values are not inflated and compressed again
+                    ByteBuffer copy = record.encode();
+                    LogSegment output = outputs.isEmpty() ? null : outputs.get(outputs.size() - 1);
+                    if (output == null || output.size() + copy.remaining() > SEGMENT_SIZE){
+                        output = newSegment();
+                        outputs.add(output);
+                    }
+                    long copyOffset = output.append(copy);
+                    totalBytes.addAndGet(record.size());
+                    long copyPointer = LogPointer.pack(output.getId(), copyOffset, record.size());
+                    // a concurrent put or delete wins, the copy is then just dead weight
+                    if (!index.replace(key, pointer, copyPointer)){
+                        logger.debug("Key " + key + " changed during compaction");
+                    }
+                } catch (IOException e){
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null){
+            throw failure[0];
+        }
+    }
+
+    public long getSyncCount(){
+        return groupCommit.getSyncCount();
+    }
+
+    /**
+     * Stop the compactor, checkpoint the index, fsync pending writes and close
+     * all segment files. The storage must not be used afterwards.
+     */
+    public void close(){
+        running = false;
+        if (compactorThread != null){
+            compactorThread.interrupt();
+        }
+        checkpoint();
+        groupCommit.close();
+        synchronized (compactionLock){
+            synchronized (writeLock){
+                for (LogSegment segment : segments.values()){
+                    segment.close();
+                }
+            }
+        }
+    }
+}
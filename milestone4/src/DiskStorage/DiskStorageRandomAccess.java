@@ -1,28 +1,687 @@
 package DiskStorage;
 
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Disk storage backed by a memory-mapped, open-addressing hash file.
+ *
+ * <p>
+ * The store lives in two files under <code>./data/&lt;dirPrefix&gt;.&lt;serverName&gt;/</code>.
+ * The index file holds a small header followed by fixed-size slots, each
+ * pointing at one entry of the heap file. Keys are placed with linear probing
+ * on their hash, deletes leave a tombstone behind. Both files are mapped with
+ * a {@link MappedByteBuffer}, so a get probes the slots and copies out just the
+ * requested value straight from the page cache, and the dataset is never held
+ * on the JVM heap. Only the keys are kept in memory, in a {@link RingIndex}
+ * for hash range queries.
+ * </p>
+ *
+ * <p>
+ * Overwrites append a new heap entry and repoint the slot. When the heap runs
+ * out of space it is either compacted (if at least half of it is dead) or
+ * grown by remapping a larger region. The index is rehashed into a table of
+ * twice the size once more than half of its slots are in use. Both rebuilds
+ * write a new index file and rename it into place, and a compacted heap gets a
+ * new generation number stored in the index header, so a crash in the middle
+ * of a rebuild leaves the previous files intact. The two mapped files reach the
+ * disk independently, so opening the store checks every slot against the heap
+ * and drops slots whose entry was not written before a crash.
+ * </p>
+ */
 public class DiskStorageRandomAccess implements DiskStorageInterface{
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final String INDEX_FILE = "slots.idx";
+    private static final String HEAP_PREFIX = "heap.";
+    private static final String HEAP_SUFFIX = ".dat";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // index file header
+    private static final int MAGIC = 0x4b56484d;
+    private static final int MAGIC_POS = 0;
+    private static final int CAPACITY_POS = 4;          // number of slots, a power of two
+    private static final int COUNT_POS = 8;             // live entries
+    private static final int USED_POS = 12;             // live entries plus tombstones
+    private static final int HEAP_END_POS = 16;         // end of the last heap entry
+    private static final int DEAD_BYTES_POS = 24;       // heap bytes of overwritten and deleted entries
+    private static final int HEAP_GEN_POS = 32;         // generation of the heap file in use
+    private static final int HEADER_SIZE = 48;
+
+    // slot: heap start pointer (long), entry length (int), key hash (int)
+    private static final int SLOT_SIZE = 16;
+    private static final int SLOT_LENGTH_POS = 8;
+    private static final int SLOT_HASH_POS = 12;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    // heap entry: key length (int), value length (int), key bytes, value bytes
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final long HEAP_START = 8;           // keeps pointer 0 free to mark empty slots
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 26;    // keeps the index file below 2GB
+    private static final long INITIAL_HEAP_SIZE = 1024 * 1024;
+    private static final long MAX_HEAP_SIZE = Integer.MAX_VALUE;
+    private static final double MAX_LOAD = 0.5;
+
+    private String dir = "./data";
+    private File storeDir;
+
+    private FileChannel indexChannel;
+    private FileChannel heapChannel;
+    private volatile MappedByteBuffer index;
+    private volatile MappedByteBuffer heap;
+
+    private final RingIndex ringIndex = new RingIndex();    // keys ordered by hash ring position
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private GroupCommit groupCommit;
+
+    public DiskStorageRandomAccess(String serverName){
+        this("mmapDB", serverName, FsyncPolicy.INTERVAL, GroupCommit.DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param dirPrefix prefix of the storage directory under ./data
+     * @param serverName KVServer name in the format of ip:port
+     * @param fsyncPolicy when mapped writes are forced to disk
+     * @param syncInterval ms between background fsyncs for <code>FsyncPolicy.INTERVAL</code>
+     */
+    public DiskStorageRandomAccess(String dirPrefix, String serverName, FsyncPolicy fsyncPolicy, int syncInterval){
+        this.storeDir = new File(this.dir, dirPrefix + "." + serverName);
+        try {
+            open();
+        } catch (IOException e){
+            logger.error("Error opening hash storage under " + storeDir.getPath(), e);
+        }
+        this.groupCommit = new GroupCommit(fsyncPolicy, syncInterval, new GroupCommit.Syncable() {
+            @Override
+            public void sync() throws IOException {
+                index.force();
+                heap.force();
+            }
+        }, storeDir.getName());
+    }
+
+    /**
+     * Map the index and heap files, creating an empty store if there is none yet.
+     */
+    private void open() throws IOException {
+        if (!storeDir.exists() && !storeDir.mkdirs()){
+            throw new IOException("Unable to create directory " + storeDir.getPath());
+        }
+        File indexFile = new File(storeDir, INDEX_FILE);
+        boolean fresh = indexFile.length() < HEADER_SIZE;
+        indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+        if (fresh){
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize(INITIAL_CAPACITY));
+            writeHeader(index, INITIAL_CAPACITY, 0, 0, HEAP_START, 0, 0);
+        }
+        else {
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+            if (index.getInt(MAGIC_POS) != MAGIC || index.capacity() < indexSize(index.getInt(CAPACITY_POS))){
+                throw new IOException("Invalid hash storage index " + indexFile.getPath());
+            }
+        }
+
+        int heapGen = index.getInt(HEAP_GEN_POS);
+        heapChannel = new RandomAccessFile(heapFile(heapGen), "rw").getChannel();
+        long heapSize = Math.max(INITIAL_HEAP_SIZE, heapChannel.size());
+        heap = heapChannel.map(FileChannel.MapMode.READ_WRITE, 0, heapSize);
+
+        // leftovers of a rebuild that did not complete
+        File[] files = storeDir.listFiles();
+        if (files != null){
+            for (File file : files){
+                String name = file.getName();
+                if (name.endsWith(TMP_SUFFIX) || (name.startsWith(HEAP_PREFIX) && !file.equals(heapFile(heapGen)))){
+                    file.delete();
+                }
+            }
+        }
+        loadSlots();
+        logger.info("Hash storage opened with " + index.getInt(COUNT_POS) + " keys in " +
+                index.getInt(CAPACITY_POS) + " slots");
+    }
+
+    /**
+     * Check every taken slot against the heap and fill the ring index. The
+     * two files are flushed independently, so after a crash a slot may point
+     * at an entry that never reached the disk. Such slots are turned into
+     * tombstones and the header counts are recomputed.
+     */
+    private void loadSlots(){
+        ringIndex.clear();
+        long heapEnd = index.getLong(HEAP_END_POS);
+        if (heapEnd < HEAP_START || heapEnd > heap.capacity()){
+            logger.warn("Hash storage heap end " + heapEnd + " is out of bounds, clamping it to the heap file");
+            heapEnd = Math.max(HEAP_START, Math.min(heapEnd, heap.capacity()));
+            index.putLong(HEAP_END_POS, heapEnd);
+        }
+        int capacity = index.getInt(CAPACITY_POS);
+        int count = 0;
+        int used = 0;
+        int dropped = 0;
+        for (int slot = 0; slot < capacity; slot++){
+            long pointer = index.getLong(slotPosition(slot));
+            if (pointer == EMPTY){
+                continue;
+            }
+            used++;
+            if (pointer == TOMBSTONE){
+                continue;
+            }
+            String key = validKey(slot, heapEnd);
+            if (key == null){
+                index.putLong(slotPosition(slot), TOMBSTONE);
+                dropped++;
+                continue;
+            }
+            ringIndex.add(key);
+            count++;
+        }
+        if (dropped > 0){
+            logger.warn("Dropped " + dropped + " hash storage slots pointing at incomplete heap entries");
+        }
+        index.putInt(COUNT_POS, count);
+        index.putInt(USED_POS, used);
+    }
+
+    /**
+     * @return key of the entry a taken slot points at, null if the slot
+     *           points past the heap end or at a broken entry
+     */
+    private String validKey(int slot, long heapEnd){
+        int position = slotPosition(slot);
+        long start = index.getLong(position);
+        int length = index.getInt(position + SLOT_LENGTH_POS);
+        if (start < HEAP_START || length < ENTRY_HEADER_SIZE || start + length > heapEnd){
+            return null;
+        }
+        int keyLength = heap.getInt((int) start);
+        int valueLength = heap.getInt((int) start + 4);
+        if (keyLength < 0 || valueLength < 0 || (long) ENTRY_HEADER_SIZE + keyLength + valueLength != length){
+            return null;
+        }
+        byte[] keyBytes = new byte[keyLength];
+        ByteBuffer entry = heap.duplicate();
+        entry.position((int) start + ENTRY_HEADER_SIZE);
+        entry.get(keyBytes);
+        String key = new String(keyBytes, StandardCharsets.UTF_8);
+        return (hash(key) == index.getInt(position + SLOT_HASH_POS)) ? key : null;
+    }
+
+    private File heapFile(int generation){
+        return new File(storeDir, HEAP_PREFIX + generation + HEAP_SUFFIX);
+    }
+
+    private static long indexSize(int capacity){
+        return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    private static int slotPosition(int slot){
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static void writeHeader(ByteBuffer index, int capacity, int count, int used,
+                                    long heapEnd, long deadBytes, int heapGen){
+        index.putInt(MAGIC_POS, MAGIC);
+        index.putInt(CAPACITY_POS, capacity);
+        index.putInt(COUNT_POS, count);
+        index.putInt(USED_POS, used);
+        index.putLong(HEAP_END_POS, heapEnd);
+        index.putLong(DEAD_BYTES_POS, deadBytes);
+        index.putInt(HEAP_GEN_POS, heapGen);
+    }
+
+    private static void writeSlot(ByteBuffer index, int slot, long start, int length, int hash){
+        int position = slotPosition(slot);
+        index.putInt(position + SLOT_LENGTH_POS, length);
+        index.putInt(position + SLOT_HASH_POS, hash);
+        // pointer last, it is what marks the slot as taken
+        index.putLong(position, start);
+    }
+
+    private static int hash(String key){
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Probe for the slot of the given key. Caller must hold the lock.
+     *
+     * @return slot of the key, or <code>-(insertion slot) - 1</code> if the key is absent
+     */
+    private int findSlot(byte[] keyBytes, int hash) throws IOException {
+        int capacity = index.getInt(CAPACITY_POS);
+        int mask = capacity - 1;
+        int firstFree = -1;
+        int slot = hash & mask;
+        for (int probes = 0; probes < capacity; probes++){
+            int position = slotPosition(slot);
+            long start = index.getLong(position);
+            if (start == EMPTY){
+                return -(firstFree >= 0 ? firstFree : slot) - 1;
+            }
+            if (start == TOMBSTONE){
+                if (firstFree < 0){
+                    firstFree = slot;
+                }
+            }
+            else if (index.getInt(position + SLOT_HASH_POS) == hash && keyEquals(start, keyBytes)){
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (firstFree >= 0){
+            return -firstFree - 1;
+        }
+        throw new IOException("Hash storage index is full");
+    }
+
+    private boolean keyEquals(long start, byte[] keyBytes){
+        int position = (int) start;
+        if (heap.getInt(position) != keyBytes.length){
+            return false;
+        }
+        position += ENTRY_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; i++){
+            if (heap.get(position + i) != keyBytes[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the entry a slot points at out of the mapped heap. Caller must hold the lock.
+     */
+    private KeyValuePair readEntry(int slot){
+        int position = slotPosition(slot);
+        long start = index.getLong(position);
+        int length = index.getInt(position + SLOT_LENGTH_POS);
+        ByteBuffer entry = heap.duplicate();
+        entry.position((int) start);
+        byte[] keyBytes = new byte[entry.getInt()];
+        byte[] valueBytes = new byte[entry.getInt()];
+        entry.get(keyBytes);
+        entry.get(valueBytes);
+        return new KeyValuePair(start, start + length,
+                new String(keyBytes, StandardCharsets.UTF_8), new String(valueBytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Make room for an entry of the given length at the end of the heap.
+     * Caller must hold the write lock.
+     */
+    private void ensureHeapCapacity(int length) throws IOException {
+        long heapEnd = index.getLong(HEAP_END_POS);
+        if (heapEnd + length <= heap.capacity()){
+            return;
+        }
+        long deadBytes = index.getLong(DEAD_BYTES_POS);
+        if (deadBytes > 0 && deadBytes >= (heapEnd - HEAP_START) / 2){
+            rebuild(index.getInt(CAPACITY_POS), true);
+            heapEnd = index.getLong(HEAP_END_POS);
+            if (heapEnd + length <= heap.capacity()){
+                return;
+            }
+        }
+        long size = heapSizeFor(heapEnd + length);
+        heap = heapChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        logger.info("Hash storage heap grown to " + size + " bytes");
+    }
+
+    private static long heapSizeFor(long needed) throws IOException {
+        if (needed > MAX_HEAP_SIZE){
+            throw new IOException("Hash storage heap cannot grow beyond " + MAX_HEAP_SIZE + " bytes");
+        }
+        long size = INITIAL_HEAP_SIZE;
+        while (size < needed){
+            size *= 2;
+        }
+        return Math.min(size, MAX_HEAP_SIZE);
+    }
+
+    /**
+     * Make room for one more key in the index, rehashing into a larger table
+     * or just dropping tombstones. Caller must hold the write lock.
+     */
+    private void ensureIndexCapacity() throws IOException {
+        int capacity = index.getInt(CAPACITY_POS);
+        if (index.getInt(USED_POS) + 1 <= capacity * MAX_LOAD){
+            return;
+        }
+        int newCapacity = capacity;
+        if (index.getInt(COUNT_POS) + 1 > capacity * MAX_LOAD / 2){
+            if (capacity >= MAX_CAPACITY){
+                throw new IOException("Hash storage index cannot grow beyond " + MAX_CAPACITY + " slots");
+            }
+            newCapacity = capacity * 2;
+        }
+        rebuild(newCapacity, false);
+    }
+
+    /**
+     * Rewrite the index into a new file with the given number of slots,
+     * optionally copying the live entries into a new heap generation as well.
+     * Caller must hold the write lock.
+     */
+    private void rebuild(int newCapacity, boolean compactHeap) throws IOException {
+        long startTime = System.currentTimeMillis();
+        int heapGen = index.getInt(HEAP_GEN_POS);
+        long heapEnd = index.getLong(HEAP_END_POS);
+        long deadBytes = index.getLong(DEAD_BYTES_POS);
+
+        File tmpIndexFile = new File(storeDir, INDEX_FILE + TMP_SUFFIX);
+        tmpIndexFile.delete();
+        FileChannel newIndexChannel = new RandomAccessFile(tmpIndexFile, "rw").getChannel();
+        MappedByteBuffer newIndex = newIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize(newCapacity));
+
+        int newHeapGen = heapGen;
+        FileChannel newHeapChannel = heapChannel;
+        MappedByteBuffer newHeap = heap;
+        if (compactHeap){
+            long liveBytes = heapEnd - HEAP_START - deadBytes;
+            newHeapGen = heapGen + 1;
+            newHeapChannel = new RandomAccessFile(heapFile(newHeapGen), "rw").getChannel();
+            newHeap = newHeapChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    heapSizeFor(Math.min(HEAP_START + 2 * liveBytes, MAX_HEAP_SIZE)));
+            heapEnd = HEAP_START;
+            deadBytes = 0;
+        }
+
+        int capacity = index.getInt(CAPACITY_POS);
+        int mask = newCapacity - 1;
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++){
+            int position = slotPosition(slot);
+            long start = index.getLong(position);
+            if (start == EMPTY || start == TOMBSTONE){
+                continue;
+            }
+            int length = index.getInt(position + SLOT_LENGTH_POS);
+            int hash = index.getInt(position + SLOT_HASH_POS);
+            if (compactHeap){
+                ByteBuffer entry = heap.duplicate();
+                entry.limit((int) (start + length));
+                entry.position((int) start);
+                ByteBuffer target = newHeap.duplicate();
+                target.position((int) heapEnd);
+                target.put(entry);
+                start = heapEnd;
+                heapEnd += length;
+            }
+            int newSlot = hash & mask;
+            while (newIndex.getLong(slotPosition(newSlot)) != EMPTY){
+                newSlot = (newSlot + 1) & mask;
+            }
+            writeSlot(newIndex, newSlot, start, length, hash);
+            count++;
+        }
+        writeHeader(newIndex, newCapacity, count, count, heapEnd, deadBytes, newHeapGen);
+        if (compactHeap){
+            newHeap.force();
+        }
+        newIndex.force();
+
+        // the rename switches over to the new index and, with it, the new heap generation
+        if (!tmpIndexFile.renameTo(new File(storeDir, INDEX_FILE))){
+            newIndexChannel.close();
+            if (compactHeap){
+                newHeapChannel.close();
+                heapFile(newHeapGen).delete();
+            }
+            throw new IOException("Unable to replace hash storage index");
+        }
+        indexChannel.close();
+        indexChannel = newIndexChannel;
+        index = newIndex;
+        if (compactHeap){
+            heapChannel.close();
+            heapFile(heapGen).delete();
+            heapChannel = newHeapChannel;
+            heap = newHeap;
+        }
+        logger.info("Hash storage rebuilt " + count + " keys into " + newCapacity + " slots" +
+                (compactHeap ? " and compacted heap to " + heapEnd + " bytes" : "") +
+                " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
     @Override
-    public boolean put(String key, String value) throws Exception {
-        return false;
+    public boolean put(String key, String value){
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = ENTRY_HEADER_SIZE + keyBytes.length + valueBytes.length;
+        int hash = hash(key);
+        long ticket;
+        lock.writeLock().lock();
+        try {
+            ensureHeapCapacity(length);
+            ensureIndexCapacity();
+            int slot = findSlot(keyBytes, hash);
+
+            // the two mappings reach the disk in any order, open() drops slots whose entry did not
+            long start = index.getLong(HEAP_END_POS);
+            ByteBuffer entry = heap.duplicate();
+            entry.position((int) start);
+            entry.putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+            index.putLong(HEAP_END_POS, start + length);
+
+            if (slot >= 0){
+                int oldLength = index.getInt(slotPosition(slot) + SLOT_LENGTH_POS);
+                index.putLong(DEAD_BYTES_POS, index.getLong(DEAD_BYTES_POS) + oldLength);
+            }
+            else {
+                slot = -slot - 1;
+                if (index.getLong(slotPosition(slot)) == EMPTY){
+                    index.putInt(USED_POS, index.getInt(USED_POS) + 1);
+                }
+                index.putInt(COUNT_POS, index.getInt(COUNT_POS) + 1);
+                ringIndex.add(key);
+            }
+            writeSlot(index, slot, start, length, hash);
+            ticket = groupCommit.written();
+        } catch (IOException e){
+            logger.error("Error trying to insert key value pair of key: " + key, e);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            groupCommit.await(ticket);
+        } catch (IOException e){
+            logger.error("Error trying to sync key value pair of key: " + key, e);
+            return false;
+        }
+        logger.debug("Successfully Inserted KV pair of key: " + key);
+        return true;
     }
 
     @Override
-    public String get(String key) throws Exception {
-        return null;
+    public String get(String key){
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(keyBytes, hash(key));
+            if (slot < 0){
+                logger.debug("Did not find the corresponding value for the given key of " + key);
+                return null;
+            }
+            return readEntry(slot).getValue();
+        } catch (IOException e){
+            logger.error("Error trying to get value of key: " + key, e);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
     public void clearDisk() {
-
+        lock.writeLock().lock();
+        try {
+            indexChannel.close();
+            heapChannel.close();
+            File[] files = storeDir.listFiles();
+            if (files != null){
+                for (File file : files){
+                    file.delete();
+                }
+            }
+            open();
+        } catch (IOException e){
+            logger.error("Error trying to clear the hash storage", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
     public boolean delelteKV(String key) {
-        return false;
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long ticket;
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(keyBytes, hash(key));
+            if (slot < 0){
+                logger.info("Cannot remove non-exisitng KV pairs");
+                return false;
+            }
+            int position = slotPosition(slot);
+            index.putLong(position, TOMBSTONE);
+            ringIndex.remove(key);
+            index.putInt(COUNT_POS, index.getInt(COUNT_POS) - 1);
+            index.putLong(DEAD_BYTES_POS, index.getLong(DEAD_BYTES_POS) + index.getInt(position + SLOT_LENGTH_POS));
+            ticket = groupCommit.written();
+        } catch (IOException e){
+            logger.error("Error trying to remove entry of key: " + key, e);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            groupCommit.await(ticket);
+        } catch (IOException e){
+            logger.error("Error trying to sync removal of key: " + key, e);
+            return false;
+        }
+        return true;
     }
 
     @Override
     public boolean onDisk(String key) {
-        return false;
+        lock.readLock().lock();
+        try {
+            return findSlot(key.getBytes(StandardCharsets.UTF_8), hash(key)) >= 0;
+        } catch (IOException e){
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the values of keys found in the ring index.
+     */
+    private Map<String, String> lookUp(List<String> keys){
+        Map<String, String> KVtable = new HashMap<String, String>();
+        lock.readLock().lock();
+        try {
+            for (String key : keys){
+                int slot = findSlot(key.getBytes(StandardCharsets.UTF_8), hash(key));
+                if (slot >= 0){
+                    KVtable.put(key, readEntry(slot).getValue());
+                }
+            }
+        } catch (IOException e){
+            logger.error("Error trying to read hash range", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return KVtable;
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop) {
+        return lookUp(ringIndex.keysOutOfRange(start, stop));
+    }
+
+    @Override
+    public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop) {
+        return lookUp(ringIndex.keysWithinRange(start, stop));
+    }
+
+    @Override
+    public Map<String, String> getAllKV() {
+        Map<String, String> KVtable = new HashMap<String, String>();
+        lock.readLock().lock();
+        try {
+            int capacity = index.getInt(CAPACITY_POS);
+            for (int slot = 0; slot < capacity; slot++){
+                long pointer = index.getLong(slotPosition(slot));
+                if (pointer != EMPTY && pointer != TOMBSTONE){
+                    KeyValuePair kv = readEntry(slot);
+                    KVtable.put(kv.getKey(), kv.getValue());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return KVtable;
+    }
+
+    public int size(){
+        lock.readLock().lock();
+        try {
+            return index.getInt(COUNT_POS);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getCapacity(){
+        lock.readLock().lock();
+        try {
+            return index.getInt(CAPACITY_POS);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHeapSize(){
+        return heap.capacity();
+    }
+
+    public long getSyncCount(){
+        return groupCommit.getSyncCount();
+    }
+
+    /**
+     * Fsync and close the mapped files. The storage must not be used afterwards.
+     */
+    public void close(){
+        groupCommit.close();
+        lock.writeLock().lock();
+        try {
+            indexChannel.close();
+            heapChannel.close();
+        } catch (IOException e){
+            logger.error("Error closing hash storage", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 }
@@ -0,0 +1,560 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-to-live support in front of a disk storage engine.
+ *
+ * <p>
+ * A value put with a deadline is stored as <code>"\0" + deadline + "\0" + value</code>,
+ * the deadline in ms since the epoch, so it lives in any engine, survives
+ * restarts and travels with the value when it is moved or replicated to
+ * another server. Plain values starting with "\0" are stored the same way with
+ * deadline 0 (never), so they are not mistaken for one. Gets, deletes and
+ * range scans of this class hide expired keys and strip deadlines; the
+ * <code>Stored</code> methods exchange values in the stored format.
+ * </p>
+ *
+ * <p>
+ * An expired key is deleted by the first read that finds it, and otherwise by
+ * a background reaper that takes the keys due from a {@link TimerWheel}. The
+ * reaper thread only starts once a key has a deadline. With an index file,
+ * every deadline put is also appended to it, and the wheel is rebuilt from the
+ * index on open after checking each listed key against the storage, so the
+ * storage is never scanned; without one, keys stored before a restart only
+ * expire when read. The reaper rewrites the index from the wheel once it is
+ * mostly stale. Deletes of expired keys are reported to an
+ * {@link ExpiryListener} on the reaper thread, so a read never waits for it. Writes and expiry of the same key are
+ * ordered by one of <code>LOCK_STRIPES</code> locks, so the reaper cannot
+ * delete a value that was just written.
+ * </p>
+ */
+public class ExpiringDiskStorage implements DiskStorageInterface {
+
+    /**
+     * Told about keys deleted because they expired.
+     */
+    public interface ExpiryListener {
+        void expired(String key);
+    }
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final char MARKER = '\u0000';
+    private static final int LOCK_STRIPES = 64;
+    private static final int WHEEL_BUCKETS = 512;
+    private static final int MIN_INDEX_RECORDS = 10000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final String TMP_SUFFIX = ".tmp";
+    public static final int DEFAULT_TICK = 100;
+
+    private final DiskStorageInterface storage;
+    private final int tick;
+    private final TimerWheel wheel;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ConcurrentLinkedQueue<String> expiredKeys = new ConcurrentLinkedQueue<String>();   // not yet reported
+    private final AtomicLong expiredCount = new AtomicLong();
+    private volatile ExpiryListener listener;
+    private final File indexFile;                       // null if deadlines are not indexed
+    private final Object indexLock = new Object();
+    private DataOutputStream index;
+    private int indexRecords;                           // appended since the index was written
+    private boolean reaperEnabled;
+    private volatile Thread reaper;
+    private volatile boolean running;
+
+    public ExpiringDiskStorage(DiskStorageInterface storage){
+        this(storage, DEFAULT_TICK);
+    }
+
+    /**
+     * @param storage storage keeping values in the stored format
+     * @param tick ms between reaper runs, also the timer wheel resolution
+     */
+    public ExpiringDiskStorage(DiskStorageInterface storage, int tick){
+        this(storage, tick, null);
+    }
+
+    /**
+     * @param storage storage keeping values in the stored format
+     * @param tick ms between reaper runs, also the timer wheel resolution
+     * @param indexFile file listing the keys put with a deadline, null for none
+     */
+    public ExpiringDiskStorage(DiskStorageInterface storage, int tick, File indexFile){
+        if (tick <= 0){
+            throw new IllegalArgumentException("Reaper tick must be positive");
+        }
+        this.storage = storage;
+        this.tick = tick;
+        this.wheel = new TimerWheel(tick, WHEEL_BUCKETS, System.currentTimeMillis());
+        for (int i = 0; i < LOCK_STRIPES; i++){
+            locks[i] = new Object();
+        }
+        this.indexFile = indexFile;
+        if (indexFile != null){
+            loadIndex();
+        }
+    }
+
+    /**
+     * Schedule the keys of the index that still have a deadline in the
+     * storage and rewrite the index with just them.
+     */
+    private void loadIndex(){
+        Map<String, Long> indexed = readIndex(indexFile);
+        Map<String, Long> deadlines = new HashMap<String, Long>(indexed.size() * 2);
+        for (Map.Entry<String, Long> entry : indexed.entrySet()){
+            long deadline;
+            try {
+                String stored = storage.get(entry.getKey());
+                deadline = (stored == null) ? 0 : deadlineOf(stored);
+            } catch (Exception e){
+                logger.error("Unable to read expiring key " + entry.getKey(), e);
+                deadline = entry.getValue();
+            }
+            if (deadline != 0){
+                deadlines.put(entry.getKey(), deadline);
+                wheel.schedule(entry.getKey(), deadline);
+            }
+        }
+        synchronized (indexLock){
+            writeIndex(deadlines);
+        }
+        logger.info("Expiry index " + indexFile.getPath() + " lists " + deadlines.size() + " expiring keys");
+    }
+
+    /**
+     * @return deadline of each key in an index file, the last one listed if
+     * there are several; a torn record at the end is ignored
+     */
+    private static Map<String, Long> readIndex(File file){
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        if (!file.exists()){
+            return deadlines;
+        }
+        try {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            try {
+                while (true){
+                    String key = input.readUTF();
+                    deadlines.put(key, input.readLong());
+                }
+            } catch (EOFException e){
+                // end of the index
+            } finally {
+                input.close();
+            }
+        } catch (IOException e){
+            logger.error("Ignoring rest of expiry index " + file.getPath() + ": " + e.getMessage());
+        }
+        return deadlines;
+    }
+
+    /**
+     * Replace the index with the given deadlines and append to the new one.
+     * On failure deadlines put from now on are not indexed.
+     * Caller holds <code>indexLock</code>.
+     */
+    private void writeIndex(Map<String, Long> deadlines){
+        closeIndex();
+        File tmp = new File(indexFile.getPath() + TMP_SUFFIX);
+        try {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+            try {
+                for (Map.Entry<String, Long> entry : deadlines.entrySet()){
+                    output.writeUTF(entry.getKey());
+                    output.writeLong(entry.getValue());
+                }
+            } finally {
+                output.close();
+            }
+            if (!tmp.renameTo(indexFile)){
+                throw new IOException("Unable to replace " + indexFile.getPath());
+            }
+            index = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(indexFile, true), BUFFER_SIZE));
+            indexRecords = deadlines.size();
+        } catch (IOException e){
+            logger.error("Unable to write expiry index " + indexFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Append a deadline to the index. It is not forced to disk: a lost record
+     * only leaves the key to expire when read.
+     */
+    private void appendIndex(String key, long deadline){
+        synchronized (indexLock){
+            if (index == null){
+                return;
+            }
+            try {
+                index.writeUTF(key);
+                index.writeLong(deadline);
+                index.flush();
+                indexRecords++;
+            } catch (IOException e){
+                logger.error("Unable to index deadline of key " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the index from the wheel once most of its records are stale.
+     */
+    private void compactIndex(){
+        synchronized (indexLock){
+            if (index == null || indexRecords <= Math.max(MIN_INDEX_RECORDS, 2 * wheel.size())){
+                return;
+            }
+            writeIndex(wheel.entries());
+        }
+    }
+
+    /**
+     * Caller holds <code>indexLock</code>.
+     */
+    private void closeIndex(){
+        if (index == null){
+            return;
+        }
+        try {
+            index.close();
+        } catch (IOException e){
+            logger.error("Unable to close expiry index " + indexFile.getPath(), e);
+        }
+        index = null;
+    }
+
+    private Object lockFor(String key){
+        return locks[ShardedDiskStorage.shardOf(key, LOCK_STRIPES)];
+    }
+
+    /**
+     * @return index of the marker ending the deadline, -1 for a plain value
+     */
+    private static int deadlineEnd(String stored){
+        if (stored.isEmpty() || stored.charAt(0) != MARKER){
+            return -1;
+        }
+        int end = stored.indexOf(MARKER, 1);
+        if (end < 2){
+            return -1;
+        }
+        for (int i = 1; i < end; i++){
+            if (!Character.isDigit(stored.charAt(i))){
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Encode a value in the stored format.
+     *
+     * @param deadline time in ms since the epoch from which the value is gone, 0 for never
+     */
+    public static String encode(String value, long deadline){
+        if (deadline <= 0 && (value.isEmpty() || value.charAt(0) != MARKER)){
+            return value;
+        }
+        return MARKER + Long.toString(Math.max(deadline, 0)) + MARKER + value;
+    }
+
+    /**
+     * @return deadline of a stored value, 0 if it never expires
+     */
+    public static long deadlineOf(String stored){
+        int end = deadlineEnd(stored);
+        return (end < 0) ? 0 : Long.parseLong(stored.substring(1, end));
+    }
+
+    /**
+     * @return value of a stored value without its deadline
+     */
+    public static String valueOf(String stored){
+        int end = deadlineEnd(stored);
+        return (end < 0) ? stored : stored.substring(end + 1);
+    }
+
+    private static boolean expired(String stored, long now){
+        long deadline = deadlineOf(stored);
+        return deadline != 0 && deadline <= now;
+    }
+
+    public void setExpiryListener(ExpiryListener listener){
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        return putStored(key, encode(value, 0));
+    }
+
+    /**
+     * Store a value that expires at the given time.
+     *
+     * @param deadline time in ms since the epoch from which the key is gone
+     */
+    public boolean put(String key, String value, long deadline) throws Exception {
+        return putStored(key, encode(value, deadline));
+    }
+
+    /**
+     * Store a value in the stored format, e.g. one transferred from another
+     * server, keeping its deadline.
+     */
+    public boolean putStored(String key, String stored) throws Exception {
+        long deadline = deadlineOf(stored);
+        synchronized (lockFor(key)){
+            if (!storage.put(key, stored)){
+                return false;
+            }
+        }
+        if (deadline != 0){
+            // scheduled first, so an index rewritten from the wheel in between keeps the key
+            wheel.schedule(key, deadline);
+            appendIndex(key, deadline);
+            if (reaper == null){
+                startReaperThread();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        String stored = storage.get(key);
+        if (stored == null){
+            return null;
+        }
+        if (expired(stored, System.currentTimeMillis())){
+            expire(key, System.currentTimeMillis());
+            return null;
+        }
+        return valueOf(stored);
+    }
+
+    /**
+     * Delete a key if it has expired by now.
+     *
+     * @return true if the key was deleted
+     */
+    private boolean expire(String key, long now){
+        synchronized (lockFor(key)){
+            String stored;
+            try {
+                stored = storage.get(key);
+            } catch (Exception e){
+                logger.error("Unable to read expiring key " + key, e);
+                return false;
+            }
+            if (stored == null || !expired(stored, now) || !storage.delelteKV(key)){
+                return false;
+            }
+        }
+        expiredCount.incrementAndGet();
+        if (listener != null){
+            expiredKeys.add(key);
+            if (reaper == null){
+                startReaperThread();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clearDisk(){
+        storage.clearDisk();
+        wheel.clear();
+        if (indexFile != null){
+            synchronized (indexLock){
+                writeIndex(new HashMap<String, Long>());
+            }
+        }
+    }
+
+    /**
+     * @return true if a live key was deleted, false if it was absent or had expired
+     */
+    @Override
+    public boolean delelteKV(String key){
+        if (expire(key, System.currentTimeMillis())){
+            return false;
+        }
+        synchronized (lockFor(key)){
+            return storage.delelteKV(key);
+        }
+    }
+
+    @Override
+    public boolean onDisk(String key){
+        if (!storage.onDisk(key)){
+            return false;
+        }
+        try {
+            return get(key) != null;
+        } catch (Exception e){
+            logger.error("Unable to read key " + key, e);
+            return true;
+        }
+    }
+
+    /**
+     * Drop expired entries from a scan, optionally stripping deadlines.
+     */
+    private static Map<String, String> live(Map<String, String> scan, boolean strip){
+        long now = System.currentTimeMillis();
+        Map<String, String> result = new HashMap<String, String>(scan.size() * 2);
+        for (Map.Entry<String, String> entry : scan.entrySet()){
+            if (!expired(entry.getValue(), now)){
+                result.put(entry.getKey(), strip ? valueOf(entry.getValue()) : entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
+        return live(storage.getKVOutOfRange(start, stop), true);
+    }
+
+    @Override
+    public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop){
+        return live(storage.getKVWithinRange(start, stop), true);
+    }
+
+    /**
+     * Get the live KV pairs within hash range (start, stop) in the stored
+     * format, to move or replicate them with their deadlines.
+     */
+    public Map<String, String> getStoredWithinRange(BigInteger start, BigInteger stop){
+        return live(storage.getKVWithinRange(start, stop), false);
+    }
+
+    @Override
+    public Map<String, String> getAllKV(){
+        return live(storage.getAllKV(), true);
+    }
+
+    /**
+     * @return number of keys deleted because they expired
+     */
+    public long getExpiredCount(){
+        return expiredCount.get();
+    }
+
+    /**
+     * @return number of keys waiting in the timer wheel
+     */
+    public int getScheduledCount(){
+        return wheel.size();
+    }
+
+    /**
+     * @return true if the reaper thread is running
+     */
+    public boolean isReaperRunning(){
+        return reaper != null;
+    }
+
+    /**
+     * Let a background reaper delete keys as they expire. Its thread starts
+     * now if a key has a deadline or an expiry is to be reported, otherwise
+     * with the first one.
+     */
+    public synchronized void startReaper(){
+        reaperEnabled = true;
+        if (wheel.size() > 0 || !expiredKeys.isEmpty()){
+            startReaperThread();
+        }
+    }
+
+    private synchronized void startReaperThread(){
+        if (!reaperEnabled || reaper != null){
+            return;
+        }
+        running = true;
+        reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                logger.info("Expiry reaper started with " + wheel.size() + " expiring keys");
+                while (running){
+                    try {
+                        Thread.sleep(tick);
+                    } catch (InterruptedException e){
+                        break;
+                    }
+                    reap();
+                    compactIndex();
+                }
+            }
+        }, "expiry-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Delete the keys the timer wheel has due and report all expired keys.
+     */
+    private void reap(){
+        long now = System.currentTimeMillis();
+        for (String key : wheel.advance(now)){
+            expire(key, now);
+        }
+        ExpiryListener current = listener;
+        Iterator<String> it = expiredKeys.iterator();
+        while (it.hasNext()){
+            String key = it.next();
+            it.remove();
+            if (current != null){
+                try {
+                    current.expired(key);
+                } catch (RuntimeException e){
+                    logger.error("Unable to report expiry of key " + key, e);
+                }
+            }
+        }
+    }
+
+    public synchronized void stopReaper(){
+        reaperEnabled = false;
+        running = false;
+        if (reaper != null){
+            reaper.interrupt();
+            try {
+                reaper.join(1000);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            reaper = null;
+        }
+    }
+
+    @Override
+    public void close(){
+        stopReaper();
+        logger.info("Closing expiring storage: " + getExpiredCount() + " keys expired");
+        synchronized (indexLock){
+            closeIndex();
+        }
+        storage.close();
+    }
+}
@@ -0,0 +1,10 @@
+package DiskStorage;
+
+/**
+ * When writes of the storage logs are forced to the disk device.
+ */
+public enum FsyncPolicy {
+    ALWAYS,     // every write waits for fsync, concurrent writers share one fsync
+    INTERVAL,   // a background thread fsyncs every sync interval, writes do not wait
+    OS          // never fsync, the operating system flushes dirty pages on its own
+}
@@ -0,0 +1,170 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit of log writes according to a {@link FsyncPolicy}.
+ *
+ * <p>
+ * Writers append to the log while holding the log's own write lock, take a
+ * ticket with {@link #written()}, release the lock and then call
+ * {@link #await(long)}. With <code>ALWAYS</code> the first waiter becomes the
+ * leader and issues a single fsync covering every ticket handed out so far,
+ * while writers arriving meanwhile queue up for the next fsync. Many
+ * concurrent writers therefore share one <code>FileChannel.force</code> call.
+ * </p>
+ */
+public class GroupCommit {
+
+    private static Logger logger = Logger.getRootLogger();
+    public static final int DEFAULT_SYNC_INTERVAL = 100;   // ms between background fsyncs
+
+    /**
+     * Forces everything written to the log so far to the disk device.
+     */
+    public interface Syncable {
+        void sync() throws IOException;
+    }
+
+    private final FsyncPolicy policy;
+    private final Syncable target;
+
+    private final AtomicLong writtenTicket = new AtomicLong();  // last ticket handed out to a writer
+    private long syncedTicket;      // every ticket up to this one is durable
+    private boolean syncing;        // a leader is running fsync right now
+    private long syncCount;         // number of fsync calls issued
+
+    private Thread syncThread;
+    private volatile boolean running;
+
+    /**
+     * @param policy fsync policy
+     * @param syncInterval ms between background fsyncs for <code>INTERVAL</code>
+     * @param target log to fsync
+     * @param name name of the log, used for the background thread
+     */
+    public GroupCommit(FsyncPolicy policy, final int syncInterval, Syncable target, String name){
+        this.policy = policy;
+        this.target = target;
+        if (policy == FsyncPolicy.INTERVAL){
+            running = true;
+            syncThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running){
+                        try {
+                            Thread.sleep(syncInterval);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        try {
+                            sync();
+                        } catch (IOException e) {
+                            logger.error("Background fsync failed", e);
+                        }
+                    }
+                }
+            }, "fsync-" + name);
+            syncThread.setDaemon(true);
+            syncThread.start();
+        }
+    }
+
+    public FsyncPolicy getPolicy(){
+        return policy;
+    }
+
+    /**
+     * Register a write that has been handed to the operating system.
+     *
+     * @return ticket to wait on for durability
+     */
+    public long written(){
+        return writtenTicket.incrementAndGet();
+    }
+
+    /**
+     * Block until the write with the given ticket is durable according to the
+     * fsync policy. Must not be called while holding the log's write lock.
+     */
+    public void await(long ticket) throws IOException {
+        if (policy != FsyncPolicy.ALWAYS){
+            return;
+        }
+        while (true){
+            long target;
+            synchronized (this){
+                while (syncing && syncedTicket < ticket){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for fsync");
+                    }
+                }
+                if (syncedTicket >= ticket){
+                    return;
+                }
+                // become the leader and fsync on behalf of every pending writer
+                syncing = true;
+                target = writtenTicket.get();
+            }
+            boolean synced = false;
+            try {
+                this.target.sync();
+                synced = true;
+            } finally {
+                synchronized (this){
+                    syncing = false;
+                    if (synced){
+                        syncCount++;
+                        syncedTicket = Math.max(syncedTicket, target);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fsync everything written so far, used by the background thread and on close.
+     */
+    public void sync() throws IOException {
+        long target = writtenTicket.get();
+        synchronized (this){
+            if (syncedTicket >= target){
+                return;
+            }
+        }
+        this.target.sync();
+        synchronized (this){
+            syncCount++;
+            syncedTicket = Math.max(syncedTicket, target);
+            notifyAll();
+        }
+    }
+
+    public synchronized long getSyncCount(){
+        return syncCount;
+    }
+
+    /**
+     * Stop the background thread and fsync pending writes unless policy is OS.
+     */
+    public void close(){
+        running = false;
+        if (syncThread != null){
+            syncThread.interrupt();
+        }
+        if (policy != FsyncPolicy.OS){
+            try {
+                sync();
+            } catch (IOException e){
+                logger.error("Final fsync failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash ring helpers shared by all disk storage engines.
+ *
+ * <p>
+ * Keys are placed on the consistent hash ring by their MD5 digest, the same way
+ * ECSConsistantHashRing places KVServers. A key belongs to range (start, stop)
+ * following the same rules as KVCommunicationServer.keyWithinRange().
+ * </p>
+ */
+public final class HashRange {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    // MessageDigest is not thread safe, keep one instance per storage thread
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("NoSuchAlgorithmException occured!");
+                return null;
+            }
+        }
+    };
+
+    private HashRange() {}
+
+    /**
+     * Get MD5 hash of the key as a positive 128-bit ring position.
+     *
+     * @param key key string
+     * @return ring position of the key
+     */
+    public static BigInteger mdKey(String key) {
+        byte[] md_key = MD5.get().digest(key.getBytes());
+        return new BigInteger(1, md_key);
+    }
+
+    /**
+     * Check if ring position is within hash range (start, stop).
+     *
+     * @param mdKey ring position of the key
+     * @param start start of hash range (exclusive)
+     * @param stop stop of hash range (exclusive)
+     * @return true if position is within range
+     */
+    public static boolean keyWithinRange(BigInteger mdKey, BigInteger start, BigInteger stop) {
+        // START <= STOP && key > START && key < STOP
+        // START >= STOP && key > START && key > STOP
+        // START >= STOP && key < START && key < STOP
+        if ((start.compareTo(stop) !=  1) && (mdKey.compareTo(start) ==  1 && mdKey.compareTo(stop) == -1) ||
+            (start.compareTo(stop) != -1) && (mdKey.compareTo(start) ==  1 && mdKey.compareTo(stop) ==  1) ||
+            (start.compareTo(stop) != -1) && (mdKey.compareTo(start) == -1 && mdKey.compareTo(stop) == -1) )
+            return true;
+        return false;
+    }
+}
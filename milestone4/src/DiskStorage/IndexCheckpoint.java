@@ -0,0 +1,171 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Checkpoint of the key index of the log-structured storage.
+ *
+ * <p>
+ * A checkpoint stores every key with its {@link LogPointer}, together with the
+ * log position and sequence number at which it was started. Every write that
+ * is not covered by the checkpoint has a sequence number of at least
+ * <code>nextSeq</code> and lies at or after that log position, so recovery only
+ * has to replay the log tail. File layout (big endian):
+ * <ul>
+ * <li>magic (int), nextSeq (long), segment id (int), offset (long) </li>
+ * <li>entries: key length (short), key bytes, pointer (long); key length -1 ends the list </li>
+ * <li>CRC32 of everything above (long) </li>
+ * </ul>
+ * The file is written to a temporary file and renamed into place.
+ * </p>
+ */
+public class IndexCheckpoint {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final String FILE_NAME = "checkpoint";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4b564350;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long nextSeq;
+    private final int segmentId;
+    private final long offset;
+
+    private IndexCheckpoint(long nextSeq, int segmentId, long offset){
+        this.nextSeq = nextSeq;
+        this.segmentId = segmentId;
+        this.offset = offset;
+    }
+
+    /**
+     * @return sequence number of the first write not covered by the checkpoint
+     */
+    public long getNextSeq(){
+        return nextSeq;
+    }
+
+    /**
+     * @return segment the log tail starts in
+     */
+    public int getSegmentId(){
+        return segmentId;
+    }
+
+    /**
+     * @return offset in <code>getSegmentId()</code> the log tail starts at
+     */
+    public long getOffset(){
+        return offset;
+    }
+
+    /**
+     * Write a checkpoint. The index may change while it is written, entries
+     * newer than the given log position are overridden by the tail replay.
+     */
+    public static void write(File dir, long nextSeq, int segmentId, long offset,
+                             CompactIndex index, boolean sync) throws IOException {
+        File tmp = new File(dir, FILE_NAME + TMP_SUFFIX);
+        FileOutputStream fileOutput = new FileOutputStream(tmp);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOutput, BUFFER_SIZE), new CRC32());
+        final DataOutputStream output = new DataOutputStream(checked);
+        try {
+            output.writeInt(MAGIC);
+            output.writeLong(nextSeq);
+            output.writeInt(segmentId);
+            output.writeLong(offset);
+            final IOException[] failure = new IOException[1];
+            index.forEach(new CompactIndex.Visitor() {
+                @Override
+                public void visit(String key, long pointer) {
+                    if (failure[0] != null){
+                        return;
+                    }
+                    try {
+                        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                        output.writeShort(keyBytes.length);
+                        output.write(keyBytes);
+                        output.writeLong(pointer);
+                    } catch (IOException e){
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null){
+                throw failure[0];
+            }
+            output.writeShort(-1);
+            output.writeLong(checked.getChecksum().getValue());
+            output.flush();
+            if (sync){
+                fileOutput.getFD().sync();
+            }
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(new File(dir, FILE_NAME))){
+            throw new IOException("Unable to replace checkpoint in " + dir.getPath());
+        }
+    }
+
+    /**
+     * Load the checkpoint of a storage directory.
+     *
+     * @param index map the checkpointed entries are added to, left empty if
+     *          there is no valid checkpoint
+     * @return checkpoint position, null if there is no valid checkpoint
+     */
+    public static IndexCheckpoint read(File dir, CompactIndex index){
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()){
+            return null;
+        }
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), new CRC32());
+            DataInputStream input = new DataInputStream(checked);
+            try {
+                if (input.readInt() != MAGIC){
+                    throw new IOException("Bad checkpoint magic");
+                }
+                IndexCheckpoint checkpoint = new IndexCheckpoint(input.readLong(), input.readInt(), input.readLong());
+                int keyLength;
+                while ((keyLength = input.readShort()) >= 0){
+                    byte[] keyBytes = new byte[keyLength];
+                    input.readFully(keyBytes);
+                    index.put(new String(keyBytes, StandardCharsets.UTF_8), input.readLong());
+                }
+                long crc = checked.getChecksum().getValue();
+                if (input.readLong() != crc){
+                    throw new IOException("Checkpoint CRC mismatch");
+                }
+                return checkpoint;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e){
+            logger.error("Ignoring invalid checkpoint " + file.getPath() + ": " + e.getMessage());
+            index.clear();
+            return null;
+        }
+    }
+
+    /**
+     * Remove the checkpoint, e.g. before deleting segments it refers to.
+     */
+    public static void delete(File dir){
+        new File(dir, FILE_NAME).delete();
+    }
+}
@@ -0,0 +1,34 @@
+package DiskStorage;
+
+/**
+ * Packs the location of a log record into a single long so the in-memory
+ * index only stores one primitive per key.
+ *
+ * <pre>
+ * | segment id (16 bits) | offset in segment (28 bits) | record length (20 bits) |
+ * </pre>
+ */
+public final class LogPointer {
+
+    public static final int MAX_SEGMENT_ID = (1 << 16) - 1;
+    public static final long MAX_OFFSET = (1L << 28) - 1;
+    public static final int MAX_LENGTH = (1 << 20) - 1;
+
+    private LogPointer() {}
+
+    public static long pack(int segmentId, long offset, int length) {
+        return ((long) segmentId << 48) | (offset << 20) | length;
+    }
+
+    public static int segmentId(long pointer) {
+        return (int) (pointer >>> 48);
+    }
+
+    public static long offset(long pointer) {
+        return (pointer >>> 20) & MAX_OFFSET;
+    }
+
+    public static int length(long pointer) {
+        return (int) (pointer & MAX_LENGTH);
+    }
+}
@@ -0,0 +1,255 @@
+package DiskStorage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import shared.Compression;
+
+/**
+ * One record of the append-only storage log.
+ *
+ * <p>
+ * Records are stored back to back in segment files with below layout (big endian).
+ * <ul>
+ * <li>crc: 4 bytes, CRC32 of everything after this field </li>
+ * <li>seq: 8 bytes, sequence number, later writes have larger numbers </li>
+ * <li>flags: 1 byte, <code>FLAG_TOMBSTONE</code> marks a deleted key, <code>FLAG_DEFLATE</code>
+ *      a compressed value </li>
+ * <li>key length: 2 bytes </li>
+ * <li>value length: 4 bytes, 0 for tombstones </li>
+ * <li>key bytes, value bytes: UTF-8 encoded, the value in {@link Compression} format if compressed </li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Values of at least the compression threshold given on creation are stored
+ * compressed if that makes them smaller. They stay compressed in memory,
+ * e.g. in a memtable, and are only inflated by {@link #getValue}.
+ * </p>
+ */
+public class LogRecord {
+
+    public static final int HEADER_SIZE = 19;
+    public static final byte FLAG_TOMBSTONE = 0x01;
+    public static final byte FLAG_DEFLATE = 0x02;
+    public static final int MAX_RECORD_SIZE = LogPointer.MAX_LENGTH;
+
+    private long seq;
+    private byte flags;
+    private byte[] keyBytes;
+    private byte[] valueBytes;
+
+    private LogRecord(long seq, byte flags, byte[] keyBytes, byte[] valueBytes) {
+        this.seq = seq;
+        this.flags = flags;
+        this.keyBytes = keyBytes;
+        this.valueBytes = valueBytes;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public boolean isTombstone() {
+        return (flags & FLAG_TOMBSTONE) != 0;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_DEFLATE) != 0;
+    }
+
+    public String getKey() {
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return value of the record, null for tombstones
+     */
+    public String getValue() {
+        if (isTombstone()) {
+            return null;
+        }
+        if (isCompressed()) {
+            try {
+                return new String(Compression.inflate(valueBytes), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                // the record passed its CRC check, so this is a bug rather than a disk error
+                throw new IllegalStateException("Cannot inflate value of key " + getKey(), e);
+            }
+        }
+        return new String(valueBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return total number of bytes the record occupies on disk
+     */
+    public int size() {
+        return HEADER_SIZE + keyBytes.length + valueBytes.length;
+    }
+
+    /**
+     * Create a record in memory, e.g. for a memtable.
+     *
+     * @param seq sequence number of the write
+     * @param key key string
+     * @param value value string, null for a tombstone
+     */
+    public static LogRecord create(long seq, String key, String value) {
+        return create(seq, key, value, 0);
+    }
+
+    /**
+     * Create a record in memory, compressing a large value.
+     *
+     * @param seq sequence number of the write
+     * @param key key string
+     * @param value value string, null for a tombstone
+     * @param compressionThreshold UTF-8 value bytes from which the value is
+     *          compressed, 0 to never compress
+     */
+    public static LogRecord create(long seq, String key, String value, int compressionThreshold) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        byte flags = (value == null) ? FLAG_TOMBSTONE : 0;
+        if (compressionThreshold > 0 && valueBytes.length >= compressionThreshold) {
+            byte[] deflated = Compression.deflate(valueBytes);
+            if (deflated != null) {
+                valueBytes = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        return new LogRecord(seq, flags, keyBytes, valueBytes);
+    }
+
+    /**
+     * Encode a record into a buffer ready to be written to disk.
+     *
+     * @param seq sequence number of the write
+     * @param key key string
+     * @param value value string, null to encode a tombstone
+     * @return flipped buffer holding the complete record
+     * @throws IOException if the record exceeds <code>MAX_RECORD_SIZE</code>
+     */
+    public static ByteBuffer encode(long seq, String key, String value) throws IOException {
+        return create(seq, key, value).encode();
+    }
+
+    /**
+     * Encode a record into a buffer ready to be written to disk.
+     *
+     * @param compressionThreshold UTF-8 value bytes from which the value is
+     *          compressed, 0 to never compress
+     * @throws IOException if the record exceeds <code>MAX_RECORD_SIZE</code>
+     */
+    public static ByteBuffer encode(long seq, String key, String value, int compressionThreshold) throws IOException {
+        return create(seq, key, value, compressionThreshold).encode();
+    }
+
+    /**
+     * Encode this record into a buffer ready to be written to disk.
+     *
+     * @return flipped buffer holding the complete record
+     * @throws IOException if the record exceeds <code>MAX_RECORD_SIZE</code>
+     */
+    public ByteBuffer encode() throws IOException {
+        int size = size();
+        if (keyBytes.length > Short.MAX_VALUE || size > MAX_RECORD_SIZE) {
+            throw new IOException("Record of key " + getKey() + " exceeds maximum record size of " + MAX_RECORD_SIZE + " bytes.");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(0);   // crc placeholder
+        buffer.putLong(seq);
+        buffer.put(flags);
+        buffer.putShort((short) keyBytes.length);
+        buffer.putInt(valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, size - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a complete record from a buffer holding exactly one record.
+     *
+     * @param buffer buffer positioned at the start of the record
+     * @return decoded record
+     * @throws IOException if the record is truncated or fails CRC validation
+     */
+    public static LogRecord decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Truncated log record.");
+        }
+        int start = buffer.position();
+        int crcValue = buffer.getInt();
+        long seq = buffer.getLong();
+        byte flags = buffer.get();
+        int keyLength = buffer.getShort();
+        int valueLength = buffer.getInt();
+        if (keyLength < 0 || valueLength < 0 || buffer.remaining() < keyLength + valueLength) {
+            throw new IOException("Truncated log record.");
+        }
+        byte[] keyBytes = new byte[keyLength];
+        byte[] valueBytes = new byte[valueLength];
+        buffer.get(keyBytes);
+        buffer.get(valueBytes);
+
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + start + 4, HEADER_SIZE - 4 + keyLength + valueLength);
+        }
+        else {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(start + 4);
+            dup.limit(start + HEADER_SIZE + keyLength + valueLength);
+            byte[] copy = new byte[dup.remaining()];
+            dup.get(copy);
+            crc.update(copy, 0, copy.length);
+        }
+        if ((int) crc.getValue() != crcValue) {
+            throw new IOException("Log record CRC mismatch.");
+        }
+        return new LogRecord(seq, flags, keyBytes, valueBytes);
+    }
+
+    /**
+     * Read the next record from a sequential stream (used when scanning segments).
+     *
+     * @param input stream positioned at the start of a record
+     * @return decoded record, or null at a clean end of stream
+     * @throws IOException if the record is truncated or fails CRC validation
+     */
+    public static LogRecord read(DataInputStream input) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int read = 0;
+        while (read < HEADER_SIZE) {
+            int n = input.read(header, read, HEADER_SIZE - read);
+            if (n < 0) {
+                if (read == 0) {
+                    return null;
+                }
+                throw new EOFException("Truncated log record header.");
+            }
+            read += n;
+        }
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int keyLength = headerBuffer.getShort(13);
+        int valueLength = headerBuffer.getInt(15);
+        if (keyLength < 0 || valueLength < 0 || HEADER_SIZE + keyLength + valueLength > MAX_RECORD_SIZE) {
+            throw new IOException("Corrupted log record header.");
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyLength + valueLength);
+        record.put(header);
+        input.readFully(record.array(), HEADER_SIZE, keyLength + valueLength);
+        record.clear();
+        return decode(record);
+    }
+}
@@ -0,0 +1,190 @@
+package DiskStorage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel rebuild of the key index of the log-structured storage.
+ *
+ * <p>
+ * Every segment is scanned, and its records CRC validated, by its own fork-join
+ * task into a partial index. Partial indexes are merged pairwise up the task
+ * tree keeping the record with the highest sequence number per key, so the
+ * result does not depend on the order segments are scanned in. Tombstones are
+ * kept in the partial indexes until the final merge, since they must still win
+ * over older values from other segments.
+ * </p>
+ */
+public class LogRecovery {
+
+    /**
+     * Latest record of a key found so far, pointer is -1 for a tombstone.
+     */
+    public static final class Entry {
+        private final long seq;
+        private final long pointer;
+
+        Entry(long seq, long pointer){
+            this.seq = seq;
+            this.pointer = pointer;
+        }
+
+        public long getSeq(){
+            return seq;
+        }
+
+        public long getPointer(){
+            return pointer;
+        }
+
+        public boolean isTombstone(){
+            return pointer < 0;
+        }
+    }
+
+    /**
+     * Merged result of scanning a set of segments.
+     */
+    public static final class Result {
+        private final Map<String, Entry> entries;
+        private final Map<Integer, Long> validEnds;     // segment id -> offset after last valid record
+        private long replayed;
+        private long maxSeq = -1;
+
+        private Result(Map<String, Entry> entries, Map<Integer, Long> validEnds){
+            this.entries = entries;
+            this.validEnds = validEnds;
+        }
+
+        public Map<String, Entry> getEntries(){
+            return entries;
+        }
+
+        public Map<Integer, Long> getValidEnds(){
+            return validEnds;
+        }
+
+        /**
+         * @return number of records applied, records older than minSeq are not counted
+         */
+        public long getReplayed(){
+            return replayed;
+        }
+
+        /**
+         * @return highest sequence number seen, -1 if no record was replayed
+         */
+        public long getMaxSeq(){
+            return maxSeq;
+        }
+
+        private void put(String key, Entry entry){
+            Entry current = entries.get(key);
+            if (current == null || current.seq < entry.seq){
+                entries.put(key, entry);
+            }
+        }
+
+        /**
+         * Fold the other result into the larger of the two.
+         */
+        private static Result merge(Result left, Result right){
+            Result target = left.entries.size() >= right.entries.size() ? left : right;
+            Result source = (target == left) ? right : left;
+            for (Map.Entry<String, Entry> entry : source.entries.entrySet()){
+                target.put(entry.getKey(), entry.getValue());
+            }
+            target.validEnds.putAll(source.validEnds);
+            target.replayed += source.replayed;
+            target.maxSeq = Math.max(target.maxSeq, source.maxSeq);
+            return target;
+        }
+    }
+
+    private static final class ScanTask extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+        private final List<LogSegment> segments;
+        private final Map<Integer, Long> startOffsets;
+        private final long minSeq;
+        private final int from;
+        private final int to;
+
+        ScanTask(List<LogSegment> segments, Map<Integer, Long> startOffsets, long minSeq, int from, int to){
+            this.segments = segments;
+            this.startOffsets = startOffsets;
+            this.minSeq = minSeq;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Result compute(){
+            if (to - from == 1){
+                return scan(segments.get(from));
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask right = new ScanTask(segments, startOffsets, minSeq, middle, to);
+            right.fork();
+            Result left = new ScanTask(segments, startOffsets, minSeq, from, middle).compute();
+            return Result.merge(left, right.join());
+        }
+
+        private Result scan(final LogSegment segment){
+            final Result result = new Result(new HashMap<String, Entry>(), new HashMap<Integer, Long>());
+            Long start = startOffsets.get(segment.getId());
+            try {
+                long validEnd = segment.scan(start == null ? 0 : start, new LogSegment.RecordVisitor() {
+                    @Override
+                    public void visit(LogRecord record, long offset) {
+                        if (record.getSeq() < minSeq){
+                            return;
+                        }
+                        long pointer = record.isTombstone() ? -1 : LogPointer.pack(segment.getId(), offset, record.size());
+                        result.put(record.getKey(), new Entry(record.getSeq(), pointer));
+                        result.replayed++;
+                        result.maxSeq = Math.max(result.maxSeq, record.getSeq());
+                    }
+                });
+                result.validEnds.put(segment.getId(), validEnd);
+            } catch (IOException e){
+                throw new RecoveryException(e);
+            }
+            return result;
+        }
+    }
+
+    private static final class RecoveryException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RecoveryException(IOException cause){
+            super(cause);
+        }
+    }
+
+    /**
+     * Scan segments in parallel.
+     *
+     * @param segments segments to scan
+     * @param startOffsets offset to start scanning at per segment id, 0 if absent
+     * @param minSeq records with a lower sequence number are skipped
+     * @param parallelism number of scanning threads
+     */
+    public static Result run(List<LogSegment> segments, Map<Integer, Long> startOffsets,
+                             long minSeq, int parallelism) throws IOException {
+        if (segments.isEmpty()){
+            return new Result(new HashMap<String, Entry>(), new HashMap<Integer, Long>());
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, segments.size())));
+        try {
+            return pool.invoke(new ScanTask(segments, startOffsets, minSeq, 0, segments.size()));
+        } catch (RecoveryException e){
+            throw (IOException) e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One append-only segment file of the log-structured storage engine.
+ *
+ * <p>
+ * Appends are expected to be serialized by the owner of the segment, while
+ * positional reads can be issued concurrently from any number of threads.
+ * </p>
+ */
+public class LogSegment {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final String SUFFIX = ".log";
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Callback used when scanning all records of a segment.
+     */
+    public interface RecordVisitor {
+        void visit(LogRecord record, long offset);
+    }
+
+    private final int id;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private volatile long size;
+
+    private LogSegment(int id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.size = channel.size();
+    }
+
+    /**
+     * Open (or create) segment with the given id under directory.
+     */
+    public static LogSegment open(File dir, int id) throws IOException {
+        return new LogSegment(id, new File(dir, fileName(id)));
+    }
+
+    /**
+     * Open (or create) a standalone log file, e.g. the write-ahead log of DiskStorage.
+     */
+    public static LogSegment open(File file) throws IOException {
+        return new LogSegment(0, file);
+    }
+
+    public static String fileName(int id) {
+        return String.format("%08d", id) + SUFFIX;
+    }
+
+    /**
+     * Parse segment id from file name.
+     *
+     * @return segment id, or -1 if the file is not a segment file
+     */
+    public static int parseId(String fileName) {
+        if (!fileName.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(0, fileName.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Append one encoded record to the end of the segment.
+     *
+     * @param record flipped buffer holding the record
+     * @return offset the record is written at
+     */
+    public long append(ByteBuffer record) throws IOException {
+        long offset = size;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        size = position;
+        return offset;
+    }
+
+    /**
+     * Read and validate the record at the given offset.
+     */
+    public LogRecord read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment " + id + " at offset " + position);
+            }
+            position += n;
+        }
+        buffer.flip();
+        return LogRecord.decode(buffer);
+    }
+
+    /**
+     * Sequentially read every valid record of the segment. Scanning stops at
+     * the first truncated or corrupted record, which is what a crash in the
+     * middle of an append leaves behind.
+     *
+     * @param visitor callback for every valid record
+     * @return offset right after the last valid record
+     */
+    public long scan(RecordVisitor visitor) throws IOException {
+        return scan(0, visitor);
+    }
+
+    /**
+     * Like {@link #scan(RecordVisitor)}, starting at a record boundary.
+     *
+     * @param offset offset of the first record to visit
+     * @param visitor callback for every valid record
+     * @return offset right after the last valid record
+     */
+    public long scan(long offset, RecordVisitor visitor) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        stream.getChannel().position(offset);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(stream, SCAN_BUFFER_SIZE));
+        try {
+            while (true) {
+                LogRecord record;
+                try {
+                    record = LogRecord.read(input);
+                } catch (IOException e) {
+                    logger.error("Invalid record in segment " + id + " at offset " + offset + ": " + e.getMessage());
+                    break;
+                }
+                if (record == null) {
+                    break;
+                }
+                visitor.visit(record, offset);
+                offset += record.size();
+            }
+        } finally {
+            input.close();
+        }
+        return offset;
+    }
+
+    /**
+     * Cut off everything after the given offset, used to drop a torn write.
+     */
+    public void truncate(long offset) throws IOException {
+        channel.truncate(offset);
+        size = offset;
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            logger.error("Unable to close segment " + id, e);
+        }
+    }
+
+    public boolean delete() {
+        close();
+        return file.delete();
+    }
+}
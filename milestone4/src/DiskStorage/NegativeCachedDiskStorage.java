@@ -0,0 +1,199 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers recently missed keys in front of a disk storage engine.
+ *
+ * <p>
+ * A get of a key found in the negative cache answers null without reaching
+ * the storage, so clients polling for absent keys cost neither an index probe
+ * nor a disk read. The keys are split into up to <code>STRIPES</code> stripes
+ * by hash, each with its own lock and an equal share of the
+ * <code>capacity</code>, and a full stripe drops its least recently missed
+ * key first. Every put, delete and clear goes
+ * through this class and forgets the key once the storage is done with it, so
+ * a key is never reported missing after its put returned.
+ * </p>
+ *
+ * <p>
+ * A miss is only remembered if no write to a key of the same stripe finished
+ * while the storage was being read; each stripe counts its writes for that.
+ * Requests for keys of different stripes never wait for each other.
+ * </p>
+ */
+public class NegativeCachedDiskStorage implements DiskStorageInterface {
+
+    private static Logger logger = Logger.getRootLogger();
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int STRIPES = 64;
+
+    /**
+     * Missing keys of one stripe, guarded by the stripe's monitor.
+     */
+    private static final class Stripe {
+        final LinkedHashSet<String> missing = new LinkedHashSet<String>();     // least recently missed first
+        long writes;
+    }
+
+    private final DiskStorageInterface storage;
+    private final Stripe[] stripes;
+    private final int stripeCapacity;
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param storage storage to answer lookups the negative cache cannot
+     * @param capacity maximum number of remembered missing keys
+     */
+    public NegativeCachedDiskStorage(DiskStorageInterface storage, int capacity){
+        if (capacity <= 0){
+            throw new IllegalArgumentException("Negative cache capacity must be positive");
+        }
+        this.storage = storage;
+        this.stripes = new Stripe[Math.min(STRIPES, capacity)];
+        for (int i = 0; i < stripes.length; i++){
+            stripes[i] = new Stripe();
+        }
+        this.stripeCapacity = capacity / stripes.length;
+    }
+
+    private Stripe stripeOf(String key){
+        return stripes[ShardedDiskStorage.shardOf(key, stripes.length)];
+    }
+
+    private long writeCount(Stripe stripe){
+        synchronized (stripe){
+            return stripe.writes;
+        }
+    }
+
+    /**
+     * Forget a key after a write reached the storage and count the write.
+     */
+    private void written(String key){
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe){
+            stripe.writes++;
+            stripe.missing.remove(key);
+        }
+    }
+
+    private boolean knownMissing(String key){
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe){
+            if (!stripe.missing.remove(key)){
+                return false;
+            }
+            stripe.missing.add(key);
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    private void remember(Stripe stripe, String key, long writeCount){
+        synchronized (stripe){
+            if (stripe.writes != writeCount){
+                return;
+            }
+            stripe.missing.remove(key);
+            stripe.missing.add(key);
+            if (stripe.missing.size() > stripeCapacity){
+                Iterator<String> eldest = stripe.missing.iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        try {
+            return storage.put(key, value);
+        } finally {
+            written(key);
+        }
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        if (knownMissing(key)){
+            return null;
+        }
+        Stripe stripe = stripeOf(key);
+        long writeCount = writeCount(stripe);
+        String value = storage.get(key);
+        if (value == null){
+            remember(stripe, key, writeCount);
+        }
+        return value;
+    }
+
+    @Override
+    public void clearDisk(){
+        storage.clearDisk();
+        for (Stripe stripe : stripes){
+            synchronized (stripe){
+                stripe.writes++;
+                stripe.missing.clear();
+            }
+        }
+    }
+
+    @Override
+    public boolean delelteKV(String key){
+        try {
+            return storage.delelteKV(key);
+        } finally {
+            written(key);
+        }
+    }
+
+    @Override
+    public boolean onDisk(String key){
+        return !knownMissing(key) && storage.onDisk(key);
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
+        return storage.getKVOutOfRange(start, stop);
+    }
+
+    @Override
+    public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop){
+        return storage.getKVWithinRange(start, stop);
+    }
+
+    @Override
+    public Map<String, String> getAllKV(){
+        return storage.getAllKV();
+    }
+
+    /**
+     * @return number of lookups answered by the negative cache
+     */
+    public long getHits(){
+        return hits.get();
+    }
+
+    public int size(){
+        int size = 0;
+        for (Stripe stripe : stripes){
+            synchronized (stripe){
+                size += stripe.missing.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void close(){
+        logger.info("Closing negative cache: " + size() + " missing keys, " + getHits() + " hits");
+        storage.close();
+    }
+}
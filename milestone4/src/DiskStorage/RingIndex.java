@@ -0,0 +1,159 @@
+package DiskStorage;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of stored keys ordered by their position on the hash ring.
+ *
+ * <p>
+ * The MD5 ring position of a key is computed once when the key is added, so a
+ * hash range query is a walk over one or two sub-sets of the skip list, costing
+ * O(log n + k) for k matching keys instead of hashing every stored key. Range
+ * boundaries follow {@link HashRange#keyWithinRange}: both ends are exclusive
+ * and a range with start &gt;= stop wraps around the ring.
+ * </p>
+ */
+public class RingIndex {
+
+    /**
+     * Key together with its ring position, ordered by position first. A null key
+     * sorts before every key at the same position and is used for range bounds.
+     */
+    public static final class RingKey implements Comparable<RingKey> {
+        private final BigInteger token;
+        private final String key;
+
+        public RingKey(BigInteger token, String key){
+            this.token = token;
+            this.key = key;
+        }
+
+        /**
+         * Lower bound of every key at the given ring position.
+         */
+        public static RingKey at(BigInteger token){
+            return new RingKey(token, null);
+        }
+
+        /**
+         * Lower bound of every key after the given ring position.
+         */
+        public static RingKey after(BigInteger token){
+            return new RingKey(token.add(BigInteger.ONE), null);
+        }
+
+        public BigInteger getToken(){
+            return token;
+        }
+
+        public String getKey(){
+            return key;
+        }
+
+        @Override
+        public int compareTo(RingKey other){
+            int result = token.compareTo(other.token);
+            if (result != 0){
+                return result;
+            }
+            if (key == null || other.key == null){
+                return key == null ? (other.key == null ? 0 : -1) : 1;
+            }
+            return key.compareTo(other.key);
+        }
+
+        @Override
+        public boolean equals(Object other){
+            return other instanceof RingKey && compareTo((RingKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode(){
+            return token.hashCode() * 31 + (key == null ? 0 : key.hashCode());
+        }
+    }
+
+    private final ConcurrentSkipListSet<RingKey> keys = new ConcurrentSkipListSet<RingKey>();
+
+    public void add(String key){
+        keys.add(new RingKey(HashRange.mdKey(key), key));
+    }
+
+    public void remove(String key){
+        keys.remove(new RingKey(HashRange.mdKey(key), key));
+    }
+
+    public void clear(){
+        keys.clear();
+    }
+
+    public int size(){
+        return keys.size();
+    }
+
+    /**
+     * Bounds covering hash range (start, stop) on the ring.
+     *
+     * @return list of [from, to) pairs, to is null for the end of the ring
+     */
+    public static List<RingKey[]> boundsWithinRange(BigInteger start, BigInteger stop){
+        List<RingKey[]> bounds = new ArrayList<RingKey[]>();
+        if (start.compareTo(stop) < 0){
+            bounds.add(new RingKey[]{RingKey.after(start), RingKey.at(stop)});
+        }
+        else {
+            // wraps around the ring: (start, max] and [0, stop)
+            bounds.add(new RingKey[]{RingKey.after(start), null});
+            bounds.add(new RingKey[]{RingKey.at(BigInteger.ZERO), RingKey.at(stop)});
+        }
+        return bounds;
+    }
+
+    /**
+     * Bounds covering everything outside hash range (start, stop) on the ring.
+     *
+     * @return list of [from, to) pairs, to is null for the end of the ring
+     */
+    public static List<RingKey[]> boundsOutOfRange(BigInteger start, BigInteger stop){
+        List<RingKey[]> bounds = new ArrayList<RingKey[]>();
+        if (start.compareTo(stop) < 0){
+            bounds.add(new RingKey[]{RingKey.at(BigInteger.ZERO), RingKey.after(start)});
+            bounds.add(new RingKey[]{RingKey.at(stop), null});
+        }
+        else {
+            // [stop, start], just the start position if both are equal
+            bounds.add(new RingKey[]{RingKey.at(stop), RingKey.after(start)});
+        }
+        return bounds;
+    }
+
+    /**
+     * Keys whose ring position is within hash range (start, stop).
+     */
+    public List<String> keysWithinRange(BigInteger start, BigInteger stop){
+        return collect(boundsWithinRange(start, stop));
+    }
+
+    /**
+     * Keys whose ring position is not within hash range (start, stop).
+     */
+    public List<String> keysOutOfRange(BigInteger start, BigInteger stop){
+        return collect(boundsOutOfRange(start, stop));
+    }
+
+    private List<String> collect(List<RingKey[]> bounds){
+        List<String> result = new ArrayList<String>();
+        for (RingKey[] bound : bounds){
+            NavigableSet<RingKey> range = (bound[1] == null) ?
+                    keys.tailSet(bound[0], true) : keys.subSet(bound[0], true, bound[1], false);
+            for (RingKey ringKey : range){
+                result.add(ringKey.getKey());
+            }
+        }
+        return result;
+    }
+}
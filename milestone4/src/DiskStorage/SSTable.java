@@ -0,0 +1,455 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import DiskStorage.RingIndex.RingKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable sorted table file of the LSM storage engine.
+ *
+ * <p>
+ * Records are sorted by {@link RingKey}, i.e. by hash ring position first, so
+ * every hash range is one or two contiguous stretches of the file. File layout:
+ * <ul>
+ * <li>data: records back to back, each a 16 byte ring token followed by a {@link LogRecord} </li>
+ * <li>index: entry count (int), then for the first record of every data block
+ *      its token (16 bytes), key length (short), key bytes and offset (long) </li>
+ * <li>bloom filter: {@link BloomFilter} over the tokens of all records </li>
+ * <li>trailer: index offset (long), bloom filter offset (long), record count (long),
+ *      highest sequence number (long), last token (16 bytes), magic (int) </li>
+ * </ul>
+ * The sparse index and the bloom filter are loaded into memory when the table
+ * is opened, so a get reads at most a single data block, and none at all for
+ * most keys the table does not hold.
+ * </p>
+ */
+public class SSTable {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final String SUFFIX = ".sst";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4c534d54;
+    public static final int TOKEN_SIZE = 16;
+    private static final int TRAILER_SIZE = 8 + 8 + 8 + 8 + TOKEN_SIZE + 4;
+    private static final int BLOCK_SIZE = 4 * 1024;             // data bytes covered by one index entry
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * One record of a table together with its position on the ring.
+     */
+    public static final class Entry {
+        private final RingKey ringKey;
+        private final LogRecord record;
+
+        public Entry(RingKey ringKey, LogRecord record){
+            this.ringKey = ringKey;
+            this.record = record;
+        }
+
+        public RingKey getRingKey(){
+            return ringKey;
+        }
+
+        public LogRecord getRecord(){
+            return record;
+        }
+    }
+
+    private final int id;
+    private final int level;
+    private final File file;
+    private final FileChannel channel;
+    private final TreeMap<RingKey, Long> index;     // first key of each block -> block offset
+    private final long dataEnd;
+    private final BloomFilter bloomFilter;
+    private final long recordCount;
+    private final long maxSeq;
+    private final BigInteger lastToken;
+
+    private SSTable(int id, int level, File file) throws IOException {
+        this.id = id;
+        this.level = level;
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            long size = channel.size();
+            if (size < TRAILER_SIZE){
+                throw new IOException("Truncated table " + file.getName());
+            }
+            ByteBuffer trailer = readFully(size - TRAILER_SIZE, TRAILER_SIZE);
+            this.dataEnd = trailer.getLong();
+            long bloomOffset = trailer.getLong();
+            this.recordCount = trailer.getLong();
+            this.maxSeq = trailer.getLong();
+            this.lastToken = getToken(trailer);
+            if (trailer.getInt() != MAGIC || dataEnd < 0 || dataEnd > bloomOffset || bloomOffset > size - TRAILER_SIZE){
+                throw new IOException("Invalid table trailer in " + file.getName());
+            }
+            this.bloomFilter = BloomFilter.readFrom(readFully(bloomOffset, (int) (size - TRAILER_SIZE - bloomOffset)));
+            ByteBuffer indexBlock = readFully(dataEnd, (int) (bloomOffset - dataEnd));
+            this.index = new TreeMap<RingKey, Long>();
+            int count = indexBlock.getInt();
+            for (int i = 0; i < count; i++){
+                BigInteger token = getToken(indexBlock);
+                byte[] keyBytes = new byte[indexBlock.getShort()];
+                indexBlock.get(keyBytes);
+                index.put(new RingKey(token, new String(keyBytes, StandardCharsets.UTF_8)), indexBlock.getLong());
+            }
+        } catch (IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing table file.
+     */
+    public static SSTable open(File dir, int id, int level) throws IOException {
+        return new SSTable(id, level, new File(dir, fileName(id)));
+    }
+
+    public static String fileName(int id){
+        return String.format("%08d", id) + SUFFIX;
+    }
+
+    /**
+     * Parse table id from file name.
+     *
+     * @return table id, or -1 if the file is not a table file
+     */
+    public static int parseId(String fileName){
+        if (!fileName.endsWith(SUFFIX)){
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(0, fileName.length() - SUFFIX.length()));
+        } catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    static void putToken(ByteBuffer buffer, BigInteger token){
+        byte[] bytes = token.toByteArray();
+        // toByteArray() is signed, strip the sign byte or left pad to 16 bytes
+        int skip = Math.max(0, bytes.length - TOKEN_SIZE);
+        for (int i = bytes.length - skip; i < TOKEN_SIZE; i++){
+            buffer.put((byte) 0);
+        }
+        buffer.put(bytes, skip, bytes.length - skip);
+    }
+
+    static BigInteger getToken(ByteBuffer buffer){
+        byte[] bytes = new byte[TOKEN_SIZE];
+        buffer.get(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    private ByteBuffer readFully(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()){
+            int n = channel.read(buffer, position);
+            if (n < 0){
+                throw new EOFException("Unexpected end of table " + file.getName());
+            }
+            position += n;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getId(){
+        return id;
+    }
+
+    public int getLevel(){
+        return level;
+    }
+
+    public long getRecordCount(){
+        return recordCount;
+    }
+
+    /**
+     * @return highest sequence number of any record in the table
+     */
+    public long getMaxSeq(){
+        return maxSeq;
+    }
+
+    public long size(){
+        return file.length();
+    }
+
+    /**
+     * Check whether the table may hold keys in [from, to), to null for the end of the ring.
+     */
+    public boolean overlaps(RingKey from, RingKey to){
+        if (index.isEmpty()){
+            return false;
+        }
+        return (to == null || index.firstKey().compareTo(to) < 0) && from.getToken().compareTo(lastToken) <= 0;
+    }
+
+    /**
+     * @return false if the table definitely does not hold the key
+     */
+    public boolean mightContain(RingKey key){
+        return bloomFilter.mightContain(key.getToken());
+    }
+
+    /**
+     * Look up the record of a key. Callers are expected to check
+     * {@link #mightContain} first.
+     *
+     * @return latest record of the key in this table (possibly a tombstone), null if absent
+     */
+    public LogRecord get(RingKey key) throws IOException {
+        Map.Entry<RingKey, Long> block = index.floorEntry(key);
+        if (block == null || key.getToken().compareTo(lastToken) > 0){
+            return null;
+        }
+        Map.Entry<RingKey, Long> next = index.higherEntry(block.getKey());
+        long end = (next == null) ? dataEnd : next.getValue();
+        ByteBuffer buffer = readFully(block.getValue(), (int) (end - block.getValue()));
+        while (buffer.hasRemaining()){
+            BigInteger token = getToken(buffer);
+            LogRecord record = LogRecord.decode(buffer);
+            int order = new RingKey(token, record.getKey()).compareTo(key);
+            if (order == 0){
+                return record;
+            }
+            if (order > 0){
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stream the records in [from, to) in ring order, to null for the end of the ring.
+     */
+    public Scanner scan(RingKey from, RingKey to) throws IOException {
+        Map.Entry<RingKey, Long> block = index.floorEntry(from);
+        return new Scanner(block == null ? 0 : block.getValue(), from, to);
+    }
+
+    /**
+     * Sequential reader over a stretch of the table.
+     */
+    public class Scanner {
+        private final DataInputStream input;
+        private final RingKey to;
+        private long position;
+        private Entry next;
+
+        private Scanner(long offset, RingKey from, RingKey to) throws IOException {
+            FileInputStream stream = new FileInputStream(file);
+            stream.getChannel().position(offset);
+            this.input = new DataInputStream(new BufferedInputStream(stream, STREAM_BUFFER_SIZE));
+            this.to = to;
+            this.position = offset;
+            try {
+                advance();
+                while (next != null && next.getRingKey().compareTo(from) < 0){
+                    advance();
+                }
+            } catch (IOException e){
+                close();
+                throw e;
+            }
+        }
+
+        private void advance() throws IOException {
+            if (position >= dataEnd){
+                next = null;
+                return;
+            }
+            byte[] token = new byte[TOKEN_SIZE];
+            input.readFully(token);
+            LogRecord record = LogRecord.read(input);
+            if (record == null){
+                throw new EOFException("Unexpected end of table " + file.getName());
+            }
+            position += TOKEN_SIZE + record.size();
+            RingKey ringKey = new RingKey(new BigInteger(1, token), record.getKey());
+            next = (to == null || ringKey.compareTo(to) < 0) ? new Entry(ringKey, record) : null;
+        }
+
+        /**
+         * @return next entry without consuming it, null at the end of the range
+         */
+        public Entry peek(){
+            return next;
+        }
+
+        /**
+         * @return next entry, null at the end of the range
+         */
+        public Entry next() throws IOException {
+            Entry entry = next;
+            if (entry != null){
+                advance();
+            }
+            return entry;
+        }
+
+        public void close(){
+            try {
+                input.close();
+            } catch (IOException e){
+                logger.error("Unable to close scanner of table " + id, e);
+            }
+        }
+    }
+
+    public void close(){
+        try {
+            channel.close();
+        } catch (IOException e){
+            logger.error("Unable to close table " + id, e);
+        }
+    }
+
+    public boolean delete(){
+        close();
+        return file.delete();
+    }
+
+    /**
+     * Writes a new table from entries supplied in ring order. The table is
+     * written to a temporary file, forced and then renamed into place.
+     */
+    public static class Writer {
+        private final File dir;
+        private final int id;
+        private final int level;
+        private final File tmpFile;
+        private final FileOutputStream fileOutput;
+        private final DataOutputStream output;
+        private final Map<RingKey, Long> index = new TreeMap<RingKey, Long>();
+        private long position;
+        private long blockStart = -BLOCK_SIZE;
+        private long recordCount;
+        private long maxSeq = -1;
+        private BigInteger lastToken = BigInteger.ZERO;
+        private RingKey lastKey;
+        private long[] tokenHalves = new long[2 * 1024];    // low and high half of every token, for the bloom filter
+
+        public Writer(File dir, int id, int level) throws IOException {
+            this.dir = dir;
+            this.id = id;
+            this.level = level;
+            this.tmpFile = new File(dir, fileName(id) + TMP_SUFFIX);
+            this.fileOutput = new FileOutputStream(tmpFile);
+            this.output = new DataOutputStream(new BufferedOutputStream(fileOutput, STREAM_BUFFER_SIZE));
+        }
+
+        public void add(RingKey ringKey, LogRecord record) throws IOException {
+            if (lastKey != null && ringKey.compareTo(lastKey) <= 0){
+                throw new IOException("Table entries out of ring order at key " + ringKey.getKey());
+            }
+            if (position - blockStart >= BLOCK_SIZE){
+                index.put(ringKey, position);
+                blockStart = position;
+            }
+            ByteBuffer token = ByteBuffer.allocate(TOKEN_SIZE);
+            putToken(token, ringKey.getToken());
+            ByteBuffer encoded = record.encode();
+            output.write(token.array());
+            output.write(encoded.array(), 0, encoded.remaining());
+            position += TOKEN_SIZE + encoded.remaining();
+            if (2 * recordCount + 2 > tokenHalves.length){
+                tokenHalves = Arrays.copyOf(tokenHalves, tokenHalves.length * 2);
+            }
+            tokenHalves[(int) (2 * recordCount)] = ringKey.getToken().longValue();
+            tokenHalves[(int) (2 * recordCount + 1)] = ringKey.getToken().shiftRight(64).longValue();
+            recordCount++;
+            maxSeq = Math.max(maxSeq, record.getSeq());
+            lastToken = ringKey.getToken();
+            lastKey = ringKey;
+        }
+
+        /**
+         * @return number of data bytes written so far
+         */
+        public long size(){
+            return position;
+        }
+
+        public long getRecordCount(){
+            return recordCount;
+        }
+
+        /**
+         * Write index, bloom filter and trailer, force the file and open the finished table.
+         */
+        public SSTable finish(boolean sync) throws IOException {
+            long bloomOffset = position + 4;
+            output.writeInt(index.size());
+            for (Map.Entry<RingKey, Long> entry : index.entrySet()){
+                ByteBuffer token = ByteBuffer.allocate(TOKEN_SIZE);
+                putToken(token, entry.getKey().getToken());
+                byte[] keyBytes = entry.getKey().getKey().getBytes(StandardCharsets.UTF_8);
+                output.write(token.array());
+                output.writeShort(keyBytes.length);
+                output.write(keyBytes);
+                output.writeLong(entry.getValue());
+                bloomOffset += TOKEN_SIZE + 2 + keyBytes.length + 8;
+            }
+            BloomFilter bloomFilter = new BloomFilter((int) recordCount, BloomFilter.DEFAULT_BITS_PER_KEY);
+            for (int i = 0; i < recordCount; i++){
+                bloomFilter.add(tokenHalves[2 * i], tokenHalves[2 * i + 1]);
+            }
+            bloomFilter.writeTo(output);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(position);
+            trailer.putLong(bloomOffset);
+            trailer.putLong(recordCount);
+            trailer.putLong(maxSeq);
+            putToken(trailer, lastToken);
+            trailer.putInt(MAGIC);
+            output.write(trailer.array());
+            output.flush();
+            if (sync){
+                fileOutput.getFD().sync();
+            }
+            output.close();
+            File file = new File(dir, fileName(id));
+            if (!tmpFile.renameTo(file)){
+                throw new IOException("Unable to rename table " + tmpFile.getName());
+            }
+            return new SSTable(id, level, file);
+        }
+
+        /**
+         * Drop the partially written table.
+         */
+        public void abort(){
+            try {
+                output.close();
+            } catch (IOException e){
+                logger.error("Unable to close table writer " + id, e);
+            }
+            tmpFile.delete();
+        }
+    }
+}
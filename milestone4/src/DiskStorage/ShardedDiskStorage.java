@@ -0,0 +1,127 @@
+package DiskStorage;
+
+import org.apache.log4j.Logger;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Disk storage split into independent shards by key hash.
+ *
+ * <p>
+ * Every shard is a complete storage engine with its own lock, index and files,
+ * so requests for keys in different shards never wait for each other. Range
+ * and full scans ask every shard and merge the results. A key always maps to
+ * the same shard for a given shard count, so the count must not change for an
+ * existing data directory.
+ * </p>
+ */
+public class ShardedDiskStorage implements DiskStorageInterface {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    /**
+     * Creates the storage engine of one shard.
+     */
+    public interface ShardFactory {
+        DiskStorageInterface create(int shard);
+    }
+
+    private final DiskStorageInterface[] shards;
+
+    /**
+     * @param shardCount number of shards
+     * @param factory creates each shard, shards must not share files
+     */
+    public ShardedDiskStorage(int shardCount, ShardFactory factory){
+        if (shardCount <= 0){
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        this.shards = new DiskStorageInterface[shardCount];
+        for (int i = 0; i < shardCount; i++){
+            shards[i] = factory.create(i);
+        }
+        logger.info("Sharded storage opened with " + shardCount + " shard(s)");
+    }
+
+    /**
+     * Shard a key belongs to. Uses <code>String.hashCode</code>, which is
+     * specified by the language and therefore stable across restarts.
+     */
+    public static int shardOf(String key, int shardCount){
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    private DiskStorageInterface shardFor(String key){
+        return shards[shardOf(key, shards.length)];
+    }
+
+    public int getShardCount(){
+        return shards.length;
+    }
+
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        return shardFor(key).put(key, value);
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return shardFor(key).get(key);
+    }
+
+    @Override
+    public void clearDisk(){
+        for (DiskStorageInterface shard : shards){
+            shard.clearDisk();
+        }
+    }
+
+    @Override
+    public boolean delelteKV(String key){
+        return shardFor(key).delelteKV(key);
+    }
+
+    @Override
+    public boolean onDisk(String key){
+        return shardFor(key).onDisk(key);
+    }
+
+    @Override
+    public Map<String, String> getKVOutOfRange(BigInteger start, BigInteger stop){
+        Map<String, String> KVtable = new HashMap<String, String>();
+        for (DiskStorageInterface shard : shards){
+            KVtable.putAll(shard.getKVOutOfRange(start, stop));
+        }
+        return KVtable;
+    }
+
+    @Override
+    public Map<String, String> getKVWithinRange(BigInteger start, BigInteger stop){
+        Map<String, String> KVtable = new HashMap<String, String>();
+        for (DiskStorageInterface shard : shards){
+            KVtable.putAll(shard.getKVWithinRange(start, stop));
+        }
+        return KVtable;
+    }
+
+    @Override
+    public Map<String, String> getAllKV(){
+        Map<String, String> allKV = new HashMap<String, String>();
+        for (DiskStorageInterface shard : shards){
+            allKV.putAll(shard.getAllKV());
+        }
+        return Collections.synchronizedMap(allKV);
+    }
+
+    @Override
+    public void close(){
+        for (DiskStorageInterface shard : shards){
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package DiskStorage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel of key deadlines.
+ *
+ * <p>
+ * Time is cut into ticks of <code>tickMillis</code> ms and the wheel has one
+ * bucket per tick of a rotation. A key goes into the bucket of its deadline
+ * tick, so scheduling is O(1) and {@link #advance} only visits the buckets of
+ * the ticks that passed. Deadlines more than one rotation ahead share a bucket
+ * with nearer ones and stay in it until their own rotation comes. A key is due
+ * once its whole deadline tick has passed, i.e. at most one tick late and
+ * never early.
+ * </p>
+ *
+ * <p>
+ * Scheduling a key again replaces its entry only within the same bucket, so
+ * the wheel may return keys whose deadline has since moved; callers check the
+ * current deadline of every key they are given.
+ * </p>
+ */
+public class TimerWheel {
+
+    private final long tickMillis;
+    private final List<Map<String, Long>> buckets;      // key -> deadline
+    private long currentTick;                           // last tick advanced over
+    private int size;
+
+    /**
+     * @param tickMillis length of a tick in ms
+     * @param bucketCount ticks per rotation
+     * @param now current time in ms
+     */
+    public TimerWheel(long tickMillis, int bucketCount, long now){
+        if (tickMillis <= 0 || bucketCount <= 0){
+            throw new IllegalArgumentException("Tick length and bucket count must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<Map<String, Long>>(bucketCount);
+        for (int i = 0; i < bucketCount; i++){
+            buckets.add(new HashMap<String, Long>());
+        }
+        this.currentTick = now / tickMillis - 1;
+    }
+
+    private Map<String, Long> bucket(long tick){
+        return buckets.get((int) (tick % buckets.size()));
+    }
+
+    /**
+     * Schedule a key, a deadline in a tick already passed makes it due on the
+     * next advance.
+     *
+     * @param deadline time in ms from which the key is due
+     */
+    public synchronized void schedule(String key, long deadline){
+        long tick = Math.max(deadline / tickMillis, currentTick + 1);
+        if (bucket(tick).put(key, deadline) == null){
+            size++;
+        }
+    }
+
+    /**
+     * Remove the keys due at the given time.
+     *
+     * @param now current time in ms
+     * @return keys whose deadline tick has passed
+     */
+    public synchronized List<String> advance(long now){
+        long target = now / tickMillis - 1;
+        List<String> due = new ArrayList<String>();
+        if (target <= currentTick){
+            return due;
+        }
+        // after a long pause every bucket is visited once
+        long first = Math.max(currentTick + 1, target - buckets.size() + 1);
+        for (long tick = first; tick <= target; tick++){
+            Iterator<Map.Entry<String, Long>> it = bucket(tick).entrySet().iterator();
+            while (it.hasNext()){
+                Map.Entry<String, Long> entry = it.next();
+                if (entry.getValue() / tickMillis <= target){
+                    due.add(entry.getKey());
+                    it.remove();
+                    size--;
+                }
+            }
+        }
+        currentTick = target;
+        return due;
+    }
+
+    /**
+     * @return number of scheduled entries
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * @return snapshot of the scheduled keys and their latest deadlines
+     */
+    public synchronized Map<String, Long> entries(){
+        Map<String, Long> entries = new HashMap<String, Long>(size * 2);
+        for (Map<String, Long> bucket : buckets){
+            for (Map.Entry<String, Long> entry : bucket.entrySet()){
+                Long deadline = entries.get(entry.getKey());
+                if (deadline == null || deadline < entry.getValue()){
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return entries;
+    }
+
+    public synchronized void clear(){
+        for (Map<String, Long> bucket : buckets){
+            bucket.clear();
+        }
+        size = 0;
+    }
+}
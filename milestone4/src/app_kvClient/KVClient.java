@@ -114,6 +114,37 @@ public class KVClient implements IKVClient {
                 logger.error("No message passed to server!");
             }
         } 
+        else if (tokens[0].equals("putttl")) {
+            if(tokens.length >= 4) {
+                if(kvStore != null && kvStore.isRunning()){
+                    StringBuilder value = new StringBuilder();
+                    String key = tokens[1];
+                    for(int i = 3; i < tokens.length; i++) {
+                        value.append(tokens[i]);
+                        if (i != tokens.length -1 ) {
+                            value.append(" ");
+                        }
+                    }
+                    try {
+                        long ttl = Long.parseLong(tokens[2]) * 1000;
+                        kvStore.put(key, value.toString(), ttl);
+                        logger.info("Sending PUT_TTL message, " + "Key: " + key + ", Value: " + value.toString() + ", TTL: " + ttl + " ms");
+                    }
+                    catch (NumberFormatException e) {
+                        printError("Time to live must be a number of seconds!");
+                        logger.error("Unable to parse argument <seconds>", e);
+                    }
+                } 
+                else {
+                    printError("Not connected to server!");
+                    logger.error("Not connected to server!");
+                }
+            } 
+            else {
+                printError("Invalid number of parameters!");
+                logger.error("Invalid number of parameters!");
+            }
+        } 
         else if (tokens[0].equals("get")) {
             if(tokens.length >= 2) {
                 if(kvStore != null && kvStore.isRunning()){
@@ -255,6 +286,7 @@ public class KVClient implements IKVClient {
         System.out.println("    connect <ip_address> <port>");
         System.out.println("    disconnect");
         System.out.println("    put <key> <value>");
+        System.out.println("    putttl <key> <seconds> <value>");
         System.out.println("    get <key>");
         System.out.println("    subscribe <keys> | all");
         System.out.println("    unsubscribe <keys> | all");
@@ -1,5 +1,6 @@
 package app_kvECS;
 
+import DiskStorage.CacheWarmer;
 import ecs.ECSConsistantHashRing;
 import ecs.ECSNode;
 import ecs.IECSNode;
@@ -29,6 +30,7 @@ public class ECSClient implements IECSClient{
     private String sourceConfigPath;
     private HashMap<String, IECSNode.STATUS> serverStatusMap = new HashMap<>(); // all servers in conf, string = ip:port
     private ArrayList<String> curServers = new ArrayList<>();                   // INUSE + IDLE servers
+    private HashMap<String, String> cacheOptions = new HashMap<>();             // cache options a server was last started with
     private Object ExceptionInInitializerError;
     private boolean stop = false;
     private BufferedReader stdin;
@@ -253,6 +255,15 @@ public class ECSClient implements IECSClient{
         String cdCmd = " cd " + serverDir + "; ";
         String mkdirCmd = " mkdir -p " + serverDir + "/logs; ";
         String startServerCmd = " java -jar " + serverDir + "/" + serverJar + " " + newServerName + " " + zkPort + " "  + zkHost;
+        if (cacheSize > 0 && !"NONE".equalsIgnoreCase(cacheStrategy)){
+            // snapshot the hottest keys, so a restarted server begins with a warm cache
+            cacheOptions.put(newServerName, " cacheSize=" + cacheSize + " cacheStrategy=" + cacheStrategy +
+                    " hotKeys=" + Math.min(cacheSize, CacheWarmer.DEFAULT_KEYS));
+        }
+        if (cacheOptions.containsKey(newServerName)){
+            // a server replacing a crashed one keeps its cache and preloads its hot keys
+            startServerCmd += cacheOptions.get(newServerName);
+        }
         String nohupCmd = " nohup " + startServerCmd + " &> logs/nohup." + newServerName + ".out &";
         String sshStartCmd = "ssh -o StrictHostKeyChecking=no -n " + zkHost + cdCmd + mkdirCmd + nohupCmd;
         try {
@@ -12,9 +12,23 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        TINYLFU         // LRU window and frequency-filtered segmented LRU, resists scans
     };
 
+    public enum StorageEngine {
+        PROPERTIES,     // whole map kept in a properties file, checkpointed from a write-ahead log
+        LOG,            // append-only log with in-memory key index
+        MMAP,           // memory-mapped on-disk hash table
+        LSM             // memtable flushed to hash ring ordered SSTables, merged in levels
+    }
+
+    public enum FrontEnd {
+        THREAD,         // one thread per client connection
+        NIO,            // selector event loops dispatching requests to a worker pool
+        NETTY           // Netty pipeline, epoll where available, with a worker executor group
+    }
+
     public enum DistributedServerStatus {
         START,          // KVServer responds to both ECS and KVClient
         STOP,           // KVServer responds to only ECS
@@ -67,6 +81,15 @@ public interface IKVServer {
      */
     public String getKV(String key) throws Exception;
 
+    /**
+     * Get the value associated with the key without treating a missing key as
+     * an error, for request paths where misses are common
+     * @return  value associated with key, null if the key is not stored
+     * @throws Exception
+     *      when the storage cannot be read
+     */
+    public String lookupKV(String key) throws Exception;
+
     /**
      * Delete the value associated with the key
      * @return  if the delete operation is successful or not
@@ -1,13 +1,32 @@
 package app_kvServer;
 
 import shared.communication.KVCommunicationServer;
+import shared.communication.NettyFrontEnd;
+import shared.communication.NioFrontEnd;
+import shared.communication.ServerFrontEnd;
 import shared.messages.KVAdminMessage;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageClass;
 import shared.messages.Metadata;
 import shared.messages.KVAdminMessage.KVAdminType;
+import shared.cache.Cache;
+import shared.cache.FIFOCache;
+import shared.cache.LFUCache;
+import shared.cache.LRUCache;
+import shared.cache.OffHeapCache;
+import shared.cache.TinyLFUCache;
 import logger.LogSetup;
+import DiskStorage.CacheWarmer;
+import DiskStorage.CachedDiskStorage;
 import DiskStorage.DiskStorage;
+import DiskStorage.DiskStorageInterface;
+import DiskStorage.DiskStorageLSM;
+import DiskStorage.DiskStorageLog;
+import DiskStorage.DiskStorageRandomAccess;
+import DiskStorage.ExpiringDiskStorage;
+import DiskStorage.HashRange;
+import DiskStorage.NegativeCachedDiskStorage;
+import DiskStorage.ShardedDiskStorage;
 
 import java.util.Map;
 import java.util.HashMap;
@@ -16,10 +35,9 @@ import java.util.Iterator;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.net.*;
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.io.File;
-import java.nio.charset.StandardCharsets;
 
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
@@ -33,17 +51,20 @@ public class KVServer implements IKVServer, Runnable {
 	// M1: KVServer config
 	private ServerSocket serverSocket;											// socket that KVServer listens to
 	private int port;															// port that KVServer listens on
-	private int cacheSize;														// KVServer cache size (not implemented)
-	private String strategy;													// KVServer cache strategy (not implemented)
+	private int cacheSize;														// KVServer cache size in entries, see also config.cacheBytes
+	private String strategy;													// KVServer cache strategy
+	private Cache cache;														// KVServer cache in front of disk storage, null if disabled
+	private CacheWarmer cacheWarmer;											// hot key snapshot and warm-up of the cache, null if disabled
 	private boolean running;													// flag to indicate if KVServer is running 
 
 	// M1: KVClient connections
 	private ArrayList<KVCommunicationServer> clients;							// list of active clients KVCommunicationServer
 	private ArrayList<Thread> clientThreads;									// list of active client threads (KVCommunicationServer)
+	private volatile ServerFrontEnd frontEnd;									// NIO or Netty front end, null for thread per connection
 
 	// M1: KVServer disk persistent storage
-	private DiskStorage diskStorage;											// KVServer persistent disk storage
-	private static final String dir = "./data";									// KVServer storage directory on disk file system
+	private ExpiringDiskStorage diskStorage;									// KVServer persistent disk storage
+	private KVServerConfig config;												// optional KVServer settings
 	private static final String filePreFix = "persistanceDB.properties";		// storage file prefix
 
 	// M2: Distributed server config
@@ -86,17 +107,30 @@ public class KVServer implements IKVServer, Runnable {
 	 *           and "LFU".
 	 */
 	public KVServer(int port, int cacheSize, String strategy) {
+		this(port, cacheSize, strategy, new KVServerConfig());
+	}
+
+	/**
+	 * Start KV Server at given port with optional settings. 
+	 * Note: this constructor creates a non-distributed KVServer object. 
+	 * 
+	 * @param port given port for storage server to operate
+	 * @param cacheSize specifies how many key-value pairs the server is allowed
+	 *           to keep in-memory
+	 * @param strategy specifies the cache replacement strategy
+	 * @param config optional KVServer settings, e.g. storage engine
+	 */
+	public KVServer(int port, int cacheSize, String strategy, KVServerConfig config) {
 		/* M1: non-distributed KVServer data members */
 		this.serverSocket = null;
 		this.port = port;
 		this.cacheSize = cacheSize;
+		this.strategy = strategy;
+		this.config = config;
 		this.clients = new ArrayList<KVCommunicationServer>();
 		this.clientThreads = new ArrayList<Thread>();
 		this.serverName = getHostname()+":"+getPort();
-		if (storageFileExist())
-			this.diskStorage = new DiskStorage(filePreFix, serverName);
-		else
-			this.diskStorage = new DiskStorage(serverName);
+		this.diskStorage = createDiskStorage();
 		this.distributed = false;
 	}
 
@@ -109,22 +143,34 @@ public class KVServer implements IKVServer, Runnable {
 	 * @param zkHostname ZooKeeper host name
 	 */
 	public KVServer(String serverName, int zkPort, String zkHostname){
+		this(serverName, zkPort, zkHostname, new KVServerConfig());
+	}
+
+	/**
+	 * Start KV Server with ZooKeeper instance and optional settings.
+	 * Note: this constructor creates a distributed KVServer object. 
+	 * 
+	 * @param serverName KVServer name in the form of ip:port
+	 * @param zkPort ZooKeeper port
+	 * @param zkHostname ZooKeeper host name
+	 * @param config optional KVServer settings, e.g. storage engine and cache
+	 */
+	public KVServer(String serverName, int zkPort, String zkHostname, KVServerConfig config){
 		/* M1: non-distributed KVServer data members */
 		this.serverSocket = null;
 		this.port = Integer.parseInt(serverName.split(":")[1]);	// port is contained in server name
-		this.cacheSize = 0;
+		this.cacheSize = config.cacheSize;
+		this.strategy = config.cacheStrategy.name();
+		this.config = config;
 		this.clients = new ArrayList<KVCommunicationServer>();
 		this.clientThreads = new ArrayList<Thread>();
 		this.serverName = serverName;
-		if (storageFileExist())
-			this.diskStorage = new DiskStorage(filePreFix, serverName);
-		else
-			this.diskStorage = new DiskStorage(serverName);
+		this.diskStorage = createDiskStorage();
 		/* M2: distributed KVServer data members */
 		this.distributed = true;
 		this.writeLock = false;
 		this.serverMetadatasMap = new HashMap<>();
-		this.serverNameHash = diskStorage.mdKey(serverName).toString();
+		this.serverNameHash = HashRange.mdKey(serverName).toString();
 		/* M2: ZooKeeper data */
 		this.zkServerNodePath = zkRootNodePath+"/"+serverName;
 		this.zkServerDataPathPrev = zkRootDataPathPrev+"/"+serverName;
@@ -172,20 +218,20 @@ public class KVServer implements IKVServer, Runnable {
 					if (!running) return;
 					try {
 						byte[] kvAdminMsgBytes = zk.getData(zkServerNodePath, this, null);
-						String kvAdminMsgStr = new String(kvAdminMsgBytes, StandardCharsets.UTF_8);
+						String kvAdminMsgStr = KVAdminMessage.decode(kvAdminMsgBytes);
 						processKVAdminMesage(kvAdminMsgStr);
 						KVAdminMessage msg = new KVAdminMessage(kvAdminMsgStr);
 						if (msg.getMessageType() == KVAdminType.TRANSFER_KV){
 							replicateData();
 						}
-					} catch (KeeperException | InterruptedException e) {
+					} catch (KeeperException | InterruptedException | IOException e) {
 						logger.error(e);
 					}
 				}
 			}, null);
-			String kvAdminMsgStr = new String(kvAdminMsgBytes, StandardCharsets.UTF_8);
+			String kvAdminMsgStr = KVAdminMessage.decode(kvAdminMsgBytes);
 			processKVAdminMesage(kvAdminMsgStr);
-		} catch (KeeperException | InterruptedException e) {
+		} catch (KeeperException | InterruptedException | IOException e) {
 			logger.error(e);
 		}
 		// setup watcher for server data znode for data replication on the previous node
@@ -196,16 +242,16 @@ public class KVServer implements IKVServer, Runnable {
 					if (!running) return;
 					try {
 						byte[] kvAdminMsgBytes = zk.getData(zkServerDataPathPrev, this, null);
-						String kvAdminMsgStr = new String(kvAdminMsgBytes, StandardCharsets.UTF_8);
+						String kvAdminMsgStr = KVAdminMessage.decode(kvAdminMsgBytes);
 						processKVAdminMesage(kvAdminMsgStr);
-					} catch (KeeperException | InterruptedException e) {
+					} catch (KeeperException | InterruptedException | IOException e) {
 						logger.error(e);
 					}
 				}
 			}, null);
-			String kvAdminMsgStr = new String(kvAdminMsgBytes, StandardCharsets.UTF_8);
+			String kvAdminMsgStr = KVAdminMessage.decode(kvAdminMsgBytes);
 			processKVAdminMesage(kvAdminMsgStr);
-		} catch (KeeperException | InterruptedException e) {
+		} catch (KeeperException | InterruptedException | IOException e) {
 			logger.error(e);
 		}
 		// setup watcher for server data znode for data replication on the next node
@@ -216,29 +262,147 @@ public class KVServer implements IKVServer, Runnable {
 					if (!running) return;
 					try {
 						byte[] kvAdminMsgBytes = zk.getData(zkServerDataPathNext, this, null);
-						String kvAdminMsgStr = new String(kvAdminMsgBytes, StandardCharsets.UTF_8);
+						String kvAdminMsgStr = KVAdminMessage.decode(kvAdminMsgBytes);
 						processKVAdminMesage(kvAdminMsgStr);
-					} catch (KeeperException | InterruptedException e) {
+					} catch (KeeperException | InterruptedException | IOException e) {
 						logger.error(e);
 					}
 				}
 			}, null);
-			String kvAdminMsgStr = new String(kvAdminMsgBytes, StandardCharsets.UTF_8);
+			String kvAdminMsgStr = KVAdminMessage.decode(kvAdminMsgBytes);
 			processKVAdminMesage(kvAdminMsgStr);
-		} catch (KeeperException | InterruptedException e) {
+		} catch (KeeperException | InterruptedException | IOException e) {
 			logger.error(e);
 		}
 	}
 
 	/* M1: Non-distributed KVServer methods */
 
-	private boolean storageFileExist(){
-		File dirFIle = new File(dir);
-		if (dirFIle.exists()){
-			File dummyStorageFile = new File(dir+'/'+filePreFix+"."+serverName);
-			return dummyStorageFile.exists();
+	/**
+	 * Create disk storage engine selected in server config, split into key-hash
+	 * shards with separate files if more than one shard is configured, behind
+	 * a write-through cache if a cache size and strategy are given.
+	 */
+	private ExpiringDiskStorage createDiskStorage(){
+		DiskStorageInterface storage;
+		if (config.shards <= 1){
+			storage = createDiskStorage("");
+		}
+		else {
+			storage = new ShardedDiskStorage(config.shards, new ShardedDiskStorage.ShardFactory() {
+				@Override
+				public DiskStorageInterface create(int shard) {
+					return createDiskStorage(".shard" + shard);
+				}
+			});
+		}
+		File dir = new File("./data");
+		dir.mkdirs();
+		this.cache = createCache();
+		if (cache != null){
+			CachedDiskStorage cachedStorage = new CachedDiskStorage(storage, cache);
+			if (config.hotKeys > 0){
+				cacheWarmer = new CacheWarmer(cachedStorage, new File(dir, "hotkeys." + serverName),
+						config.hotKeys, config.hotKeysInterval);
+				cacheWarmer.start();
+			}
+			storage = cachedStorage;
+		}
+		if (config.negativeCache > 0){
+			storage = new NegativeCachedDiskStorage(storage, config.negativeCache);
+		}
+		// outermost, so cached values are checked for expiry as well; the reaper
+		// thread only starts once a key has a deadline
+		ExpiringDiskStorage expiringStorage = new ExpiringDiskStorage(storage, ExpiringDiskStorage.DEFAULT_TICK,
+				new File(dir, "expiring." + serverName));
+		expiringStorage.setExpiryListener(new ExpiringDiskStorage.ExpiryListener() {
+			@Override
+			public void expired(String key) {
+				propagateExpiry(key);
+			}
+		});
+		expiringStorage.startReaper();
+		return expiringStorage;
+	}
+
+	/**
+	 * Pass on the deletion of an expired key like a delete by a KVClient: to
+	 * the replicas and subscribers if this server is responsible for the key,
+	 * to the connected clients if the server is not distributed. Replicas
+	 * expire their copies on their own and do not pass it on.
+	 * @param key Expired key.
+	 */
+	private void propagateExpiry(String key){
+		if (!distributed){
+			boardcastSubscriptionUpdateToClients(null, key, "");
+			return;
+		}
+		Metadata metadata = serverMetadata;
+		if (metadata == null || !HashRange.keyWithinRange(HashRange.mdKey(key), metadata.start, metadata.stop)){
+			return;
+		}
+		logger.info("Key expired, propagating deletion, key: " + key);
+		replicateOneKvPair(key, "");
+		boardcastSubscriptionUpdateToServers(key, "");
+	}
+
+	/**
+	 * Create cache for the configured strategy, bounded by the cache size in
+	 * entries and the byte budget of the server config, whichever are set. An
+	 * off-heap budget in the server config replaces the strategy cache with an
+	 * off-heap cache.
+	 *
+	 * @return cache, null if caching is disabled
+	 */
+	private Cache createCache(){
+		if (config.cacheOffHeap > 0){
+			return new OffHeapCache(config.cacheOffHeap);
+		}
+		int entries = Math.max(0, cacheSize);
+		long bytes = config.cacheBytes;
+		if (entries == 0 && bytes == 0){
+			return null;
+		}
+		switch(getCacheStrategy()){
+			case LRU:
+				return new LRUCache(entries, bytes);
+			case LFU:
+				return new LFUCache(entries, bytes);
+			case FIFO:
+				return new FIFOCache(entries, bytes);
+			case TINYLFU:
+				return new TinyLFUCache(entries, bytes);
+			case None:
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @param suffix appended to the storage file or directory prefix
+	 */
+	private DiskStorageInterface createDiskStorage(String suffix){
+		switch(config.storageEngine){
+			case LOG:
+				DiskStorageLog logStorage = new DiskStorageLog("logDB" + suffix, serverName, config.compactionThreshold,
+						config.fsyncPolicy, config.fsyncInterval);
+				logStorage.setCompressionThreshold(config.compression);
+				return logStorage;
+			case MMAP:
+				// its heap entries carry no flags, so values stay uncompressed
+				return new DiskStorageRandomAccess("mmapDB" + suffix, serverName, config.fsyncPolicy, config.fsyncInterval);
+			case LSM:
+				DiskStorageLSM lsmStorage = new DiskStorageLSM("lsmDB" + suffix, serverName, DiskStorageLSM.DEFAULT_MEMTABLE_SIZE,
+						config.fsyncPolicy, config.fsyncInterval);
+				lsmStorage.setCompressionThreshold(config.compression);
+				return lsmStorage;
+			case PROPERTIES:
+			default:
+				// loads the properties file and replays its write-ahead log if present
+				DiskStorage propertiesStorage = new DiskStorage(filePreFix + suffix, serverName, config.fsyncPolicy, config.fsyncInterval);
+				propertiesStorage.setCompressionThreshold(config.compression);
+				return propertiesStorage;
 		}
-		return false;
 	}
 
 	@Override
@@ -260,8 +424,11 @@ public class KVServer implements IKVServer, Runnable {
 
 	@Override
 	public CacheStrategy getCacheStrategy(){
-		switch(this.strategy){
-			case "None":
+		if (this.strategy == null){
+			return IKVServer.CacheStrategy.None;
+		}
+		switch(this.strategy.toUpperCase()){
+			case "NONE":
 				return IKVServer.CacheStrategy.None;
 			case "LRU":
 				return IKVServer.CacheStrategy.LRU;
@@ -269,6 +436,8 @@ public class KVServer implements IKVServer, Runnable {
 				return IKVServer.CacheStrategy.LFU;
 			case "FIFO":
 				return IKVServer.CacheStrategy.FIFO;
+			case "TINYLFU":
+				return IKVServer.CacheStrategy.TINYLFU;
 			default:
 				logger.debug("Undefined use of IKVServer.CacheStrategy, setting to None.");
 				return IKVServer.CacheStrategy.None;
@@ -287,16 +456,50 @@ public class KVServer implements IKVServer, Runnable {
 
 	@Override
 	public boolean inCache(String key){
-		// return false since cache is not yet implemented
-		return false;
+		return cache != null && cache.contains(key);
+	}
+
+	/**
+	 * @return server cache, null if caching is disabled
+	 */
+	public Cache getCache(){
+		return cache;
+	}
+
+	/**
+	 * @return hot key snapshot and warm-up of the cache, null if disabled
+	 */
+	public CacheWarmer getCacheWarmer(){
+		return cacheWarmer;
+	}
+
+	/**
+	 * Pin the cached value of a key so it can be sent without decoding it.
+	 *
+	 * @return pinned value to be closed after use, null if the server has no
+	 *           off-heap cache or the key is not cached
+	 */
+	public OffHeapCache.ValueRef pinCachedValue(String key){
+		if (cache instanceof OffHeapCache){
+			return ((OffHeapCache) cache).pin(key);
+		}
+		return null;
 	}
 
 	@Override
 	public String getKV(String key) throws Exception{
+		String value = lookupKV(key);
+		if (value == null){
+			throw new Exception("Key cannot be found on server");
+		}
+		return value;
+	}
+
+	@Override
+	public String lookupKV(String key) throws Exception{
 		String value = diskStorage.get(key);
 		if (value == null){
 			logger.debug("Key " + key + " cannot be found on server");
-			throw new Exception("Key cannot be found on server");
 		}
 		return value;
 	}
@@ -308,16 +511,38 @@ public class KVServer implements IKVServer, Runnable {
 
 	@Override
 	public void putKV(String key, String value) throws Exception{
-		boolean success = diskStorage.put(key, value);
+		putKV(key, value, 0);
+	}
+
+	/**
+	 * Store a key-value pair, optionally deleted once its time to live has passed.
+	 * @param key Key to store.
+	 * @param value Value to store.
+	 * @param ttl Time to live in ms, 0 to keep the pair until it is deleted.
+	 * @return the value with its deadline, to be sent to replicas.
+	 */
+	public String putKV(String key, String value, long ttl) throws Exception{
+		long deadline = (ttl > 0) ? System.currentTimeMillis() + ttl : 0;
+		boolean success = diskStorage.put(key, value, deadline);
 		if (success == false){
 			logger.debug("Unable to put key value pair into storage. Key = " + key + ", Value = " + value);
 			throw new Exception("Unable to put key value pair into storage.");
 		}
+		return ExpiringDiskStorage.encode(value, deadline);
+	}
+
+	/**
+	 * @return storage layer handling time to live of keys
+	 */
+	public ExpiringDiskStorage getExpiringStorage(){
+		return diskStorage;
 	}
 
 	@Override
 	public void clearCache(){
-		// do nothing since cache is not yet implemented
+		if (cache != null){
+			cache.clear();
+		}
 	}
 
 	@Override
@@ -329,6 +554,10 @@ public class KVServer implements IKVServer, Runnable {
 	public void run(){
 
 		logger.info("Initialize server ...");
+		if (config.frontEnd != FrontEnd.THREAD){
+			runFrontEnd();
+			return;
+		}
 		try {
 			serverSocket = new ServerSocket(port);
 			logger.info("Server listening on port: " + serverSocket.getLocalPort());
@@ -347,7 +576,7 @@ public class KVServer implements IKVServer, Runnable {
 				try {
 					Socket clientSocket = serverSocket.accept();
 					KVCommunicationServer communication = new KVCommunicationServer(clientSocket, this);
-					clients.add(communication);
+					addClient(communication);
 					Thread clientThread = new Thread(communication);
 					clientThread.start();
 					clientThreads.add(clientThread);
@@ -362,9 +591,68 @@ public class KVServer implements IKVServer, Runnable {
 		logger.info("Server stopped.");
 	}
 
+	/**
+	 * Serve clients with a fixed number of event loop and worker threads, see
+	 * NioFrontEnd and NettyFrontEnd.
+	 */
+	private void runFrontEnd(){
+		try {
+			if (config.frontEnd == FrontEnd.NETTY){
+				frontEnd = new NettyFrontEnd(this, port, config.ioThreads, config.workers);
+			}
+			else {
+				frontEnd = new NioFrontEnd(this, port, config.ioThreads, config.workers);
+			}
+			logger.info("Server listening on port: " + frontEnd.getLocalPort() + " (" + config.frontEnd + ") with "
+					+ config.ioThreads + " event loops and " + config.workers + " workers");
+			running = true;
+		}
+		catch (IOException e) {
+			logger.error("Error! Cannot open server socket. \n", e);
+			if (e instanceof BindException){
+				logger.error("Port " + port + " is already bound! \n");
+			}
+			running = false;
+			return;
+		}
+		frontEnd.run();
+		logger.info("Server stopped.");
+	}
+
+	/**
+	 * Register a client connection for subscription updates.
+	 */
+	public void addClient(KVCommunicationServer client){
+		synchronized (clients){
+			clients.add(client);
+		}
+	}
+
+	/**
+	 * Forget a closed client connection.
+	 */
+	public void removeClient(KVCommunicationServer client){
+		synchronized (clients){
+			clients.remove(client);
+		}
+	}
+
+	/**
+	 * @return number of open client connections
+	 */
+	public int getClientCount(){
+		synchronized (clients){
+			return clients.size();
+		}
+	}
+
 	@Override
 	public void kill(){
 		running = false;
+		if (frontEnd != null){
+			frontEnd.close();
+			return;
+		}
 		try {
 			serverSocket.close();
 		}
@@ -399,11 +687,21 @@ public class KVServer implements IKVServer, Runnable {
 		}
 
 		running = false;
+		diskStorage.stopReaper();
+		if (cacheWarmer != null){
+			// snapshot the hot keys so a restart begins with a warm cache
+			cacheWarmer.close();
+		}
+		if (frontEnd != null){
+			frontEnd.close();
+		}
 		try {
 			for (int i = 0; i < clientThreads.size(); i++){
 				clientThreads.get(i).interrupt();	// interrupt and stop all threads
 			}
-			serverSocket.close();
+			if (serverSocket != null){
+				serverSocket.close();
+			}
 		}
 		catch (IOException e) {
 			logger.error("Error! Unable to close socket on port: " + port, e);
@@ -454,13 +752,13 @@ public class KVServer implements IKVServer, Runnable {
 		if (removeNode){
 			BigInteger start = serverMetadata.start;
 			BigInteger stop = serverMetadata.stop;
-			kvOutofRange = getKVWithinRange(start, stop);
+			kvOutofRange = diskStorage.getStoredWithinRange(start, stop);
 		}
 		else if (oldServerMetadata != null && !oldServerMetadata.stop.equals(serverMetadata.stop)){
 			logger.info("Move Data: addition hash ring changed");
 			BigInteger stop = serverMetadata.stop;
 			BigInteger nextStop = serverMetadatasMap.get(stop.toString()).stop;
-			kvOutofRange = getKVWithinRange(stop, nextStop);
+			kvOutofRange = diskStorage.getStoredWithinRange(stop, nextStop);
 		}
 
 		logger.info("Move data, printing all KV, " + diskStorage.getAllKV());
@@ -501,7 +799,7 @@ public class KVServer implements IKVServer, Runnable {
 			KVAdminMessage sendMsg = new KVAdminMessage(serverName, KVAdminType.TRANSFER_KV, null, kvOutofRange);
 			logger.info("Move Data: Sending KVAdmin Message to " + targetName);
 			logger.info("Move Data: Message content: " + sendMsg.toString());
-			zk.setData(targetName, sendMsg.toBytes(), zk.exists(targetName, false).getVersion());
+			zk.setData(targetName, sendMsg.toBytes(config.compression), zk.exists(targetName, false).getVersion());
 		} catch (InterruptedException | KeeperException e){
 			logger.error("Error occured in moveData", e);
 		}
@@ -519,7 +817,7 @@ public class KVServer implements IKVServer, Runnable {
 	public boolean replicateData(){
 		
 		// get out of range KV pairs and remove from disk storage
-		Map<String, String> kvWithinRange = getKVWithinRange();
+		Map<String, String> kvWithinRange = diskStorage.getStoredWithinRange(serverMetadata.start, serverMetadata.stop);
 		logger.info("Replicate data, printing KV within range, " + kvWithinRange);
 		logger.info("Replicate data, printing all KV, " + diskStorage.getAllKV());
 
@@ -540,7 +838,7 @@ public class KVServer implements IKVServer, Runnable {
 				KVAdminMessage sendMsg = new KVAdminMessage(serverName, KVAdminType.TRANSFER_KV, null, kvWithinRange);
 				logger.info("Replicate Data 1: Sending KVAdmin Message to " + targetName);
 				logger.info("Replicate Data 1: Message content: " + sendMsg.toString());
-				zk.setData(targetName, sendMsg.toBytes(), zk.exists(targetName, false).getVersion());
+				zk.setData(targetName, sendMsg.toBytes(config.compression), zk.exists(targetName, false).getVersion());
 			} catch (InterruptedException | KeeperException e){
 				logger.error("Error occured in replicateData", e);
 			}
@@ -560,7 +858,7 @@ public class KVServer implements IKVServer, Runnable {
 				KVAdminMessage sendMsg = new KVAdminMessage(serverName, KVAdminType.TRANSFER_KV, null, kvWithinRange);
 				logger.info("Replicate Data 2: Sending KVAdmin Message to " + targetName);
 				logger.info("Replicate Data 2: Message content: " + sendMsg.toString());
-				zk.setData(targetName, sendMsg.toBytes(), zk.exists(targetName, false).getVersion());
+				zk.setData(targetName, sendMsg.toBytes(config.compression), zk.exists(targetName, false).getVersion());
 			} catch (InterruptedException | KeeperException e){
 				logger.error("Error occured in replicateData", e);
 			}
@@ -578,7 +876,7 @@ public class KVServer implements IKVServer, Runnable {
 	 * If value is non-empty string, perform insert / update operation
 	 * If value is empty string, perform delete operation 
 	 * @param key Key to replicate.
-	 * @param Value Value to replicate. 
+	 * @param Value Value to replicate, with its deadline if it expires (see putKV). 
 	 * @return always return true. 
 	 */
 	public boolean replicateOneKvPair(String key, String value){
@@ -599,7 +897,7 @@ public class KVServer implements IKVServer, Runnable {
 				KVAdminMessage sendMsg = new KVAdminMessage(serverName, KVAdminType.TRANSFER_KV, null, kvUpdate);
 				logger.info("Replicate One KV Pair 1: Sending KVAdmin Message to " + targetName);
 				logger.info("Replicate One KV Pair 1: Message content: " + sendMsg.toString());
-				zk.setData(targetName, sendMsg.toBytes(), zk.exists(targetName, false).getVersion());
+				zk.setData(targetName, sendMsg.toBytes(config.compression), zk.exists(targetName, false).getVersion());
 			} catch (InterruptedException | KeeperException e){
 				logger.error("Error occured in replicateData", e);
 			}
@@ -619,7 +917,7 @@ public class KVServer implements IKVServer, Runnable {
 				KVAdminMessage sendMsg = new KVAdminMessage(serverName, KVAdminType.TRANSFER_KV, null, kvUpdate);
 				logger.info("Replicate One KV Pair 2: Sending KVAdmin Message to " + targetName);
 				logger.info("Replicate One KV Pair 2: Message content: " + sendMsg.toString());
-				zk.setData(targetName, sendMsg.toBytes(), zk.exists(targetName, false).getVersion());
+				zk.setData(targetName, sendMsg.toBytes(config.compression), zk.exists(targetName, false).getVersion());
 			} catch (InterruptedException | KeeperException e){
 				logger.error("Error occured in replicateData", e);
 			}
@@ -679,7 +977,11 @@ public class KVServer implements IKVServer, Runnable {
 	 * @param recvMsg
 	 */
 	public void boardcastSubscriptionUpdateToClients(KVAdminMessage recvMsg){
-		for (KVCommunicationServer client : clients){
+		ArrayList<KVCommunicationServer> targets;
+		synchronized (clients){
+			targets = new ArrayList<KVCommunicationServer>(clients);
+		}
+		for (KVCommunicationServer client : targets){
 			Map.Entry<String, String> kvPair = recvMsg.getMessageKVData().entrySet().iterator().next();
 			try {
 				// send KVMessage to KVClients through KVMessage
@@ -700,6 +1002,39 @@ public class KVServer implements IKVServer, Runnable {
 		}
 	}
 
+	/**
+	 * This function sends one key-value pair update to all active KVClients except the one that made it.
+	 * Used by a non-distributed KVServer, which has no peers to boardcast through.
+	 * @param owner Connection of the KVClient that made the update, null if no client made it.
+	 * @param key Updated key.
+	 * @param value New value, empty string if the key was deleted.
+	 */
+	public void boardcastSubscriptionUpdateToClients(KVCommunicationServer owner, String key, String value){
+		KVMessage boardcastMsg;
+		try {
+			boardcastMsg = new KVMessageClass(KVMessage.StatusType.SUBSCRITION_UPDATE, key, value);
+		}
+		catch (Exception e) {
+			logger.error(e);
+			return;
+		}
+		ArrayList<KVCommunicationServer> targets;
+		synchronized (clients){
+			targets = new ArrayList<KVCommunicationServer>(clients);
+		}
+		for (KVCommunicationServer client : targets){
+			if (client == owner || !client.isOpen()){
+				continue;
+			}
+			try {
+				client.send(boardcastMsg);
+			}
+			catch (IOException e) {
+				logger.error("Server lost client lost! ", e);
+			}
+		}
+	}
+
 	/**
 	 * Receive KV messages from KVAdminMessage data transfer and store in disk storage.
 	 * 
@@ -735,7 +1070,11 @@ public class KVServer implements IKVServer, Runnable {
 				diskStorage.delelteKV(kvPair.getKey());
 			}
 			else {
-				diskStorage.put(kvPair.getKey().toString(), kvPair.getValue().toString());
+				try {
+					diskStorage.putStored(kvPair.getKey().toString(), kvPair.getValue().toString());
+				} catch (Exception e) {
+					logger.error("Unable to store transferred KV pair, key: " + kvPair.getKey(), e);
+				}
 			}
 		}
 		// Leaving critical region and releasing write lock
@@ -865,7 +1204,8 @@ public class KVServer implements IKVServer, Runnable {
 			String logString = "logs/server." + args[0] + ".log";
 			new LogSetup(logString, Level.OFF);
 			String strategy = args[2];
-			KVServer kvServer = new KVServer(port, cacheSize, strategy);
+			KVServerConfig config = KVServerConfig.parse(args, 3);
+			KVServer kvServer = new KVServer(port, cacheSize, strategy, config);
 			kvServer.run();
 			System.exit(0);
 		}
@@ -876,7 +1216,8 @@ public class KVServer implements IKVServer, Runnable {
 			String zkHostname = args[2];
 			String logString = "logs/server." + serverName + ".log";
 			new LogSetup(logString, Level.OFF);
-			KVServer kvServer = new KVServer(serverName, zkPort, zkHostname);
+			KVServerConfig config = KVServerConfig.parse(args, 3);
+			KVServer kvServer = new KVServer(serverName, zkPort, zkHostname, config);
 			kvServer.run();
 			System.exit(0);
 		}
@@ -0,0 +1,221 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.IKVServer.FrontEnd;
+import app_kvServer.IKVServer.StorageEngine;
+import DiskStorage.CacheWarmer;
+import DiskStorage.DiskStorageLog;
+import DiskStorage.FsyncPolicy;
+import DiskStorage.GroupCommit;
+import DiskStorage.NegativeCachedDiskStorage;
+import shared.cache.SlabAllocator;
+import shared.communication.NioFrontEnd;
+
+/**
+ * Optional KVServer settings given on the command line after the mandatory
+ * arguments, in the form of <code>name=value</code>.
+ *
+ * <p>
+ * Supported options:
+ * <ul>
+ * <li><code>storage=PROPERTIES|LOG|MMAP|LSM</code>: disk storage engine (default PROPERTIES) </li>
+ * <li><code>compaction=&lt;ratio&gt;</code>: LOG storage live / total byte ratio that triggers
+ *      background compaction, 0 disables it (default 0.5) </li>
+ * <li><code>fsync=ALWAYS|INTERVAL|OS</code>: when writes are forced to disk (default INTERVAL) </li>
+ * <li><code>fsyncInterval=&lt;ms&gt;</code>: ms between background fsyncs for INTERVAL (default 100) </li>
+ * <li><code>cacheSize=&lt;n&gt;</code>: number of cached key-value pairs of a distributed server,
+ *      a non-distributed one takes it as a mandatory argument (default 0, no cache) </li>
+ * <li><code>cacheStrategy=None|LRU|LFU|FIFO|TINYLFU</code>: cache replacement strategy of a
+ *      distributed server, a non-distributed one takes it as a mandatory argument (default None) </li>
+ * <li><code>cacheBytes=&lt;n&gt;[k|m|g]</code>: bound the server cache by the estimated heap bytes
+ *      of its keys and values instead of, or on top of, the cache size in entries (default 0, no byte bound) </li>
+ * <li><code>cacheOffHeap=&lt;n&gt;[k|m|g]</code>: keep cached values as UTF-8 bytes in this much
+ *      direct memory outside the Java heap instead of using the cache strategy (default 0, off) </li>
+ * <li><code>hotKeys=&lt;n&gt;</code>: number of hottest cache keys snapshotted under ./data and
+ *      preloaded into the cache on the next start, 0 disables it (default 0) </li>
+ * <li><code>hotKeysInterval=&lt;ms&gt;</code>: ms between hot key snapshots, one is also written
+ *      on close (default 60000) </li>
+ * <li><code>negativeCache=&lt;n&gt;</code>: number of recently missed keys remembered so repeated
+ *      GETs of absent keys skip the storage, 0 disables it (default 1024) </li>
+ * <li><code>compression=&lt;n&gt;[k|m|g]</code>: deflate values of at least this many bytes in the
+ *      PROPERTIES write-ahead log, LOG and LSM storage and KV transfers between servers, 0 disables it
+ *      (default 0) </li>
+ * <li><code>frontEnd=THREAD|NIO|NETTY</code>: serve clients with one thread per connection, with
+ *      selector event loops handing requests to a worker pool, or with a Netty pipeline using epoll
+ *      where available (default THREAD) </li>
+ * <li><code>ioThreads=&lt;n&gt;</code>: number of NIO or Netty event loop threads (default 2) </li>
+ * <li><code>workers=&lt;n&gt;</code>: number of NIO or Netty worker threads handling requests (default 16) </li>
+ * <li><code>shards=&lt;n&gt;</code>: split the storage into n key-hash shards with their own locks
+ *      and files, must stay the same for an existing data directory (default 1) </li>
+ * </ul>
+ * </p>
+ */
+public class KVServerConfig {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public StorageEngine storageEngine = StorageEngine.PROPERTIES;
+    public double compactionThreshold = DiskStorageLog.DEFAULT_COMPACTION_THRESHOLD;
+    public FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+    public int fsyncInterval = GroupCommit.DEFAULT_SYNC_INTERVAL;
+    public int shards = 1;
+    public int cacheSize = 0;
+    public CacheStrategy cacheStrategy = CacheStrategy.None;
+    public long cacheBytes = 0;
+    public long cacheOffHeap = 0;
+    public int hotKeys = 0;
+    public int hotKeysInterval = CacheWarmer.DEFAULT_INTERVAL;
+    public int negativeCache = NegativeCachedDiskStorage.DEFAULT_CAPACITY;
+    public int compression = 0;
+    public FrontEnd frontEnd = FrontEnd.THREAD;
+    public int ioThreads = NioFrontEnd.DEFAULT_IO_THREADS;
+    public int workers = NioFrontEnd.DEFAULT_WORKERS;
+
+    /**
+     * Parse <code>name=value</code> options from command line arguments.
+     *
+     * @param args command line arguments
+     * @param offset index of the first optional argument
+     * @return server config, unspecified options keep their default value
+     */
+    public static KVServerConfig parse(String[] args, int offset){
+        KVServerConfig config = new KVServerConfig();
+        for (int i = offset; i < args.length; i++){
+            String[] tokens = args[i].split("=", 2);
+            if (tokens.length != 2){
+                logger.error("Ignoring malformed server option: " + args[i]);
+                continue;
+            }
+            try {
+                config.set(tokens[0], tokens[1]);
+            } catch (IllegalArgumentException e){
+                logger.error("Ignoring invalid server option: " + args[i]);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Parse a byte count with an optional k, m or g suffix.
+     */
+    private static long parseBytes(String value){
+        String number = value.trim().toLowerCase();
+        long multiplier = 1;
+        if (number.endsWith("k")){
+            multiplier = 1024L;
+        }
+        else if (number.endsWith("m")){
+            multiplier = 1024L * 1024;
+        }
+        else if (number.endsWith("g")){
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier != 1){
+            number = number.substring(0, number.length() - 1);
+        }
+        return Long.parseLong(number) * multiplier;
+    }
+
+    /**
+     * Parse a cache strategy name ignoring case, e.g. NONE for None.
+     */
+    private static CacheStrategy parseCacheStrategy(String value){
+        for (CacheStrategy strategy : CacheStrategy.values()){
+            if (strategy.name().equalsIgnoreCase(value)){
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cache strategy " + value);
+    }
+
+    private void set(String name, String value){
+        switch(name){
+            case "storage":
+                storageEngine = StorageEngine.valueOf(value.toUpperCase());
+                break;
+            case "compaction":
+                compactionThreshold = Double.parseDouble(value);
+                break;
+            case "fsync":
+                fsyncPolicy = FsyncPolicy.valueOf(value.toUpperCase());
+                break;
+            case "fsyncInterval":
+                fsyncInterval = Integer.parseInt(value);
+                if (fsyncInterval <= 0){
+                    throw new IllegalArgumentException("fsyncInterval must be positive");
+                }
+                break;
+            case "cacheSize":
+                cacheSize = Integer.parseInt(value);
+                if (cacheSize < 0){
+                    throw new IllegalArgumentException("cacheSize must not be negative");
+                }
+                break;
+            case "cacheStrategy":
+                cacheStrategy = parseCacheStrategy(value);
+                break;
+            case "cacheBytes":
+                cacheBytes = parseBytes(value);
+                if (cacheBytes < 0){
+                    throw new IllegalArgumentException("cacheBytes must not be negative");
+                }
+                break;
+            case "cacheOffHeap":
+                cacheOffHeap = parseBytes(value);
+                if (cacheOffHeap != 0 && cacheOffHeap < SlabAllocator.SLAB_SIZE){
+                    throw new IllegalArgumentException("cacheOffHeap must be at least one slab");
+                }
+                break;
+            case "hotKeys":
+                hotKeys = Integer.parseInt(value);
+                if (hotKeys < 0){
+                    throw new IllegalArgumentException("hotKeys must not be negative");
+                }
+                break;
+            case "hotKeysInterval":
+                hotKeysInterval = Integer.parseInt(value);
+                if (hotKeysInterval <= 0){
+                    throw new IllegalArgumentException("hotKeysInterval must be positive");
+                }
+                break;
+            case "negativeCache":
+                negativeCache = Integer.parseInt(value);
+                if (negativeCache < 0){
+                    throw new IllegalArgumentException("negativeCache must not be negative");
+                }
+                break;
+            case "compression":
+                long threshold = parseBytes(value);
+                if (threshold < 0 || threshold > Integer.MAX_VALUE){
+                    throw new IllegalArgumentException("compression must be between 0 and 2g");
+                }
+                compression = (int) threshold;
+                break;
+            case "frontEnd":
+                frontEnd = FrontEnd.valueOf(value.toUpperCase());
+                break;
+            case "ioThreads":
+                ioThreads = Integer.parseInt(value);
+                if (ioThreads <= 0){
+                    throw new IllegalArgumentException("ioThreads must be positive");
+                }
+                break;
+            case "workers":
+                workers = Integer.parseInt(value);
+                if (workers <= 0){
+                    throw new IllegalArgumentException("workers must be positive");
+                }
+                break;
+            case "shards":
+                shards = Integer.parseInt(value);
+                if (shards <= 0){
+                    throw new IllegalArgumentException("shards must be positive");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown server option " + name);
+        }
+    }
+}
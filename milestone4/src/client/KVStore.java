@@ -1,11 +1,14 @@
 package client;
 
 import org.apache.log4j.Logger;
+import shared.cache.Cache;
+import shared.cache.LRUCache;
 import shared.communication.KVCommunicationClient;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageClass;
 import shared.messages.Metadata;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -13,6 +16,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class KVStore implements KVCommInterface, Runnable {
 	
@@ -33,6 +40,21 @@ public class KVStore implements KVCommInterface, Runnable {
 	private boolean subscribingAll;
 	public volatile KVMessage recvMessage; 	// record last received message
 	public volatile boolean newMessage; 	// flag for unread new message
+
+	/* Near cache of recently read and written values, kept coherent by subscription updates */
+	private volatile Cache nearCache;		// null if disabled
+	private String inFlightKey;				// key of the request waiting for its response
+	private boolean inFlightUpdated;		// subscription update for inFlightKey arrived meanwhile
+	
+	/* Wire protocol */
+	private static final int NEGOTIATION_TIMEOUT = 1000;	// ms to wait for the server's PROTOCOL answer
+	private int protocolVersion = KVMessageClass.PROTOCOL_PIPELINED;	// highest version asked for on connect
+
+	/* Request pipelining, responses are matched to requests by request ID */
+	private static final int MAX_IN_FLIGHT = 1024;			// pipelined requests sent but not yet answered
+	private final ConcurrentHashMap<Integer, PendingRequest> pipelined = new ConcurrentHashMap<>();
+	private final Semaphore inFlightPermits = new Semaphore(MAX_IN_FLIGHT);
+	private final AtomicInteger lastRequestId = new AtomicInteger();
 	
 	/* Unit testing variables */
 	private int total_clients;				// total number of clients
@@ -81,7 +103,12 @@ public class KVStore implements KVCommInterface, Runnable {
 	public void connect() throws Exception {
 		try {
 			clientSocket = new Socket(serverAddress, serverPort);
+			// updates pushed while disconnected are lost, so cached values cannot be trusted
+			clearNearCache();
 			kvCommunication = new KVCommunicationClient(clientSocket, this);
+			if (protocolVersion > KVMessageClass.PROTOCOL_TEXT){
+				kvCommunication.negotiate(protocolVersion, NEGOTIATION_TIMEOUT);
+			}
 			clientListenerThread = new Thread(kvCommunication);
 			clientListenerThread.start();
 			System.out.println("Connection is established! Server address = "+ serverAddress +", port = "+serverPort);
@@ -109,6 +136,7 @@ public class KVStore implements KVCommInterface, Runnable {
 				kvCommunication.send(kvmessage);
 				// kvCommunication.receive();
 				kvCommunication.close();
+				failPipelined(new IOException("Disconnected from server."));
 				logger.debug("Disconnected from server.");
 			}
 			catch (Exception e) {
@@ -121,13 +149,254 @@ public class KVStore implements KVCommInterface, Runnable {
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
 		KVMessageClass kvmessage = new KVMessageClass(KVMessage.StatusType.PUT, key, value);
-		return sendKVmessage (kvmessage, key);
+		if (nearCache == null){
+			return sendKVmessage (kvmessage, key);
+		}
+		beginRequest(key);
+		KVMessage response = sendKVmessage (kvmessage, key);
+		switch (response.getStatus()){
+			case PUT_SUCCESS:
+			case PUT_UPDATE:
+				completeRequest(key, value);
+				break;
+			default:
+				completeRequest(key, null);
+		}
+		return response;
+	}
+
+	/**
+	 * Inserts a key-value pair that the servers delete once its time to live
+	 * has passed. The value is not kept in the near cache.
+	 * @param key the key that identifies the given value.
+	 * @param value the value that is indexed by the given key.
+	 * @param ttl time to live in ms, must be positive.
+	 * @return a message that confirms the insertion of the tuple or an error.
+	 */
+	public KVMessage put(String key, String value, long ttl) throws Exception {
+		KVMessageClass kvmessage = new KVMessageClass(key, value, ttl);
+		if (nearCache == null){
+			return sendKVmessage (kvmessage, key);
+		}
+		beginRequest(key);
+		KVMessage response = sendKVmessage (kvmessage, key);
+		completeRequest(key, null);
+		return response;
 	}
 
 	@Override
 	public KVMessage get(String key) throws Exception {
+		Cache cache = nearCache;
+		if (cache != null){
+			String value = cache.get(key);
+			if (value != null){
+				recvMessage = new KVMessageClass(KVMessage.StatusType.GET_SUCCESS, key, value);
+				return recvMessage;
+			}
+		}
 		KVMessageClass kvmessage = new KVMessageClass(KVMessage.StatusType.GET, key, "");
-		return sendKVmessage (kvmessage, key);
+		if (cache == null){
+			return sendKVmessage (kvmessage, key);
+		}
+		beginRequest(key);
+		KVMessage response = sendKVmessage (kvmessage, key);
+		completeRequest(key, (response.getStatus() == KVMessage.StatusType.GET_SUCCESS) ? response.getValue() : null);
+		return response;
+	}
+
+	/**
+	 * Sends a GET without waiting for its response, so that many requests can
+	 * be in flight on one connection. A value in the near cache is returned
+	 * right away, a value fetched this way is not cached. Without the
+	 * pipelined protocol the request is made with get() before returning.
+	 * @param key the key that identifies the value.
+	 * @return response of the server, a SERVER_NOT_RESPONSIBLE answer is not followed
+	 */
+	public Future<KVMessage> getAsync(String key) throws Exception {
+		Cache cache = nearCache;
+		if (cache != null){
+			String value = cache.get(key);
+			if (value != null){
+				return PendingRequest.completed(new KVMessageClass(KVMessage.StatusType.GET_SUCCESS, key, value));
+			}
+		}
+		if (!isPipelining()){
+			return PendingRequest.completed(get(key));
+		}
+		return sendPipelined(new KVMessageClass(KVMessage.StatusType.GET, key, ""));
+	}
+
+	/**
+	 * Sends a PUT without waiting for its response, see {@link #getAsync}.
+	 * The key is dropped from the near cache.
+	 * @param key the key that identifies the given value.
+	 * @param value the value that is indexed by the given key, empty to delete the key.
+	 * @return response of the server, a SERVER_NOT_RESPONSIBLE answer is not followed
+	 */
+	public Future<KVMessage> putAsync(String key, String value) throws Exception {
+		if (!isPipelining()){
+			return PendingRequest.completed(put(key, value));
+		}
+		invalidateNearCache(key);
+		return sendPipelined(new KVMessageClass(KVMessage.StatusType.PUT, key, value));
+	}
+
+	/**
+	 * @return true if requests can be pipelined on the current connection
+	 */
+	public boolean isPipelining(){
+		return getProtocol() >= KVMessageClass.PROTOCOL_PIPELINED;
+	}
+
+	/**
+	 * Send a request with a new request ID, blocking while MAX_IN_FLIGHT
+	 * requests wait for their responses.
+	 */
+	private PendingRequest sendPipelined(KVMessage request) throws Exception {
+		inFlightPermits.acquire();
+		int requestId;
+		do {
+			requestId = lastRequestId.incrementAndGet() & Integer.MAX_VALUE;
+		} while (requestId == 0 || pipelined.containsKey(requestId));
+		PendingRequest pending = new PendingRequest();
+		pipelined.put(requestId, pending);
+		try {
+			kvCommunication.send(request, requestId);
+		}
+		catch (Exception e) {
+			if (pipelined.remove(requestId) != null){
+				inFlightPermits.release();
+			}
+			throw e;
+		}
+		return pending;
+	}
+
+	/**
+	 * Hand the response to a pipelined request to its caller.
+	 * Called by the listener thread.
+	 */
+	public void completePipelined(KVMessage response){
+		PendingRequest pending = pipelined.remove(response.getRequestId());
+		if (pending == null){
+			logger.error("Received response to unknown request " + response.getRequestId());
+			return;
+		}
+		inFlightPermits.release();
+		pending.complete(response);
+	}
+
+	/**
+	 * Fail all pipelined requests still waiting for a response, their
+	 * connection is gone.
+	 */
+	public void failPipelined(Exception cause){
+		for (Integer requestId : pipelined.keySet()){
+			PendingRequest pending = pipelined.remove(requestId);
+			if (pending != null){
+				inFlightPermits.release();
+				pending.fail(cause);
+			}
+		}
+	}
+
+	/**
+	 * Set the highest wire protocol version asked for on the next connect.
+	 * @param version KVMessageClass.PROTOCOL_TEXT to keep the text protocol, KVMessageClass.PROTOCOL_BINARY for binary frames,
+	 *           KVMessageClass.PROTOCOL_PIPELINED (default) to also allow pipelined requests
+	 */
+	public void setProtocolVersion(int version){
+		this.protocolVersion = version;
+	}
+
+	/**
+	 * @return protocol version of the current connection
+	 */
+	public int getProtocol(){
+		return (kvCommunication == null) ? KVMessageClass.PROTOCOL_TEXT : kvCommunication.getProtocol();
+	}
+
+	/**
+	 * Serve repeated get() calls from a bounded local cache. Every cached key
+	 * is kept up to date by the subscription updates the servers push for
+	 * writes of other clients, whether or not the user subscribed to it; a
+	 * value is not cached if an update for its key arrived while the request
+	 * was in flight, and the cache is dropped on every (re)connect.
+	 * @param capacity maximum number of cached key-value pairs, 0 disables the near cache
+	 */
+	public void setNearCache(int capacity){
+		nearCache = (capacity > 0) ? new LRUCache(capacity) : null;
+	}
+
+	/**
+	 * @return near cache, null if disabled
+	 */
+	public Cache getNearCache(){
+		return nearCache;
+	}
+
+	private synchronized void clearNearCache(){
+		Cache cache = nearCache;
+		if (cache != null){
+			cache.clear();
+			inFlightUpdated = true;
+		}
+	}
+
+	/**
+	 * Drop a key the client changed without a response to cache, and do not
+	 * cache the value of a request for it in flight.
+	 */
+	private synchronized void invalidateNearCache(String key){
+		Cache cache = nearCache;
+		if (cache != null){
+			cache.remove(key);
+		}
+		if (key.equals(inFlightKey)){
+			inFlightUpdated = true;
+		}
+	}
+
+	private synchronized void beginRequest(String key){
+		inFlightKey = key;
+		inFlightUpdated = false;
+	}
+
+	/**
+	 * Cache the value a request left on the server, unless it may be stale.
+	 * @param value value of the key on the server, null if unknown or deleted
+	 */
+	private synchronized void completeRequest(String key, String value){
+		Cache cache = nearCache;
+		if (cache != null){
+			if (value == null || inFlightUpdated){
+				cache.remove(key);
+			}
+			else {
+				cache.put(key, value);
+			}
+		}
+		inFlightKey = null;
+	}
+
+	/**
+	 * Apply a subscription update pushed by the server to the near cache.
+	 * Called by the listener thread.
+	 * @param value new value, empty string if the key was deleted
+	 */
+	public synchronized void applySubscriptionUpdate(String key, String value){
+		if (key.equals(inFlightKey)){
+			inFlightUpdated = true;
+		}
+		Cache cache = nearCache;
+		if (cache != null && cache.contains(key)){
+			if (value.equals("")){
+				cache.remove(key);
+			}
+			else {
+				cache.put(key, value);
+			}
+		}
 	}
 
 	public boolean isRunning() {
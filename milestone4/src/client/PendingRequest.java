@@ -0,0 +1,76 @@
+package client;
+
+import shared.messages.KVMessage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Response of a pipelined request, completed by the listener thread once the
+ * server's answer with the request's ID arrives, or failed if the connection
+ * is lost before. Requests on the wire cannot be cancelled.
+ */
+class PendingRequest implements Future<KVMessage> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile KVMessage response;
+	private volatile Exception failure;
+
+	/**
+	 * @return a request answered without going to the server
+	 */
+	static PendingRequest completed(KVMessage response){
+		PendingRequest request = new PendingRequest();
+		request.complete(response);
+		return request;
+	}
+
+	void complete(KVMessage response){
+		this.response = response;
+		done.countDown();
+	}
+
+	void fail(Exception failure){
+		this.failure = failure;
+		done.countDown();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning){
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled(){
+		return false;
+	}
+
+	@Override
+	public boolean isDone(){
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public KVMessage get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public KVMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)){
+			throw new TimeoutException("No response from server within " + timeout + " " + unit);
+		}
+		return result();
+	}
+
+	private KVMessage result() throws ExecutionException {
+		if (failure != null){
+			throw new ExecutionException(failure);
+		}
+		return response;
+	}
+}
@@ -0,0 +1,86 @@
+package shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of values and messages.
+ *
+ * <p>
+ * Compressed data is the length of the original bytes (4 bytes, big endian)
+ * followed by a raw deflate stream, so inflating allocates the result once.
+ * Data is compressed with the fastest level, values are written on the
+ * request path. Callers keep their own flag telling compressed and plain
+ * data apart; {@link #deflate} declines data that would not get smaller.
+ * </p>
+ */
+public final class Compression {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private Compression() {}
+
+    /**
+     * @return compressed data, null if it is not smaller than the input
+     */
+    public static byte[] deflate(byte[] raw){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(raw.length / 2 + 16);
+            output.write(raw.length >>> 24);
+            output.write(raw.length >>> 16);
+            output.write(raw.length >>> 8);
+            output.write(raw.length);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (!deflater.finished()){
+                int length = deflater.deflate(chunk);
+                output.write(chunk, 0, length);
+                if (output.size() >= raw.length){
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param data output of {@link #deflate}
+     * @return original bytes
+     * @throws IOException if the data is not a complete deflate stream
+     */
+    public static byte[] inflate(byte[] data) throws IOException {
+        if (data.length < 4){
+            throw new IOException("Truncated compressed data");
+        }
+        int length = ByteBuffer.wrap(data).getInt();
+        if (length < 0){
+            throw new IOException("Corrupted compressed data");
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, 4, data.length - 4);
+            byte[] raw = new byte[length];
+            int read = 0;
+            while (read < length){
+                int n = inflater.inflate(raw, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())){
+                    throw new IOException("Truncated compressed data");
+                }
+                read += n;
+            }
+            return raw;
+        } catch (DataFormatException e){
+            throw new IOException("Corrupted compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
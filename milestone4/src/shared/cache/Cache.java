@@ -0,0 +1,47 @@
+package shared.cache;
+
+import java.util.List;
+
+/**
+ * In-memory key value cache with hit, miss and eviction counters.
+ */
+public interface Cache {
+
+    /**
+     * @return cached value, null on a miss
+     */
+    String get(String key);
+
+    /**
+     * Insert or update an entry, evicting others if the cache is full. An entry
+     * the cache has no room for at all is dropped, along with an older version.
+     */
+    void put(String key, String value);
+
+    void remove(String key);
+
+    /**
+     * @return true if key is cached, without counting as an access
+     */
+    boolean contains(String key);
+
+    void clear();
+
+    /**
+     * @return up to limit cached keys, those the cache would keep longest first
+     */
+    List<String> hottestKeys(int limit);
+
+    int size();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    /**
+     * @return hits / (hits + misses), 0 before the first lookup
+     */
+    double getHitRate();
+}
@@ -0,0 +1,68 @@
+package shared.cache;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the entry that was inserted first. Updates and hits do not change
+ * the order.
+ */
+public class FIFOCache extends KVCache {
+
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+
+    public FIFOCache(int capacity){
+        super(capacity);
+    }
+
+    /**
+     * @param capacity maximum number of entries, 0 for no entry limit
+     * @param maxBytes maximum estimated heap bytes, 0 for no byte limit
+     */
+    public FIFOCache(int capacity, long maxBytes){
+        super(capacity, maxBytes);
+    }
+
+    @Override
+    protected String lookup(String key){
+        return entries.get(key);
+    }
+
+    @Override
+    protected void store(String key, String value){
+        entries.put(key, value);
+    }
+
+    @Override
+    protected Map.Entry<String, String> evict(){
+        Map.Entry<String, String> eldest = entries.entrySet().iterator().next();
+        entries.remove(eldest.getKey());
+        return eldest;
+    }
+
+    @Override
+    protected void invalidate(String key){
+        entries.remove(key);
+    }
+
+    @Override
+    protected void invalidateAll(){
+        entries.clear();
+    }
+
+    @Override
+    protected String peek(String key){
+        return entries.get(key);
+    }
+
+    @Override
+    protected List<String> hottest(int limit){
+        return newestFirst(entries.keySet(), limit);
+    }
+
+    @Override
+    protected int count(){
+        return entries.size();
+    }
+}
@@ -0,0 +1,91 @@
+package shared.cache;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch estimating how often keys were seen recently.
+ *
+ * <p>
+ * Every key increments one 8-bit counter in each of <code>DEPTH</code> rows, the
+ * estimate is the smallest of them, so collisions can only make a key look more
+ * popular than it is. Counters saturate at <code>MAX_COUNT</code>, and once
+ * <code>SAMPLE_FACTOR</code> times the row width increments have been recorded
+ * all counters are halved, so the history fades and keys that stopped being
+ * popular lose their advantage.
+ * </p>
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int SAMPLE_FACTOR = 10;
+    private static final int[] SEEDS = {0x97cb3127, 0xb7d9c2a5, 0x5f4a1c3b, 0x2c9277b5};
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys number of keys the cache holds, rows are at least this wide
+     */
+    public FrequencySketch(int expectedKeys){
+        int width = Integer.highestOneBit(Math.max(16, expectedKeys - 1) << 1);
+        this.table = new byte[DEPTH * width];
+        this.mask = width - 1;
+        this.sampleSize = SAMPLE_FACTOR * width;
+    }
+
+    private int index(int hash, int row){
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private static int spread(String key){
+        int h = key.hashCode() * 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    /**
+     * Record one occurrence of key.
+     */
+    public void increment(String key){
+        int hash = spread(key);
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++){
+            int i = index(hash, row);
+            if (table[i] < MAX_COUNT){
+                table[i]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize){
+            reset();
+        }
+    }
+
+    /**
+     * @return estimated number of recent occurrences of key
+     */
+    public int frequency(String key){
+        int hash = spread(key);
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++){
+            frequency = Math.min(frequency, table[index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset(){
+        for (int i = 0; i < table.length; i++){
+            table[i] = (byte) (table[i] >>> 1);
+        }
+        additions /= 2;
+    }
+
+    public void clear(){
+        Arrays.fill(table, (byte) 0);
+        additions = 0;
+    }
+}
@@ -0,0 +1,220 @@
+package shared.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded in-memory key value cache.
+ *
+ * <p>
+ * The cache is bounded by a number of entries, by the estimated heap bytes of
+ * its keys and values, or both. Subclasses only decide which entry to give up
+ * when the cache is full, the base class enforces the bounds and keeps the hit,
+ * miss and eviction counters. Under a byte bound the policy evicts as many
+ * entries as it takes to make room, and a value larger than the whole budget is
+ * not cached at all. All operations hold the cache monitor, which is only ever
+ * held for in-memory work.
+ * </p>
+ */
+public abstract class KVCache implements Cache {
+
+    /**
+     * Heap bytes of an entry besides its characters: two String objects, their
+     * char arrays and the map node holding them.
+     */
+    public static final int ENTRY_OVERHEAD = 96;
+
+    private final int capacity;
+    private final long maxBytes;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity maximum number of entries kept
+     */
+    protected KVCache(int capacity){
+        this(capacity, 0);
+    }
+
+    /**
+     * @param capacity maximum number of entries kept, 0 for no entry limit
+     * @param maxBytes maximum estimated heap bytes of cached entries, 0 for no byte limit
+     */
+    protected KVCache(int capacity, long maxBytes){
+        if (capacity < 0 || maxBytes < 0 || (capacity == 0 && maxBytes == 0)){
+            throw new IllegalArgumentException("Cache needs a positive entry or byte limit");
+        }
+        this.capacity = (capacity == 0) ? Integer.MAX_VALUE : capacity;
+        this.maxBytes = (maxBytes == 0) ? Long.MAX_VALUE : maxBytes;
+    }
+
+    /**
+     * Estimated heap bytes taken by an entry.
+     */
+    public static long weigh(String key, String value){
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+
+    /**
+     * @return cached value, null on a miss
+     */
+    public synchronized String get(String key){
+        String value = lookup(key);
+        if (value == null){
+            misses++;
+        }
+        else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Insert or update an entry, evicting others if the cache is full.
+     */
+    public synchronized void put(String key, String value){
+        long entryWeight = weigh(key, value);
+        if (entryWeight > maxBytes){
+            remove(key);
+            return;
+        }
+        String old = peek(key);
+        long oldWeight = (old == null) ? 0 : weigh(key, old);
+        while ((old == null && count() >= capacity) || weight - oldWeight + entryWeight > maxBytes){
+            Map.Entry<String, String> evicted = evict();
+            weight -= weigh(evicted.getKey(), evicted.getValue());
+            evictions++;
+            if (old != null && evicted.getKey().equals(key)){
+                // the old version itself made way, store the key as a new one
+                old = null;
+                oldWeight = 0;
+            }
+        }
+        store(key, value);
+        weight += entryWeight - oldWeight;
+    }
+
+    public synchronized void remove(String key){
+        String old = peek(key);
+        if (old != null){
+            invalidate(key);
+            weight -= weigh(key, old);
+        }
+    }
+
+    /**
+     * @return true if key is cached, without counting as an access
+     */
+    public synchronized boolean contains(String key){
+        return peek(key) != null;
+    }
+
+    public synchronized void clear(){
+        invalidateAll();
+        weight = 0;
+    }
+
+    public synchronized int size(){
+        return count();
+    }
+
+    public synchronized List<String> hottestKeys(int limit){
+        return hottest(Math.max(0, limit));
+    }
+
+    /**
+     * @return maximum number of entries, Integer.MAX_VALUE if only bytes are limited
+     */
+    public int getCapacity(){
+        return capacity;
+    }
+
+    /**
+     * @return maximum estimated heap bytes, Long.MAX_VALUE if only entries are limited
+     */
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    /**
+     * @return estimated heap bytes of the cached entries
+     */
+    public synchronized long getWeight(){
+        return weight;
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 before the first lookup
+     */
+    public synchronized double getHitRate(){
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return getClass().getSimpleName() + "(" + count() + " entries, " + weight + " bytes, " + hits + " hits, " +
+                misses + " misses, " + evictions + " evictions)";
+    }
+
+    /**
+     * @return up to limit elements of an ordered collection, last one first
+     */
+    protected static List<String> newestFirst(Collection<String> keys, int limit){
+        List<String> newest = new ArrayList<String>(keys);
+        Collections.reverse(newest);
+        return (newest.size() > limit) ? new ArrayList<String>(newest.subList(0, limit)) : newest;
+    }
+
+    /* Policy hooks, called with the monitor held */
+
+    /**
+     * Find a value and record the access.
+     */
+    protected abstract String lookup(String key);
+
+    /**
+     * Insert or update a value, room for it has been made beforehand.
+     */
+    protected abstract void store(String key, String value);
+
+    /**
+     * Drop the entry the policy considers least worth keeping.
+     *
+     * @return removed entry
+     */
+    protected abstract Map.Entry<String, String> evict();
+
+    /**
+     * Find a value without recording an access.
+     */
+    protected abstract String peek(String key);
+
+    protected abstract void invalidate(String key);
+
+    protected abstract void invalidateAll();
+
+    /**
+     * List up to limit keys in the reverse of the order they would be evicted in.
+     */
+    protected abstract List<String> hottest(int limit);
+
+    protected abstract int count();
+}
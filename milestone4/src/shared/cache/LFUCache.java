@@ -0,0 +1,158 @@
+package shared.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the entry with the fewest uses, the least recently used one among
+ * equally frequent entries. Entries are kept in one insertion ordered bucket
+ * per use count and the lowest non-empty count is tracked, so hits, inserts and
+ * evictions are O(1). Only an eviction right after a removal emptied the
+ * lowest bucket has to search for the next one.
+ */
+public class LFUCache extends KVCache {
+
+    private static final class Entry {
+        String value;
+        int frequency;
+
+        Entry(String value){
+            this.value = value;
+            this.frequency = 1;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<Integer, LinkedHashSet<String>> buckets = new HashMap<Integer, LinkedHashSet<String>>();
+    private int minFrequency;
+
+    public LFUCache(int capacity){
+        super(capacity);
+    }
+
+    /**
+     * @param capacity maximum number of entries, 0 for no entry limit
+     * @param maxBytes maximum estimated heap bytes, 0 for no byte limit
+     */
+    public LFUCache(int capacity, long maxBytes){
+        super(capacity, maxBytes);
+    }
+
+    private LinkedHashSet<String> bucket(int frequency){
+        LinkedHashSet<String> bucket = buckets.get(frequency);
+        if (bucket == null){
+            bucket = new LinkedHashSet<String>();
+            buckets.put(frequency, bucket);
+        }
+        return bucket;
+    }
+
+    private void unlink(String key, int frequency){
+        LinkedHashSet<String> bucket = buckets.get(frequency);
+        bucket.remove(key);
+        if (bucket.isEmpty()){
+            buckets.remove(frequency);
+        }
+    }
+
+    private void touch(String key, Entry entry){
+        unlink(key, entry.frequency);
+        if (entry.frequency == minFrequency && !buckets.containsKey(minFrequency)){
+            minFrequency++;
+        }
+        entry.frequency++;
+        bucket(entry.frequency).add(key);
+    }
+
+    @Override
+    protected String lookup(String key){
+        Entry entry = entries.get(key);
+        if (entry == null){
+            return null;
+        }
+        touch(key, entry);
+        return entry.value;
+    }
+
+    @Override
+    protected void store(String key, String value){
+        Entry entry = entries.get(key);
+        if (entry != null){
+            entry.value = value;
+            touch(key, entry);
+            return;
+        }
+        entries.put(key, new Entry(value));
+        bucket(1).add(key);
+        minFrequency = 1;
+    }
+
+    @Override
+    protected Map.Entry<String, String> evict(){
+        if (!buckets.containsKey(minFrequency)){
+            minFrequency = lowestFrequency();
+        }
+        String victim = buckets.get(minFrequency).iterator().next();
+        unlink(victim, minFrequency);
+        return new AbstractMap.SimpleImmutableEntry<String, String>(victim, entries.remove(victim).value);
+    }
+
+    private int lowestFrequency(){
+        int lowest = 0;
+        for (int frequency : buckets.keySet()){
+            if (lowest == 0 || frequency < lowest){
+                lowest = frequency;
+            }
+        }
+        return lowest;
+    }
+
+    @Override
+    protected void invalidate(String key){
+        Entry entry = entries.remove(key);
+        if (entry != null){
+            unlink(key, entry.frequency);
+        }
+    }
+
+    @Override
+    protected void invalidateAll(){
+        entries.clear();
+        buckets.clear();
+        minFrequency = 0;
+    }
+
+    @Override
+    protected String peek(String key){
+        Entry entry = entries.get(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    /**
+     * Most frequent keys first, the most recently used first among equally
+     * frequent ones.
+     */
+    @Override
+    protected List<String> hottest(int limit){
+        List<Integer> frequencies = new ArrayList<Integer>(buckets.keySet());
+        Collections.sort(frequencies, Collections.reverseOrder());
+        List<String> hottest = new ArrayList<String>();
+        for (int frequency : frequencies){
+            if (hottest.size() >= limit){
+                break;
+            }
+            hottest.addAll(newestFirst(buckets.get(frequency), limit - hottest.size()));
+        }
+        return hottest;
+    }
+
+    @Override
+    protected int count(){
+        return entries.size();
+    }
+}
@@ -0,0 +1,261 @@
+package shared.cache;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache keeping values as UTF-8 bytes in direct memory outside the Java heap.
+ *
+ * <p>
+ * Values live in chunks of a {@link SlabAllocator}, the heap only holds the
+ * keys and one long handle per entry, so large values cost the garbage
+ * collector nothing. Each size class evicts its own least recently used
+ * entries when it runs out of chunks. Memory is assigned to size classes as
+ * they first need it and is not moved between them afterwards.
+ * </p>
+ *
+ * <p>
+ * Readers can {@link #pin} a value and copy its bytes straight from direct
+ * memory, e.g. into a socket, without decoding it into a String. A pinned chunk
+ * is only reused after the reader released it, even if its entry was evicted
+ * or replaced meanwhile.
+ * </p>
+ */
+public class OffHeapCache implements Cache {
+
+    /**
+     * Pinned value, must be closed once its bytes have been consumed.
+     */
+    public final class ValueRef implements Closeable {
+        private final long handle;
+        private final ByteBuffer buffer;
+        private boolean released;
+
+        private ValueRef(long handle, ByteBuffer buffer){
+            this.handle = handle;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return read-only view of the UTF-8 value bytes
+         */
+        public ByteBuffer getBuffer(){
+            return buffer;
+        }
+
+        @Override
+        public void close(){
+            synchronized (OffHeapCache.this){
+                if (!released){
+                    released = true;
+                    unpin(handle);
+                }
+            }
+        }
+    }
+
+    private final SlabAllocator allocator;
+    private final Map<String, Long> index = new HashMap<String, Long>();
+    private final List<LinkedHashSet<String>> lru;                         // per size class, least recently used first
+    private final Map<Long, Integer> pins = new HashMap<Long, Integer>();   // handle -> number of readers
+    private final Set<Long> releasedWhilePinned = new HashSet<Long>();      // handles to free once unpinned
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes direct memory budget for values
+     */
+    public OffHeapCache(long maxBytes){
+        this.allocator = new SlabAllocator(maxBytes);
+        this.lru = new ArrayList<LinkedHashSet<String>>(SlabAllocator.getNumClasses());
+        for (int i = 0; i < SlabAllocator.getNumClasses(); i++){
+            lru.add(new LinkedHashSet<String>());
+        }
+    }
+
+    /**
+     * Find a handle and mark the entry as most recently used.
+     */
+    private Long touch(String key){
+        Long handle = index.get(key);
+        if (handle == null){
+            misses++;
+            return null;
+        }
+        hits++;
+        LinkedHashSet<String> classLru = lru.get(SlabAllocator.sizeClass(handle));
+        classLru.remove(key);
+        classLru.add(key);
+        return handle;
+    }
+
+    @Override
+    public synchronized String get(String key){
+        Long handle = touch(key);
+        return (handle == null) ? null : new String(allocator.read(handle), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Pin a cached value for reading its bytes outside the cache monitor.
+     *
+     * @return pinned value, null on a miss
+     */
+    public synchronized ValueRef pin(String key){
+        Long handle = touch(key);
+        if (handle == null){
+            return null;
+        }
+        Integer readers = pins.get(handle);
+        pins.put(handle, (readers == null) ? 1 : readers + 1);
+        return new ValueRef(handle, allocator.slice(handle).asReadOnlyBuffer());
+    }
+
+    private void unpin(long handle){
+        int readers = pins.get(handle) - 1;
+        if (readers > 0){
+            pins.put(handle, readers);
+            return;
+        }
+        pins.remove(handle);
+        if (releasedWhilePinned.remove(handle)){
+            allocator.free(handle);
+        }
+    }
+
+    private void release(long handle){
+        if (pins.containsKey(handle)){
+            releasedWhilePinned.add(handle);
+        }
+        else {
+            allocator.free(handle);
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, String value){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        remove(key);
+        int sizeClass = SlabAllocator.classOf(bytes.length);
+        if (sizeClass < 0){
+            return;
+        }
+        long handle = allocator.allocate(bytes.length);
+        Iterator<String> victims = lru.get(sizeClass).iterator();
+        while (handle == -1 && victims.hasNext()){
+            String victim = victims.next();
+            victims.remove();
+            release(index.remove(victim));
+            evictions++;
+            handle = allocator.allocate(bytes.length);
+        }
+        if (handle == -1){
+            // the class owns no memory and the budget went to other classes
+            return;
+        }
+        allocator.write(handle, bytes);
+        index.put(key, handle);
+        lru.get(sizeClass).add(key);
+    }
+
+    @Override
+    public synchronized void remove(String key){
+        Long handle = index.remove(key);
+        if (handle != null){
+            lru.get(SlabAllocator.sizeClass(handle)).remove(key);
+            release(handle);
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String key){
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized void clear(){
+        for (Long handle : index.values()){
+            release(handle);
+        }
+        index.clear();
+        for (LinkedHashSet<String> classLru : lru){
+            classLru.clear();
+        }
+    }
+
+    /**
+     * Most recently used keys first, taken from all size classes in turn.
+     */
+    @Override
+    public synchronized List<String> hottestKeys(int limit){
+        List<Iterator<String>> classes = new ArrayList<Iterator<String>>();
+        for (LinkedHashSet<String> classLru : lru){
+            if (!classLru.isEmpty()){
+                classes.add(KVCache.newestFirst(classLru, limit).iterator());
+            }
+        }
+        List<String> hottest = new ArrayList<String>();
+        while (hottest.size() < limit && !classes.isEmpty()){
+            Iterator<Iterator<String>> it = classes.iterator();
+            while (it.hasNext() && hottest.size() < limit){
+                Iterator<String> classKeys = it.next();
+                if (classKeys.hasNext()){
+                    hottest.add(classKeys.next());
+                }
+                else {
+                    it.remove();
+                }
+            }
+        }
+        return hottest;
+    }
+
+    @Override
+    public synchronized int size(){
+        return index.size();
+    }
+
+    @Override
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    @Override
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    @Override
+    public synchronized double getHitRate(){
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return direct memory taken for slabs so far
+     */
+    public synchronized long getAllocatedBytes(){
+        return allocator.getAllocatedBytes();
+    }
+
+    @Override
+    public synchronized String toString(){
+        return getClass().getSimpleName() + "(" + index.size() + " entries, " + allocator.getAllocatedBytes() + "/" +
+                allocator.getMaxBytes() + " off-heap bytes, " + hits + " hits, " + misses + " misses, " +
+                evictions + " evictions)";
+    }
+}
@@ -0,0 +1,171 @@
+package shared.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Slab allocator over direct byte buffers.
+ *
+ * <p>
+ * Memory is taken from the operating system in <code>SLAB_SIZE</code> direct
+ * buffers, up to a fixed budget, and each slab is cut into equally sized
+ * chunks of one size class. Size classes double from <code>MIN_CHUNK</code>
+ * bytes, so a value wastes less than half of its chunk, and freed chunks are
+ * reused by the same class without ever returning memory or fragmenting it.
+ * Once the budget is used up a class can only reuse its own chunks, the owner
+ * has to free one of them to make room.
+ * </p>
+ *
+ * <p>
+ * An allocation is identified by a handle packing slab index (16 bits), chunk
+ * index (16 bits), size class (8 bits) and length (24 bits). The allocator is
+ * not thread-safe, its owner serializes access.
+ * </p>
+ */
+public class SlabAllocator {
+
+    public static final int SLAB_SIZE = 1024 * 1024;
+    public static final int MIN_CHUNK = 64;
+    public static final int MAX_CHUNK = 128 * 1024;        // fits the largest value of a KVMessage
+    private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_CHUNK / MIN_CHUNK) + 1;
+    private static final int MAX_SLABS = 1 << 16;
+
+    private final long maxBytes;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final int[][] freeChunks = new int[NUM_CLASSES][];     // per class stack of free chunk ids (slab << 16 | chunk)
+    private final int[] freeCount = new int[NUM_CLASSES];
+    private final int[] slabCount = new int[NUM_CLASSES];
+
+    /**
+     * @param maxBytes direct memory budget, rounded down to whole slabs
+     */
+    public SlabAllocator(long maxBytes){
+        if (maxBytes < SLAB_SIZE){
+            throw new IllegalArgumentException("Off-heap budget must be at least one slab of " + SLAB_SIZE + " bytes");
+        }
+        this.maxBytes = Math.min(maxBytes, (long) MAX_SLABS * SLAB_SIZE);
+        for (int i = 0; i < NUM_CLASSES; i++){
+            freeChunks[i] = new int[16];
+        }
+    }
+
+    /**
+     * @return size class for a length, -1 if it is larger than the largest chunk
+     */
+    public static int classOf(int length){
+        if (length > MAX_CHUNK){
+            return -1;
+        }
+        int chunks = (Math.max(length, 1) + MIN_CHUNK - 1) / MIN_CHUNK;
+        return 32 - Integer.numberOfLeadingZeros(chunks - 1);
+    }
+
+    public static int chunkSize(int sizeClass){
+        return MIN_CHUNK << sizeClass;
+    }
+
+    public static int sizeClass(long handle){
+        return (int) (handle >>> 24) & 0xff;
+    }
+
+    public static int length(long handle){
+        return (int) handle & 0xffffff;
+    }
+
+    private static int slab(long handle){
+        return (int) (handle >>> 48);
+    }
+
+    private static int chunk(long handle){
+        return (int) (handle >>> 32) & 0xffff;
+    }
+
+    /**
+     * Allocate a chunk for length bytes.
+     *
+     * @return handle, -1 if the class has no free chunk and the budget is used up
+     */
+    public long allocate(int length){
+        int sizeClass = classOf(length);
+        if (sizeClass < 0){
+            return -1;
+        }
+        if (freeCount[sizeClass] == 0 && !addSlab(sizeClass)){
+            return -1;
+        }
+        int id = freeChunks[sizeClass][--freeCount[sizeClass]];
+        return ((long) (id >>> 16) << 48) | ((long) (id & 0xffff) << 32) | ((long) sizeClass << 24) | length;
+    }
+
+    private boolean addSlab(int sizeClass){
+        if ((long) (slabs.size() + 1) * SLAB_SIZE > maxBytes){
+            return false;
+        }
+        int slab = slabs.size();
+        slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        slabCount[sizeClass]++;
+        int chunks = SLAB_SIZE / chunkSize(sizeClass);
+        for (int chunk = chunks - 1; chunk >= 0; chunk--){
+            pushFree(sizeClass, (slab << 16) | chunk);
+        }
+        return true;
+    }
+
+    private void pushFree(int sizeClass, int id){
+        if (freeCount[sizeClass] == freeChunks[sizeClass].length){
+            int[] grown = new int[freeChunks[sizeClass].length * 2];
+            System.arraycopy(freeChunks[sizeClass], 0, grown, 0, freeCount[sizeClass]);
+            freeChunks[sizeClass] = grown;
+        }
+        freeChunks[sizeClass][freeCount[sizeClass]++] = id;
+    }
+
+    public void free(long handle){
+        pushFree(sizeClass(handle), (slab(handle) << 16) | chunk(handle));
+    }
+
+    /**
+     * @return buffer positioned on the bytes of the allocation, sharing its memory
+     */
+    public ByteBuffer slice(long handle){
+        ByteBuffer buffer = slabs.get(slab(handle)).duplicate();
+        int offset = chunk(handle) * chunkSize(sizeClass(handle));
+        buffer.limit(offset + length(handle));
+        buffer.position(offset);
+        return buffer.slice();
+    }
+
+    public void write(long handle, byte[] bytes){
+        ByteBuffer buffer = slice(handle);
+        buffer.put(bytes, 0, length(handle));
+    }
+
+    public byte[] read(long handle){
+        byte[] bytes = new byte[length(handle)];
+        slice(handle).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return direct memory taken from the operating system so far
+     */
+    public long getAllocatedBytes(){
+        return (long) slabs.size() * SLAB_SIZE;
+    }
+
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    /**
+     * @return number of slabs owned by a size class
+     */
+    public int getSlabCount(int sizeClass){
+        return slabCount[sizeClass];
+    }
+
+    public static int getNumClasses(){
+        return NUM_CLASSES;
+    }
+}
@@ -0,0 +1,249 @@
+package shared.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window TinyLFU cache.
+ *
+ * <p>
+ * New entries go into a small LRU window (<code>WINDOW_PERCENT</code> of the
+ * capacity). An entry falling out of the window only makes it into the main
+ * space if a {@link FrequencySketch} of recent accesses rates it more popular
+ * than the entry the main space would evict for it, so one-off reads such as
+ * a full range scan pass through the window without flushing popular keys.
+ * The main space is a segmented LRU: entries enter a probation segment and are
+ * promoted into a protected segment (<code>PROTECTED_PERCENT</code> of the main
+ * space) when they are hit again.
+ * </p>
+ *
+ * <p>
+ * Segments are sized in estimated heap bytes when the cache has a byte limit,
+ * in entries otherwise.
+ * </p>
+ */
+public class TinyLFUCache extends KVCache {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int SKETCH_BYTES_PER_KEY = 1024;      // assumed entry size when sizing the sketch for a byte limit
+    private static final int MAX_SKETCH_KEYS = 1 << 24;
+
+    /**
+     * LRU ordered part of the cache, most recently used last.
+     */
+    private final class Segment {
+        private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        private final long limit;
+        private long size;
+
+        Segment(long limit){
+            this.limit = limit;
+        }
+
+        String get(String key){
+            return entries.get(key);
+        }
+
+        /**
+         * Insert or update an entry as the most recently used one.
+         */
+        void put(String key, String value){
+            remove(key);
+            entries.put(key, value);
+            size += unit(key, value);
+        }
+
+        String remove(String key){
+            String value = entries.remove(key);
+            if (value != null){
+                size -= unit(key, value);
+            }
+            return value;
+        }
+
+        String eldest(){
+            Iterator<String> keys = entries.keySet().iterator();
+            return keys.hasNext() ? keys.next() : null;
+        }
+
+        boolean overflows(){
+            return size > limit && !entries.isEmpty();
+        }
+
+        void clear(){
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private final boolean weighted;
+    private final Segment window;
+    private final Segment probation;
+    private final Segment protectedSegment;
+    private final FrequencySketch sketch;
+
+    public TinyLFUCache(int capacity){
+        this(capacity, 0);
+    }
+
+    /**
+     * @param capacity maximum number of entries, 0 for no entry limit
+     * @param maxBytes maximum estimated heap bytes, 0 for no byte limit
+     */
+    public TinyLFUCache(int capacity, long maxBytes){
+        super(capacity, maxBytes);
+        this.weighted = maxBytes > 0;
+        long total = weighted ? maxBytes : capacity;
+        long windowLimit = Math.max(1, total * WINDOW_PERCENT / 100);
+        this.window = new Segment(windowLimit);
+        this.probation = new Segment(Long.MAX_VALUE);
+        this.protectedSegment = new Segment((total - windowLimit) * PROTECTED_PERCENT / 100);
+        long expectedKeys = weighted ? maxBytes / SKETCH_BYTES_PER_KEY : capacity;
+        this.sketch = new FrequencySketch((int) Math.min(MAX_SKETCH_KEYS, expectedKeys));
+    }
+
+    private long unit(String key, String value){
+        return weighted ? weigh(key, value) : 1;
+    }
+
+    /**
+     * Move a probation entry into the protected segment, demoting the least
+     * recently used protected entries back to probation if it is full.
+     */
+    private void promote(String key, String value){
+        probation.remove(key);
+        protectedSegment.put(key, value);
+        while (protectedSegment.overflows()){
+            String demoted = protectedSegment.eldest();
+            probation.put(demoted, protectedSegment.remove(demoted));
+        }
+    }
+
+    @Override
+    protected String lookup(String key){
+        sketch.increment(key);
+        String value = window.get(key);
+        if (value != null){
+            window.put(key, value);
+            return value;
+        }
+        value = protectedSegment.get(key);
+        if (value != null){
+            protectedSegment.put(key, value);
+            return value;
+        }
+        value = probation.get(key);
+        if (value != null){
+            promote(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    protected void store(String key, String value){
+        sketch.increment(key);
+        if (window.get(key) != null){
+            window.put(key, value);
+        }
+        else if (protectedSegment.get(key) != null){
+            protectedSegment.put(key, value);
+        }
+        else if (probation.get(key) != null){
+            promote(key, value);
+        }
+        else {
+            window.put(key, value);
+            // until the cache is full the window overflows into the main space unfiltered
+            while (window.overflows() && window.entries.size() > 1){
+                String overflow = window.eldest();
+                probation.put(overflow, window.remove(overflow));
+            }
+        }
+    }
+
+    /**
+     * Called when the cache is full before a new key enters the window. While
+     * the window has room the main space gives up its victim; otherwise the
+     * window's eldest entry and the main space's victim compete and the less
+     * frequent one is dropped.
+     */
+    @Override
+    protected Map.Entry<String, String> evict(){
+        String victim = probation.eldest();
+        Segment victimSegment = probation;
+        if (victim == null){
+            victim = protectedSegment.eldest();
+            victimSegment = protectedSegment;
+        }
+        if (victim != null && (window.size < window.limit || window.eldest() == null)){
+            return entry(victim, victimSegment.remove(victim));
+        }
+        String candidate = window.eldest();
+        String candidateValue = window.remove(candidate);
+        if (victim != null && sketch.frequency(candidate) > sketch.frequency(victim)){
+            probation.put(candidate, candidateValue);
+            return entry(victim, victimSegment.remove(victim));
+        }
+        return entry(candidate, candidateValue);
+    }
+
+    private static Map.Entry<String, String> entry(String key, String value){
+        return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+    }
+
+    @Override
+    protected void invalidate(String key){
+        if (window.remove(key) == null && probation.remove(key) == null){
+            protectedSegment.remove(key);
+        }
+    }
+
+    @Override
+    protected void invalidateAll(){
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+    }
+
+    @Override
+    protected String peek(String key){
+        String value = window.get(key);
+        if (value == null){
+            value = protectedSegment.get(key);
+        }
+        if (value == null){
+            value = probation.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Protected keys first, then the window and the probation segment, each
+     * most recently used first.
+     */
+    @Override
+    protected List<String> hottest(int limit){
+        List<String> hottest = new ArrayList<String>();
+        for (Segment segment : new Segment[]{protectedSegment, window, probation}){
+            hottest.addAll(newestFirst(segment.entries.keySet(), limit - hottest.size()));
+        }
+        return hottest;
+    }
+
+    @Override
+    protected int count(){
+        return window.entries.size() + probation.entries.size() + protectedSegment.entries.size();
+    }
+
+    @Override
+    public synchronized String toString(){
+        return super.toString() + " window=" + window.entries.size() + " probation=" + probation.entries.size() +
+                " protected=" + protectedSegment.entries.size();
+    }
+}
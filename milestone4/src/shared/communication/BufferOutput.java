@@ -0,0 +1,19 @@
+package shared.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Output of a connection backed by a channel, which can send a message
+ * straight from buffers, e.g. a value in direct memory, without copying it
+ * into a byte array first.
+ */
+interface BufferOutput {
+
+    /**
+     * Send one message made of the remaining bytes of the given buffers.
+     * Bytes the channel does not take right away are copied, so the buffers
+     * may be reused once this returns.
+     */
+    void write(ByteBuffer[] message) throws IOException;
+}
@@ -0,0 +1,328 @@
+package shared.communication;
+
+import shared.messages.KVMessage;
+import shared.messages.KVMessageClass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads KVMessage frames from a connection's input stream, text frames of
+ * three elements each ended by <code>D\n</code> as well as length-prefixed
+ * binary frames (see {@link KVMessage}). The format is told apart by the first
+ * byte of every frame, so a connection switching to the binary protocol can
+ * still read text frames sent before the switch.
+ *
+ * <p>
+ * Bytes are read in blocks into one buffer per connection, which is reused
+ * for every message and only grows for large values, so a 120 KB PUT takes a
+ * handful of reads instead of one per byte. Frames are parsed in place: the
+ * elements are decoded straight from the buffer, and bytes of the next frame
+ * read along with the current one stay buffered for it. Decoding is the one
+ * copy left per element. Messages cannot keep views of the buffer instead,
+ * since the next frame overwrites it while the front ends may still queue
+ * earlier messages, and the storage takes keys and values as Strings. A read interrupted by
+ * a socket timeout keeps its bytes, and the next call continues the frame.
+ * The same holds for a non-blocking channel, for which {@link #read} returns
+ * null once the bytes available are used up; {@link #isEnded} tells that
+ * apart from the end of the stream.
+ * </p>
+ *
+ * <p>
+ * A frame longer than <code>MAX_FRAME_SIZE</code> is not buffered. Its bytes
+ * are dropped while looking for its end, and {@link #read} then fails for it,
+ * so the following frames are still read correctly.
+ * </p>
+ */
+public class FrameReader {
+
+    public static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    public static final int MAX_FRAME_SIZE = 256 * 1024;    // well above a 120 KB value
+    private static final int ELEMENTS = 3;
+    private static final byte DELIMITER_FIRST = 'D';
+    private static final byte DELIMITER_SECOND = '\n';
+    private static final int MAX_VARINT_BYTES = 10;
+    private static final int NONE = 0;                  // kinds of the current frame
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+
+    private final InputStream input;                    // either input or channel is set
+    private final ReadableByteChannel channel;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int start;                                  // first byte of the current frame
+    private int end;                                    // end of buffered bytes
+    private int scan;                                   // next byte to check for a delimiter
+    private final int[] delimiters = new int[ELEMENTS]; // positions of the delimiters found
+    private int found;
+    private boolean oversized;                          // bytes of the current frame were dropped
+    private long keyLength;                             // header fields of the current binary frame
+    private long valueLength;
+    private long ttl;
+    private int requestId;
+    private int kind = NONE;
+    private long pendingSkip;                           // bytes of an oversized binary frame still to drop
+    private boolean ended;
+
+    public FrameReader(InputStream input){
+        this.input = input;
+        this.channel = null;
+    }
+
+    /**
+     * @param channel channel in blocking or non-blocking mode
+     */
+    public FrameReader(ReadableByteChannel channel){
+        this.input = null;
+        this.channel = channel;
+    }
+
+    /**
+     * @return true once the stream has ended
+     */
+    public boolean isEnded(){
+        return ended;
+    }
+
+    /**
+     * Read the next frame.
+     *
+     * @return message, null if the stream ended or, for a non-blocking
+     *           channel, no complete frame is available yet
+     * @throws IOException on input stream errors
+     * @throws Exception if the frame is too large or its elements are invalid,
+     *           the frame is consumed either way
+     */
+    public KVMessage read() throws IOException, Exception {
+        if (pendingSkip > 0 && !skip()){
+            return null;
+        }
+        if (kind == NONE){
+            if (start == end && !fill()){
+                return null;
+            }
+            kind = ((buffer[start] & KVMessageClass.BINARY_FLAG) != 0) ? BINARY : TEXT;
+            scan = start;
+            found = 0;
+            oversized = false;
+        }
+        return (kind == BINARY) ? readBinary() : readText();
+    }
+
+    /**
+     * Finish the current frame, which ends before the given position.
+     */
+    private void consume(int frameEnd){
+        start = frameEnd;
+        kind = NONE;
+        if (start == end){
+            start = 0;
+            end = 0;
+        }
+    }
+
+    private int readSome(int offset, int length) throws IOException {
+        int read = (input != null) ? input.read(buffer, offset, length)
+                : channel.read(ByteBuffer.wrap(buffer, offset, length));
+        if (read == -1){
+            ended = true;
+        }
+        return read;
+    }
+
+    private KVMessage readText() throws IOException, Exception {
+        while (true){
+            while (found < ELEMENTS && scan + 1 < end){
+                if (buffer[scan] == DELIMITER_FIRST && buffer[scan + 1] == DELIMITER_SECOND){
+                    delimiters[found++] = scan;
+                    scan += 2;
+                }
+                else {
+                    scan++;
+                }
+            }
+            if (found == ELEMENTS){
+                break;
+            }
+            if (!fill()){
+                return null;
+            }
+        }
+
+        int frameEnd = delimiters[ELEMENTS - 1] + 2;
+        try {
+            if (oversized){
+                throw new Exception("Message exceeds maximum size of " + MAX_FRAME_SIZE + " bytes.");
+            }
+            String status = decode(start, delimiters[0]);
+            String key = decode(delimiters[0] + 2, delimiters[1]);
+            String value = decode(delimiters[1] + 2, delimiters[2]);
+            return KVMessageClass.fromElements(status, key, value);
+        } finally {
+            consume(frameEnd);
+        }
+    }
+
+    private KVMessage readBinary() throws IOException, Exception {
+        int headerLength;
+        while ((headerLength = parseHeader()) == 0){
+            if (!fill()){
+                return null;
+            }
+        }
+        long frameLength = headerLength + keyLength + valueLength;
+        if (frameLength > MAX_FRAME_SIZE){
+            // dropped by the next read, without buffering it
+            pendingSkip = frameLength - (end - start);
+            start = 0;
+            end = 0;
+            kind = NONE;
+            throw new Exception("Message exceeds maximum size of " + MAX_FRAME_SIZE + " bytes.");
+        }
+        int length = (int) frameLength;
+        if (start + length > buffer.length){
+            shift(start);
+            if (length > buffer.length){
+                byte[] grown = new byte[Math.min(Math.max(buffer.length * 2, length), MAX_FRAME_SIZE)];
+                System.arraycopy(buffer, 0, grown, 0, end);
+                buffer = grown;
+            }
+        }
+        while (end - start < length){
+            int read = readSome(end, buffer.length - end);
+            if (read <= 0){
+                return null;
+            }
+            end += read;
+        }
+
+        try {
+            int keyStart = start + headerLength;
+            int valueStart = keyStart + (int) keyLength;
+            return KVMessageClass.fromBinary(buffer[start] & KVMessageClass.OPCODE_MASK, requestId,
+                    decode(keyStart, valueStart), decode(valueStart, start + length), ttl);
+        } finally {
+            consume(start + length);
+        }
+    }
+
+    /**
+     * Parse the header of the binary frame at <code>start</code>.
+     *
+     * @return header length, 0 if not all of it is buffered yet
+     * @throws IOException if the header is malformed, the stream cannot be
+     *           read any further
+     */
+    private int parseHeader() throws IOException {
+        int position = start + 1;
+        boolean hasRequestId = (buffer[start] & KVMessageClass.REQUEST_ID_FLAG) != 0;
+        boolean hasTtl = (buffer[start] & KVMessageClass.OPCODE_MASK) == KVMessage.StatusType.PUT_TTL.ordinal();
+        long[] fields = new long[(hasRequestId ? 1 : 0) + (hasTtl ? 3 : 2)];
+        for (int i = 0; i < fields.length; i++){
+            long number = 0;
+            int shift = 0;
+            while (true){
+                if (position == end){
+                    return 0;
+                }
+                if (shift >= 7 * MAX_VARINT_BYTES){
+                    throw new IOException("Malformed binary message header.");
+                }
+                byte b = buffer[position++];
+                number |= (long) (b & 0x7F) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0){
+                    break;
+                }
+            }
+            if (number < 0){
+                throw new IOException("Malformed binary message header.");
+            }
+            fields[i] = number;
+        }
+        int field = 0;
+        if (hasRequestId){
+            if (fields[field] > Integer.MAX_VALUE){
+                throw new IOException("Malformed binary message header.");
+            }
+            requestId = (int) fields[field++];
+        }
+        else {
+            requestId = 0;
+        }
+        keyLength = fields[field++];
+        valueLength = fields[field++];
+        ttl = hasTtl ? fields[field] : 0;
+        return position - start;
+    }
+
+    /**
+     * Drop the remaining bytes of an oversized binary frame.
+     *
+     * @return false if not all of them could be read yet
+     */
+    private boolean skip() throws IOException {
+        while (pendingSkip > 0){
+            int read = readSome(0, (int) Math.min(pendingSkip, buffer.length));
+            if (read <= 0){
+                return false;
+            }
+            pendingSkip -= read;
+        }
+        return true;
+    }
+
+    private String decode(int from, int to){
+        if (from == to){
+            // e.g. the value of every GET
+            return "";
+        }
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read more bytes, making room first by moving the current frame to the
+     * front, growing the buffer, or dropping the checked bytes of an oversized
+     * frame.
+     *
+     * @return false if the stream ended
+     */
+    private boolean fill() throws IOException {
+        if (end == buffer.length){
+            if (start > 0){
+                shift(start);
+            }
+            else if (buffer.length < MAX_FRAME_SIZE){
+                byte[] grown = new byte[Math.min(buffer.length * 2, MAX_FRAME_SIZE)];
+                System.arraycopy(buffer, 0, grown, 0, end);
+                buffer = grown;
+            }
+            else {
+                // keep only the byte that may start a delimiter
+                oversized = true;
+                shift(scan);
+            }
+        }
+        int read = readSome(end, buffer.length - end);
+        if (read <= 0){
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * Move the buffered bytes from the given position to the front.
+     */
+    private void shift(int from){
+        System.arraycopy(buffer, from, buffer, 0, end - from);
+        end -= from;
+        scan -= from;
+        start = Math.max(start - from, 0);
+        for (int i = 0; i < found; i++){
+            delimiters[i] -= from;
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 /**
  * This class represents communication between server and client.
@@ -20,7 +21,6 @@ import java.net.Socket;
 public class KVCommunicationClient implements IKVCommunication, Runnable {
     
     private static Logger logger = Logger.getRootLogger();
-    private static final int BUFFER_SIZE = 1024;
     private static final String PROMPT = "Client> ";
 
     private KVStore kvStore;
@@ -31,6 +31,8 @@ public class KVCommunicationClient implements IKVCommunication, Runnable {
 
     private InputStream input;
     private OutputStream output;
+    private FrameReader frameReader;
+    private volatile int protocol = KVMessageClass.PROTOCOL_TEXT;   // format of sent messages
 
     public KVCommunicationClient(Socket clientSocket, KVStore kvStore) {
         this.kvStore = kvStore;
@@ -39,6 +41,7 @@ public class KVCommunicationClient implements IKVCommunication, Runnable {
         try {
             this.input = clientSocket.getInputStream();
             this.output = clientSocket.getOutputStream();
+            this.frameReader = new FrameReader(input);
             logger.info("Opening connection.");
         }
         catch (IOException e) {
@@ -51,85 +54,79 @@ public class KVCommunicationClient implements IKVCommunication, Runnable {
     }
 
     public void send(KVMessage message) throws IOException {
-        if (message.getStatus() == KVMessage.StatusType.PUT || message.getStatus() == KVMessage.StatusType.GET){
+        send(message, 0);
+    }
+
+    /**
+     * Send a message, as a pipelined request if it has a request ID. Only
+     * requests without one are resent after a SERVER_NOT_RESPONSIBLE answer or
+     * a reconnect. Pipelined requests may be sent from several threads, so
+     * writes are serialized on the output stream.
+     *
+     * @param requestId request ID, 0 if none; needs the pipelined protocol
+     */
+    public void send(KVMessage message, int requestId) throws IOException {
+        if (requestId == 0 && (message.getStatus() == KVMessage.StatusType.PUT
+                || message.getStatus() == KVMessage.StatusType.PUT_TTL || message.getStatus() == KVMessage.StatusType.GET)){
             lastSentMessage = message;
         }
-        byte[] messageBytes = message.getMessageBytes();
-		output.write(messageBytes, 0, messageBytes.length);
-		output.flush();
-        logger.debug("SEND <" + clientSocket.getInetAddress().getHostAddress() + ":" 
-				+ clientSocket.getPort() + ">: '" + message.getMessage() +"'");
+        byte[] messageBytes = (protocol >= KVMessageClass.PROTOCOL_BINARY)
+                ? message.getBinaryMessageBytes(requestId) : message.getMessageBytes();
+        synchronized (output){
+            output.write(messageBytes, 0, messageBytes.length);
+            output.flush();
+        }
+        if (logger.isDebugEnabled()){
+            logger.debug("SEND <" + clientSocket.getInetAddress().getHostAddress() + ":"
+                    + clientSocket.getPort() + ">: '" + message.getMessage() + "'");
+        }
     }
 
-    public KVMessage receive() throws IOException, Exception {
-
-        int index = 0;
-        byte[] msgBytes = null;
-        byte[] tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
-        
-		/* read first char from stream */
-        byte read = 0;  // read from input stream
-        byte prev = 0;  // prev of read
-        byte copy = 0;  // copy of read
-        boolean reading = true;
-        int numDeliminator = 0;
-        while (reading && numDeliminator != 3) {
-
-            /* read next char from stream */
-            prev = copy;
-            read = (byte) input.read();
-            copy = read;
-
-            // "D" = 68, "\n" = 10
-            if (prev == 68 && copy == 10){
-                numDeliminator ++;
-            }
+    /**
+     * Ask the server for a protocol version before the receiving thread is
+     * started. Servers that do not know the PROTOCOL message never answer, so
+     * the connection stays on the text protocol if no answer arrives in time.
+     * Messages received before the answer are dropped.
+     * 
+     * @param version highest protocol version wanted
+     * @param timeout ms to wait for the answer
+     * @return agreed protocol version
+     */
+    public int negotiate(int version, int timeout) throws IOException, Exception {
+        send(new KVMessageClass(StatusType.PROTOCOL, "", String.valueOf(version)));
+        clientSocket.setSoTimeout(timeout);
+        try {
+            KVMessage answer;
+            do {
+                answer = receive();
+                if (answer.getStatus() == StatusType.DISCONNECT){
+                    throw new IOException("Connection closed during protocol negotiation");
+                }
+            } while (answer.getStatus() != StatusType.PROTOCOL);
+            protocol = Integer.parseInt(answer.getValue());
+        }
+        catch (SocketTimeoutException e){
+            logger.info("No answer to protocol negotiation, using text protocol.");
+        }
+        finally {
+            clientSocket.setSoTimeout(0);
+        }
+        return protocol;
+    }
 
-            if (read == -1){
-                return new KVMessageClass(StatusType.DISCONNECT, "", "");
-            }
-            
-            /* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if (msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } 
-                else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
-				}
-
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			} 
-			
-			/* only read valid characters, i.e. letters and constants */
-			bufferBytes[index] = read;
-			index++;
-		}
-        
-        if (msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } 
-        else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-		}
-		
-		msgBytes = tmp;
-        
-		/* build final String */
-		KVMessage msg = new KVMessageClass(msgBytes);
-		logger.debug("RECEIVE <" + clientSocket.getInetAddress().getHostAddress() + ":" 
-				+ clientSocket.getPort() + ">: '" + msg.getMessage().trim() + "'");
+    public int getProtocol(){
+        return protocol;
+    }
 
+    public KVMessage receive() throws IOException, Exception {
+        KVMessage msg = frameReader.read();
+        if (msg == null){
+            return new KVMessageClass(StatusType.DISCONNECT, "", "");
+        }
+        if (logger.isDebugEnabled()){
+            logger.debug("RECEIVE <" + clientSocket.getInetAddress().getHostAddress() + ":"
+                    + clientSocket.getPort() + ">: '" + msg.getMessage().trim() + "'");
+        }
         return msg;
     }
 
@@ -158,7 +155,14 @@ public class KVCommunicationClient implements IKVCommunication, Runnable {
             try {
                 // receive and update variables
                 KVMessage recvMsg = receive();
-                kvStore.recvMessage = recvMsg;
+                // responses to pipelined requests go to the caller waiting for them
+                if (recvMsg.getRequestId() != 0){
+                    kvStore.completePipelined(recvMsg);
+                    continue;
+                }
+                // subscription updates arrive at any time and must not replace a pending response
+                if (recvMsg.getStatus() != KVMessage.StatusType.SUBSCRITION_UPDATE)
+                    kvStore.recvMessage = recvMsg;
                 // do not update flag if message is invisible to user
                 if (recvMsg.getStatus() != KVMessage.StatusType.SERVER_NOT_RESPONSIBLE && recvMsg.getStatus() != KVMessage.StatusType.SUBSCRITION_UPDATE)
                     kvStore.newMessage = true;
@@ -199,6 +203,7 @@ public class KVCommunicationClient implements IKVCommunication, Runnable {
                         break;
                     case DISCONNECT:
                         open = false;
+                        kvStore.failPipelined(new IOException("Connection to server lost."));
                         kvStore.reconnectAndReceive(lastSentMessage, 0);
                         System.out.print(PROMPT);
                         return;
@@ -217,6 +222,7 @@ public class KVCommunicationClient implements IKVCommunication, Runnable {
                         kvStore.sendKVmessage(lastSentMessage, lastSentMessage.getKey());
                         break;
                     case SUBSCRITION_UPDATE:
+                        kvStore.applySubscriptionUpdate(recvMsg.getKey(), recvMsg.getValue());
                         if (kvStore.subscribed(recvMsg.getKey())){
                             System.out.println();
                             if (recvMsg.getValue().equals(""))
@@ -9,6 +9,7 @@ import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
 import shared.messages.KVMessageClass;
 import shared.messages.Metadata;
+import shared.cache.OffHeapCache;
 
 import java.io.IOException;
 import java.util.Iterator;
@@ -16,6 +17,7 @@ import java.util.Map;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.net.Socket;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -28,25 +30,30 @@ import java.security.NoSuchAlgorithmException;
 public class KVCommunicationServer implements IKVCommunication, Runnable {
     
     private static Logger logger = Logger.getRootLogger();
-    private static final int BUFFER_SIZE = 1024;
+    private static final int SEND_CHUNK_SIZE = 8 * 1024;
 
-    private Socket clientSocket;
+    private Socket clientSocket;        // null for connections of a ServerFrontEnd
+    private String peer;                // address:port of the client, for logging
     private KVServer kvServer;
     private boolean open;
 
     private InputStream input;
     private OutputStream output;
+    private FrameReader frameReader;
+    private volatile int protocol = KVMessageClass.PROTOCOL_TEXT;   // format of sent messages, changed under the output lock
 
     private boolean subscriptionUpdateOwner;
 
     public KVCommunicationServer(Socket clientSocket, KVServer server) {
         this.clientSocket = clientSocket;
+        this.peer = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
         this.kvServer = server;
         this.open = true;
         this.subscriptionUpdateOwner = false;
         try {
             this.input = clientSocket.getInputStream();
             this.output = clientSocket.getOutputStream();
+            this.frameReader = new FrameReader(input);
             logger.info("Opening connection.");
         }
         catch (IOException e) {
@@ -54,88 +61,150 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
         }
     }
     
+    /**
+     * Construct a connection whose messages are received by a {@link ServerFrontEnd}
+     * and passed to {@link #handle}.
+     *
+     * @param output stream sent messages are written to, each flush() ends a
+     *           message and close() closes the connection
+     * @param peer address:port of the client, for logging
+     */
+    public KVCommunicationServer(KVServer server, OutputStream output, String peer) {
+        this.peer = peer;
+        this.kvServer = server;
+        this.open = true;
+        this.subscriptionUpdateOwner = false;
+        this.output = output;
+        logger.info("Opening connection.");
+    }
+
     public boolean isOpen() {
         return this.open;
     }
 
+    /**
+     * Send a message to the client in the negotiated protocol. Subscription
+     * updates are sent from other connections' threads, so writes are
+     * serialized on the output stream.
+     */
     public void send(KVMessage message) throws IOException {
-        byte[] messageBytes = message.getMessageBytes();
-		output.write(messageBytes, 0, messageBytes.length);
-		output.flush();
-		logger.debug("SEND <" + clientSocket.getInetAddress().getHostAddress() + ":" 
-				+ clientSocket.getPort() + ">: '" + message.getMessage() +"'");
+        send(message, 0);
     }
 
-    public KVMessage receive() throws IOException, Exception {
+    /**
+     * Send the response to a request, with the request's ID if it carried one.
+     *
+     * @param requestId request ID of the request, 0 if none
+     */
+    public void send(KVMessage message, int requestId) throws IOException {
+        synchronized (output){
+            byte[] messageBytes = (protocol >= KVMessageClass.PROTOCOL_BINARY)
+                    ? message.getBinaryMessageBytes(requestId) : message.getMessageBytes();
+            output.write(messageBytes, 0, messageBytes.length);
+            output.flush();
+        }
+        if (logger.isDebugEnabled()){
+            logger.debug("SEND <" + peer + ">: '" + message.getMessage() + "'");
+        }
+    }
 
-        int index = 0;
-        byte[] msgBytes = null;
-        byte[] tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
-        
-		/* read first char from stream */
-        /* read first char from stream */
-        byte read = 0;  // read from input stream
-        byte prev = 0;  // prev of read
-        byte copy = 0;  // copy of read
-        boolean reading = true;
-        int numDeliminator = 0;
-        while (reading && numDeliminator != 3) {
-
-            /* read next char from stream */
-            prev = copy;
-            read = (byte) input.read();
-            copy = read;
-
-            // "D" = 68, "\n" = 10
-            if (prev == 68 && copy == 10){
-                numDeliminator ++;
+    /**
+     * Answer a GET whose value sits in the server's off-heap cache by writing
+     * the value bytes straight from direct memory, without building a
+     * KVMessage around a decoded String. A channel-backed connection (see
+     * {@link BufferOutput}) gets the pinned bytes themselves, a stream is
+     * written in chunks copied through a small array.
+     *
+     * @return true if the response was sent, false if the message has to go
+     *           through {@link #process}
+     */
+    public boolean sendCachedValue(KVMessage message) throws IOException {
+        if (message.getStatus() != StatusType.GET){
+            return false;
+        }
+        if (kvServer.distributed() && (kvServer.getServerStatus() != DistributedServerStatus.START
+                || !keyWithinRange(message.getKey()))){
+            return false;
+        }
+        OffHeapCache.ValueRef value = kvServer.pinCachedValue(message.getKey());
+        if (value == null){
+            return false;
+        }
+        if (value.getBuffer().hasRemaining() && value.getBuffer().get(value.getBuffer().position()) == 0){
+            // stored with a deadline (see ExpiringDiskStorage), the storage checks it for expiry
+            value.close();
+            return false;
+        }
+        try {
+            ByteBuffer buffer = value.getBuffer();
+            synchronized (output){
+                boolean binary = protocol >= KVMessageClass.PROTOCOL_BINARY;
+                byte[] header = binary
+                        ? KVMessageClass.encodeBinaryHeader(StatusType.GET_SUCCESS, message.getKey(), buffer.remaining(),
+                                message.getRequestId())
+                        : KVMessageClass.encodeHeader(StatusType.GET_SUCCESS, message.getKey());
+                byte[] trailer = binary ? new byte[0] : KVMessageClass.encodeTrailer();
+                if (output instanceof BufferOutput){
+                    ((BufferOutput) output).write(new ByteBuffer[]{ByteBuffer.wrap(header), buffer, ByteBuffer.wrap(trailer)});
+                }
+                else {
+                    byte[] chunk = new byte[Math.min(buffer.remaining(), SEND_CHUNK_SIZE)];
+                    output.write(header, 0, header.length);
+                    while (buffer.hasRemaining()){
+                        int length = Math.min(buffer.remaining(), chunk.length);
+                        buffer.get(chunk, 0, length);
+                        output.write(chunk, 0, length);
+                    }
+                    output.write(trailer, 0, trailer.length);
+                    output.flush();
+                }
             }
+        } finally {
+            value.close();
+        }
+        logger.info("GET_SUCCESS: Value is sent from off-heap cache, key: " + message.getKey());
+        return true;
+    }
 
-            if (read == -1){
-                return new KVMessageClass(StatusType.DISCONNECT, "", "");
-            }
-            
-            /* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if (msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } 
-                else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
-				}
-
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			} 
-			
-			/* only read valid characters, i.e. letters and constants */
-			bufferBytes[index] = read;
-			index++;
-		}
+    /**
+     * Answer a client's PROTOCOL request with the highest version both sides
+     * support, and send all later messages in that version. The answer itself
+     * is a text message, which every client reads.
+     */
+    public void negotiate(KVMessage message) throws IOException {
+        int requested;
+        try {
+            requested = Integer.parseInt(message.getValue().trim());
+        } catch (NumberFormatException e){
+            requested = KVMessageClass.PROTOCOL_TEXT;
+        }
+        int agreed = Math.max(KVMessageClass.PROTOCOL_TEXT, Math.min(requested, KVMessageClass.PROTOCOL_PIPELINED));
+        byte[] answer;
+        try {
+            answer = new KVMessageClass(StatusType.PROTOCOL, "", String.valueOf(agreed)).getMessageBytes();
+        } catch (Exception e){
+            throw new IOException(e);
+        }
+        synchronized (output){
+            output.write(answer, 0, answer.length);
+            output.flush();
+            protocol = agreed;
+        }
+        logger.info("PROTOCOL: Using protocol version " + agreed + " (requested " + requested + ")");
+    }
 
-        if (msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } 
-        else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+    public int getProtocol(){
+        return protocol;
+    }
+
+    public KVMessage receive() throws IOException, Exception {
+        KVMessage msg = frameReader.read();
+        if (msg == null){
+            return new KVMessageClass(StatusType.DISCONNECT, "", "");
+        }
+        if (logger.isDebugEnabled()){
+            logger.debug("RECEIVE <" + peer + ">: '" + msg.getMessage().trim() + "'");
         }
-        
-        msgBytes = tmp;
-        
-		/* build final String */
-        KVMessage msg = new KVMessageClass(msgBytes);
-		logger.debug("RECEIVE <" + clientSocket.getInetAddress().getHostAddress() + ":" 
-				+ clientSocket.getPort() + ">: '" + msg.getMessage().trim() + "'");
-        
         return msg;
     }
 
@@ -191,17 +260,25 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
                     return new KVMessageClass(sendMsgType, sendMsgKey, sendMsgValue);
                 }
                 // Aquire key-value pair from the server
+                String value = null;
                 try {
-                    sendMsgValue = kvServer.getKV(message.getKey());
+                    value = kvServer.lookupKV(message.getKey());
+                }
+                catch (Exception e) {
+                    logger.error("Unable to read key from storage: " + message.getKey(), e);
+                }
+                if (value != null){
+                    sendMsgValue = value;
                     sendMsgType = StatusType.GET_SUCCESS;
                     logger.info("GET_SUCCESS: Value is found on server, key: " + message.getKey());
                 }
-                catch (Exception e) {
+                else {
                     sendMsgType = StatusType.GET_ERROR;
                     logger.info("GET_ERROR: Value not found on server, key: " + message.getKey());
                 }
                 break;
             case PUT: 
+            case PUT_TTL:
                 // // check if server is write locked
                 if (kvServer.distributed() && kvServer.getWriteLock()){
                     sendMsgType = StatusType.SERVER_WRITE_LOCK;
@@ -215,19 +292,20 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
                     sendMsgValue = getMetadata().toString();
                     return new KVMessageClass(sendMsgType, sendMsgKey, sendMsgValue);
                 }
+                // an expiring key cannot be deleted by its own PUT_TTL
+                if (message.getStatus() == StatusType.PUT_TTL && message.getValue().equals("")){
+                    sendMsgType = StatusType.PUT_ERROR;
+                    logger.info("PUT_ERROR: PUT_TTL without value, key: " + message.getKey());
+                    return new KVMessageClass(sendMsgType, sendMsgKey, sendMsgValue);
+                }
                 // Identify status type and store key-value pair on the server
                 if (!message.getValue().equals("")){    // PUT
                     // check if key-value pair is already stored
+                    sendMsgType = kvServer.inStorage(message.getKey()) ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS;
+                    // perform store / update operation, keeping the deadline of an expiring pair for the replicas
+                    String replicaValue = message.getValue();
                     try {
-                        kvServer.getKV(message.getKey());
-                        sendMsgType = StatusType.PUT_UPDATE;
-                    }
-                    catch (Exception e){
-                        sendMsgType = StatusType.PUT_SUCCESS;
-                    }
-                    // perform store / update operation
-                    try {
-                        kvServer.putKV(message.getKey(), message.getValue());
+                        replicaValue = kvServer.putKV(message.getKey(), message.getValue(), message.getTtl());
                         sendMsgValue = message.getValue();
                     }
                     catch (Exception e) {
@@ -235,10 +313,13 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
                     }
                     // update replicas and boardcast subscription updates
                     if (kvServer.distributed() && sendMsgType != StatusType.PUT_ERROR){
-                        kvServer.replicateOneKvPair(message.getKey(), message.getValue());
+                        kvServer.replicateOneKvPair(message.getKey(), replicaValue);
                         subscriptionUpdateOwner = true;
                         kvServer.boardcastSubscriptionUpdateToServers(message.getKey(), message.getValue());
                     }
+                    else if (sendMsgType != StatusType.PUT_ERROR){
+                        kvServer.boardcastSubscriptionUpdateToClients(this, message.getKey(), message.getValue());
+                    }
                     // set logger message
                     if (sendMsgType == StatusType.PUT_SUCCESS){
                         logger.info("PUT_SUCCESS: Value is stored on server, key: " + message.getKey() + ", value: " + message.getValue());
@@ -286,6 +367,9 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
                         subscriptionUpdateOwner = true;
                         kvServer.boardcastSubscriptionUpdateToServers(message.getKey(), message.getValue());
                     }
+                    else if (sendMsgType != StatusType.DELETE_ERROR){
+                        kvServer.boardcastSubscriptionUpdateToClients(this, message.getKey(), message.getValue());
+                    }
                 }
                 break;
             case DISCONNECT:
@@ -294,13 +378,29 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
                 logger.info("DISCONNECT: Disconnect from client");
                 break;
             default:
-                // Server only handles GET, PUT and DISCONNECT, not handling other message types
-                throw new IllegalStateException("Received an unsupported messaage. Server only handles 'GET' and 'PUT' KVMessages.");
+                // Server only handles GET, PUT, PUT_TTL and DISCONNECT, not handling other message types
+                throw new IllegalStateException("Received an unsupported messaage. Server only handles 'GET', 'PUT' and 'PUT_TTL' KVMessages.");
         }
 
         return new KVMessageClass(sendMsgType, sendMsgKey, sendMsgValue);
     }
 
+    /**
+     * Handle a received message: negotiate the protocol, answer from the
+     * off-heap cache, or process it and send the response.
+     */
+    public void handle(KVMessage recvMsg) throws IOException, Exception {
+        if (recvMsg.getStatus() == StatusType.PROTOCOL){
+            negotiate(recvMsg);
+            return;
+        }
+        if (sendCachedValue(recvMsg)){
+            return;
+        }
+        KVMessage sendMsg = process(recvMsg);
+        send(sendMsg, recvMsg.getRequestId());
+    }
+
     /**
      * This is the run() method for KVCommunicationServer thread. 
      * Waits on incomming KVMessages, process the message upon receiving and send back to client.
@@ -310,8 +410,7 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
         while (open) {
             try {
                 KVMessage recvMsg = receive();          // listening / waiting on receive()
-                KVMessage sendMsg = process(recvMsg);
-                send(sendMsg);
+                handle(recvMsg);
             }
             catch (IOException e) {
                 logger.error("Server lost client lost! ", e);
@@ -333,6 +432,7 @@ public class KVCommunicationServer implements IKVCommunication, Runnable {
                 logger.error("Unable to close connection!", e);
             }
         } 
+        kvServer.removeClient(this);
     }
 
     /**
@@ -0,0 +1,204 @@
+package shared.communication;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.CharsetUtil;
+
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.util.List;
+
+/**
+ * Netty decoder of KVMessage frames, text and binary, with the same rules as
+ * {@link FrameReader}: the format is told apart by the first byte of every
+ * frame, elements are decoded straight from the received buffer, and a frame
+ * longer than <code>FrameReader.MAX_FRAME_SIZE</code> is dropped without
+ * being buffered. A frame with invalid elements is logged and dropped, and
+ * the connection is closed only if a binary header cannot be parsed.
+ */
+public class KVFrameDecoder extends ByteToMessageDecoder {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final int ELEMENTS = 3;
+    private static final byte DELIMITER_FIRST = 'D';
+    private static final byte DELIMITER_SECOND = '\n';
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private long discardBytes;                  // bytes of an oversized binary frame still to drop
+    private int discardDelimiters;              // delimiters still to find of an oversized text frame
+    private final int[] delimiters = new int[ELEMENTS];
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        while (in.isReadable()){
+            if (discardBytes > 0){
+                int length = (int) Math.min(discardBytes, in.readableBytes());
+                in.skipBytes(length);
+                discardBytes -= length;
+                continue;
+            }
+            if (discardDelimiters > 0){
+                if (!discardText(in)){
+                    return;
+                }
+                continue;
+            }
+            KVMessage message;
+            try {
+                message = ((in.getByte(in.readerIndex()) & KVMessageClass.BINARY_FLAG) != 0)
+                        ? decodeBinary(in) : decodeText(in);
+            } catch (DecoderException e){
+                throw e;
+            } catch (Exception e){
+                // invalid elements, the frame is consumed
+                logger.error(e);
+                continue;
+            }
+            if (message != null){
+                out.add(message);
+            }
+            else if (discardBytes == 0 && discardDelimiters == 0){
+                return;     // wait for the rest of the frame
+            }
+        }
+    }
+
+    private static String decode(ByteBuf in, int from, int to){
+        return in.toString(from, to - from, CharsetUtil.UTF_8);
+    }
+
+    /**
+     * @return message, null if the frame is incomplete or too large
+     */
+    private KVMessage decodeText(ByteBuf in) throws Exception {
+        int start = in.readerIndex();
+        int limit = start + Math.min(in.readableBytes(), FrameReader.MAX_FRAME_SIZE);
+        int found = 0;
+        int position = start;
+        while (found < ELEMENTS){
+            int lineFeed = in.indexOf(position, limit, DELIMITER_SECOND);
+            if (lineFeed < 0){
+                break;
+            }
+            if (lineFeed - 1 >= position && in.getByte(lineFeed - 1) == DELIMITER_FIRST){
+                delimiters[found++] = lineFeed - 1;
+            }
+            position = lineFeed + 1;
+        }
+        if (found < ELEMENTS){
+            if (in.readableBytes() >= FrameReader.MAX_FRAME_SIZE){
+                discardDelimiters = ELEMENTS - found;
+                skipScanned(in, position, limit);
+            }
+            return null;
+        }
+        in.readerIndex(delimiters[ELEMENTS - 1] + 2);
+        return KVMessageClass.fromElements(decode(in, start, delimiters[0]),
+                decode(in, delimiters[0] + 2, delimiters[1]), decode(in, delimiters[1] + 2, delimiters[2]));
+    }
+
+    /**
+     * Drop the checked bytes of an oversized text frame, keeping a last byte
+     * that may start a delimiter.
+     */
+    private static void skipScanned(ByteBuf in, int position, int limit){
+        int index = limit;
+        if (limit > position && in.getByte(limit - 1) == DELIMITER_FIRST){
+            index = limit - 1;
+        }
+        in.readerIndex(Math.max(index, in.readerIndex()));
+    }
+
+    /**
+     * Drop an oversized text frame up to its last delimiter.
+     *
+     * @return true once the whole frame is dropped
+     */
+    private boolean discardText(ByteBuf in){
+        int position = in.readerIndex();
+        int end = in.writerIndex();
+        while (discardDelimiters > 0){
+            int lineFeed = in.indexOf(position, end, DELIMITER_SECOND);
+            if (lineFeed < 0){
+                break;
+            }
+            if (lineFeed - 1 >= position && in.getByte(lineFeed - 1) == DELIMITER_FIRST){
+                discardDelimiters--;
+            }
+            position = lineFeed + 1;
+        }
+        if (discardDelimiters > 0){
+            skipScanned(in, position, end);
+            return false;
+        }
+        in.readerIndex(position);
+        logger.error("Dropped message exceeding maximum size of " + FrameReader.MAX_FRAME_SIZE + " bytes.");
+        return true;
+    }
+
+    /**
+     * @return message, null if the frame is incomplete or too large
+     */
+    private KVMessage decodeBinary(ByteBuf in) throws Exception {
+        int start = in.readerIndex();
+        int end = in.writerIndex();
+        int opcode = in.getByte(start) & KVMessageClass.OPCODE_MASK;
+        boolean hasRequestId = (in.getByte(start) & KVMessageClass.REQUEST_ID_FLAG) != 0;
+        boolean hasTtl = opcode == StatusType.PUT_TTL.ordinal();
+        long requestId = 0, keyLength = 0, valueLength = 0, ttl = 0;
+        int position = start + 1;
+        for (int i = hasRequestId ? -1 : 0; i < (hasTtl ? 3 : 2); i++){
+            long number = 0;
+            int shift = 0;
+            while (true){
+                if (position == end){
+                    return null;
+                }
+                if (shift >= 7 * MAX_VARINT_BYTES){
+                    throw new CorruptedFrameException("Malformed binary message header.");
+                }
+                byte b = in.getByte(position++);
+                number |= (long) (b & 0x7F) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0){
+                    break;
+                }
+            }
+            if (number < 0 || (i < 0 && number > Integer.MAX_VALUE)){
+                throw new CorruptedFrameException("Malformed binary message header.");
+            }
+            if (i < 0){
+                requestId = number;
+            }
+            else if (i == 0){
+                keyLength = number;
+            }
+            else if (i == 1){
+                valueLength = number;
+            }
+            else {
+                ttl = number;
+            }
+        }
+        long frameLength = (position - start) + keyLength + valueLength;
+        if (frameLength > FrameReader.MAX_FRAME_SIZE){
+            discardBytes = frameLength;
+            logger.error("Dropped message exceeding maximum size of " + FrameReader.MAX_FRAME_SIZE + " bytes.");
+            return null;
+        }
+        if (end - start < frameLength){
+            return null;
+        }
+        int keyStart = position;
+        int valueStart = keyStart + (int) keyLength;
+        in.readerIndex(start + (int) frameLength);
+        return KVMessageClass.fromBinary(opcode, (int) requestId, decode(in, keyStart, valueStart),
+                decode(in, valueStart, start + (int) frameLength), ttl);
+    }
+}
@@ -0,0 +1,258 @@
+package shared.communication;
+
+import app_kvServer.KVServer;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network front end of a KVServer built on Netty, using the epoll transport
+ * where its native library is available and Netty's NIO transport otherwise.
+ *
+ * <p>
+ * The pipeline of a connection decodes frames with a {@link KVFrameDecoder}
+ * on the <code>ioThreads</code> event loops and hands the messages to a
+ * handler running on a group of <code>workers</code> executors, so storage
+ * I/O never stalls an event loop; Netty keeps every connection on one
+ * executor, which answers its requests in order. The handler passes them to a
+ * {@link KVCommunicationServer} registered with the KVServer, so requests and
+ * subscription updates are handled as in the thread-per-connection server.
+ * Received and sent bytes live in pooled buffers. A client that lets more
+ * than <code>MAX_PENDING_BYTES</code> pile up is disconnected.
+ * </p>
+ */
+public class NettyFrontEnd implements ServerFrontEnd {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+    private static final int UPDATE_WRITE_TIMEOUT = 1000;
+
+    private final KVServer kvServer;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup ioGroup;
+    private final EventExecutorGroup workerGroup;
+    private final Channel serverChannel;
+    private final String transport;
+
+    /**
+     * Bind the front end to a port, connections are accepted right away.
+     *
+     * @param ioThreads number of event loops
+     * @param workerThreads number of executors handling requests
+     */
+    public NettyFrontEnd(KVServer kvServer, int port, int ioThreads, int workerThreads) throws IOException {
+        if (ioThreads <= 0 || workerThreads <= 0){
+            throw new IllegalArgumentException("Event loop and worker counts must be positive");
+        }
+        this.kvServer = kvServer;
+        Class<? extends ServerChannel> channelClass;
+        if (Epoll.isAvailable()){
+            bossGroup = new EpollEventLoopGroup(1, new DefaultThreadFactory("kv-netty-accept", true));
+            ioGroup = new EpollEventLoopGroup(ioThreads, new DefaultThreadFactory("kv-netty-io", true));
+            channelClass = EpollServerSocketChannel.class;
+            transport = "epoll";
+        }
+        else {
+            logger.info("Netty epoll transport unavailable, using NIO: " + Epoll.unavailabilityCause());
+            bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("kv-netty-accept", true));
+            ioGroup = new NioEventLoopGroup(ioThreads, new DefaultThreadFactory("kv-netty-io", true));
+            channelClass = NioServerSocketChannel.class;
+            transport = "nio";
+        }
+        workerGroup = new DefaultEventExecutorGroup(workerThreads, new DefaultThreadFactory("kv-worker", true));
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, ioGroup)
+                .channel(channelClass)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(MAX_PENDING_BYTES / 2, MAX_PENDING_BYTES))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast("decoder", new KVFrameDecoder());
+                        channel.pipeline().addLast(workerGroup, "handler", new RequestHandler());
+                    }
+                });
+        try {
+            serverChannel = bootstrap.bind(port).syncUninterruptibly().channel();
+        } catch (Exception e){
+            // bind failures are rethrown unchecked by Netty
+            close();
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * @return "epoll" or "nio"
+     */
+    public String getTransport(){
+        return transport;
+    }
+
+    @Override
+    public int getLocalPort(){
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    @Override
+    public void run(){
+        serverChannel.closeFuture().syncUninterruptibly();
+    }
+
+    @Override
+    public void close(){
+        if (serverChannel != null){
+            serverChannel.close().syncUninterruptibly();
+        }
+        bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        ioGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Handler of one connection, running on a worker executor.
+     */
+    private class RequestHandler extends SimpleChannelInboundHandler<KVMessage> {
+
+        private KVCommunicationServer communication;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            InetSocketAddress address = (InetSocketAddress) ctx.channel().remoteAddress();
+            communication = new KVCommunicationServer(kvServer, new ChannelOutput(ctx.channel(), ctx.executor()),
+                    address.getAddress().getHostAddress() + ":" + address.getPort());
+            kvServer.addClient(communication);
+            logger.info("Connected to " + address.getHostName() + " on port " + address.getPort());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, KVMessage message) {
+            try {
+                communication.handle(message);
+            } catch (IOException e){
+                logger.error("Server lost client lost! ", e);
+                ctx.close();
+            } catch (Exception e){
+                logger.error(e);
+            }
+            if (!communication.isOpen()){
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (communication != null){
+                kvServer.removeClient(communication);
+                communication.close();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.error("Server lost client lost! ", cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Output stream of a connection's KVCommunicationServer: written bytes
+     * are collected in a pooled buffer and written to the channel as one
+     * message on flush(). A message written from another connection's
+     * executor, a subscription update, is waited for, so it reaches the
+     * socket before the response to the request that caused it.
+     */
+    private static class ChannelOutput extends OutputStream {
+
+        private final Channel channel;
+        private final EventExecutor executor;
+        private ByteBuf message;        // null between messages
+
+        ChannelOutput(Channel channel, EventExecutor executor){
+            this.channel = channel;
+            this.executor = executor;
+        }
+
+        private ByteBuf buffer(){
+            if (message == null){
+                message = channel.alloc().buffer();
+            }
+            return message;
+        }
+
+        @Override
+        public void write(int b){
+            buffer().writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len){
+            buffer().writeBytes(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (message == null){
+                return;
+            }
+            ByteBuf data = message;
+            message = null;
+            if (!channel.isActive()){
+                data.release();
+                throw new IOException("Connection is closed");
+            }
+            ChannelFuture future = channel.writeAndFlush(data);
+            if (!executor.inEventLoop() && !future.awaitUninterruptibly(UPDATE_WRITE_TIMEOUT)){
+                logger.warn("Subscription update is not yet written after " + UPDATE_WRITE_TIMEOUT + " ms.");
+            }
+            if (!channel.isWritable()){
+                logger.error("Client does not read its responses, closing connection.");
+                channel.close();
+                throw new IOException("Too many pending bytes");
+            }
+        }
+
+        @Override
+        public void close(){
+            if (message != null){
+                message.release();
+                message = null;
+            }
+            channel.close();
+        }
+    }
+}
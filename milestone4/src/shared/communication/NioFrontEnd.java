@@ -0,0 +1,503 @@
+package shared.communication;
+
+import app_kvServer.KVServer;
+
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Network front end of a KVServer built on <code>java.nio</code> selectors,
+ * serving any number of clients with a fixed number of threads instead of
+ * one thread per connection.
+ *
+ * <p>
+ * <code>ioThreads</code> event loops each own a selector and a share of the
+ * connections; the first loop also accepts new connections and hands them out
+ * in turn. A loop reads the bytes available on a connection, decodes them with
+ * a non-blocking {@link FrameReader} and queues the messages on the
+ * connection. The queue is drained by one task at a time on a pool of
+ * <code>workers</code> threads, so storage I/O never stalls a loop and the
+ * requests of a connection are answered in order. Each connection keeps a
+ * {@link KVCommunicationServer}, which handles the messages exactly as in the
+ * thread-per-connection server and is registered with the KVServer, so
+ * subscription updates reach it through the same send().
+ * </p>
+ *
+ * <p>
+ * Responses are written straight from the sending thread while the socket
+ * takes them; the rest is queued and written by the event loop when the
+ * socket is writable again. Values from the off-heap cache are written to the
+ * socket from direct memory, and only bytes left for the event loop are
+ * copied. A client that lets more than
+ * <code>MAX_PENDING_BYTES</code> pile up is disconnected.
+ * </p>
+ */
+public class NioFrontEnd implements ServerFrontEnd {
+
+    private static Logger logger = Logger.getRootLogger();
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_WORKERS = 16;
+    private static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+    private final KVServer kvServer;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running;
+
+    /**
+     * Bind the front end to a port, connections are served once {@link #run} is called.
+     *
+     * @param ioThreads number of event loops
+     * @param workerThreads number of threads handling requests
+     */
+    public NioFrontEnd(KVServer kvServer, int port, int ioThreads, int workerThreads) throws IOException {
+        if (ioThreads <= 0 || workerThreads <= 0){
+            throw new IllegalArgumentException("Event loop and worker counts must be positive");
+        }
+        this.kvServer = kvServer;
+        this.serverChannel = ServerSocketChannel.open();
+        this.loops = new EventLoop[ioThreads];
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            for (int i = 0; i < ioThreads; i++){
+                loops[i] = new EventLoop();
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e){
+            close();
+            throw e;
+        }
+        this.workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "kv-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.running = true;
+    }
+
+    @Override
+    public int getLocalPort(){
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Run the first event loop on the calling thread and the others on their
+     * own threads, until {@link #close} is called.
+     */
+    @Override
+    public void run(){
+        for (int i = 1; i < loops.length; i++){
+            Thread thread = new Thread(loops[i], "kv-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        loops[0].run();
+    }
+
+    /**
+     * Stop accepting, close all connections and stop the threads.
+     */
+    @Override
+    public void close(){
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e){
+            logger.error("Unable to close server channel", e);
+        }
+        for (EventLoop loop : loops){
+            if (loop != null){
+                loop.selector.wakeup();
+            }
+        }
+        if (workers != null){
+            workers.shutdown();
+            try {
+                workers.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();  // to register
+        final ConcurrentLinkedQueue<Connection> blocked = new ConcurrentLinkedQueue<Connection>();          // waiting for OP_WRITE
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel){
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        void writeWhenReady(Connection connection){
+            blocked.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run(){
+            try {
+                while (running){
+                    selector.select();
+                    registerAccepted();
+                    Connection connection;
+                    while ((connection = blocked.poll()) != null){
+                        try {
+                            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                        } catch (CancelledKeyException e){
+                            connection.close();
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()){
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()){
+                            continue;
+                        }
+                        if (key.isAcceptable()){
+                            accept();
+                            continue;
+                        }
+                        connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()){
+                                connection.flushPending();
+                            }
+                            if (key.isValid() && key.isReadable()){
+                                connection.readAvailable();
+                            }
+                        } catch (CancelledKeyException e){
+                            // closed by a worker meanwhile
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e){
+                if (running){
+                    logger.error("Event loop stopped", e);
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()){
+                    if (key.attachment() instanceof Connection){
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e){
+                    logger.error("Unable to close selector", e);
+                }
+            }
+        }
+
+        private void accept(){
+            SocketChannel channel;
+            try {
+                while ((channel = serverChannel.accept()) != null){
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    loops[Math.abs(nextLoop.getAndIncrement() % loops.length)].register(channel);
+                    logger.info("Connected to " + channel.socket().getInetAddress().getHostName() +
+                            " on port " + channel.socket().getPort());
+                }
+            } catch (IOException e){
+                logger.error("Error! Unable to establish connection. \n", e);
+            }
+        }
+
+        private void registerAccepted(){
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null){
+                Connection connection = new Connection(channel, this);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e){
+                    logger.error("Unable to register connection", e);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * One client connection: decoded requests, the handler, and bytes not yet written.
+     */
+    private class Connection implements Runnable {
+
+        final SocketChannel channel;
+        final EventLoop loop;
+        final FrameReader reader;
+        final KVCommunicationServer handler;
+        final ConcurrentLinkedQueue<KVMessage> requests = new ConcurrentLinkedQueue<KVMessage>();
+        final AtomicBoolean scheduled = new AtomicBoolean();   // a worker drains the requests
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();   // guarded by itself
+        int pendingBytes;
+        volatile SelectionKey key;
+        private boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop){
+            this.channel = channel;
+            this.loop = loop;
+            this.reader = new FrameReader(channel);
+            this.handler = new KVCommunicationServer(kvServer, new ConnectionOutput(this),
+                    channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort());
+            kvServer.addClient(handler);
+        }
+
+        /**
+         * Decode the bytes available and queue the requests, on the event loop.
+         */
+        void readAvailable(){
+            while (true){
+                KVMessage message;
+                try {
+                    message = reader.read();
+                } catch (IOException e){
+                    logger.error("Server lost client lost! ", e);
+                    close();
+                    return;
+                } catch (Exception e){
+                    logger.error(e);
+                    continue;
+                }
+                if (message == null){
+                    break;
+                }
+                submit(message);
+            }
+            if (reader.isEnded()){
+                // handled after the queued requests, like in the thread per connection
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                try {
+                    submit(new KVMessageClass(StatusType.DISCONNECT, "", ""));
+                } catch (Exception e){
+                    close();
+                }
+            }
+        }
+
+        private void submit(KVMessage message){
+            requests.add(message);
+            if (scheduled.compareAndSet(false, true)){
+                try {
+                    workers.execute(this);
+                } catch (RuntimeException e){
+                    // rejected while shutting down
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Handle the queued requests, on a worker.
+         */
+        @Override
+        public void run(){
+            do {
+                KVMessage message;
+                while ((message = requests.poll()) != null){
+                    try {
+                        handler.handle(message);
+                    } catch (IOException e){
+                        logger.error("Server lost client lost! ", e);
+                        close();
+                    } catch (Exception e){
+                        logger.error(e);
+                    }
+                    if (!handler.isOpen()){
+                        close();
+                        requests.clear();
+                    }
+                }
+                scheduled.set(false);
+            } while (!requests.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Write a message, or queue what the socket does not take now.
+         */
+        void write(ByteBuffer data) throws IOException {
+            synchronized (pending){
+                if (closed){
+                    throw new IOException("Connection is closed");
+                }
+                if (pending.isEmpty()){
+                    channel.write(data);
+                    if (!data.hasRemaining()){
+                        return;
+                    }
+                }
+                pending.add(data);
+                pendingBytes += data.remaining();
+                if (pendingBytes > MAX_PENDING_BYTES){
+                    logger.error("Client does not read its responses, closing connection.");
+                    close();
+                    throw new IOException("Too many pending bytes");
+                }
+            }
+            loop.writeWhenReady(this);
+        }
+
+        /**
+         * Write a message from several buffers with one gathering write, and
+         * queue a copy of what the socket does not take now, since the
+         * buffers may be reused once this returns.
+         */
+        void write(ByteBuffer[] data) throws IOException {
+            synchronized (pending){
+                if (closed){
+                    throw new IOException("Connection is closed");
+                }
+                if (pending.isEmpty()){
+                    channel.write(data);
+                }
+                int remaining = 0;
+                for (ByteBuffer buffer : data){
+                    remaining += buffer.remaining();
+                }
+                if (remaining == 0){
+                    return;
+                }
+                ByteBuffer copy = ByteBuffer.allocate(remaining);
+                for (ByteBuffer buffer : data){
+                    copy.put(buffer);
+                }
+                copy.flip();
+                pending.add(copy);
+                pendingBytes += remaining;
+                if (pendingBytes > MAX_PENDING_BYTES){
+                    logger.error("Client does not read its responses, closing connection.");
+                    close();
+                    throw new IOException("Too many pending bytes");
+                }
+            }
+            loop.writeWhenReady(this);
+        }
+
+        /**
+         * Write queued bytes, on the event loop once the socket is writable.
+         */
+        void flushPending(){
+            synchronized (pending){
+                try {
+                    while (!pending.isEmpty()){
+                        ByteBuffer data = pending.peek();
+                        int written = channel.write(data);
+                        pendingBytes -= written;
+                        if (data.hasRemaining()){
+                            return;
+                        }
+                        pending.poll();
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } catch (IOException e){
+                    logger.error("Server lost client lost! ", e);
+                    close();
+                }
+            }
+        }
+
+        void close(){
+            synchronized (pending){
+                if (closed){
+                    return;
+                }
+                closed = true;
+                pending.clear();
+            }
+            kvServer.removeClient(handler);
+            if (key != null){
+                key.cancel();
+            }
+            try {
+                channel.close();
+                handler.close();
+            } catch (IOException e){
+                logger.error("Unable to close connection.", e);
+            }
+        }
+    }
+
+    /**
+     * Output stream of a connection's handler: written bytes are collected
+     * and passed to the connection as one message on flush(), buffers are
+     * passed on as they are.
+     */
+    private static class ConnectionOutput extends OutputStream implements BufferOutput {
+
+        private final Connection connection;
+        private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+
+        ConnectionOutput(Connection connection){
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b){
+            message.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len){
+            message.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (message.size() > 0){
+                ByteBuffer data = ByteBuffer.wrap(message.toByteArray());
+                message.reset();
+                connection.write(data);
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer[] message) throws IOException {
+            flush();
+            connection.write(message);
+        }
+
+        @Override
+        public void close(){
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package shared.communication;
+
+/**
+ * Network front end serving the client connections of a KVServer in place
+ * of its thread per connection. Connections hand their messages to a
+ * {@link KVCommunicationServer}, which processes them as usual.
+ */
+public interface ServerFrontEnd {
+
+    /**
+     * @return port the front end is bound to
+     */
+    public int getLocalPort();
+
+    /**
+     * Serve connections on the calling thread until {@link #close} is called.
+     */
+    public void run();
+
+    /**
+     * Stop accepting, close all connections and stop the threads.
+     */
+    public void close();
+}
@@ -1,16 +1,21 @@
 package shared.messages;
 
 import java.util.*;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.lang.reflect.Type;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import shared.Compression;
+
 /**
  * KVAdminMessage is used to transfer admin messages between ECS and distributed KVServers.
  * 
  * <p>
  * The message is sent through ZooKeeper API (setData and getData) in the format of String transferred to byte array.
+ * Large messages, e.g. KV data transfers, may be sent compressed: such a frame starts with a zero byte and 'Z',
+ * followed by the UTF-8 message in {@link Compression} format. Use {@link #decode} to read either kind.
  * </p>
  * 
  * <ul>
@@ -40,6 +45,7 @@ public class KVAdminMessage {
     }
 
     private final static String SEPARATOR = "/";
+    private final static byte[] COMPRESSED_MARKER = {0, 'Z'};    // a UTF-8 message never starts with a zero byte
     private String messageSource;
     private KVAdminType messageType;
     private Map<String, Metadata> messageMetadata;  // servername, metadata
@@ -176,4 +182,38 @@ public class KVAdminMessage {
         return msgString.getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * Encode the message, compressed if it is large.
+     * @param compressionThreshold message bytes from which the message is compressed, 0 to never compress
+     * @return message bytes, see {@link #decode}
+     */
+    public byte[] toBytes(int compressionThreshold){
+        byte[] raw = toBytes();
+        if (compressionThreshold <= 0 || raw.length < compressionThreshold){
+            return raw;
+        }
+        byte[] deflated = Compression.deflate(raw);
+        if (deflated == null || deflated.length + COMPRESSED_MARKER.length >= raw.length){
+            return raw;
+        }
+        byte[] frame = new byte[COMPRESSED_MARKER.length + deflated.length];
+        System.arraycopy(COMPRESSED_MARKER, 0, frame, 0, COMPRESSED_MARKER.length);
+        System.arraycopy(deflated, 0, frame, COMPRESSED_MARKER.length, deflated.length);
+        return frame;
+    }
+
+    /**
+     * Decode message bytes received through ZooKeeper, compressed or not.
+     * @param bytes output of {@link #toBytes()} or {@link #toBytes(int)}
+     * @return message string to construct KVAdminMessage with
+     * @throws IOException if a compressed message is corrupted
+     */
+    public static String decode(byte[] bytes) throws IOException {
+        if (bytes.length >= COMPRESSED_MARKER.length && bytes[0] == COMPRESSED_MARKER[0] && bytes[1] == COMPRESSED_MARKER[1]){
+            byte[] deflated = Arrays.copyOfRange(bytes, COMPRESSED_MARKER.length, bytes.length);
+            return new String(Compression.inflate(deflated), StandardCharsets.UTF_8);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
 }
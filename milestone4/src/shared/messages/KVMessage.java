@@ -16,6 +16,29 @@ import java.util.List;
  * <li>Value: 3rd element, the latter element in key-value pair, leave empty if none</li>
  * <li>DELIMITOR <code>System.getProperty("line.separator")</code> </li>
  * </ul>
+ * A <code>PUT_TTL</code> message carries the time to live in ms in front of its value,
+ * separated by a space, i.e. its 3rd element is <code>&lt;ttl&gt; &lt;value&gt;</code>.
+ * </p>
+ *
+ * <p>
+ * A client may ask for the binary protocol (version 2) by sending a <code>PROTOCOL</code>
+ * message with the version as its value. The server answers with the agreed version in
+ * a <code>PROTOCOL</code> message and from then on sends binary frames, which the client
+ * also sends once it has the answer. A binary frame is
+ * <ul>
+ * <li>Opcode: 1 byte, <code>0x80</code> plus the ordinal of the StatusType, never the first byte of a text message </li>
+ * <li>Key length: varint, 7 bits per byte, least significant group first </li>
+ * <li>Value length: varint </li>
+ * <li>Time to live: varint, <code>PUT_TTL</code> only </li>
+ * <li>Key and value: UTF-8 bytes </li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Version 3 adds request IDs for pipelining: a client may send further requests
+ * before the responses arrive. A binary frame with <code>0x40</code> set in its opcode
+ * carries a varint request ID right after the opcode, and the server answers
+ * such a request with the same ID. Subscription updates pushed by the server carry none.
  * </p>
  */
 public interface KVMessage {
@@ -40,7 +63,11 @@ public interface KVMessage {
 		SERVER_WRITE_LOCK, 			/* 12 Server locked for write, only get possible */
 		SERVER_NOT_RESPONSIBLE, 	/* 13 Request not successful, server is not responsible for key */
 		/* M4: Data Subscription Mechanism */
-		SUBSCRITION_UPDATE			/* 14 Server boardcast subscription update to clients */
+		SUBSCRITION_UPDATE,			/* 14 Server boardcast subscription update to clients */
+		/* Expiring keys */
+		PUT_TTL,					/* 15 Put - request, tuple is deleted once its time to live has passed */
+		/* Wire protocol negotiation */
+		PROTOCOL					/* 16 Protocol version requested by a client, or agreed by the server */
 	}
 
 	/**
@@ -90,6 +117,20 @@ public interface KVMessage {
 	 * 		null if not value is associated.
 	 */
 	public String getValue();
+
+	/**
+	 * Returns the time to live of a PUT_TTL message.
+	 * 
+	 * @return the time to live in ms, 0 for other messages.
+	 */
+	public long getTtl();
+
+	/**
+	 * Returns the request ID of a message received as a version 3 binary frame.
+	 * 
+	 * @return the request ID, 0 if the message carries none.
+	 */
+	public int getRequestId();
 	
 	/**
 	 * Returns an array of bytes that represent the ASCII coded message content.
@@ -99,6 +140,22 @@ public interface KVMessage {
 	 */
 	public byte[] getMessageBytes();
 
+	/**
+	 * Returns an array of bytes that represent the message as a binary (version 2) frame.
+	 * 
+	 * @return the content of this message as a binary frame.
+	 */
+	public byte[] getBinaryMessageBytes();
+
+	/**
+	 * Returns an array of bytes that represent the message as a binary frame
+	 * carrying the given request ID (version 3).
+	 * 
+	 * @param requestId request ID to send, 0 for a version 2 frame.
+	 * @return the content of this message as a binary frame.
+	 */
+	public byte[] getBinaryMessageBytes(int requestId);
+
 	/**
 	 * Returns the content of this TextMessage as a String.
 	 * 
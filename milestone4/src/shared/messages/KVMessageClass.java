@@ -20,12 +20,24 @@ public class KVMessageClass implements KVMessage, Serializable {
     private static final String DELIMITOR = "D" + "\n"; // "D" = 68, "\n" = 10
     private static final int MAX_KEY_SIZE = 20;
     private static final int MAX_VALUE_SIZE = 120 * 1024;
+    private static final StatusType[] OPCODES = StatusType.values();  // binary opcode -> status type
+
+    public static final int PROTOCOL_TEXT = 1;          // elements delimited by DELIMITOR
+    public static final int PROTOCOL_BINARY = 2;        // length-prefixed binary frames
+    public static final int PROTOCOL_PIPELINED = 3;     // binary frames, requests may carry request IDs
+    public static final int BINARY_FLAG = 0x80;         // set in the first byte of a binary frame
+    public static final int REQUEST_ID_FLAG = 0x40;     // set in the opcode of a binary frame with a request ID
+    public static final int OPCODE_MASK = 0x3F;         // status type ordinal within the first byte
 
     private byte[] messageBytes;        // message in byte array format
     private String messageString;       // message in string format
     private String statusTypeString;    // 1st element in message
     private String key;                 // 2nd element in message
     private String value;               // 3rd element in message
+    private long ttl;                   // time to live in ms of a PUT_TTL message, part of the 3rd element
+    private StatusType status;          // parsed status type, null until asked for
+    private byte[] binaryBytes;         // message as a binary frame, null until asked for
+    private int requestId;              // request ID of a received version 3 frame, 0 if none
 
     /**
      * Constructor 1: Constructing a new KVMessageClass.
@@ -43,16 +55,10 @@ public class KVMessageClass implements KVMessage, Serializable {
         this.key = elements[1];
         this.value = elements[2];
 
+        parseTtl();
         logger.debug("KVmessage constructor 1, key: " + key + ", value: " + value);
 
-        if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_SIZE){
-            logger.error("Key length exceeds maximum allowed size of " + MAX_KEY_SIZE);
-            throw new Exception("Key exceed maximum allowed size of " + MAX_KEY_SIZE + "bytes.");
-        }
-        if (value.getBytes(StandardCharsets.UTF_8).length > MAX_VALUE_SIZE){
-            logger.error("Value length exceeds maximum allowed size of " + MAX_VALUE_SIZE);
-            throw new Exception("Value exceed maximum allowed size of " + MAX_VALUE_SIZE + "bytes.");
-        }
+        checkSizes();
 
     }
 
@@ -71,16 +77,10 @@ public class KVMessageClass implements KVMessage, Serializable {
         this.key = elements[1];
         this.value = elements[2];
 
+        parseTtl();
         logger.debug("KVmessage constructor 2, key: " + key + ", value: " + value);
 
-        if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_SIZE){
-            logger.error("Key length exceeds maximum allowed size of " + MAX_KEY_SIZE);
-            throw new Exception("Key exceed maximum allowed size of " + MAX_KEY_SIZE + "bytes.");
-        }
-        if (value.getBytes(StandardCharsets.UTF_8).length > MAX_VALUE_SIZE){
-            logger.error("Value length exceeds maximum allowed size of " + MAX_VALUE_SIZE);
-            throw new Exception("Value exceed maximum allowed size of " + MAX_VALUE_SIZE + "bytes.");
-        }
+        checkSizes();
 
     }
 
@@ -94,23 +94,17 @@ public class KVMessageClass implements KVMessage, Serializable {
     public KVMessageClass(StatusType statusType, String key, String value) throws Exception {
 
         this.statusTypeString = getStatusString(statusType);        // 1st element
+        this.status = statusType;
         this.key = key;                                             // 2nd element
         this.value = value;                                         // 3rd element
 
-        this.messageString = statusTypeString + DELIMITOR + key + DELIMITOR + value + DELIMITOR;
-        this.messageBytes = messageString.getBytes(StandardCharsets.UTF_8);
-
-        logger.debug("KVmessage constructor 3, key: " + key + ", value: " + value);
-
-        if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_SIZE){
-            logger.error("Key length exceeds maximum allowed size of " + MAX_KEY_SIZE);
-            throw new Exception("Key exceed maximum allowed size of " + MAX_KEY_SIZE + "bytes.");
-        }
-        if (value.getBytes(StandardCharsets.UTF_8).length > MAX_VALUE_SIZE){
-            logger.error("Value length exceeds maximum allowed size of " + MAX_VALUE_SIZE);
-            throw new Exception("Value exceed maximum allowed size of " + MAX_VALUE_SIZE + "bytes.");
+        // message bytes are built by the first getMessageBytes(), binary senders never need them
+        if (logger.isDebugEnabled()){
+            logger.debug("KVmessage constructor 3, key: " + key + ", value: " + value);
         }
 
+        checkSizes();
+
     }
 
     /**
@@ -126,25 +120,249 @@ public class KVMessageClass implements KVMessage, Serializable {
         this.key = key;                                             // 2nd element
         this.value = value;                                         // 3rd element
 
-        this.messageString = statusTypeString + DELIMITOR + key + DELIMITOR + value + DELIMITOR;
-        this.messageBytes = messageString.getBytes(StandardCharsets.UTF_8);
+        // message bytes are built by the first getMessageBytes(), binary senders never need them
+        if (logger.isDebugEnabled()){
+            logger.debug("KVmessage constructor 4, key: " + key + ", value: " + value);
+        }
+
+        checkSizes();
+
+    }
+
+    /**
+     * Constructor 5: Constructing a new PUT_TTL KVMessageClass.
+     * 
+     * @param key second element, key string.
+     * @param value value string, sent after the time to live in the third element.
+     * @param ttl time to live in ms.
+     */
+    public KVMessageClass(String key, String value, long ttl) throws Exception {
+
+        this.statusTypeString = getStatusString(StatusType.PUT_TTL);   // 1st element
+        this.status = StatusType.PUT_TTL;
+        this.key = key;                                                 // 2nd element
+        this.value = value;                                             // 3rd element, after ttl
+        this.ttl = ttl;
+
+        // message bytes are built by the first getMessageBytes(), binary senders never need them
+        if (logger.isDebugEnabled()){
+            logger.debug("KVmessage constructor 5, key: " + key + ", value: " + value + ", ttl: " + ttl);
+        }
+
+        if (ttl <= 0){
+            throw new Exception("Time to live must be positive.");
+        }
+        checkSizes();
+
+    }
+
+    private KVMessageClass() {}
+
+    /**
+     * Construct a KVMessageClass from the elements of a received message,
+     * without building its message bytes until they are asked for.
+     * 
+     * @param statusTypeString first element, message status type string.
+     * @param key second element, key string.
+     * @param value third element, value string (time to live and value for PUT_TTL).
+     */
+    public static KVMessageClass fromElements(String statusTypeString, String key, String value) throws Exception {
+        KVMessageClass message = new KVMessageClass();
+        message.statusTypeString = statusTypeString;
+        message.key = key;
+        message.value = value;
+        message.parseTtl();
+
+        if (logger.isDebugEnabled()){
+            logger.debug("KVmessage from elements, key: " + key + ", value: " + message.value);
+        }
+        message.checkSizes();
+        return message;
+    }
+
+    /**
+     * Construct a KVMessageClass from the fields of a received binary frame.
+     * 
+     * @param opcode ordinal of the message status type.
+     * @param key key string.
+     * @param value value string.
+     * @param ttl time to live in ms of a PUT_TTL message, 0 otherwise.
+     */
+    public static KVMessageClass fromBinary(int opcode, String key, String value, long ttl) throws Exception {
+        return fromBinary(opcode, 0, key, value, ttl);
+    }
 
-        logger.debug("KVmessage constructor 4, key: " + key + ", value: " + value);
+    /**
+     * Construct a KVMessageClass from the fields of a received binary frame
+     * that may carry a request ID.
+     * 
+     * @param opcode ordinal of the message status type.
+     * @param requestId request ID of the frame, 0 if none.
+     * @param key key string.
+     * @param value value string.
+     * @param ttl time to live in ms of a PUT_TTL message, 0 otherwise.
+     */
+    public static KVMessageClass fromBinary(int opcode, int requestId, String key, String value, long ttl) throws Exception {
+        if (opcode < 0 || opcode >= OPCODES.length){
+            throw new Exception("Unknown opcode " + opcode + " in binary message.");
+        }
+        KVMessageClass message = new KVMessageClass();
+        message.status = OPCODES[opcode];
+        message.statusTypeString = message.status.name();
+        message.key = key;
+        message.value = value;
+        message.requestId = requestId;
+        if (message.status == StatusType.PUT_TTL){
+            if (ttl <= 0){
+                throw new Exception("Time to live must be positive.");
+            }
+            message.ttl = ttl;
+        }
 
-        if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_SIZE){
+        if (logger.isDebugEnabled()){
+            logger.debug("KVmessage from binary, key: " + key + ", value: " + value);
+        }
+        message.checkSizes();
+        return message;
+    }
+
+    private void checkSizes() throws Exception {
+        if (utf8Length(key) > MAX_KEY_SIZE){
             logger.error("Key length exceeds maximum allowed size of " + MAX_KEY_SIZE);
             throw new Exception("Key exceed maximum allowed size of " + MAX_KEY_SIZE + "bytes.");
         }
-        if (value.getBytes(StandardCharsets.UTF_8).length > MAX_VALUE_SIZE){
+        if (utf8Length(value) > MAX_VALUE_SIZE){
             logger.error("Value length exceeds maximum allowed size of " + MAX_VALUE_SIZE);
             throw new Exception("Value exceed maximum allowed size of " + MAX_VALUE_SIZE + "bytes.");
         }
+    }
 
+    /**
+     * Count the UTF-8 bytes of a string without encoding it.
+     */
+    private static int utf8Length(String string){
+        int length = 0;
+        for (int i = 0; i < string.length(); i++){
+            char c = string.charAt(i);
+            if (c < 0x80){
+                length += 1;
+            }
+            else if (c < 0x800){
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))){
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Split the time to live off the 3rd element of a received PUT_TTL message.
+     */
+    private void parseTtl() throws Exception {
+        if (!statusTypeString.equals("PUT_TTL")){
+            return;
+        }
+        int space = value.indexOf(' ');
+        try {
+            ttl = Long.parseLong(value.substring(0, space));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e){
+            logger.error("Malformed time to live in PUT_TTL message");
+            throw new Exception("Malformed time to live in PUT_TTL message.");
+        }
+        if (ttl <= 0){
+            throw new Exception("Time to live must be positive.");
+        }
+        value = value.substring(space + 1);
+    }
+
+    /**
+     * Encode the part of a message before its value, for senders that write
+     * the value bytes themselves followed by {@link #encodeTrailer()}.
+     */
+    public static byte[] encodeHeader(StatusType statusType, String key){
+        return (statusType.name() + DELIMITOR + key + DELIMITOR).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode the part of a message after its value.
+     */
+    public static byte[] encodeTrailer(){
+        return DELIMITOR.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode the part of a binary frame before its value, for senders that
+     * write the value bytes themselves. A binary frame has no trailer.
+     */
+    public static byte[] encodeBinaryHeader(StatusType statusType, String key, int valueLength){
+        return encodeBinaryHeader(statusType, key, valueLength, 0);
+    }
+
+    /**
+     * Encode the part of a binary frame before its value, carrying a request
+     * ID unless it is 0.
+     */
+    public static byte[] encodeBinaryHeader(StatusType statusType, String key, int valueLength, int requestId){
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[1 + requestIdSize(requestId) + varintSize(keyBytes.length) + varintSize(valueLength)
+                + keyBytes.length];
+        int position = writeOpcode(header, statusType, requestId);
+        position = writeVarint(header, position, keyBytes.length);
+        position = writeVarint(header, position, valueLength);
+        System.arraycopy(keyBytes, 0, header, position, keyBytes.length);
+        return header;
+    }
+
+    private static int requestIdSize(int requestId){
+        return (requestId != 0) ? varintSize(requestId & 0xFFFFFFFFL) : 0;
+    }
+
+    /**
+     * Write the opcode and the request ID, if any, at the start of a frame.
+     *
+     * @return position after them
+     */
+    private static int writeOpcode(byte[] bytes, StatusType statusType, int requestId){
+        if (requestId == 0){
+            bytes[0] = (byte) (BINARY_FLAG | statusType.ordinal());
+            return 1;
+        }
+        bytes[0] = (byte) (BINARY_FLAG | REQUEST_ID_FLAG | statusType.ordinal());
+        return writeVarint(bytes, 1, requestId & 0xFFFFFFFFL);
+    }
+
+    private static int varintSize(long number){
+        int size = 1;
+        while ((number >>>= 7) != 0){
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return position after the written varint
+     */
+    private static int writeVarint(byte[] bytes, int position, long number){
+        while ((number & ~0x7FL) != 0){
+            bytes[position++] = (byte) ((number & 0x7F) | 0x80);
+            number >>>= 7;
+        }
+        bytes[position++] = (byte) number;
+        return position;
     }
 
     @Override
     public StatusType getStatus(){
-        return getStatus(this.statusTypeString);
+        if (status == null){
+            status = getStatus(this.statusTypeString);
+        }
+        return status;
     }
 
     @Override
@@ -178,6 +396,10 @@ public class KVMessageClass implements KVMessage, Serializable {
                 return StatusType.SERVER_NOT_RESPONSIBLE;
             case "SUBSCRITION_UPDATE":
                 return StatusType.SUBSCRITION_UPDATE;
+            case "PUT_TTL":
+                return StatusType.PUT_TTL;
+            case "PROTOCOL":
+                return StatusType.PROTOCOL;
             default:
                 return StatusType.UNDEFINED;
         }
@@ -219,6 +441,10 @@ public class KVMessageClass implements KVMessage, Serializable {
                 return "SERVER_NOT_RESPONSIBLE";
             case SUBSCRITION_UPDATE:
                 return "SUBSCRITION_UPDATE";
+            case PUT_TTL:
+                return "PUT_TTL";
+            case PROTOCOL:
+                return "PROTOCOL";
             default:
                 return "UNDEFINED";
         }
@@ -234,14 +460,60 @@ public class KVMessageClass implements KVMessage, Serializable {
         return value;
     }
 
+    @Override
+    public long getTtl(){
+        return ttl;
+    }
+
+    @Override
+    public int getRequestId(){
+        return requestId;
+    }
+
     @Override
     public byte[] getMessageBytes(){
+        if (messageBytes == null){
+            String element = (ttl > 0) ? ttl + " " + value : value;
+            messageString = statusTypeString + DELIMITOR + key + DELIMITOR + element + DELIMITOR;
+            messageBytes = messageString.getBytes(StandardCharsets.UTF_8);
+        }
         return messageBytes;
     }
 
+    @Override
+    public byte[] getBinaryMessageBytes(){
+        if (binaryBytes == null){
+            binaryBytes = encodeBinary(requestId);
+        }
+        return binaryBytes;
+    }
+
+    @Override
+    public byte[] getBinaryMessageBytes(int requestId){
+        // the frame with the message's own request ID is cached, e.g. for a subscription update sent to many clients
+        return (requestId == this.requestId) ? getBinaryMessageBytes() : encodeBinary(requestId);
+    }
+
+    private byte[] encodeBinary(int requestId){
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        boolean hasTtl = getStatus() == StatusType.PUT_TTL;
+        byte[] bytes = new byte[1 + requestIdSize(requestId) + varintSize(keyBytes.length) + varintSize(valueBytes.length)
+                + (hasTtl ? varintSize(ttl) : 0) + keyBytes.length + valueBytes.length];
+        int position = writeOpcode(bytes, getStatus(), requestId);
+        position = writeVarint(bytes, position, keyBytes.length);
+        position = writeVarint(bytes, position, valueBytes.length);
+        if (hasTtl){
+            position = writeVarint(bytes, position, ttl);
+        }
+        System.arraycopy(keyBytes, 0, bytes, position, keyBytes.length);
+        System.arraycopy(valueBytes, 0, bytes, position + keyBytes.length, valueBytes.length);
+        return bytes;
+    }
+
     @Override
     public String getMessage(){
-        return Arrays.toString(messageBytes);
+        return Arrays.toString(getMessageBytes());
     }
 
     @Override
@@ -1,6 +1,8 @@
 package testing;
 
 import DiskStorage.DiskStorage;
+import DiskStorage.FsyncPolicy;
+import DiskStorage.GroupCommit;
 import app_kvServer.KVServer;
 import client.KVStore;
 import shared.messages.KVMessage;
@@ -85,6 +87,45 @@ public class AdditionalTest extends TestCase {
 		assertTrue(valTest==Val);
 	}
 
+	@Test
+	public void testDiskStorageWalReplay(){
+		DiskStorage DB = new DiskStorage("walDB", "ip:port");
+		DB.clearDisk();
+		DB.put("key", "value");
+		DB.put("gone", "value");
+		DB.delelteKV("gone");
+
+		// reopen without close, the writes only live in the write-ahead log
+		DiskStorage recovered = new DiskStorage("walDB", "ip:port");
+		assertEquals("value", recovered.get("key"));
+		assertEquals(null, recovered.get("gone"));
+		recovered.clearDisk();
+		recovered.close();
+		DB.close();
+	}
+
+	@Test
+	public void testDiskStorageBackgroundCheckpoint(){
+		DiskStorage DB = new DiskStorage("walDB", "ip:port", FsyncPolicy.OS, GroupCommit.DEFAULT_SYNC_INTERVAL);
+		DB.clearDisk();
+		// several checkpoints rotate the log while later rounds overwrite earlier ones
+		for (int i = 0; i < 25000; i++) {
+			assertTrue(DB.put("key" + (i % 1000), "value" + i));
+		}
+		DB.delelteKV("key0");
+
+		// reopen without close, the rotated and current logs are replayed on the last checkpoint
+		DiskStorage recovered = new DiskStorage("walDB", "ip:port");
+		assertEquals(null, recovered.get("key0"));
+		for (int i = 1; i < 1000; i++) {
+			assertEquals("value" + (24000 + i), recovered.get("key" + i));
+		}
+		assertEquals(999, recovered.getAllKV().size());
+		recovered.clearDisk();
+		recovered.close();
+		DB.close();
+	}
+
 	@Test
 	public void testMultiClients() {
 
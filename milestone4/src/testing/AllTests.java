@@ -24,6 +24,13 @@ public class AllTests {
 		clientSuite.addTestSuite(ConnectionTest.class);				// server-client connection
 		clientSuite.addTestSuite(InteractionTest.class);			// server-client interaction
 		clientSuite.addTestSuite(AdditionalTest.class);				// server-client disk storage and communication module
+		clientSuite.addTestSuite(NearCacheTest.class);				// client near cache kept coherent by subscription updates
+		clientSuite.addTestSuite(ExpiryTest.class);				// time-to-live puts, lazy and background expiry
+		clientSuite.addTestSuite(FrameReaderTest.class);			// buffered message framing
+		clientSuite.addTestSuite(ProtocolTest.class);				// binary protocol negotiation and framing
+		clientSuite.addTestSuite(NioFrontEndTest.class);			// selector-based server front end
+		clientSuite.addTestSuite(NettyFrontEndTest.class);			// Netty server front end
+		clientSuite.addTestSuite(PipeliningTest.class);			// pipelined requests matched by request ID
 
 		// M2 & M3: Distributed Storage Server Tests (Eventual Consistency Model)
 		clientSuite.addTestSuite(ECSBasicTests.class);				// ecs nodes management and server-client interaction
@@ -35,6 +42,20 @@ public class AllTests {
 		clientSuite.addTestSuite(StrictConsistencyTest.class);		// distributed system stricter consistency rules
 		clientSuite.addTestSuite(DataSubscriptionTest.class);		// distributed system data subscription rules
 
+		// Storage Engine Tests (no KVServer needed)
+		clientSuite.addTestSuite(DiskStorageLogTest.class);			// log-structured disk storage
+		clientSuite.addTestSuite(DiskStorageRandomAccessTest.class);	// memory-mapped hash file disk storage
+		clientSuite.addTestSuite(DiskStorageLSMTest.class);			// LSM-tree disk storage
+		clientSuite.addTestSuite(RingIndexTest.class);				// hash ring ordered key index
+		clientSuite.addTestSuite(CompactIndexTest.class);			// primitive open-addressing key index
+		clientSuite.addTestSuite(ShardedDiskStorageTest.class);		// key-hash sharded disk storage
+		clientSuite.addTestSuite(KVCacheTest.class);				// server cache eviction policies
+		clientSuite.addTestSuite(CacheBenchmarkTest.class);			// cache hit rates on a skewed trace
+		clientSuite.addTestSuite(OffHeapCacheTest.class);			// off-heap slab value cache
+		clientSuite.addTestSuite(NegativeCacheTest.class);			// cache of recently missed keys
+		clientSuite.addTestSuite(CacheWarmerTest.class);			// hot key snapshot and cache warm-up
+		clientSuite.addTestSuite(CompressionTest.class);			// value compression in storage and transfers
+
 		// Perf: Commenting out performance test to save some time when running tests 
 		// clientSuite.addTestSuite(PerformanceTest.class);			// performance tests for non-distributed service
 		// clientSuite.addTestSuite(ECSPerformanceTest.class);		// performance tests for distributed service
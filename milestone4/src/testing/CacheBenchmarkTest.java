@@ -0,0 +1,81 @@
+package testing;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.cache.FIFOCache;
+import shared.cache.KVCache;
+import shared.cache.LFUCache;
+import shared.cache.LRUCache;
+import shared.cache.TinyLFUCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays the same skewed trace against every cache strategy and compares hit rates.
+ */
+public class CacheBenchmarkTest extends TestCase {
+
+	private static final int KEYS = 10000;
+	private static final int CACHE_SIZE = 500;
+	private static final int OPERATIONS = 200000;
+	private static final int SCAN_EVERY = 20000;		// operations between full scans
+	private static final int SCAN_LENGTH = 2000;		// distinct keys read by one scan
+	private static final double ZIPF_EXPONENT = 0.99;
+
+	/**
+	 * Zipfian key popularity with periodic one-off scans, like the range walks
+	 * of data replication cutting through regular client traffic.
+	 */
+	private static List<String> trace() {
+		double[] cdf = new double[KEYS];
+		double sum = 0;
+		for (int i = 0; i < KEYS; i++) {
+			sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cdf[i] = sum;
+		}
+		Random random = new Random(419);
+		List<String> trace = new ArrayList<String>(OPERATIONS + OPERATIONS / SCAN_EVERY * SCAN_LENGTH);
+		int scans = 0;
+		for (int op = 0; op < OPERATIONS; op++) {
+			if (op > 0 && op % SCAN_EVERY == 0) {
+				for (int i = 0; i < SCAN_LENGTH; i++) {
+					trace.add("scan" + scans + "-" + i);
+				}
+				scans++;
+			}
+			int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+			trace.add("key" + (rank < 0 ? -rank - 1 : rank));
+		}
+		return trace;
+	}
+
+	private static double replay(KVCache cache, List<String> trace) {
+		for (String key : trace) {
+			if (cache.get(key) == null) {
+				cache.put(key, "value");
+			}
+		}
+		return cache.getHitRate();
+	}
+
+	@Test
+	public void testCacheStrategyHitRates() {
+		List<String> trace = trace();
+		KVCache[] caches = {new FIFOCache(CACHE_SIZE), new LRUCache(CACHE_SIZE),
+				new LFUCache(CACHE_SIZE), new TinyLFUCache(CACHE_SIZE)};
+		double[] hitRates = new double[caches.length];
+		for (int i = 0; i < caches.length; i++) {
+			long start = System.nanoTime();
+			hitRates[i] = replay(caches[i], trace);
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.out.println(String.format("%-13s hit rate %.4f, %d evictions, %d ms",
+					caches[i].getClass().getSimpleName(), hitRates[i], caches[i].getEvictions(), millis));
+		}
+		double fifo = hitRates[0], lru = hitRates[1], tinyLfu = hitRates[3];
+		assertTrue(lru >= fifo);
+		assertTrue(tinyLfu > lru);
+	}
+}
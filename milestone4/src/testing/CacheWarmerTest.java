@@ -0,0 +1,233 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.KVServerConfig;
+import DiskStorage.CacheWarmer;
+import org.junit.Test;
+import junit.framework.TestCase;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.proto.ConnectRequest;
+import org.apache.zookeeper.proto.ConnectResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.RequestHeader;
+import shared.cache.LFUCache;
+import shared.cache.LRUCache;
+import shared.cache.TinyLFUCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CacheWarmerTest extends TestCase {
+
+	private static final int PORT = 50017;
+	private static final int ZK_PORT = 52181;
+
+	@Test
+	public void testHottestKeys() {
+		LRUCache lru = new LRUCache(4);
+		lru.put("a", "1");
+		lru.put("b", "2");
+		lru.put("c", "3");
+		lru.get("a");
+		assertEquals(Arrays.asList("a", "c", "b"), lru.hottestKeys(10));
+		assertEquals(Arrays.asList("a", "c"), lru.hottestKeys(2));
+
+		LFUCache lfu = new LFUCache(4);
+		lfu.put("a", "1");
+		lfu.put("b", "2");
+		lfu.put("c", "3");
+		lfu.get("b");
+		lfu.get("b");
+		lfu.get("a");
+		assertEquals(Arrays.asList("b", "a", "c"), lfu.hottestKeys(10));
+
+		TinyLFUCache tinyLfu = new TinyLFUCache(100);
+		for (int i = 0; i < 10; i++) {
+			tinyLfu.put("key" + i, "value");
+		}
+		assertEquals(10, tinyLfu.hottestKeys(100).size());
+		assertEquals(3, tinyLfu.hottestKeys(3).size());
+	}
+
+	@Test
+	public void testSnapshotFile() throws Exception {
+		File file = new File("./data", "hotkeys.warmertest");
+		new File("./data").mkdirs();
+		List<String> keys = Arrays.asList("hot", "warm", "k\u00e4lt");
+		CacheWarmer.write(file, keys);
+		assertEquals(keys, CacheWarmer.read(file));
+
+		// a damaged snapshot is ignored
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(6);
+		raf.write('X');
+		raf.close();
+		assertTrue(CacheWarmer.read(file).isEmpty());
+		file.delete();
+		assertTrue(CacheWarmer.read(file).isEmpty());
+	}
+
+	@Test
+	public void testWarmUpAfterRestart() throws Exception {
+		KVServerConfig config = KVServerConfig.parse(new String[]{"hotKeys=3"}, 0);
+		KVServer kvServer = new KVServer(PORT, 4, "LRU", config);
+		kvServer.clearStorage();
+		for (int i = 0; i < 8; i++) {
+			kvServer.putKV("key" + i, "value" + i);
+		}
+		kvServer.getKV("key5");
+		kvServer.close();
+
+		KVServer restarted = new KVServer(PORT, 4, "LRU", config);
+		try {
+			assertTrue(restarted.getCacheWarmer().awaitWarm(5000));
+			assertEquals(3, restarted.getCacheWarmer().getPreloaded());
+			assertTrue(restarted.inCache("key5"));
+			assertTrue(restarted.inCache("key7"));
+			assertTrue(restarted.inCache("key6"));
+			assertFalse(restarted.inCache("key4"));
+			assertEquals("value5", restarted.getKV("key5"));
+			assertEquals(1, restarted.getCache().getHits());
+		} finally {
+			restarted.clearCache();
+			restarted.clearStorage();
+			restarted.close();
+		}
+	}
+
+	@Test
+	public void testDistributedWarmUpAfterRestart() throws Exception {
+		// the distributed constructor waits for a ZooKeeper session
+		StubZooKeeper zk = new StubZooKeeper(ZK_PORT);
+		String serverName = "localhost:" + (PORT + 1);
+		// the options ECS adds for a node with a cache
+		KVServerConfig config = KVServerConfig.parse(new String[]{"cacheSize=16", "cacheStrategy=LRU", "hotKeys=16"}, 0);
+		try {
+			// caching and hot key snapshots are off unless asked for
+			KVServer plain = new KVServer(serverName, ZK_PORT, "localhost");
+			assertNull(plain.getCache());
+			assertNull(plain.getCacheWarmer());
+			plain.close();
+
+			KVServer kvServer = new KVServer(serverName, ZK_PORT, "localhost", config);
+			kvServer.clearStorage();
+			for (int i = 0; i < 8; i++) {
+				kvServer.putKV("key" + i, "value" + i);
+			}
+			kvServer.close();
+
+			KVServer restarted = new KVServer(serverName, ZK_PORT, "localhost", config);
+			try {
+				assertTrue(restarted.getCacheWarmer().awaitWarm(5000));
+				assertEquals(8, restarted.getCacheWarmer().getPreloaded());
+				assertTrue(restarted.inCache("key5"));
+				assertEquals("value5", restarted.getKV("key5"));
+				assertEquals(1, restarted.getCache().getHits());
+			} finally {
+				restarted.clearCache();
+				restarted.clearStorage();
+				restarted.close();
+			}
+		} finally {
+			zk.close();
+		}
+	}
+
+	/**
+	 * ZooKeeper server without any znodes: it opens sessions, answers pings
+	 * and fails every other request with NONODE, enough for a distributed
+	 * KVServer to start and close without an ECS.
+	 */
+	private static class StubZooKeeper implements Runnable {
+
+		private final ServerSocket serverSocket;
+		private final List<Socket> sockets = new ArrayList<Socket>();
+
+		StubZooKeeper(int port) throws IOException {
+			serverSocket = new ServerSocket(port);
+			Thread thread = new Thread(this, "stub-zookeeper");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					synchronized (sockets) {
+						sockets.add(socket);
+					}
+					Thread session = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					}, "stub-zookeeper-session");
+					session.setDaemon(true);
+					session.start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private static byte[] readFrame(DataInputStream input) throws IOException {
+			byte[] frame = new byte[input.readInt()];
+			input.readFully(frame);
+			return frame;
+		}
+
+		private static void writeFrame(DataOutputStream output, ByteArrayOutputStream frame) throws IOException {
+			output.writeInt(frame.size());
+			frame.writeTo(output);
+			output.flush();
+		}
+
+		private static void serve(Socket socket) {
+			try {
+				DataInputStream input = new DataInputStream(socket.getInputStream());
+				DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+				ConnectRequest connect = new ConnectRequest();
+				connect.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(readFrame(input))), "connect");
+				ByteArrayOutputStream frame = new ByteArrayOutputStream();
+				BinaryOutputArchive archive = BinaryOutputArchive.getArchive(frame);
+				new ConnectResponse(0, connect.getTimeOut(), 1, new byte[16]).serialize(archive, "connect");
+				archive.writeBool(false, "readOnly");
+				writeFrame(output, frame);
+				while (true) {
+					RequestHeader request = new RequestHeader();
+					request.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(readFrame(input))), "header");
+					int err = (request.getType() == OpCode.ping) ? 0 : KeeperException.Code.NONODE.intValue();
+					frame.reset();
+					new ReplyHeader(request.getXid(), 0, err).serialize(archive, "header");
+					writeFrame(output, frame);
+				}
+			} catch (IOException e) {
+				// session closed
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+			synchronized (sockets) {
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+			}
+		}
+	}
+}
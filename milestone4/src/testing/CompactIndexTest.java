@@ -0,0 +1,95 @@
+package testing;
+
+import DiskStorage.CompactIndex;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class CompactIndexTest extends TestCase {
+
+	@Test
+	public void testCompactIndexOperations() {
+		CompactIndex index = new CompactIndex();
+		assertEquals(CompactIndex.NO_POINTER, index.get("key"));
+		assertEquals(CompactIndex.NO_POINTER, index.put("key", 1));
+		assertEquals(1, index.put("key", 2));
+		assertFalse(index.replace("key", 1, 3));
+		assertTrue(index.replace("key", 2, 3));
+		assertEquals(3, index.get("key"));
+		assertTrue(index.containsKey("key"));
+
+		// empty, non-ASCII, maximum length and overflowing keys
+		index.put("", 4);
+		index.put("k\u00e4y", 5);
+		index.put("12345678901234567890123", 6);
+		index.put("123456789012345678901234", 7);
+		assertEquals(4, index.get(""));
+		assertEquals(5, index.get("k\u00e4y"));
+		assertEquals(6, index.get("12345678901234567890123"));
+		assertEquals(7, index.get("123456789012345678901234"));
+		assertEquals(5, index.size());
+		assertEquals(5, index.keys().size());
+
+		assertEquals(3, index.remove("key"));
+		assertEquals(CompactIndex.NO_POINTER, index.remove("key"));
+		assertEquals(7, index.remove("123456789012345678901234"));
+		assertEquals(3, index.size());
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(CompactIndex.NO_POINTER, index.get(""));
+	}
+
+	@Test
+	public void testCompactIndexMatchesHashMap() {
+		CompactIndex index = new CompactIndex();
+		Map<String, Long> expected = new HashMap<String, Long>();
+		Random random = new Random(18);
+		for (int i = 0; i < 200000; i++) {
+			String key = "key" + random.nextInt(20000);
+			long pointer = random.nextLong() & Long.MAX_VALUE;
+			if (random.nextInt(3) == 0) {
+				Long old = expected.remove(key);
+				assertEquals(old == null ? CompactIndex.NO_POINTER : old, index.remove(key));
+			}
+			else {
+				Long old = expected.put(key, pointer);
+				assertEquals(old == null ? CompactIndex.NO_POINTER : old, index.put(key, pointer));
+			}
+		}
+		assertEquals(expected.size(), index.size());
+		final Map<String, Long> visited = new HashMap<String, Long>();
+		index.forEach(new CompactIndex.Visitor() {
+			@Override
+			public void visit(String key, long pointer) {
+				visited.put(key, pointer);
+			}
+		});
+		assertEquals(expected, visited);
+		for (int i = 0; i < 20000; i++) {
+			Long pointer = expected.get("key" + i);
+			assertEquals(pointer == null ? CompactIndex.NO_POINTER : pointer, index.get("key" + i));
+		}
+	}
+
+	@Test
+	public void testCompactIndexFootprint() {
+		CompactIndex index = new CompactIndex();
+		long tableBytes = index.getTableBytes();
+		double fullest = Double.MAX_VALUE;
+		for (int i = 0; i < 500000; i++) {
+			index.put("user" + i, i);
+			if (index.getTableBytes() != tableBytes) {
+				// the table just grew, the previous key count filled it
+				fullest = Math.min(fullest, (double) tableBytes / i);
+				tableBytes = index.getTableBytes();
+			}
+		}
+		System.out.println("Compact index: " + index.getTableBytes() + " bytes for " + index.size() +
+				" keys, " + fullest + " bytes per key before growing");
+		assertTrue(fullest < 40);
+		assertTrue((double) index.getTableBytes() / index.size() < 80);
+	}
+}
@@ -0,0 +1,150 @@
+package testing;
+
+import DiskStorage.DiskStorage;
+import DiskStorage.DiskStorageLSM;
+import DiskStorage.DiskStorageLog;
+import DiskStorage.FsyncPolicy;
+import DiskStorage.GroupCommit;
+import DiskStorage.LogRecord;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.Compression;
+import shared.messages.KVAdminMessage;
+import shared.messages.KVAdminMessage.KVAdminType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class CompressionTest extends TestCase {
+
+	private static final String SERVER_NAME = "compressiontest:0";
+	private static final int THRESHOLD = 64;
+
+	private static String repetitive(int length, char c) {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < length) {
+			builder.append("value-").append(c).append('-').append(builder.length() % 7);
+		}
+		return builder.substring(0, length);
+	}
+
+	@Test
+	public void testDeflateRoundTrip() throws Exception {
+		byte[] raw = repetitive(4096, 'a').getBytes(StandardCharsets.UTF_8);
+		byte[] deflated = Compression.deflate(raw);
+		assertNotNull(deflated);
+		assertTrue(deflated.length < raw.length / 4);
+		assertTrue(Arrays.equals(raw, Compression.inflate(deflated)));
+
+		// random bytes do not get smaller
+		byte[] noise = new byte[4096];
+		new Random(419).nextBytes(noise);
+		assertNull(Compression.deflate(noise));
+
+		try {
+			Compression.inflate(Arrays.copyOf(deflated, deflated.length / 2));
+			fail("Truncated data must not inflate");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLogRecordCompression() throws Exception {
+		String value = repetitive(1000, 'b');
+		LogRecord small = LogRecord.create(1, "key", "short", THRESHOLD);
+		LogRecord large = LogRecord.create(2, "key", value, THRESHOLD);
+		LogRecord plain = LogRecord.create(3, "key", value, 0);
+		assertFalse(small.isCompressed());
+		assertTrue(large.isCompressed());
+		assertFalse(plain.isCompressed());
+		assertTrue(large.size() < plain.size());
+
+		ByteBuffer encoded = large.encode();
+		LogRecord decoded = LogRecord.decode(encoded);
+		assertTrue(decoded.isCompressed());
+		assertEquals(value, decoded.getValue());
+		assertNull(LogRecord.create(4, "key", null, THRESHOLD).getValue());
+	}
+
+	@Test
+	public void testLogStorageCompression() {
+		DiskStorageLog DB = new DiskStorageLog("compressionLogDB", SERVER_NAME);
+		DB.clearDisk();
+		DB.setCompressionThreshold(THRESHOLD);
+		try {
+			for (int i = 0; i < 200; i++) {
+				assertTrue(DB.put("key" + i, repetitive(2000, (char) ('a' + i % 26))));
+			}
+			assertTrue(DB.getTotalBytes() < 200 * 2000 / 4);
+			// overwrite half of the keys so compaction copies compressed records
+			for (int i = 0; i < 100; i++) {
+				assertTrue(DB.put("key" + i, "small" + i));
+			}
+			DB.compact();
+			DB.close();
+
+			// values written compressed are readable without the threshold set
+			DB = new DiskStorageLog("compressionLogDB", SERVER_NAME);
+			assertEquals("small0", DB.get("key0"));
+			assertEquals(repetitive(2000, (char) ('a' + 150 % 26)), DB.get("key150"));
+			assertEquals(200, DB.getAllKV().size());
+		} finally {
+			DB.clearDisk();
+			DB.close();
+		}
+	}
+
+	@Test
+	public void testWalAndLSMCompression() {
+		String value = repetitive(5000, 'c');
+		DiskStorage properties = new DiskStorage("compressionDB", SERVER_NAME, FsyncPolicy.OS, GroupCommit.DEFAULT_SYNC_INTERVAL);
+		properties.clearDisk();
+		properties.setCompressionThreshold(THRESHOLD);
+		DiskStorageLSM lsm = new DiskStorageLSM("compressionLsmDB", SERVER_NAME, DiskStorageLSM.DEFAULT_MEMTABLE_SIZE,
+				FsyncPolicy.OS, GroupCommit.DEFAULT_SYNC_INTERVAL);
+		lsm.clearDisk();
+		lsm.setCompressionThreshold(THRESHOLD);
+		try {
+			assertTrue(properties.put("key", value));
+			assertEquals(value, properties.get("key"));
+			assertTrue(lsm.put("key", value));
+			assertEquals(value, lsm.get("key"));
+			lsm.flush();
+			assertEquals(value, lsm.get("key"));
+			assertEquals(value, lsm.getAllKV().get("key"));
+		} finally {
+			properties.clearDisk();
+			properties.close();
+			lsm.clearDisk();
+			lsm.close();
+		}
+	}
+
+	@Test
+	public void testAdminMessageCompression() throws Exception {
+		Map<String, String> data = new HashMap<String, String>();
+		for (int i = 0; i < 50; i++) {
+			data.put("key" + i, repetitive(500, 'd') + "\u00e4");
+		}
+		KVAdminMessage msg = new KVAdminMessage("localhost:50000", KVAdminType.TRANSFER_KV, null, data);
+		byte[] raw = msg.toBytes();
+		byte[] compressed = msg.toBytes(THRESHOLD);
+		assertTrue(compressed.length < raw.length / 4);
+		assertEquals(msg.toString(), KVAdminMessage.decode(compressed));
+		assertEquals(msg.toString(), KVAdminMessage.decode(raw));
+
+		KVAdminMessage received = new KVAdminMessage(KVAdminMessage.decode(compressed));
+		assertEquals(KVAdminType.TRANSFER_KV, received.getMessageType());
+		assertEquals(data, received.getMessageKVData());
+
+		// small messages stay plain
+		KVAdminMessage ack = new KVAdminMessage("localhost:50000", KVAdminType.ACK_TRANSFER, null, null);
+		assertEquals(new String(ack.toBytes(THRESHOLD), StandardCharsets.UTF_8), ack.toString());
+	}
+}
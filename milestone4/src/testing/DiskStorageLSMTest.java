@@ -0,0 +1,139 @@
+package testing;
+
+import DiskStorage.DiskStorageLSM;
+import DiskStorage.FsyncPolicy;
+import DiskStorage.GroupCommit;
+import DiskStorage.HashRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+public class DiskStorageLSMTest extends TestCase {
+
+	private static final String SERVER_NAME = "lsmtest:0";
+	private static final long SMALL_MEMTABLE = 4 * 1024;
+
+	DiskStorageLSM DB;
+
+	private DiskStorageLSM open() {
+		return new DiskStorageLSM("lsmDB", SERVER_NAME, SMALL_MEMTABLE, FsyncPolicy.INTERVAL, GroupCommit.DEFAULT_SYNC_INTERVAL);
+	}
+
+	@Before
+	public void setUp() {
+		DB = open();
+		DB.clearDisk();
+	}
+
+	@After
+	public void tearDown() {
+		DB.clearDisk();
+		DB.close();
+	}
+
+	@Test
+	public void testLSMStorageSequence() {
+		assertTrue(DB.put("dummy", "dddddddddddd"));
+		assertEquals("dddddddddddd", DB.get("dummy"));
+		assertEquals(null, DB.get("dddd"));
+
+		assertTrue(DB.put("dummy", "mmmmmmm"));
+		assertEquals("mmmmmmm", DB.get("dummy"));
+
+		assertTrue(DB.put("Dummy_11", "mmmmmmm"));
+		assertTrue(DB.delelteKV("dummy"));
+		assertFalse(DB.delelteKV("dummy"));
+		assertEquals(null, DB.get("dummy"));
+		assertEquals("mmmmmmm", DB.get("Dummy_11"));
+		assertFalse(DB.onDisk("dummy"));
+		assertTrue(DB.onDisk("Dummy_11"));
+	}
+
+	@Test
+	public void testLSMStorageRecovery() {
+		DB.put("flushed", "value");
+		DB.flush();
+		DB.put("logged", "value");
+		DB.delelteKV("flushed");
+		DB.close();
+
+		// memtable content comes back from the write-ahead log
+		DB = open();
+		assertEquals("value", DB.get("logged"));
+		assertEquals(null, DB.get("flushed"));
+		assertEquals(1, DB.getAllKV().size());
+	}
+
+	@Test
+	public void testLSMStorageMerge() {
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 500; i++) {
+				assertTrue(DB.put("key" + i, "value" + round + "-" + i));
+			}
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(DB.delelteKV("key" + i));
+		}
+		DB.flush();
+		DB.compact();
+		assertTrue(DB.getFlushCount() > 0);
+		assertTrue(DB.getMergeCount() > 0);
+		assertTrue(DB.getLevelSizes().get(0) < 4);
+
+		assertEquals(null, DB.get("key0"));
+		assertEquals("value2-499", DB.get("key499"));
+		assertEquals(400, DB.getAllKV().size());
+
+		// merged tables must recover to the same state
+		DB.close();
+		DB = open();
+		assertEquals(null, DB.get("key99"));
+		assertEquals("value2-100", DB.get("key100"));
+		assertEquals(400, DB.getAllKV().size());
+	}
+
+	@Test
+	public void testLSMStorageRange() {
+		for (int i = 0; i < 300; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		DB.flush();
+		for (int i = 0; i < 300; i += 2) {
+			DB.put("key" + i, "updated" + i);
+		}
+		BigInteger start = HashRange.mdKey("key10");
+		BigInteger stop = HashRange.mdKey("key20");
+		Map<String, String> within = DB.getKVWithinRange(start, stop);
+		Map<String, String> outOfRange = DB.getKVOutOfRange(start, stop);
+		assertEquals(300, within.size() + outOfRange.size());
+		for (String key : within.keySet()) {
+			assertTrue(HashRange.keyWithinRange(HashRange.mdKey(key), start, stop));
+			assertFalse(outOfRange.containsKey(key));
+		}
+		assertEquals("updated0", DB.getAllKV().get("key0"));
+		assertEquals("value1", DB.getAllKV().get("key1"));
+	}
+
+	@Test
+	public void testLSMStorageBloomFilter() {
+		for (int i = 0; i < 2000; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		DB.flush();
+		DB.compact();
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(null, DB.get("missing" + i));
+		}
+		// most misses never touch a table file
+		assertTrue(DB.getBloomNegatives() > 0);
+		assertTrue(DB.getBloomFalsePositiveRate() < 0.05);
+		for (int i = 0; i < 2000; i += 100) {
+			assertEquals("value" + i, DB.get("key" + i));
+		}
+		assertTrue(DB.getBloomHits() > 0);
+	}
+}
@@ -0,0 +1,247 @@
+package testing;
+
+import DiskStorage.DiskStorageLog;
+import DiskStorage.FsyncPolicy;
+import DiskStorage.HashRange;
+import DiskStorage.LogPointer;
+import DiskStorage.LogRecord;
+import DiskStorage.LogRecovery;
+import DiskStorage.LogSegment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DiskStorageLogTest extends TestCase {
+
+	private static final String SERVER_NAME = "logtest:0";
+
+	DiskStorageLog DB;
+
+	@Before
+	public void setUp() {
+		DB = new DiskStorageLog(SERVER_NAME);
+		DB.clearDisk();
+	}
+
+	@After
+	public void tearDown() {
+		DB.clearDisk();
+		DB.close();
+	}
+
+	@Test
+	public void testLogStorageSequence() {
+		assertTrue(DB.put("dummy", "dddddddddddd"));
+		assertEquals("dddddddddddd", DB.get("dummy"));
+		assertEquals(null, DB.get("dddd"));
+
+		assertTrue(DB.put("dummy", "mmmmmmm"));
+		assertEquals("mmmmmmm", DB.get("dummy"));
+
+		assertTrue(DB.put("Dummy_11", "mmmmmmm"));
+		assertTrue(DB.delelteKV("dummy"));
+		assertFalse(DB.delelteKV("dummy"));
+		assertEquals(null, DB.get("dummy"));
+		assertEquals("mmmmmmm", DB.get("Dummy_11"));
+		assertFalse(DB.onDisk("dummy"));
+		assertTrue(DB.onDisk("Dummy_11"));
+	}
+
+	@Test
+	public void testLogStorageRecovery() {
+		for (int i = 0; i < 100; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		DB.put("key0", "updated");
+		DB.delelteKV("key1");
+		DB.close();
+
+		DB = new DiskStorageLog(SERVER_NAME);
+		assertEquals("updated", DB.get("key0"));
+		assertEquals(null, DB.get("key1"));
+		assertEquals("value99", DB.get("key99"));
+		assertEquals(99, DB.getAllKV().size());
+	}
+
+	@Test
+	public void testLogStorageTornWrite() throws Exception {
+		DB.put("key", "value");
+		DB.put("torn", "value");
+		DB.close();
+
+		// chop the last few bytes off as if the server crashed during an append
+		File segment = new File("./data/logDB." + SERVER_NAME, "00000000.log");
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		DB = new DiskStorageLog(SERVER_NAME);
+		assertEquals("value", DB.get("key"));
+		assertEquals(null, DB.get("torn"));
+		assertTrue(DB.put("after", "crash"));
+		assertEquals("crash", DB.get("after"));
+	}
+
+	@Test
+	public void testLogStorageCompaction() {
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 100; i++) {
+				DB.put("key" + i, "value" + round + "-" + i);
+			}
+		}
+		for (int i = 0; i < 50; i++) {
+			DB.delelteKV("key" + i);
+		}
+		long totalBefore = DB.getTotalBytes();
+		assertTrue(DB.getLiveRatio() < 0.2);
+
+		long reclaimed = DB.compact();
+		assertTrue(reclaimed > 0);
+		assertEquals(totalBefore - reclaimed, DB.getTotalBytes());
+		assertEquals(1.0, DB.getLiveRatio(), 0.0001);
+		assertEquals(null, DB.get("key0"));
+		assertEquals("value4-99", DB.get("key99"));
+
+		// compacted segments must recover to the same state
+		DB.close();
+		DB = new DiskStorageLog(SERVER_NAME);
+		assertEquals(null, DB.get("key0"));
+		assertEquals("value4-99", DB.get("key99"));
+		assertEquals(50, DB.getAllKV().size());
+	}
+
+	@Test
+	public void testLogStorageCheckpointReplay() {
+		for (int i = 0; i < 100; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		DB.checkpoint();
+		DB.put("key0", "updated");
+		DB.delelteKV("key1");
+		DB.put("tail", "value");
+
+		// open a second instance without closing the first, as after a crash
+		DiskStorageLog crashed = DB;
+		DB = new DiskStorageLog(SERVER_NAME);
+		assertEquals(3, DB.getRecoveryReplayed());
+		assertEquals("updated", DB.get("key0"));
+		assertEquals(null, DB.get("key1"));
+		assertEquals("value99", DB.get("key99"));
+		assertEquals("value", DB.get("tail"));
+		assertEquals(100, DB.getAllKV().size());
+		crashed.close();
+	}
+
+	@Test
+	public void testLogStorageCheckpointAfterCompaction() {
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 100; i++) {
+				DB.put("key" + i, "value" + round + "-" + i);
+			}
+		}
+		DB.compact();
+		DB.put("key0", "after");
+		DB.close();
+
+		DB = new DiskStorageLog(SERVER_NAME);
+		assertEquals(0, DB.getRecoveryReplayed());
+		assertEquals("after", DB.get("key0"));
+		assertEquals("value2-99", DB.get("key99"));
+		assertEquals(100, DB.getAllKV().size());
+	}
+
+	@Test
+	public void testLogStorageParallelRecovery() throws Exception {
+		File dir = new File("./data/recoverytest." + SERVER_NAME);
+		dir.mkdirs();
+		List<LogSegment> segments = new ArrayList<LogSegment>();
+		long seq = 0;
+		for (int id = 0; id < 8; id++) {
+			LogSegment segment = LogSegment.open(dir, id);
+			segment.truncate(0);
+			for (int i = 0; i < 100; i++) {
+				segment.append(LogRecord.encode(seq++, "key" + i, "value" + id + "-" + i));
+			}
+			if (id == 7) {
+				segment.append(LogRecord.encode(seq++, "key0", null));
+			}
+			segments.add(segment);
+		}
+		// corrupt the tail of one segment, scanning it must stop there
+		segments.get(3).append(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+
+		// scan the newest segments first to show order does not matter
+		List<LogSegment> shuffled = new ArrayList<LogSegment>(segments);
+		Collections.reverse(shuffled);
+		LogRecovery.Result result = LogRecovery.run(shuffled, new HashMap<Integer, Long>(), 0, 4);
+		assertEquals(801, result.getReplayed());
+		assertEquals(800, result.getMaxSeq());
+		assertTrue(result.getEntries().get("key0").isTombstone());
+		assertFalse(result.getEntries().get("key99").isTombstone());
+		assertEquals(segments.get(3).size() - 3, (long) result.getValidEnds().get(3));
+		assertEquals(segments.get(7).size(), (long) result.getValidEnds().get(7));
+
+		long pointer = result.getEntries().get("key99").getPointer();
+		assertEquals("value7-99", segments.get(7).read(LogPointer.offset(pointer),
+				LogPointer.length(pointer)).getValue());
+		for (LogSegment segment : segments) {
+			segment.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testLogStorageRange() {
+		for (int i = 0; i < 50; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		BigInteger start = HashRange.mdKey("key10");
+		BigInteger stop = HashRange.mdKey("key20");
+		Map<String, String> within = DB.getKVWithinRange(start, stop);
+		Map<String, String> outOfRange = DB.getKVOutOfRange(start, stop);
+		assertEquals(50, within.size() + outOfRange.size());
+		for (String key : within.keySet()) {
+			assertTrue(HashRange.keyWithinRange(HashRange.mdKey(key), start, stop));
+			assertFalse(outOfRange.containsKey(key));
+		}
+	}
+
+	@Test
+	public void testLogStorageGroupCommit() throws Exception {
+		DB.close();
+		DB = new DiskStorageLog("logDB", SERVER_NAME, 0, FsyncPolicy.ALWAYS, 100);
+		final int NUM_THREADS = 8;
+		final int NUM_PUTS = 50;
+		Thread threads[] = new Thread[NUM_THREADS];
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int id = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < NUM_PUTS; i++) {
+						DB.put("key" + id + "-" + i, "value" + i);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(NUM_THREADS * NUM_PUTS, DB.getAllKV().size());
+		// every put waited for an fsync, but concurrent puts share them
+		assertTrue(DB.getSyncCount() > 0);
+		assertTrue(DB.getSyncCount() <= NUM_THREADS * NUM_PUTS);
+	}
+}
@@ -0,0 +1,159 @@
+package testing;
+
+import DiskStorage.DiskStorageRandomAccess;
+import DiskStorage.HashRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.Map;
+
+public class DiskStorageRandomAccessTest extends TestCase {
+
+	private static final String SERVER_NAME = "mmaptest:0";
+
+	DiskStorageRandomAccess DB;
+
+	@Before
+	public void setUp() {
+		DB = new DiskStorageRandomAccess(SERVER_NAME);
+		DB.clearDisk();
+	}
+
+	@After
+	public void tearDown() {
+		DB.clearDisk();
+		DB.close();
+	}
+
+	@Test
+	public void testHashStorageSequence() {
+		assertTrue(DB.put("dummy", "dddddddddddd"));
+		assertEquals("dddddddddddd", DB.get("dummy"));
+		assertEquals(null, DB.get("dddd"));
+
+		assertTrue(DB.put("dummy", "mmmmmmm"));
+		assertEquals("mmmmmmm", DB.get("dummy"));
+
+		assertTrue(DB.put("Dummy_11", "mmmmmmm"));
+		assertTrue(DB.delelteKV("dummy"));
+		assertFalse(DB.delelteKV("dummy"));
+		assertEquals(null, DB.get("dummy"));
+		assertEquals("mmmmmmm", DB.get("Dummy_11"));
+		assertFalse(DB.onDisk("dummy"));
+		assertTrue(DB.onDisk("Dummy_11"));
+		assertEquals(1, DB.size());
+	}
+
+	@Test
+	public void testHashStorageRecovery() {
+		for (int i = 0; i < 100; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		DB.put("key0", "updated");
+		DB.delelteKV("key1");
+		DB.close();
+
+		DB = new DiskStorageRandomAccess(SERVER_NAME);
+		assertEquals("updated", DB.get("key0"));
+		assertEquals(null, DB.get("key1"));
+		assertEquals("value99", DB.get("key99"));
+		assertEquals(99, DB.getAllKV().size());
+	}
+
+	@Test
+	public void testHashStorageTornWrite() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		DB.close();
+
+		// a crash before the heap pages reached the disk: the first entry is
+		// still zeros, and the heap end stops before the last entry
+		File dir = new File("./data/mmapDB." + SERVER_NAME);
+		RandomAccessFile heap = new RandomAccessFile(new File(dir, "heap.0.dat"), "rw");
+		heap.seek(8);
+		heap.write(new byte[8 + "key0".length() + "value0".length()]);
+		heap.close();
+		RandomAccessFile index = new RandomAccessFile(new File(dir, "slots.idx"), "rw");
+		index.seek(16);
+		long heapEnd = index.readLong();
+		index.seek(16);
+		index.writeLong(heapEnd - (8 + "key99".length() + "value99".length()));
+		index.close();
+
+		DB = new DiskStorageRandomAccess(SERVER_NAME);
+		assertEquals(98, DB.size());
+		assertEquals(null, DB.get("key0"));
+		assertEquals(null, DB.get("key99"));
+		assertEquals("value50", DB.get("key50"));
+		assertEquals(98, DB.getAllKV().size());
+		// new entries go after the valid heap end and survive a reopen
+		assertTrue(DB.put("key99", "again"));
+		DB.close();
+		DB = new DiskStorageRandomAccess(SERVER_NAME);
+		assertEquals("again", DB.get("key99"));
+		assertEquals(99, DB.size());
+	}
+
+	@Test
+	public void testHashStorageGrowth() {
+		int capacity = DB.getCapacity();
+		long heapSize = DB.getHeapSize();
+		String value = new String(new char[500]).replace('\0', 'v');
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(DB.put("key" + i, value + i));
+		}
+		assertTrue(DB.getCapacity() > capacity);
+		assertTrue(DB.getHeapSize() > heapSize);
+		assertEquals(5000, DB.size());
+		for (int i = 0; i < 5000; i += 97) {
+			assertEquals(value + i, DB.get("key" + i));
+		}
+
+		// rehashed and remapped files must reopen to the same state
+		DB.close();
+		DB = new DiskStorageRandomAccess(SERVER_NAME);
+		assertEquals(5000, DB.size());
+		assertEquals(value + 4999, DB.get("key4999"));
+	}
+
+	@Test
+	public void testHashStorageCompaction() {
+		String value = new String(new char[1000]).replace('\0', 'v');
+		// overwriting a few keys over and over fills the heap with dead entries
+		for (int round = 0; round < 2000; round++) {
+			assertTrue(DB.put("key" + (round % 10), value + round));
+		}
+		long heapSize = DB.getHeapSize();
+		assertTrue(heapSize <= 2 * 1024 * 1024);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(value + (1990 + i), DB.get("key" + i));
+		}
+
+		DB.close();
+		DB = new DiskStorageRandomAccess(SERVER_NAME);
+		assertEquals(10, DB.size());
+		assertEquals(value + 1999, DB.get("key9"));
+	}
+
+	@Test
+	public void testHashStorageRange() {
+		for (int i = 0; i < 50; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		BigInteger start = HashRange.mdKey("key10");
+		BigInteger stop = HashRange.mdKey("key20");
+		Map<String, String> within = DB.getKVWithinRange(start, stop);
+		Map<String, String> outOfRange = DB.getKVOutOfRange(start, stop);
+		assertEquals(50, within.size() + outOfRange.size());
+		for (String key : within.keySet()) {
+			assertTrue(HashRange.keyWithinRange(HashRange.mdKey(key), start, stop));
+			assertFalse(outOfRange.containsKey(key));
+		}
+	}
+}
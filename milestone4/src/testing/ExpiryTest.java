@@ -0,0 +1,194 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import DiskStorage.DiskStorageLog;
+import DiskStorage.ExpiringDiskStorage;
+import DiskStorage.HashRange;
+import DiskStorage.TimerWheel;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class ExpiryTest extends TestCase {
+
+	private static final String SERVER_NAME = "expirytest:0";
+	private static final int PORT = 50020;
+	private static final BigInteger RING_END = BigInteger.ONE.shiftLeft(128);
+
+	@Test
+	public void testTimerWheel() {
+		TimerWheel wheel = new TimerWheel(10, 8, 1000);
+		wheel.schedule("soon", 1025);
+		wheel.schedule("later", 1055);
+		wheel.schedule("nextRotation", 1205);
+		wheel.schedule("overdue", 500);
+		assertEquals(4, wheel.size());
+
+		assertEquals(Collections.singletonList("overdue"), wheel.advance(1010));
+		// a key is due once its whole tick has passed, never before its deadline
+		assertTrue(wheel.advance(1029).isEmpty());
+		assertEquals(Collections.singletonList("soon"), wheel.advance(1030));
+		assertEquals(Collections.singletonList("later"), wheel.advance(1100));
+		// shares a bucket with earlier ticks but waits for its own rotation
+		assertTrue(wheel.advance(1200).isEmpty());
+		assertEquals(Collections.singletonList("nextRotation"), wheel.advance(5000));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testStoredFormat() {
+		String stored = ExpiringDiskStorage.encode("value", 12345);
+		assertEquals(12345, ExpiringDiskStorage.deadlineOf(stored));
+		assertEquals("value", ExpiringDiskStorage.valueOf(stored));
+		assertEquals("plain", ExpiringDiskStorage.encode("plain", 0));
+		assertEquals(0, ExpiringDiskStorage.deadlineOf("plain"));
+		// plain values that look like stored ones are escaped
+		String tricky = "\u000042\u0000value";
+		assertEquals(0, ExpiringDiskStorage.deadlineOf(ExpiringDiskStorage.encode(tricky, 0)));
+		assertEquals(tricky, ExpiringDiskStorage.valueOf(ExpiringDiskStorage.encode(tricky, 0)));
+	}
+
+	@Test
+	public void testPutTtlMessage() throws Exception {
+		KVMessage sent = new KVMessageClass("key", "a value", 1500);
+		KVMessage received = new KVMessageClass(sent.getMessageBytes());
+		assertEquals(StatusType.PUT_TTL, received.getStatus());
+		assertEquals("a value", received.getValue());
+		assertEquals(1500, received.getTtl());
+		assertEquals(0, new KVMessageClass(StatusType.PUT, "key", "value").getTtl());
+		try {
+			new KVMessageClass("key", "value", 0);
+			fail("Time to live must be positive");
+		} catch (Exception e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLazyAndReaperExpiry() throws Exception {
+		final List<String> expired = Collections.synchronizedList(new ArrayList<String>());
+		ExpiringDiskStorage storage = new ExpiringDiskStorage(new DiskStorageLog("expiryDB", SERVER_NAME), 20);
+		storage.clearDisk();
+		storage.setExpiryListener(new ExpiringDiskStorage.ExpiryListener() {
+			@Override
+			public void expired(String key) {
+				expired.add(key);
+			}
+		});
+		try {
+			long now = System.currentTimeMillis();
+			assertTrue(storage.put("lazy", "value", now + 100));
+			assertTrue(storage.put("reaped", "value", now + 100));
+			assertTrue(storage.put("forever", "value"));
+			assertTrue(storage.put("moved", "value", now + 60000));
+			assertEquals("value", storage.get("lazy"));
+			assertTrue(storage.onDisk("lazy"));
+
+			// moved and replicated pairs keep their deadline, expired ones are left out
+			Map<String, String> stored = storage.getStoredWithinRange(BigInteger.ZERO, RING_END);
+			assertEquals(now + 60000, ExpiringDiskStorage.deadlineOf(stored.get("moved")));
+			Thread.sleep(150);
+			stored = storage.getStoredWithinRange(BigInteger.ZERO, RING_END);
+			assertFalse(stored.containsKey("lazy"));
+			assertEquals("value", stored.get("forever"));
+			assertEquals("value", storage.getAllKV().get("moved"));
+
+			// read finds the expired key before any reaper runs
+			assertNull(storage.get("lazy"));
+			assertFalse(storage.delelteKV("reaped"));
+			assertEquals(2, storage.getExpiredCount());
+
+			assertTrue(storage.put("background", "value", System.currentTimeMillis() + 50));
+			storage.startReaper();
+			for (int i = 0; i < 100 && expired.size() < 3; i++) {
+				Thread.sleep(20);
+			}
+			assertTrue(expired.contains("lazy"));
+			assertTrue(expired.contains("reaped"));
+			assertTrue(expired.contains("background"));
+			assertEquals(3, storage.getExpiredCount());
+			assertEquals("value", storage.get("forever"));
+		} finally {
+			storage.clearDisk();
+			storage.close();
+		}
+	}
+
+	@Test
+	public void testReaperRebuildsWheelOnRestart() throws Exception {
+		File index = new File("./data", "expiring." + SERVER_NAME);
+		ExpiringDiskStorage storage = new ExpiringDiskStorage(new DiskStorageLog("expiryDB", SERVER_NAME), 20, index);
+		storage.clearDisk();
+		storage.startReaper();
+		// no reaper thread until a key has a deadline
+		storage.put("forever", "value");
+		assertFalse(storage.isReaperRunning());
+		storage.put("session", "value", System.currentTimeMillis() + 200);
+		storage.put("persisted", "value", System.currentTimeMillis() + 200);
+		storage.put("persisted", "value");
+		assertTrue(storage.isReaperRunning());
+		storage.close();
+
+		// the wheel is rebuilt from the index, skipping keys without a deadline now
+		DiskStorageLog log = new DiskStorageLog("expiryDB", SERVER_NAME);
+		storage = new ExpiringDiskStorage(log, 20, index);
+		try {
+			assertEquals(1, storage.getScheduledCount());
+			storage.startReaper();
+			for (int i = 0; i < 100 && storage.getExpiredCount() == 0; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(1, storage.getExpiredCount());
+			// deleted by the reaper, not hidden by a read
+			assertNull(log.get("session"));
+			assertEquals("value", log.get("persisted"));
+		} finally {
+			storage.clearDisk();
+			storage.close();
+			index.delete();
+		}
+	}
+
+	@Test
+	public void testServerExpiryReachesSubscribers() throws Exception {
+		KVServer kvServer = new KVServer(PORT, 10, "LRU");
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		KVStore writer = new KVStore("localhost", PORT);
+		KVStore reader = new KVStore("localhost", PORT);
+		reader.setNearCache(16);
+		try {
+			writer.connect();
+			reader.connect();
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("session", "token", 300).getStatus());
+			assertEquals("token", reader.get("session").getValue());
+			assertTrue(reader.getNearCache().contains("session"));
+			assertEquals(StatusType.PUT_UPDATE, writer.put("session", "token2", 300).getStatus());
+
+			// the deletion is pushed to the reader, whose near cache drops the key
+			for (int i = 0; i < 100 && reader.getNearCache().contains("session"); i++) {
+				Thread.sleep(20);
+			}
+			assertFalse(reader.getNearCache().contains("session"));
+			assertEquals(StatusType.GET_ERROR, writer.get("session").getStatus());
+			assertFalse(kvServer.inCache("session"));
+			assertEquals(1, kvServer.getExpiringStorage().getExpiredCount());
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("session", "token3").getStatus());
+		} finally {
+			writer.disconnect();
+			reader.disconnect();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+}
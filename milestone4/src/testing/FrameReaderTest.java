@@ -0,0 +1,126 @@
+package testing;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.communication.FrameReader;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class FrameReaderTest extends TestCase {
+
+	/**
+	 * Stream handing out at most <code>chunk</code> bytes per read, counting reads.
+	 */
+	private static class ChunkedStream extends InputStream {
+		private final ByteArrayInputStream bytes;
+		private final int chunk;
+		int reads;
+
+		ChunkedStream(byte[] data, int chunk) {
+			this.bytes = new ByteArrayInputStream(data);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read() throws IOException {
+			reads++;
+			return bytes.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			reads++;
+			return bytes.read(b, off, Math.min(len, chunk));
+		}
+	}
+
+	private static byte[] frames(KVMessage... messages) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (KVMessage message : messages) {
+			byte[] bytes = message.getMessageBytes();
+			output.write(bytes, 0, bytes.length);
+		}
+		return output.toByteArray();
+	}
+
+	private static String value(int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ('a' + i % 26));
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void testFramesAcrossAndWithinReads() throws Exception {
+		byte[] data = frames(new KVMessageClass(StatusType.PUT, "key", "D value\nD \u00e4"),
+				new KVMessageClass(StatusType.GET, "key", ""),
+				new KVMessageClass("session", "token", 5000));
+		for (int chunk : new int[] {1, 2, 3, 7, 4096}) {
+			FrameReader reader = new FrameReader(new ChunkedStream(data, chunk));
+			KVMessage put = reader.read();
+			assertEquals(StatusType.PUT, put.getStatus());
+			assertEquals("key", put.getKey());
+			assertEquals("D value\nD \u00e4", put.getValue());
+			KVMessage get = reader.read();
+			assertEquals(StatusType.GET, get.getStatus());
+			assertEquals("", get.getValue());
+			KVMessage ttl = reader.read();
+			assertEquals(StatusType.PUT_TTL, ttl.getStatus());
+			assertEquals("token", ttl.getValue());
+			assertEquals(5000, ttl.getTtl());
+			assertNull(reader.read());
+		}
+	}
+
+	@Test
+	public void testLargeValueTakesFewReads() throws Exception {
+		String large = value(120 * 1024);
+		KVMessage sent = new KVMessageClass(StatusType.PUT, "key", large);
+		ChunkedStream stream = new ChunkedStream(frames(sent, sent), 64 * 1024);
+		FrameReader reader = new FrameReader(stream);
+		assertEquals(large, reader.read().getValue());
+		assertEquals(large, reader.read().getValue());
+		assertTrue("reads: " + stream.reads, stream.reads < 20);
+		// received messages still encode to the bytes that were sent
+		stream = new ChunkedStream(frames(sent), 64 * 1024);
+		assertTrue(java.util.Arrays.equals(sent.getMessageBytes(), new FrameReader(stream).read().getMessageBytes()));
+	}
+
+	@Test
+	public void testOversizedFrameIsSkipped() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] huge = ("PUT" + "D\n" + "key" + "D\n" + value(FrameReader.MAX_FRAME_SIZE + 1000) + "D\n").getBytes("UTF-8");
+		output.write(huge, 0, huge.length);
+		// fits the buffer but exceeds the value limit of a message
+		byte[] tooLong = ("PUT" + "D\n" + "key" + "D\n" + value(130 * 1024) + "D\n").getBytes("UTF-8");
+		output.write(tooLong, 0, tooLong.length);
+		byte[] next = new KVMessageClass(StatusType.GET, "next", "").getMessageBytes();
+		output.write(next, 0, next.length);
+
+		FrameReader reader = new FrameReader(new ChunkedStream(output.toByteArray(), 10000));
+		for (int i = 0; i < 2; i++) {
+			try {
+				reader.read();
+				fail("Oversized frame and value must be rejected");
+			} catch (Exception e) {
+				// expected, the frame is consumed
+			}
+		}
+		KVMessage message = reader.read();
+		assertEquals(StatusType.GET, message.getStatus());
+		assertEquals("next", message.getKey());
+	}
+
+	@Test
+	public void testStreamEndsInsideFrame() throws Exception {
+		FrameReader reader = new FrameReader(new ByteArrayInputStream("PUTD\nkeyD\nval".getBytes("UTF-8")));
+		assertNull(reader.read());
+	}
+}
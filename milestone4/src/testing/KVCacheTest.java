@@ -0,0 +1,137 @@
+package testing;
+
+import DiskStorage.CachedDiskStorage;
+import DiskStorage.DiskStorage;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.cache.FIFOCache;
+import shared.cache.KVCache;
+import shared.cache.LFUCache;
+import shared.cache.LRUCache;
+import shared.cache.TinyLFUCache;
+
+public class KVCacheTest extends TestCase {
+
+	@Test
+	public void testFIFOCache() {
+		KVCache cache = new FIFOCache(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertEquals("1", cache.get("a"));
+		cache.put("c", "3");
+		// a was inserted first, reading it does not matter
+		assertFalse(cache.contains("a"));
+		assertTrue(cache.contains("b"));
+		assertTrue(cache.contains("c"));
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void testLRUCache() {
+		KVCache cache = new LRUCache(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertEquals("1", cache.get("a"));
+		cache.put("c", "3");
+		assertTrue(cache.contains("a"));
+		assertFalse(cache.contains("b"));
+		assertEquals(null, cache.get("b"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testLFUCache() {
+		KVCache cache = new LFUCache(3);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		cache.get("a");
+		cache.get("a");
+		cache.get("c");
+		cache.put("d", "4");
+		// b has the fewest uses
+		assertFalse(cache.contains("b"));
+		cache.put("e", "5");
+		// d and e tie on one use, d is older
+		assertFalse(cache.contains("d"));
+		assertTrue(cache.contains("e"));
+		assertTrue(cache.contains("a"));
+		assertTrue(cache.contains("c"));
+
+		cache.remove("e");
+		cache.remove("c");
+		cache.put("f", "6");
+		cache.put("g", "7");
+		cache.put("h", "8");
+		assertTrue(cache.contains("a"));
+		assertFalse(cache.contains("f"));
+		assertEquals(3, cache.getEvictions());
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void testByteBoundedCache() {
+		String small = "v";
+		String large = new String(new char[1000]).replace('\0', 'x');
+		long budget = 3 * KVCache.weigh("k0", large);
+		KVCache[] caches = {new FIFOCache(0, budget), new LRUCache(0, budget),
+				new LFUCache(0, budget), new TinyLFUCache(0, budget)};
+		for (KVCache cache : caches) {
+			for (int i = 0; i < 10; i++) {
+				cache.put("k" + i, large);
+				assertTrue(cache.getWeight() <= budget);
+			}
+			assertEquals(3, cache.size());
+
+			// many small entries fit where few large ones did
+			cache.clear();
+			assertEquals(0, cache.getWeight());
+			long weight = 0;
+			for (int i = 0; i < 50; i++) {
+				cache.put("k" + i, small);
+				weight += KVCache.weigh("k" + i, small);
+			}
+			assertEquals(50, cache.size());
+			assertEquals(weight, cache.getWeight());
+
+			// growing a value evicts others until it fits
+			cache.put("k0", large);
+			cache.put("k0", large + large);
+			assertTrue(cache.getWeight() <= budget);
+			assertEquals(large + large, cache.get("k0"));
+
+			// a value larger than the whole budget is not cached
+			cache.put("huge", large + large + large + large);
+			assertFalse(cache.contains("huge"));
+			assertTrue(cache.getWeight() <= budget);
+		}
+	}
+
+	@Test
+	public void testCachedStorageWriteThrough() throws Exception {
+		DiskStorage disk = new DiskStorage("cacheDB", "cachetest:0");
+		disk.clearDisk();
+		KVCache cache = new LRUCache(10);
+		CachedDiskStorage DB = new CachedDiskStorage(disk, cache);
+		try {
+			assertTrue(DB.put("key", "value"));
+			assertTrue(cache.contains("key"));
+			assertEquals("value", disk.get("key"));
+			assertEquals("value", DB.get("key"));
+			assertEquals(1, cache.getHits());
+
+			assertTrue(DB.delelteKV("key"));
+			assertFalse(cache.contains("key"));
+			assertEquals(null, DB.get("key"));
+
+			// values only on disk are cached on the first get
+			disk.put("cold", "value");
+			assertEquals("value", DB.get("cold"));
+			assertTrue(cache.contains("cold"));
+		} finally {
+			DB.clearDisk();
+			DB.close();
+		}
+	}
+}
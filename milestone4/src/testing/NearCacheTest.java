@@ -0,0 +1,82 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+public class NearCacheTest extends TestCase {
+
+	private static final int PORT = 50016;
+
+	private KVServer kvServer;
+	private KVStore reader;
+	private KVStore writer;
+
+	@Before
+	public void setUp() throws Exception {
+		kvServer = new KVServer(PORT, 10, "NONE");
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		reader = new KVStore("localhost", PORT);
+		reader.setNearCache(16);
+		reader.connect();
+		writer = new KVStore("localhost", PORT);
+		writer.connect();
+	}
+
+	@After
+	public void tearDown() {
+		reader.disconnect();
+		writer.disconnect();
+		kvServer.clearStorage();
+		kvServer.close();
+	}
+
+	/**
+	 * Wait until the reader's near cache holds the expected value, null for
+	 * an evicted or deleted key.
+	 */
+	private void awaitNearCache(String key, String expected) throws Exception {
+		for (int i = 0; i < 100; i++) {
+			String cached = reader.getNearCache().contains(key) ? reader.getNearCache().get(key) : null;
+			if (expected == null ? cached == null : expected.equals(cached)) {
+				return;
+			}
+			Thread.sleep(20);
+		}
+		fail("near cache did not receive update of " + key);
+	}
+
+	@Test
+	public void testRepeatedGetServedLocally() throws Exception {
+		assertEquals(StatusType.PUT_SUCCESS, reader.put("key", "value").getStatus());
+		for (int i = 0; i < 3; i++) {
+			KVMessage response = reader.get("key");
+			assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+			assertEquals("value", response.getValue());
+		}
+		assertEquals(3, reader.getNearCache().getHits());
+		assertEquals(StatusType.GET_ERROR, reader.get("missing").getStatus());
+		assertFalse(reader.getNearCache().contains("missing"));
+	}
+
+	@Test
+	public void testNearCacheFollowsOtherClients() throws Exception {
+		writer.put("key", "old");
+		assertEquals("old", reader.get("key").getValue());
+		awaitNearCache("key", "old");
+
+		writer.put("key", "new");
+		awaitNearCache("key", "new");
+		assertEquals("new", reader.get("key").getValue());
+
+		writer.put("key", "");
+		awaitNearCache("key", null);
+		assertEquals(StatusType.GET_ERROR, reader.get("key").getStatus());
+	}
+}
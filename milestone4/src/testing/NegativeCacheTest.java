@@ -0,0 +1,65 @@
+package testing;
+
+import DiskStorage.DiskStorage;
+import DiskStorage.NegativeCachedDiskStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class NegativeCacheTest extends TestCase {
+
+	private static final String SERVER_NAME = "negativetest:0";
+
+	NegativeCachedDiskStorage DB;
+
+	@Before
+	public void setUp() {
+		DB = new NegativeCachedDiskStorage(new DiskStorage("negativeDB", SERVER_NAME), 4);
+		DB.clearDisk();
+	}
+
+	@After
+	public void tearDown() {
+		DB.clearDisk();
+		DB.close();
+	}
+
+	@Test
+	public void testRepeatedMissIsCached() throws Exception {
+		assertEquals(null, DB.get("absent"));
+		assertEquals(0, DB.getHits());
+		assertEquals(null, DB.get("absent"));
+		assertFalse(DB.onDisk("absent"));
+		assertEquals(2, DB.getHits());
+		assertEquals(1, DB.size());
+	}
+
+	@Test
+	public void testPutInvalidatesMiss() throws Exception {
+		assertEquals(null, DB.get("key"));
+		assertTrue(DB.put("key", "value"));
+		assertEquals("value", DB.get("key"));
+		assertTrue(DB.onDisk("key"));
+
+		assertTrue(DB.delelteKV("key"));
+		assertEquals(null, DB.get("key"));
+		assertEquals(null, DB.get("key"));
+		assertEquals(1, DB.getHits());
+
+		DB.clearDisk();
+		assertEquals(0, DB.size());
+	}
+
+	@Test
+	public void testNegativeCacheBounded() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			assertEquals(null, DB.get("key" + i));
+		}
+		assertEquals(4, DB.size());
+		// only the most recently missed keys are remembered
+		assertEquals(null, DB.get("key9"));
+		assertEquals(null, DB.get("key0"));
+		assertEquals(1, DB.getHits());
+	}
+}
@@ -0,0 +1,148 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.KVServerConfig;
+import client.KVStore;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.communication.FrameReader;
+import shared.communication.KVFrameDecoder;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NettyFrontEndTest extends TestCase {
+
+	private static final int PORT = 50025;
+	private static final int CONNECTIONS = 200;
+
+	private static KVServer startServer(int port) throws Exception {
+		KVServerConfig config = KVServerConfig.parse(new String[]{"frontEnd=NETTY", "ioThreads=2", "workers=4"}, 0);
+		KVServer kvServer = new KVServer(port, 10, "LRU", config);
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		return kvServer;
+	}
+
+	private static String value(int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ('a' + i % 26));
+		}
+		return builder.toString();
+	}
+
+	private static void write(EmbeddedChannel channel, byte[] bytes, int from, int to) {
+		channel.writeInbound(Unpooled.copiedBuffer(bytes, from, to - from));
+	}
+
+	@Test
+	public void testDecoder() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KVFrameDecoder());
+		byte[] text = new KVMessageClass(StatusType.PUT, "key", "D value\nD \u00e4").getMessageBytes();
+		byte[] binary = new KVMessageClass("session", "token", 500).getBinaryMessageBytes();
+
+		write(channel, text, 0, 5);
+		assertNull(channel.readInbound());
+		write(channel, text, 5, text.length);
+		write(channel, binary, 0, 3);
+		KVMessage message = channel.readInbound();
+		assertEquals("D value\nD \u00e4", message.getValue());
+		assertNull(channel.readInbound());
+		write(channel, binary, 3, binary.length);
+		message = channel.readInbound();
+		assertEquals(StatusType.PUT_TTL, message.getStatus());
+		assertEquals(500, message.getTtl());
+
+		// oversized frames of both formats and a too long key are dropped, later frames still decode
+		byte[] hugeText = ("PUTD\nkeyD\n" + value(FrameReader.MAX_FRAME_SIZE + 1000) + "D\n").getBytes("UTF-8");
+		for (int i = 0; i < hugeText.length; i += 10000) {
+			write(channel, hugeText, i, Math.min(i + 10000, hugeText.length));
+		}
+		byte[] hugeBinary = KVMessageClass.encodeBinaryHeader(StatusType.PUT, "huge", FrameReader.MAX_FRAME_SIZE);
+		write(channel, hugeBinary, 0, hugeBinary.length);
+		write(channel, new byte[FrameReader.MAX_FRAME_SIZE], 0, FrameReader.MAX_FRAME_SIZE);
+		byte[] longKey = KVMessageClass.encodeBinaryHeader(StatusType.GET, value(30), 0);
+		write(channel, longKey, 0, longKey.length);
+		byte[] next = new KVMessageClass(StatusType.GET, "next", "").getMessageBytes();
+		write(channel, next, 0, next.length);
+		message = channel.readInbound();
+		assertEquals(StatusType.GET, message.getStatus());
+		assertEquals("next", message.getKey());
+		assertNull(channel.readInbound());
+		assertTrue(channel.isActive());
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	public void testRequestsAndSubscriptionUpdates() throws Exception {
+		KVServer kvServer = startServer(PORT);
+		KVStore writer = new KVStore("localhost", PORT);
+		KVStore reader = new KVStore("localhost", PORT);
+		writer.setProtocolVersion(KVMessageClass.PROTOCOL_TEXT);
+		reader.setNearCache(16);
+		try {
+			writer.connect();
+			reader.connect();
+			assertEquals(KVMessageClass.PROTOCOL_PIPELINED, reader.getProtocol());
+			String large = value(120 * 1024);
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("large", large).getStatus());
+			assertEquals(large, reader.get("large").getValue());
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("session", "token", 60000).getStatus());
+			assertEquals("token", reader.get("session").getValue());
+
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("key", "value").getStatus());
+			assertEquals("value", reader.get("key").getValue());
+			assertEquals(StatusType.PUT_UPDATE, writer.put("key", "value2").getStatus());
+			for (int i = 0; i < 100 && !"value2".equals(reader.getNearCache().get("key")); i++) {
+				Thread.sleep(20);
+			}
+			assertEquals("value2", reader.getNearCache().get("key"));
+			assertEquals(StatusType.DELETE_SUCCESS, reader.put("key", "").getStatus());
+			assertEquals(StatusType.GET_ERROR, writer.get("key").getStatus());
+		} finally {
+			writer.disconnect();
+			reader.disconnect();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+
+	@Test
+	public void testManyConnections() throws Exception {
+		KVServer kvServer = startServer(PORT + 1);
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			byte[] request = new KVMessageClass(StatusType.GET, "absent", "").getBinaryMessageBytes();
+			for (int i = 0; i < CONNECTIONS; i++) {
+				Socket socket = new Socket("localhost", PORT + 1);
+				sockets.add(socket);
+				socket.getOutputStream().write(request);
+			}
+			for (Socket socket : sockets) {
+				KVMessage response = new FrameReader(socket.getInputStream()).read();
+				assertEquals(StatusType.GET_ERROR, response.getStatus());
+			}
+			assertEquals(CONNECTIONS, kvServer.getClientCount());
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			for (int i = 0; i < 100 && kvServer.getClientCount() > 0; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(0, kvServer.getClientCount());
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+}
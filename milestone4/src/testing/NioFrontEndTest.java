@@ -0,0 +1,174 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.KVServerConfig;
+import client.KVStore;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.communication.FrameReader;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class NioFrontEndTest extends TestCase {
+
+	private static final int PORT = 50023;
+	private static final int CONNECTIONS = 300;
+
+	private static KVServer startServer(int port) throws Exception {
+		KVServerConfig config = KVServerConfig.parse(new String[]{"frontEnd=NIO", "ioThreads=2", "workers=4"}, 0);
+		KVServer kvServer = new KVServer(port, 10, "LRU", config);
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		return kvServer;
+	}
+
+	private static String value(int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ('a' + i % 26));
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void testNonBlockingFrameReader() throws Exception {
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		FrameReader reader = new FrameReader(pipe.source());
+		byte[] text = new KVMessageClass(StatusType.PUT, "key", "value").getMessageBytes();
+		byte[] binary = new KVMessageClass("session", "token", 500).getBinaryMessageBytes();
+
+		assertNull(reader.read());
+		pipe.sink().write(ByteBuffer.wrap(text, 0, 7));
+		assertNull(reader.read());
+		pipe.sink().write(ByteBuffer.wrap(text, 7, text.length - 7));
+		pipe.sink().write(ByteBuffer.wrap(binary, 0, 2));
+		assertEquals("value", reader.read().getValue());
+		assertNull(reader.read());
+		pipe.sink().write(ByteBuffer.wrap(binary, 2, binary.length - 2));
+		KVMessage message = reader.read();
+		assertEquals(StatusType.PUT_TTL, message.getStatus());
+		assertEquals(500, message.getTtl());
+		assertFalse(reader.isEnded());
+		pipe.sink().close();
+		assertNull(reader.read());
+		assertTrue(reader.isEnded());
+		pipe.source().close();
+	}
+
+	@Test
+	public void testRequestsAndSubscriptionUpdates() throws Exception {
+		KVServer kvServer = startServer(PORT);
+		KVStore writer = new KVStore("localhost", PORT);
+		KVStore reader = new KVStore("localhost", PORT);
+		writer.setProtocolVersion(KVMessageClass.PROTOCOL_TEXT);
+		reader.setNearCache(16);
+		try {
+			writer.connect();
+			reader.connect();
+			assertEquals(KVMessageClass.PROTOCOL_PIPELINED, reader.getProtocol());
+			String large = value(120 * 1024);
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("large", large).getStatus());
+			assertEquals(large, reader.get("large").getValue());
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("session", "token", 60000).getStatus());
+			assertEquals("token", reader.get("session").getValue());
+
+			// the write of one client is pushed to the other through its event loop
+			assertEquals(StatusType.PUT_SUCCESS, writer.put("key", "value").getStatus());
+			assertEquals("value", reader.get("key").getValue());
+			assertTrue(reader.getNearCache().contains("key"));
+			assertEquals(StatusType.PUT_UPDATE, writer.put("key", "value2").getStatus());
+			for (int i = 0; i < 100 && !"value2".equals(reader.getNearCache().get("key")); i++) {
+				Thread.sleep(20);
+			}
+			assertEquals("value2", reader.getNearCache().get("key"));
+			assertEquals(StatusType.DELETE_SUCCESS, reader.put("key", "").getStatus());
+			assertEquals(StatusType.GET_ERROR, writer.get("key").getStatus());
+		} finally {
+			writer.disconnect();
+			reader.disconnect();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+
+	@Test
+	public void testManyConnectionsOnFewThreads() throws Exception {
+		KVServer kvServer = startServer(PORT + 1);
+		int threadsBefore = Thread.activeCount();
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			byte[] request = new KVMessageClass(StatusType.GET, "absent", "").getMessageBytes();
+			for (int i = 0; i < CONNECTIONS; i++) {
+				Socket socket = new Socket("localhost", PORT + 1);
+				sockets.add(socket);
+				socket.getOutputStream().write(request);
+			}
+			for (Socket socket : sockets) {
+				KVMessage response = new FrameReader(socket.getInputStream()).read();
+				assertEquals(StatusType.GET_ERROR, response.getStatus());
+				assertEquals("absent", response.getKey());
+			}
+			assertEquals(CONNECTIONS, kvServer.getClientCount());
+			// event loops and workers, not a thread per connection
+			assertTrue("threads: " + Thread.activeCount(), Thread.activeCount() - threadsBefore < 20);
+
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			for (int i = 0; i < 100 && kvServer.getClientCount() > 0; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(0, kvServer.getClientCount());
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+
+	@Test
+	public void testOffHeapHitsFromDirectMemory() throws Exception {
+		KVServerConfig config = KVServerConfig.parse(new String[]{"frontEnd=NIO", "cacheOffHeap=4m"}, 0);
+		KVServer kvServer = new KVServer(PORT, 0, "NONE", config);
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		KVStore text = new KVStore("localhost", PORT);
+		KVStore pipelined = new KVStore("localhost", PORT);
+		text.setProtocolVersion(KVMessageClass.PROTOCOL_TEXT);
+		try {
+			text.connect();
+			pipelined.connect();
+			String large = value(100 * 1024);
+			assertEquals(StatusType.PUT_SUCCESS, text.put("large", large).getStatus());
+			assertTrue(kvServer.inCache("large"));
+			assertEquals(large, text.get("large").getValue());
+			// more responses than the socket takes at once, the rest is queued as copies
+			List<Future<KVMessage>> gets = new ArrayList<Future<KVMessage>>();
+			for (int i = 0; i < 50; i++) {
+				gets.add(pipelined.getAsync("large"));
+			}
+			for (Future<KVMessage> get : gets) {
+				assertEquals(large, get.get(10, TimeUnit.SECONDS).getValue());
+			}
+			assertEquals(51, kvServer.getCache().getHits());
+		} finally {
+			text.disconnect();
+			pipelined.disconnect();
+			kvServer.clearCache();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+}
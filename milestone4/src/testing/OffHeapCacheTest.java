@@ -0,0 +1,125 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.KVServerConfig;
+import client.KVStore;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.cache.OffHeapCache;
+import shared.cache.SlabAllocator;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class OffHeapCacheTest extends TestCase {
+
+	private static String repeat(char c, int count) {
+		return new String(new char[count]).replace('\0', c);
+	}
+
+	@Test
+	public void testSlabSizeClasses() {
+		assertEquals(0, SlabAllocator.classOf(1));
+		assertEquals(0, SlabAllocator.classOf(64));
+		assertEquals(1, SlabAllocator.classOf(65));
+		assertEquals(2, SlabAllocator.classOf(129));
+		assertEquals(SlabAllocator.getNumClasses() - 1, SlabAllocator.classOf(SlabAllocator.MAX_CHUNK));
+		assertEquals(-1, SlabAllocator.classOf(SlabAllocator.MAX_CHUNK + 1));
+
+		SlabAllocator allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+		long handle = allocator.allocate(100);
+		allocator.write(handle, repeat('a', 100).getBytes(StandardCharsets.UTF_8));
+		assertEquals(100, allocator.read(handle).length);
+		// the only slab went to the 128 byte class
+		assertEquals(-1, allocator.allocate(1000));
+		allocator.free(handle);
+		assertEquals(handle, allocator.allocate(100));
+	}
+
+	@Test
+	public void testOffHeapCacheValues() {
+		OffHeapCache cache = new OffHeapCache(4 * SlabAllocator.SLAB_SIZE);
+		cache.put("ascii", "value");
+		cache.put("utf8", "v\u00e4lue \u6f22");
+		assertEquals("value", cache.get("ascii"));
+		assertEquals("v\u00e4lue \u6f22", cache.get("utf8"));
+		cache.put("ascii", repeat('x', 5000));
+		assertEquals(repeat('x', 5000), cache.get("ascii"));
+		cache.remove("utf8");
+		assertEquals(null, cache.get("utf8"));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// values larger than the largest chunk are not cached
+		cache.put("huge", repeat('x', SlabAllocator.MAX_CHUNK + 1));
+		assertFalse(cache.contains("huge"));
+	}
+
+	@Test
+	public void testOffHeapCacheEviction() {
+		OffHeapCache cache = new OffHeapCache(SlabAllocator.SLAB_SIZE);
+		String value = repeat('x', 100 * 1024);
+		// one slab holds 8 chunks of 128KB
+		for (int i = 0; i < 8; i++) {
+			cache.put("key" + i, value);
+		}
+		cache.get("key0");
+		cache.put("key8", value);
+		assertTrue(cache.contains("key0"));
+		assertFalse(cache.contains("key1"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(SlabAllocator.SLAB_SIZE, cache.getAllocatedBytes());
+	}
+
+	@Test
+	public void testOffHeapCachePinnedValue() {
+		OffHeapCache cache = new OffHeapCache(SlabAllocator.SLAB_SIZE);
+		String value = repeat('x', 100 * 1024);
+		for (int i = 0; i < 8; i++) {
+			cache.put("key" + i, value);
+		}
+		OffHeapCache.ValueRef pinned = cache.pin("key0");
+		// replacing and evicting a pinned value must not reuse its chunk
+		cache.remove("key0");
+		for (int i = 8; i < 16; i++) {
+			cache.put("key" + i, repeat('y', 100 * 1024));
+		}
+		ByteBuffer buffer = pinned.getBuffer();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		pinned.close();
+		assertEquals(value, new String(bytes, StandardCharsets.UTF_8));
+		assertEquals(7, cache.size());
+
+		cache.put("after", value);
+		assertTrue(cache.contains("after"));
+	}
+
+	@Test
+	public void testOffHeapCacheServer() throws Exception {
+		KVServerConfig config = KVServerConfig.parse(new String[]{"cacheOffHeap=4m"}, 0);
+		KVServer kvServer = new KVServer(50014, 0, "NONE", config);
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		KVStore kvClient = new KVStore("localhost", 50014);
+		kvClient.connect();
+		try {
+			String value = repeat('z', 50 * 1024);
+			kvClient.put("large", value);
+			assertTrue(kvServer.inCache("large"));
+			KVMessage response = kvClient.get("large");
+			assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+			assertEquals(value, response.getValue());
+			assertEquals(1, kvServer.getCache().getHits());
+
+			assertEquals(StatusType.GET_ERROR, kvClient.get("missing").getStatus());
+		} finally {
+			kvClient.disconnect();
+			kvServer.clearCache();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+}
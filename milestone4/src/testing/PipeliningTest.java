@@ -0,0 +1,215 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.KVServerConfig;
+import client.KVStore;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.communication.FrameReader;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class PipeliningTest extends TestCase {
+
+	private static final int PORT = 50027;
+	private static final int REQUESTS = 2000;
+
+	private static KVServer startServer(int port, String frontEnd) throws Exception {
+		KVServerConfig config = KVServerConfig.parse(new String[]{"frontEnd=" + frontEnd, "ioThreads=2", "workers=4"}, 0);
+		KVServer kvServer = new KVServer(port, 10, "LRU", config);
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		return kvServer;
+	}
+
+	@Test
+	public void testRequestIdFrames() throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		byte[] get = new KVMessageClass(StatusType.GET, "key", "").getBinaryMessageBytes(7);
+		byte[] putTtl = new KVMessageClass("session", "token \u00e4", 500).getBinaryMessageBytes(Integer.MAX_VALUE);
+		byte[] update = new KVMessageClass(StatusType.SUBSCRITION_UPDATE, "key", "value").getBinaryMessageBytes();
+		byte[] header = KVMessageClass.encodeBinaryHeader(StatusType.GET_SUCCESS, "key", 5, 300);
+		stream.write(get);
+		stream.write(putTtl);
+		stream.write(update);
+		stream.write(header);
+		stream.write("value".getBytes("UTF-8"));
+
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(stream.toByteArray()));
+		KVMessage message = reader.read();
+		assertEquals(StatusType.GET, message.getStatus());
+		assertEquals(7, message.getRequestId());
+		message = reader.read();
+		assertEquals(StatusType.PUT_TTL, message.getStatus());
+		assertEquals(Integer.MAX_VALUE, message.getRequestId());
+		assertEquals(500, message.getTtl());
+		assertEquals("token \u00e4", message.getValue());
+		message = reader.read();
+		assertEquals(StatusType.SUBSCRITION_UPDATE, message.getStatus());
+		assertEquals(0, message.getRequestId());
+		message = reader.read();
+		assertEquals(300, message.getRequestId());
+		assertEquals("value", message.getValue());
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void testPipelinedRequests() throws Exception {
+		String[] frontEnds = {"THREAD", "NIO", "NETTY"};
+		for (int f = 0; f < frontEnds.length; f++) {
+			KVServer kvServer = startServer(PORT + f, frontEnds[f]);
+			KVStore store = new KVStore("localhost", PORT + f);
+			KVStore other = new KVStore("localhost", PORT + f);
+			store.setNearCache(16);
+			try {
+				store.connect();
+				other.connect();
+				assertTrue(store.isPipelining());
+
+				List<Future<KVMessage>> puts = new ArrayList<Future<KVMessage>>();
+				for (int i = 0; i < REQUESTS; i++) {
+					puts.add(store.putAsync("key" + i, "value" + i));
+				}
+				// a synchronous request and subscription updates share the connection
+				assertEquals("value0", store.get("key0").getValue());
+				assertEquals(StatusType.PUT_UPDATE, other.put("key0", "other").getStatus());
+				for (int i = 0; i < 100 && !"other".equals(store.getNearCache().get("key0")); i++) {
+					Thread.sleep(20);
+				}
+				assertEquals("other", store.getNearCache().get("key0"));
+				List<Future<KVMessage>> gets = new ArrayList<Future<KVMessage>>();
+				for (int i = 0; i < REQUESTS; i++) {
+					gets.add(store.getAsync("key" + i));
+				}
+				for (int i = 0; i < REQUESTS; i++) {
+					KVMessage put = puts.get(i).get(10, TimeUnit.SECONDS);
+					assertEquals(StatusType.PUT_SUCCESS, put.getStatus());
+					assertEquals("key" + i, put.getKey());
+					KVMessage get = gets.get(i).get(10, TimeUnit.SECONDS);
+					assertEquals("key" + i, get.getKey());
+					assertEquals((i == 0) ? "other" : "value" + i, get.getValue());
+				}
+				// a pipelined write drops the near cache entry
+				assertEquals(StatusType.DELETE_SUCCESS, store.putAsync("key0", "").get().getStatus());
+				assertFalse(store.getNearCache().contains("key0"));
+				assertEquals(StatusType.GET_ERROR, other.get("key0").getStatus());
+			} finally {
+				store.disconnect();
+				other.disconnect();
+				kvServer.clearStorage();
+				kvServer.close();
+			}
+		}
+	}
+
+	@Test
+	public void testOlderProtocolFallsBack() throws Exception {
+		KVServer kvServer = startServer(PORT, "THREAD");
+		KVStore store = new KVStore("localhost", PORT);
+		store.setProtocolVersion(KVMessageClass.PROTOCOL_BINARY);
+		try {
+			store.connect();
+			assertEquals(KVMessageClass.PROTOCOL_BINARY, store.getProtocol());
+			assertFalse(store.isPipelining());
+			Future<KVMessage> put = store.putAsync("key", "value");
+			assertTrue(put.isDone());
+			assertEquals(StatusType.PUT_SUCCESS, put.get().getStatus());
+			assertEquals("value", store.getAsync("key").get().getValue());
+		} finally {
+			store.disconnect();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+
+	@Test
+	public void testLostConnectionFailsPendingRequests() throws Exception {
+		final ServerSocket server = new ServerSocket(PORT + 3);
+		KVStore store = new KVStore("localhost", PORT + 3);
+		final Socket[] accepted = new Socket[1];
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// agree on the pipelined protocol, then never answer
+					accepted[0] = server.accept();
+					new FrameReader(accepted[0].getInputStream()).read();
+					accepted[0].getOutputStream().write(new KVMessageClass(StatusType.PROTOCOL, "",
+							String.valueOf(KVMessageClass.PROTOCOL_PIPELINED)).getMessageBytes());
+				} catch (Exception e) {
+					// the test fails on the protocol check
+				}
+			}
+		});
+		acceptor.start();
+		try {
+			store.connect();
+			acceptor.join();
+			assertTrue(store.isPipelining());
+			Future<KVMessage> get = store.getAsync("key");
+			Future<KVMessage> put = store.putAsync("key", "value");
+			assertFalse(get.isDone());
+			accepted[0].close();
+			try {
+				get.get(5, TimeUnit.SECONDS);
+				fail("request on a lost connection did not fail");
+			} catch (ExecutionException e) {
+				// expected
+			}
+			try {
+				put.get(5, TimeUnit.SECONDS);
+				fail("request on a lost connection did not fail");
+			} catch (ExecutionException e) {
+				// expected
+			}
+		} finally {
+			store.disconnect();
+			server.close();
+		}
+	}
+
+	/**
+	 * Requests per second of one connection, waiting for each response or
+	 * pipelining all of them.
+	 */
+	@Test
+	public void testPipeliningBenchmark() throws Exception {
+		KVServer kvServer = startServer(PORT, "THREAD");
+		KVStore store = new KVStore("localhost", PORT);
+		try {
+			store.connect();
+			store.put("key", "value");
+			long start = System.nanoTime();
+			for (int i = 0; i < REQUESTS; i++) {
+				assertEquals("value", store.get("key").getValue());
+			}
+			long serial = System.nanoTime() - start;
+			start = System.nanoTime();
+			List<Future<KVMessage>> gets = new ArrayList<Future<KVMessage>>(REQUESTS);
+			for (int i = 0; i < REQUESTS; i++) {
+				gets.add(store.getAsync("key"));
+			}
+			for (Future<KVMessage> get : gets) {
+				assertEquals("value", get.get(10, TimeUnit.SECONDS).getValue());
+			}
+			long pipelined = System.nanoTime() - start;
+			System.out.println(String.format("serial    %d requests/s", REQUESTS * 1000000000L / serial));
+			System.out.println(String.format("pipelined %d requests/s", REQUESTS * 1000000000L / pipelined));
+		} finally {
+			store.disconnect();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import org.junit.Test;
+import junit.framework.TestCase;
+import shared.communication.FrameReader;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageClass;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProtocolTest extends TestCase {
+
+	private static final int PORT = 50022;
+	private static final int BENCHMARK_MESSAGES = 10000;
+	private static final int BENCHMARK_ROUNDS = 20;
+
+	private static byte[] concat(List<byte[]> frames) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (byte[] frame : frames) {
+			output.write(frame, 0, frame.length);
+		}
+		return output.toByteArray();
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		List<KVMessage> sent = new ArrayList<KVMessage>();
+		for (StatusType status : StatusType.values()) {
+			if (status != StatusType.PUT_TTL) {
+				sent.add(new KVMessageClass(status, "key-" + status.ordinal(), "value D\n \u00e4"));
+			}
+		}
+		sent.add(new KVMessageClass("session", "token", 300000));
+		sent.add(new KVMessageClass(StatusType.PUT, "", ""));
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 120 * 1024; i++) {
+			large.append((char) ('a' + i % 26));
+		}
+		sent.add(new KVMessageClass(StatusType.PUT, "large", large.toString()));
+
+		List<byte[]> frames = new ArrayList<byte[]>();
+		for (KVMessage message : sent) {
+			frames.add(message.getBinaryMessageBytes());
+		}
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(concat(frames)));
+		for (KVMessage expected : sent) {
+			KVMessage received = reader.read();
+			assertEquals(expected.getStatus(), received.getStatus());
+			assertEquals(expected.getStatusString(), received.getStatusString());
+			assertEquals(expected.getKey(), received.getKey());
+			assertEquals(expected.getValue(), received.getValue());
+			assertEquals(expected.getTtl(), received.getTtl());
+		}
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void testMixedAndOversizedFrames() throws Exception {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		frames.add(new KVMessageClass(StatusType.PUT, "text", "value").getMessageBytes());
+		// header claims a value beyond the frame limit, the value bytes follow
+		byte[] header = KVMessageClass.encodeBinaryHeader(StatusType.PUT, "huge", FrameReader.MAX_FRAME_SIZE);
+		frames.add(header);
+		frames.add(new byte[FrameReader.MAX_FRAME_SIZE]);
+		frames.add(new KVMessageClass(StatusType.GET, "binary", "").getBinaryMessageBytes());
+		byte[] data = concat(frames);
+
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(data));
+		assertEquals("text", reader.read().getKey());
+		try {
+			reader.read();
+			fail("Oversized binary frame must be rejected");
+		} catch (Exception e) {
+			// expected, the frame is consumed
+		}
+		KVMessage message = reader.read();
+		assertEquals(StatusType.GET, message.getStatus());
+		assertEquals("binary", message.getKey());
+		assertNull(reader.read());
+
+		// a frame cut short ends the stream
+		reader = new FrameReader(new ByteArrayInputStream(new KVMessageClass(StatusType.PUT, "key", "value").getBinaryMessageBytes(), 0, 6));
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void testNegotiation() throws Exception {
+		KVServer kvServer = new KVServer(PORT, 10, "LRU");
+		new Thread(kvServer).start();
+		Thread.sleep(1000);
+		KVStore binary = new KVStore("localhost", PORT);
+		KVStore text = new KVStore("localhost", PORT);
+		text.setProtocolVersion(KVMessageClass.PROTOCOL_TEXT);
+		try {
+			binary.connect();
+			text.connect();
+			assertEquals(KVMessageClass.PROTOCOL_PIPELINED, binary.getProtocol());
+			assertEquals(KVMessageClass.PROTOCOL_TEXT, text.getProtocol());
+
+			assertEquals(StatusType.PUT_SUCCESS, binary.put("shared", "from binary").getStatus());
+			assertEquals("from binary", text.get("shared").getValue());
+			assertEquals(StatusType.PUT_UPDATE, text.put("shared", "from text \u00e4").getStatus());
+			assertEquals("from text \u00e4", binary.get("shared").getValue());
+			assertEquals(StatusType.PUT_SUCCESS, binary.put("session", "token", 60000).getStatus());
+			assertEquals("token", text.get("session").getValue());
+			assertEquals(StatusType.DELETE_SUCCESS, binary.put("shared", "").getStatus());
+			assertEquals(StatusType.GET_ERROR, binary.get("shared").getStatus());
+		} finally {
+			binary.disconnect();
+			text.disconnect();
+			kvServer.clearStorage();
+			kvServer.close();
+		}
+	}
+
+	@Test
+	public void testSilentServerKeepsTextProtocol() throws Exception {
+		ServerSocket silent = new ServerSocket(PORT + 1);
+		KVStore store = new KVStore("localhost", PORT + 1);
+		try {
+			long start = System.currentTimeMillis();
+			store.connect();
+			Socket accepted = silent.accept();
+			assertEquals(KVMessageClass.PROTOCOL_TEXT, store.getProtocol());
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			// the PROTOCOL request was sent as a text message
+			KVMessage request = new FrameReader(accepted.getInputStream()).read();
+			assertEquals(StatusType.PROTOCOL, request.getStatus());
+			assertEquals(String.valueOf(KVMessageClass.PROTOCOL_PIPELINED), request.getValue());
+			accepted.close();
+		} finally {
+			store.disconnect();
+			silent.close();
+		}
+	}
+
+	/**
+	 * Encode and decode cost of both protocols for a typical small request.
+	 */
+	@Test
+	public void testEncodeDecodeBenchmark() throws Exception {
+		long[] textNanos = new long[2];
+		long[] binaryNanos = new long[2];
+		int textBytes = 0, binaryBytes = 0;
+		for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+			List<byte[]> text = new ArrayList<byte[]>(BENCHMARK_MESSAGES);
+			List<byte[]> binary = new ArrayList<byte[]>(BENCHMARK_MESSAGES);
+			long start = System.nanoTime();
+			for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+				text.add(new KVMessageClass(StatusType.SERVER_NOT_RESPONSIBLE, "key" + i, "value" + i).getMessageBytes());
+			}
+			long encodedText = System.nanoTime();
+			for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+				binary.add(new KVMessageClass(StatusType.SERVER_NOT_RESPONSIBLE, "key" + i, "value" + i).getBinaryMessageBytes());
+			}
+			long encodedBinary = System.nanoTime();
+			byte[] textStream = concat(text);
+			byte[] binaryStream = concat(binary);
+			long decodeStart = System.nanoTime();
+			FrameReader reader = new FrameReader(new ByteArrayInputStream(textStream));
+			for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+				assertEquals(StatusType.SERVER_NOT_RESPONSIBLE, reader.read().getStatus());
+			}
+			long decodedText = System.nanoTime();
+			reader = new FrameReader(new ByteArrayInputStream(binaryStream));
+			for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+				assertEquals(StatusType.SERVER_NOT_RESPONSIBLE, reader.read().getStatus());
+			}
+			long decodedBinary = System.nanoTime();
+			if (round >= BENCHMARK_ROUNDS / 2) {	// first half warms up
+				textNanos[0] += encodedText - start;
+				binaryNanos[0] += encodedBinary - encodedText;
+				textNanos[1] += decodedText - decodeStart;
+				binaryNanos[1] += decodedBinary - decodedText;
+			}
+			textBytes = textStream.length;
+			binaryBytes = binaryStream.length;
+		}
+		long measured = (long) BENCHMARK_MESSAGES * (BENCHMARK_ROUNDS - BENCHMARK_ROUNDS / 2);
+		System.out.println(String.format("text   encode %d ns/msg, decode %d ns/msg, %d bytes/msg",
+				textNanos[0] / measured, textNanos[1] / measured, textBytes / BENCHMARK_MESSAGES));
+		System.out.println(String.format("binary encode %d ns/msg, decode %d ns/msg, %d bytes/msg",
+				binaryNanos[0] / measured, binaryNanos[1] / measured, binaryBytes / BENCHMARK_MESSAGES));
+		assertTrue(binaryBytes * 2 < textBytes);
+	}
+}
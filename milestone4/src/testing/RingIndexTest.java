@@ -0,0 +1,61 @@
+package testing;
+
+import DiskStorage.HashRange;
+import DiskStorage.RingIndex;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class RingIndexTest extends TestCase {
+
+	private static final int NUM_KEYS = 500;
+
+	private RingIndex fillIndex() {
+		RingIndex ringIndex = new RingIndex();
+		for (int i = 0; i < NUM_KEYS; i++) {
+			ringIndex.add("key" + i);
+		}
+		return ringIndex;
+	}
+
+	/**
+	 * Ring index must agree with HashRange.keyWithinRange for every key.
+	 */
+	private void checkRange(RingIndex ringIndex, BigInteger start, BigInteger stop) {
+		List<String> within = ringIndex.keysWithinRange(start, stop);
+		List<String> outOfRange = ringIndex.keysOutOfRange(start, stop);
+		assertEquals(ringIndex.size(), within.size() + outOfRange.size());
+		Set<String> withinSet = new HashSet<String>(within);
+		for (int i = 0; i < NUM_KEYS; i++) {
+			String key = "key" + i;
+			assertEquals(HashRange.keyWithinRange(HashRange.mdKey(key), start, stop), withinSet.contains(key));
+		}
+	}
+
+	@Test
+	public void testRingIndexRanges() {
+		RingIndex ringIndex = fillIndex();
+		BigInteger a = HashRange.mdKey("key10");
+		BigInteger b = HashRange.mdKey("key20");
+		checkRange(ringIndex, a.min(b), a.max(b));		// plain range
+		checkRange(ringIndex, a.max(b), a.min(b));		// wraps around the ring
+		checkRange(ringIndex, a, a);					// whole ring but the start key
+		checkRange(ringIndex, a, a.add(BigInteger.ONE));	// empty range
+	}
+
+	@Test
+	public void testRingIndexRemove() {
+		RingIndex ringIndex = fillIndex();
+		ringIndex.add("key0");
+		assertEquals(NUM_KEYS, ringIndex.size());
+		ringIndex.remove("key0");
+		ringIndex.remove("missing");
+		assertEquals(NUM_KEYS - 1, ringIndex.size());
+		BigInteger token = HashRange.mdKey("key0");
+		assertFalse(ringIndex.keysOutOfRange(token, token).contains("key0"));
+	}
+}
@@ -0,0 +1,118 @@
+package testing;
+
+import DiskStorage.DiskStorage;
+import DiskStorage.DiskStorageInterface;
+import DiskStorage.HashRange;
+import DiskStorage.ShardedDiskStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class ShardedDiskStorageTest extends TestCase {
+
+	private static final String SERVER_NAME = "shardtest:0";
+	private static final int SHARDS = 4;
+
+	ShardedDiskStorage DB;
+
+	private ShardedDiskStorage open() {
+		return new ShardedDiskStorage(SHARDS, new ShardedDiskStorage.ShardFactory() {
+			@Override
+			public DiskStorageInterface create(int shard) {
+				return new DiskStorage("shardDB.shard" + shard, SERVER_NAME);
+			}
+		});
+	}
+
+	@Before
+	public void setUp() {
+		DB = open();
+		DB.clearDisk();
+	}
+
+	@After
+	public void tearDown() {
+		DB.clearDisk();
+		DB.close();
+	}
+
+	@Test
+	public void testShardedStorageSequence() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			assertTrue(DB.put("key" + i, "value" + i));
+		}
+		assertEquals("value42", DB.get("key42"));
+		assertTrue(DB.delelteKV("key42"));
+		assertFalse(DB.onDisk("key42"));
+		assertEquals(null, DB.get("key42"));
+		assertEquals(99, DB.getAllKV().size());
+
+		// every shard got a share of the keys
+		int[] counts = new int[SHARDS];
+		for (int i = 0; i < 100; i++) {
+			counts[ShardedDiskStorage.shardOf("key" + i, SHARDS)]++;
+		}
+		for (int count : counts) {
+			assertTrue(count > 0);
+		}
+
+		DB.close();
+		DB = open();
+		assertEquals("value99", DB.get("key99"));
+		assertEquals(99, DB.getAllKV().size());
+	}
+
+	@Test
+	public void testShardedStorageRange() throws Exception {
+		for (int i = 0; i < 50; i++) {
+			DB.put("key" + i, "value" + i);
+		}
+		BigInteger start = HashRange.mdKey("key10");
+		BigInteger stop = HashRange.mdKey("key20");
+		Map<String, String> within = DB.getKVWithinRange(start, stop);
+		Map<String, String> outside = DB.getKVOutOfRange(start, stop);
+		assertEquals(50, within.size() + outside.size());
+		for (String key : within.keySet()) {
+			assertTrue(HashRange.keyWithinRange(HashRange.mdKey(key), start, stop));
+		}
+	}
+
+	@Test
+	public void testShardedStorageConcurrentWriters() throws Exception {
+		final int threads = 8;
+		final int keysPerThread = 200;
+		List<Thread> writers = new ArrayList<Thread>();
+		final boolean[] failed = new boolean[1];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < keysPerThread; i++) {
+							if (!DB.put("t" + id + "-" + i, "v" + i)) {
+								failed[0] = true;
+							}
+						}
+					} catch (Exception e) {
+						failed[0] = true;
+					}
+				}
+			});
+			writers.add(writer);
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertFalse(failed[0]);
+		assertEquals(threads * keysPerThread, DB.getAllKV().size());
+		assertEquals("v7", DB.get("t3-7"));
+	}
+}